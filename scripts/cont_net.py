@@ -19,6 +19,8 @@ class SenderProtocol(Protocol):
     def __init__(self, addr, f):
         self.addr = addr
         self.factory = f
+        # Statements end in a newline, big ones may come in over several reads
+        self.buf = ''
     
     def connectionMade(self):
         output('-- [STATUSSENDER] Connection made.\n')
@@ -27,16 +29,24 @@ class SenderProtocol(Protocol):
         self.transport.write(s)
 
     def dataReceived(self, data):
+        self.buf += data
+        while('\n' in self.buf):
+            line, self.buf = self.buf.split('\n', 1)
+            if(line.strip()):
+                self.handleQuery(line)
+
+    def handleQuery(self, data):
         data = data.rstrip()
-        output('-- [STATUSSENDER] Received: %s\n' % data)
+        output('-- [STATUSSENDER] Received: %s\n' % data[:200])
         # On getting a query, send it to subproc
         output('-- [CONT_NET] Calling exec_cmd python\n')
         outBlk = "out-%d-%s-%04d" % (self.factory.appid, self.factory.myhostname, self.factory.queryNum)
         self.factory.queryNum += 1
-        cmd = "python exec_cmd.py %s '%s'" % (outBlk, data)
-        output('-- CMD: "%s"\n' % cmd)
-        proc = subprocess.Popen(cmd, shell=True, stdout=subprocess.PIPE, stderr=subprocess.PIPE)
-        stdoutput, errors = proc.communicate()
+        # The statement goes on stdin, never through a shell
+        cmd = ['python', 'exec_cmd.py', outBlk]
+        output('-- CMD: "%s"\n' % ' '.join(cmd))
+        proc = subprocess.Popen(cmd, stdin=subprocess.PIPE, stdout=subprocess.PIPE, stderr=subprocess.PIPE)
+        stdoutput, errors = proc.communicate(data)
         output('-- [CONT_NET] exec_cmd communicate finished\n')
 
         if(proc.returncode):
@@ -0,0 +1,148 @@
+#!/usr/bin/python
+"""Coordinator side of a join between two tables that aren't partitioned the same way.
+
+Usage:
+  coord_join.py build <coord db> <cache KiB> <table> <key attr> <max keys> <max bloom bits> <node output dbs...>
+      Collect one side's rows into the coordinator database and print a filter for its
+      distinct join keys, one of:
+        IN <list>            up to <max keys> keys, to put in an IN (...)
+        BLOOM <m> <k> <hex>  a Bloom filter of m bits and k hashes, checked on the nodes by
+                             exec_cmd.py's bloom_match(), must hash the same way as there
+        *                    too many keys for a filter that would rule much out
+  coord_join.py join <coord db> <cache KiB> <table> <query> <node output dbs...>
+      Collect the other side's rows and run the original join query over both
+  coord_join.py dump <coord db> <cache KiB> <table> <dump file> <node output dbs...>
+      Collect a table's rows and write them to <dump file> to be routed again: per row
+      its rowid in the coordinator database and its values as sqlite's quote() gives them
+      (strings single quoted, NULL for nulls, X'..' for blobs), comma separated. A
+      newline inside a quoted string is part of the row, one outside ends it
+  coord_join.py place <coord db> <cache KiB> <table> <ids file> <out db> [<ids file> <out db>...]
+      Copy the dumped rows whose rowids are listed in each <ids file>, one per line, into
+      <table> of a database of their own. The values are copied as they are
+
+The coordinator database is a file, sqlite keeps <cache KiB> of it in memory and
+spills the rest of the join to disk.
+"""
+import sys, io, math, binascii
+import sqlite3 as lite
+
+# Aim for this false positive rate, give up on the filter past MAX_FPP
+TARGET_FPP = 0.01
+MAX_FPP = 0.5
+
+def collect(con, table, files):
+    """Copy the table out of every node's output database into the coordinator's."""
+    for i, f in enumerate(files):
+        con.execute("attach database ? as e%d" % i, (f,))
+        if(i == 0):
+            con.execute("create table %s as select * from e%d.%s" % (table, i, table))
+        else:
+            con.execute("insert into %s select * from e%d.%s" % (table, i, table))
+        con.commit()
+        # Only a handful of databases can be attached at once
+        con.execute("detach database e%d" % i)
+
+def canon(v):
+    """Text of a key for hashing, whole numbers look the same whatever their type."""
+    if(isinstance(v, float) and v == int(v)):
+        v = int(v)
+    if(isinstance(v, (int, float)) or type(v).__name__ == 'long'):
+        s = repr(v).rstrip('L')
+    else:
+        s = v
+    if(not isinstance(s, bytes)):
+        s = s.encode('utf-8')
+    return s
+
+def bloomHash(v):
+    """FNV-1a 64 bit hash of the key, the two halves are used for double hashing."""
+    h = 0xcbf29ce484222325
+    for b in bytearray(canon(v)):
+        h = ((h ^ b) * 0x100000001b3) & 0xffffffffffffffff
+    return h & 0xffffffff, h >> 32
+
+def bloomFilter(con, table, key, n, maxBits):
+    """Build a filter of the n distinct keys, None if it would let most things through."""
+    m = min(maxBits, int(math.ceil(-n * math.log(TARGET_FPP) / (math.log(2) ** 2))))
+    m = max(8, m - m % 8)
+    k = max(1, min(8, int(round(float(m) / n * math.log(2)))))
+    if((1 - math.exp(-float(k) * n / m)) ** k > MAX_FPP):
+        return None
+    bits = bytearray(m // 8)
+    for r in con.execute("select distinct %s from %s where %s is not null" % (key, table, key)):
+        h1, h2 = bloomHash(r[0])
+        for i in range(k):
+            bit = (h1 + i * h2) % m
+            bits[bit >> 3] |= 1 << (bit & 7)
+    return 'BLOOM %d %d %s' % (m, k, binascii.hexlify(bits).decode('ascii'))
+
+def literal(v):
+    """SQL for a value, strings are built with char() so there are no quotes in them
+        to get wrong."""
+    if(isinstance(v, (int, float)) or type(v).__name__ == 'long'):
+        return repr(v).rstrip('L')
+    return 'char(%s)' % ','.join([str(ord(c)) for c in v])
+
+def place(con, table, idsFile, outDb):
+    """Copy the rows listed in idsFile into outDb, which gets an empty table if there are none."""
+    con.execute("attach database ? as p", (outDb,))
+    con.execute("create table p.%s as select * from %s where 0" % (table, table))
+    con.execute("create temp table ids (id integer primary key)")
+    f = io.open(idsFile, 'r', encoding='utf-8')
+    try:
+        con.executemany("insert or ignore into temp.ids values (?)", ((int(l),) for l in f if l.strip()))
+    finally:
+        f.close()
+    con.execute("insert into p.%s select * from %s where rowid in (select id from temp.ids)" % (table, table))
+    con.commit()
+    con.execute("drop table temp.ids")
+    con.execute("detach database p")
+
+if __name__ == "__main__":
+    if(len(sys.argv) < 7 or sys.argv[1] not in ('build', 'join', 'dump', 'place')):
+        print("ERROR: usage: %s build|join|dump|place <coord db> <cache KiB> <table> <key attr>|<query>|<dump file>|<ids file> [<max keys> <max bloom bits>] <dbs...>" % sys.argv[0])
+        exit(1)
+    mode = sys.argv[1]
+    con = lite.connect(sys.argv[2])
+    try:
+        con.execute("pragma cache_size = -%d" % int(sys.argv[3]))
+        con.execute("pragma temp_store = file")
+        table = sys.argv[4]
+        if(mode == 'build'):
+            key = sys.argv[5]
+            maxKeys = int(sys.argv[6])
+            maxBits = int(sys.argv[7])
+            collect(con, table, sys.argv[8:])
+            keys = [r[0] for r in con.execute("select distinct %s from %s where %s is not null limit %d" % (key, table, key, maxKeys + 1))]
+            if(len(keys) <= maxKeys):
+                print('IN ' + ','.join([literal(k) for k in keys]))
+            else:
+                n = con.execute("select count(distinct %s) from %s" % (key, table)).fetchone()[0]
+                print(bloomFilter(con, table, key, n, maxBits) or '*')
+        elif(mode == 'dump'):
+            collect(con, table, sys.argv[6:])
+            cols = [d[0] for d in con.execute("select * from %s limit 0" % table).description]
+            sel = ', '.join(['rowid'] + ['quote("%s")' % c for c in cols])
+            out = io.open(sys.argv[5], 'w', encoding='utf-8')
+            try:
+                n = 0
+                for row in con.execute("select %s from %s" % (sel, table)):
+                    out.write(u','.join([u'%d' % row[0]] + [c.decode('utf-8') if isinstance(c, bytes) else c for c in row[1:]]) + u'\n')
+                    n += 1
+            finally:
+                out.close()
+            print(n)
+        elif(mode == 'place'):
+            if(len(sys.argv) % 2 != 1):
+                raise Exception("place needs an out db for every ids file")
+            for i in range(5, len(sys.argv), 2):
+                place(con, table, sys.argv[i], sys.argv[i + 1])
+        else:
+            collect(con, table, sys.argv[6:])
+            for row in con.execute(sys.argv[5]):
+                print('|'.join(['' if c is None else '%s' % (c,) for c in row]))
+    except Exception as e:
+        print("ERROR: %s" % str(e))
+        exit(1)
+    finally:
+        con.close()
@@ -1,11 +1,14 @@
 #!/usr/bin/python
-import re, os, subprocess, traceback
+import re, os, subprocess, traceback, binascii
 import sqlite3 as lite
 import sys
 
 DBPATH = "/home/hduser/test.db"
 queryType = ''
 queryTable = ''
+isJoin = False
+# Bloom filters sent along with a select as /*bloomN m k hex*/, N -> (m, k, bits)
+blooms = {}
 
 def fixInsertVals(pred):
     """This function takes a predicate segment like "(7," and it surrounds the actual value with quotes.
@@ -16,11 +19,81 @@ def fixInsertVals(pred):
     pred = pred.replace(p, q)
     return pred
 
+def createResultTable(cur_out, table, description):
+    """Create the output table with one column per result column, duplicate names get a suffix."""
+    cols = []
+    for d in description:
+        name = d[0]
+        n = 2
+        while(name in cols):
+            name = '%s_%d' % (d[0], n)
+            n += 1
+        cols.append(name)
+    cur_out.execute('create table %s (%s)' % (table, ', '.join(['"%s"' % c for c in cols])))
+
+def canon(v):
+    """Text of a key for hashing, whole numbers look the same whatever their type.
+        Must match coord_join.py"""
+    if(isinstance(v, float) and v == int(v)):
+        v = int(v)
+    if(isinstance(v, (int, float)) or type(v).__name__ == 'long'):
+        s = repr(v).rstrip('L')
+    else:
+        s = v
+    if(not isinstance(s, bytes)):
+        s = s.encode('utf-8')
+    return s
+
+def bloomMatch(v, fid):
+    """SQL function bloom_match(value, N), false only if filter N definitely doesn't have the value."""
+    if(v is None):
+        return 0
+    m, k, bits = blooms[fid]
+    h = 0xcbf29ce484222325
+    for b in bytearray(canon(v)):
+        h = ((h ^ b) * 0x100000001b3) & 0xffffffffffffffff
+    h1, h2 = h & 0xffffffff, h >> 32
+    for i in range(k):
+        bit = (h1 + i * h2) % m
+        if(not bits[bit >> 3] & (1 << (bit & 7))):
+            return 0
+    return 1
+
+def loadBlooms(query):
+    """Pick the Bloom filters out of the query's comments."""
+    for fid, m, k, hexBits in re.findall(r'/\*bloom(\d+) (\d+) (\d+) ([0-9a-f]+)\*/', query):
+        blooms[int(fid)] = (int(m), int(k), bytearray(binascii.unhexlify(hexBits)))
+
+def loadRows(con, query):
+    """LOADROWS <table> <blk> [replace]: insert the table's rows from the db blk in HDFS,
+        with replace instead of the ones there, in one transaction."""
+    args = query.split()
+    table, blk = args[1], args[2]
+    proc = subprocess.Popen(['hdfs', 'dfs', '-copyToLocal', blk, blk], stdout=subprocess.PIPE, stderr=subprocess.PIPE)
+    stdoutput, errors = proc.communicate()
+    if(proc.returncode):
+        raise Exception('Unable to perform hdfs operation %s' % errors)
+    try:
+        con.execute("attach database ? as moved", (blk,))
+        try:
+            if(len(args) > 3 and args[3] == 'replace'):
+                con.execute("delete from %s" % table)
+            con.execute("insert into %s select * from moved.%s" % (table, table))
+            con.commit()
+        except:
+            con.rollback()
+            raise
+        finally:
+            con.execute("detach database moved")
+    finally:
+        os.remove(blk)
+
 def fixQuery(query):
     """The version of sqlite to support a multi-value insert statement is 3.7.11, assuming we don't have this
         we need to fix the statement."""
     global queryType
     global queryTable
+    global isJoin
     newQueryList = []
     
     #Make sure we compare against the proper string
@@ -71,6 +144,7 @@ def fixQuery(query):
     
     elif("select" in lwrq[0]):
         queryType = 'select'
+        loadBlooms(query)
         # Find the table name to get the schema
         regex = re.match('.*from (.*)', query)
         if(regex):
@@ -80,6 +154,9 @@ def fixQuery(query):
                 queryTable = res.split(' ')[0]
             else:
                 queryTable = res
+            # A join's rows don't look like either table, more than one table in the from clause
+            fromList = re.split(r'\swhere\s', ' ' + res.lower() + ' ')[0]
+            isJoin = (',' in fromList) or (re.search(r'\sjoin\s', fromList) is not None)
         else:
             print('ERROR no match ERROR1')
         newQueryList.append(query)
@@ -87,6 +164,10 @@ def fixQuery(query):
     elif("create" in lwrq[0]):
         queryType = 'create'
         newQueryList.append(query)
+
+    elif(lwrq[0] == "loadrows"):
+        queryType = 'loadrows'
+        newQueryList.append(query)
     
     else:
         queryType = 'other'
@@ -99,8 +180,11 @@ if __name__ == "__main__":
     outputdb = sys.argv[1]
     #print('-- DB file: %s' % outputdb)
     #print('-- OS CWD: %s' % os.getcwd())
-    query = sys.argv[2:]
-    query = ' '.join(query)
+    # The statement comes on stdin, or as the rest of the arguments
+    if(len(sys.argv) > 2):
+        query = ' '.join(sys.argv[2:])
+    else:
+        query = sys.stdin.read()
     query = query.strip()
     
     #Fix the query if required depending on type
@@ -112,10 +196,24 @@ if __name__ == "__main__":
         exit(1)
 
     con = lite.connect(DBPATH)
+    con.create_function("bloom_match", 2, bloomMatch)
+    if(queryType == 'loadrows'):
+        try:
+            loadRows(con, query[0])
+            print('SUCCESS:NOTSELECT')
+        except Exception as e:
+            print('ERROR: %s' % str(e))
+        finally:
+            con.close()
+        exit(0)
     try:
         cur = con.cursor()
         # If SELECT get the table schema
-        if(queryType == "select"):
+        if(queryType == "select" and isJoin):
+            # The output table is made from the result columns once the query runs
+            con_out = lite.connect(outputdb)
+            cur_out = con_out.cursor()
+        elif(queryType == "select"):
             #If its a select query we need to generate an image to store the output to
             con_out = lite.connect(outputdb)
             #res = cur.execute('PRAGMA table_info(%s)' % queryTable)
@@ -134,22 +232,16 @@ if __name__ == "__main__":
         for q in query:
             #parse over each row returned
             results = cur.execute(q)
+            if(queryType == "select" and isJoin):
+                createResultTable(cur_out, queryTable, cur.description)
             for row in results:
-                #convert the data into a string
-                row = [str(r) for r in row]
-                
-                # If SELECT push results into new database
+                # If SELECT push results into new database, as parameters so values keep their types and NULLs
                 if(queryType == "select"):
-                    # Deal with trailing comma issues if tuple size 1
-                    if(len(tuple(row)) == 1):
-                        q = 'insert into %s values (%s)' % (queryTable, tuple(row)[0])
-                    else:
-                        q = 'insert into %s values %s' % (queryTable, tuple(row))
-                    #print(q)
+                    q = 'insert into %s values (%s)' % (queryTable, ', '.join(['?'] * len(row)))
                     try:
-                        cur_out.execute(q)
+                        cur_out.execute(q, tuple(row))
                     except Exception as e:
-                        print("ERROR inserting into temp table: '%s' %s\n" % (q, str(e)))
+                        print("ERROR inserting into temp table: '%s' %s %s\n" % (q, str(tuple(row)), str(e)))
                         raise e
 
                 #Convert the list returned into a string to print to file
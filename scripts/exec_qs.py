@@ -317,6 +317,8 @@ class YarnClientProtocol(Protocol):
         self.addr = addr
         self.factory = f
         self.out = out
+        # Statements end in a newline, big ones may come in over several reads
+        self.buf = ''
     
     def connectionMade(self):
         self.out('-- [STATUSSENDER] Connection made.\n')
@@ -326,8 +328,15 @@ class YarnClientProtocol(Protocol):
         self.transport.write(s)
 
     def dataReceived(self, data):
+        self.buf += data
+        while('\n' in self.buf):
+            line, self.buf = self.buf.split('\n', 1)
+            if(line.strip()):
+                self.handleQuery(line)
+
+    def handleQuery(self, data):
         data = data.rstrip()
-        self.out('-- [YARNCLIENT] Received: %s\n' % data)
+        self.out('-- [YARNCLIENT] Received: %s\n' % data[:200])
         # Get a good unique name for the output blocks we might generate
         outBlk = "out-%d-%s-%04d" % (self.factory.appid, self.factory.myhostname, self.factory.queryNum)
         self.factory.queryNum += 1
@@ -4,13 +4,24 @@
 # from the different databases are combined and spit out properly
 
 # Usage:
-# $0 <select segment> <table name> <where clause> <list of database files>
+# $0 [-c] <select segment> <table name> <where clause> <list of database files>
 #
 # Example:
 #   $0 "select * " "test" "" test1.db test2.db
 #   Means: "select * from test"
+#
+# With -c the select is run once over all the databases' rows rather than on
+# each of them, the third argument is then whatever follows the table
+# (group by, order by, limit):
+#   $0 -c "select sum(_c1)" "test" "" test1.db test2.db
+#   Means: "select sum(_c1) from (select * from e1.test union all ...)"
 LOG="/home/hduser/gather_sqlite.log"
 echo "Args: $*" >> $LOG
+COMBINE=0
+if [ "$1" == "-c" ]; then
+    COMBINE=1
+    shift
+fi
 if [ $# -lt 4 ]; then
     echo "Usage: $0 <select segment> <table name> <where clause> <list of database files>"
     exit 1
@@ -39,7 +50,11 @@ while [[ $DBNUM -le $NUMDBS ]]; do
     TMP="attach database '$1' as e$DBNUM;"
     ATTACHCMD="$ATTACHCMD$TMP"
     
-    TMP=" $SQLSEL FROM e$DBNUM.$SQLTBL $SQLWHERE union"
+    if [ $COMBINE -eq 1 ]; then
+        TMP=" select * FROM e$DBNUM.$SQLTBL union all"
+    else
+        TMP=" $SQLSEL FROM e$DBNUM.$SQLTBL $SQLWHERE union"
+    fi
     SELECTCMD="$SELECTCMD$TMP"
 
     shift
@@ -47,7 +62,10 @@ while [[ $DBNUM -le $NUMDBS ]]; do
 done
 
 # Last step: need to remove last Union from select statement
-SELECTCMD=`echo "$SELECTCMD" | sed "s/union$//"`
+SELECTCMD=`echo "$SELECTCMD" | sed "s/union all$//;s/union$//"`
+if [ $COMBINE -eq 1 ]; then
+    SELECTCMD="$SQLSEL FROM ($SELECTCMD) $SQLWHERE"
+fi
 # And add an sending semicolon
 SELECTCMD="$SELECTCMD;"
 
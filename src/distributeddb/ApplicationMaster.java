@@ -2,18 +2,25 @@ package distributeddb;
 
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.cli.CommandLine;
@@ -189,16 +196,23 @@ public class ApplicationMaster {
 	private String shellDbScriptPath = "";
 	private String shellWrapScriptPath = "";
 	private String shellWrapQsScriptPath = "";
+	// Application jar in fs, the containers run ContainerAgent from it
+	private String jarPath = "";
 
 	// Timestamp needed for creating a local resource
 	private long shellDbScriptPathTimestamp = 0;
 	private long shellWrapScriptPathTimestamp = 0;
 	private long shellWrapQsScriptPathTimestamp = 0;
+	private long jarPathTimestamp = 0;
 
 	// File length needed for local resource
 	private long shellDbScriptPathLen = 0;
 	private long shellWrapScriptPathLen = 0;
 	private long shellWrapQsScriptPathLen = 0;
+	private long jarPathLen = 0;
+
+	// PUBLIC when the client put the scripts and jar in the shared cache
+	private LocalResourceVisibility resourceVisibility = LocalResourceVisibility.APPLICATION;
 
 	// Hardcoded path to shell script in launch container's local env
 	private final String ExecDbShellStringPath = DDBConstants.DB_SCRIPT_LOCATION;
@@ -206,11 +220,36 @@ public class ApplicationMaster {
 	private final String ExecWrapQsShellStringPath = DDBConstants.WRAP_QS_SCRIPT_LOCATION;
 	//private final String ExecWrapShellStringPath = "cont_net.py";
 
+	// Smallest heap ContainerAgent is started with, in MB
+	private static final int AGENT_MIN_HEAP = 128;
+
 	private volatile boolean done;
 	private volatile boolean success;
 
-	// Launch threads
-	private List<Thread> launchThreads = new ArrayList<Thread>();
+	// Most containers being set up and started at once
+	private static final int LAUNCH_THREADS = 8;
+	// Launches every allocated container, through the one nmClientAsync
+	private ExecutorService launchExecutor;
+	// Counted down as each container's agent registers with the Client or the container fails to start
+	private CountDownLatch containersStarted;
+	// Messages from the Client that came in while waiting for the agents, for the query loop
+	private List<String> deferredMsgs = new ArrayList<String>();
+	private AtomicInteger numStartFailures = new AtomicInteger();
+
+	// Times a host's container may die and be started again
+	private static final int MAX_RELAUNCHES = 3;
+	// Host of each container, it is relaunched there if it stops
+	private ConcurrentMap<ContainerId, String> containerHosts = new ConcurrentHashMap<ContainerId, String>();
+	private ConcurrentMap<String, AtomicInteger> relaunches = new ConcurrentHashMap<String, AtomicInteger>();
+	// Idle containers kept on the nodes to take over from one that dies, see relaunch
+	private int numStandby = 0;
+	// Standby asks go in at this much lower a priority so allocations tell them apart
+	private static final int STANDBY_PRIORITY_OFFSET = 1;
+	private ConcurrentMap<ContainerId, String> standbyContainers = new ConcurrentHashMap<ContainerId, String>();
+	// Set once the application is ending, containers stopping then are expected
+	private volatile boolean stopping;
+	// To the Client, node events go on it
+	private TCPClient clientConnection;
 
 	/**
 	 * @param args Command line args
@@ -234,6 +273,9 @@ public class ApplicationMaster {
 	}
 
 	private String getNextMsg(TCPServer tcpServer) {
+		if (!deferredMsgs.isEmpty()) {
+			return deferredMsgs.remove(0).trim();
+		}
 		String query1 = null;
 		while (true) {
 			query1 = tcpServer.getNextQuery();
@@ -298,28 +340,27 @@ public class ApplicationMaster {
 		TCPClient client = new TCPClient(clientHostName, clientPortNo);
 		client.init();
 		client.sendMsg(msg);
+		clientConnection = client;
 
 		/*
-		 * Launch container on master node
-		 * FIXME: Here we have to launch containers on every node in future
+		 * Launch containers on every node, asked for all at once and
+		 * started in parallel
 		 */
 
-		for(String n: nodeList.split(",")) {
-			boolean result = false;
-			result = run(n);
-			if (result) {
-				System.out.println("Container successfully launched on "+ n + "..");
-			} else {
-				System.out.println("Launching Container failed on " + n + "..");
-				client.closeConnection();
-				client = new TCPClient(clientHostName, clientPortNo);
-				client.init();
-				client.sendMsg("exit");
-				//client.closeConnection();
-				tcpServer.close();
-				exitAppMaster();
-				System.exit(0);
-			}
+		String[] nodes = nodeList.split(",");
+		requestContainers(nodes);
+		if (waitForContainers(tcpServer)) {
+			System.out.println("Containers successfully launched on " + nodeList + "..");
+		} else {
+			System.out.println("Launching Container failed on " + nodeList + "..");
+			client.closeConnection();
+			client = new TCPClient(clientHostName, clientPortNo);
+			client.init();
+			client.sendMsg("exit");
+			//client.closeConnection();
+			tcpServer.close();
+			exitAppMaster();
+			System.exit(0);
 		}
 
 		System.out.println("waiting for query from client..");
@@ -328,7 +369,10 @@ public class ApplicationMaster {
 			// Wait to get query from Client
 			msg = getNextMsg(tcpServer);
 			System.out.println("Got Query:"+msg+":");
-			if(msg.startsWith("exit")) {
+			if(msg.startsWith(DDBConstants.NODE_REGISTERED)) {
+				// A relaunched container's agent, nothing waits for it now
+				continue;
+			} else if(msg.startsWith("exit")) {
 				System.out.println("Exiting as got exit from Client");
 
 				/*containerClient.closeConnection();
@@ -434,6 +478,7 @@ public class ApplicationMaster {
 		opts.addOption(DDBConstants.CLIENT_PORT_NO, true, "Client port number");
 		opts.addOption("nodes", true, "List of nodes where containers has to be launched");
 		opts.addOption("db", true, "Which Database we want to use");
+		opts.addOption("standby", true, "No. of idle containers to keep ready to take over a node");
 		opts.addOption("help", false, "Print usage");
 		CommandLine cliParser = new GnuParser().parse(opts, args);
 
@@ -600,6 +645,33 @@ public class ApplicationMaster {
 			}
 		}
 
+		//For the application jar
+		if (envs.containsKey(DDBConstants.DDB_JAR_LOCATION)) {
+			jarPath = envs.get(DDBConstants.DDB_JAR_LOCATION);
+
+			if (envs.containsKey(DDBConstants.DDB_JAR_TIMESTAMP)) {
+				jarPathTimestamp = Long.valueOf(envs
+						.get(DDBConstants.DDB_JAR_TIMESTAMP));
+			}
+			if (envs.containsKey(DDBConstants.DDB_JAR_LEN)) {
+				jarPathLen = Long.valueOf(envs
+						.get(DDBConstants.DDB_JAR_LEN));
+			}
+
+			if (!jarPath.isEmpty()
+					&& (jarPathTimestamp <= 0 || jarPathLen <= 0)) {
+				LOG.error("Illegal values in env for jar path" + ", path="
+						+ jarPath + ", len=" + jarPathLen + ", timestamp="
+						+ jarPathTimestamp);
+				throw new IllegalArgumentException(
+						"Illegal values in env for jar path");
+			}
+		}
+
+		if (envs.containsKey(DDBConstants.DDB_RESOURCE_VISIBILITY)) {
+			resourceVisibility = LocalResourceVisibility.valueOf(envs
+					.get(DDBConstants.DDB_RESOURCE_VISIBILITY));
+		}
 
 		containerMemory = Integer.parseInt(cliParser.getOptionValue(
 				"container_memory", "10"));
@@ -611,6 +683,11 @@ public class ApplicationMaster {
 		}
 		requestPriority = Integer.parseInt(cliParser
 				.getOptionValue("priority", "0"));
+		numStandby = Integer.parseInt(cliParser.getOptionValue("standby", "0"));
+		if (numStandby > 0 && !usesAgent()) {
+			LOG.warn("Standby containers need the sqlite3 container agent, not keeping any");
+			numStandby = 0;
+		}
 
 		return true;
 	}
@@ -626,6 +703,7 @@ public class ApplicationMaster {
 
 	private void initializeAppMaster() {
 		startResourceManager();
+		startNodeManagerClient();
 		try {
 			registerAppMaster();
 		} catch (YarnException e) {
@@ -648,6 +726,18 @@ public class ApplicationMaster {
 
 	}
 
+	/*
+	 * One client to the node managers and one pool of launch threads for
+	 * every container
+	 */
+	private void startNodeManagerClient() {
+		containerListener = new NMCallbackHandler();
+		nmClientAsync = new NMClientAsyncImpl(containerListener);
+		nmClientAsync.init(conf);
+		nmClientAsync.start();
+		launchExecutor = Executors.newFixedThreadPool(LAUNCH_THREADS);
+	}
+
 	private void registerAppMaster() throws YarnException, IOException {
 		RegisterApplicationMasterResponse response = resourceManager
 				.registerApplicationMaster(appMasterHostname, appMasterRpcPort,
@@ -655,6 +745,7 @@ public class ApplicationMaster {
 	}
 
 	private void exitAppMaster() {
+		stopping = true;
 
 		// unregister application master
 		try {
@@ -668,60 +759,106 @@ public class ApplicationMaster {
 
 		// Stop Resource Manager		
 		resourceManager.stop();
+		launchExecutor.shutdownNow();
 	}
 
 	/**
-	 * Main run function for the application master
-	 *
-	 * @throws YarnException
-	 * @throws IOException
+	 * sqlite3 nodes run ContainerAgent from the application jar
 	 */
-	@SuppressWarnings({ "unchecked" })
-	public boolean run(String nodeStr) throws YarnException, IOException {
+	private boolean usesAgent() {
+		return !jarPath.isEmpty() && dbType.equals(DDBConstants.SQLITE3_DB);
+	}
 
-		/*
-		 * FIXME: Un-comment following code  
-		 */
-		/*AMRMClientAsync.CallbackHandler allocListener = new RMCallbackHandler();
-		resourceManager =
-				AMRMClientAsync.createAMRMClientAsync(1000, allocListener);
-		resourceManager.init(conf);
-		resourceManager.start();
-		 */
+	/**
+	 * Ask for numTotalContainers containers on each node and the standby
+	 * ones, dealt out over the nodes. The asks all go to the RM on the next
+	 * heartbeat and the containers are started as they come, see
+	 * waitForContainers.
+	 */
+	@SuppressWarnings("unchecked")
+	public void requestContainers(String[] nodes) {
 		done = false;
-		containerListener = new NMCallbackHandler();
-		nmClientAsync = new NMClientAsyncImpl(containerListener);
-		nmClientAsync.init(conf);
-		nmClientAsync.start();
-
-		for (int i = 0; i < numTotalContainers; ++i) {
-			ContainerRequest containerAsk = setupContainerAskForRM(nodeStr);
-			resourceManager.addContainerRequest(containerAsk);
-			System.out.println("Container is launched on node = " + containerAsk.getNodes());
+		containersStarted = new CountDownLatch(nodes.length * numTotalContainers);
+		for (String n : nodes) {
+			for (int i = 0; i < numTotalContainers; ++i) {
+				resourceManager.addContainerRequest(setupContainerAskForRM(n, false));
+			}
+		}
+		for (int i = 0; i < numStandby; i++) {
+			resourceManager.addContainerRequest(setupContainerAskForRM(nodes[i % nodes.length], true));
 		}
-		numRequestedContainers.set(numTotalContainers);
+		numRequestedContainers.set(nodes.length * numTotalContainers + numStandby);
+		System.out.println("Asked for " + numRequestedContainers.get() + " containers on " + Arrays.toString(nodes)
+				+ ", " + numStandby + " of them standby");
+	}
 
-		/*while (!done) {
+	/**
+	 * Block until the agent in every container asked for has registered with
+	 * the Client, which passes each registration on to our server
+	 * @return false if any of the containers couldn't be started
+	 */
+	private boolean waitForContainers(TCPServer tcpServer) {
+		while (!done) {
+			String msg;
+			while ((msg = tcpServer.getNextQuery()) != null) {
+				agentsRegistered(msg);
+			}
 			try {
-				Thread.sleep(200);
-			} catch (InterruptedException ex) {}
+				if (containersStarted.await(1, TimeUnit.SECONDS)) {
+					break;
+				}
+			} catch (InterruptedException e) {
+				LOG.warn("Thread interrupted while waiting for containers?" + e.getLocalizedMessage());
+			}
+		}
+		return !done && numStartFailures.get() == 0;
+	}
+
+	/**
+	 * Count the registrations in a message from the Client, they can arrive
+	 * together as one. Anything else is kept for the query loop.
+	 */
+	private void agentsRegistered(String msg) {
+		for (String line : msg.split("\n")) {
+			String[] parts = line.trim().split("\\s+");
+			if (parts.length == 2 && parts[0].equals(DDBConstants.NODE_REGISTERED)) {
+				LOG.info("Agent on " + parts[1] + " registered");
+				containersStarted.countDown();
+			} else if (!line.trim().isEmpty()) {
+				deferredMsgs.add(line);
+			}
+		}
+	}
+
+	/**
+	 * A container is started or failed to start, standby ones aren't waited
+	 * for. One that started is waited for until its agent registers.
+	 */
+	private void containerStartDone(ContainerId containerId, boolean started) {
+		if (standbyContainers.containsKey(containerId)) {
+			if (!started) {
+				LOG.warn("Standby container " + containerId + " didn't start");
+			}
+			return;
+		}
+		if (!started) {
+			numStartFailures.incrementAndGet();
+			if (containersStarted != null) {
+				containersStarted.countDown();
+			}
 		}
-		finish();
-		 */
-		return true;
 	}
 
 	private void finish() {
-		// Join all launched threads
+		// Wait for launches still going
 		// needed for when we time out
 		// and we need to release containers
-		for (Thread launchThread : launchThreads) {
-			try {
-				launchThread.join(10000);
-			} catch (InterruptedException e) {
-				LOG.info("Exception thrown in thread join: " + e.getMessage());
-				e.printStackTrace();
-			}
+		launchExecutor.shutdown();
+		try {
+			launchExecutor.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			LOG.info("Exception thrown waiting for launches: " + e.getMessage());
+			e.printStackTrace();
 		}
 
 		// When the application completes, it should stop all running containers
@@ -810,22 +947,88 @@ public class ApplicationMaster {
 				}
 			}
 
-			// ask for more containers if any failed
-			int askCount = numTotalContainers - numRequestedContainers.get();
-			numRequestedContainers.addAndGet(askCount);
+			// The containers are meant to run until the application ends,
+			// any that stopped is put back on its host
+			List<String> lostHosts = new ArrayList<String>();
+			for (ContainerStatus containerStatus : completedContainers) {
+				String standbyHost = standbyContainers.remove(containerStatus.getContainerId());
+				if (standbyHost != null && !stopping) {
+					replaceStandby(standbyHost);
+					continue;
+				}
+				String host = containerHosts.remove(containerStatus.getContainerId());
+				if (host != null && !stopping) {
+					lostHosts.add(host);
+				}
+			}
+			if (!lostHosts.isEmpty()) {
+				relaunch(lostHosts);
+			}
+		}
 
-			if (askCount > 0) {
-				for (int i = 0; i < askCount; ++i) {
-					System.out.println("I came into askCount");
-					//FIXME: Change this hard coded value 
-					ContainerRequest containerAsk = setupContainerAskForRM("master");
-					resourceManager.addContainerRequest(containerAsk);
+		/**
+		 * Tell the Client the hosts are down. A standby container on the host
+		 * takes over (the Client does the same on its side) and another
+		 * standby is asked for, otherwise a new container is asked for on the
+		 * host and its agent registers with the Client again once it is up.
+		 */
+		@SuppressWarnings("unchecked")
+		private void relaunch(List<String> hosts) {
+			String msg = DDBConstants.NODE_DOWN;
+			for (String host : hosts) {
+				msg += " " + host;
+			}
+			clientConnection.sendMsg(msg);
+			for (String host : hosts) {
+				ContainerId standby = standbyOn(host);
+				if (standby != null) {
+					standbyContainers.remove(standby);
+					containerHosts.put(standby, host);
+					LOG.info("Standby container " + standby + " took over " + host);
+					replaceStandby(host);
+					continue;
 				}
+				if (!mayRelaunch(host)) {
+					continue;
+				}
+				LOG.info("Relaunching container on " + host);
+				resourceManager.addContainerRequest(setupContainerAskForRM(host, false));
+				numRequestedContainers.incrementAndGet();
 			}
+		}
 
-			if (numCompletedContainers.get() == numTotalContainers) {
-				done = true;
+		@SuppressWarnings("unchecked")
+		private void replaceStandby(String host) {
+			if (!mayRelaunch(host)) {
+				return;
 			}
+			LOG.info("Asking for a standby container on " + host);
+			resourceManager.addContainerRequest(setupContainerAskForRM(host, true));
+			numRequestedContainers.incrementAndGet();
+		}
+
+		/**
+		 * Count a container started again on the host
+		 * @return false if the host had too many already
+		 */
+		private boolean mayRelaunch(String host) {
+			relaunches.putIfAbsent(host, new AtomicInteger());
+			int n = relaunches.get(host).incrementAndGet();
+			if (n > MAX_RELAUNCHES) {
+				LOG.error("Containers on " + host + " were relaunched " + MAX_RELAUNCHES
+						+ " times already, not starting another");
+				return false;
+			}
+			return true;
+		}
+
+		private ContainerId standbyOn(String host) {
+			for (Map.Entry<ContainerId, String> e : standbyContainers.entrySet()) {
+				if (e.getValue().equals(host)) {
+					return e.getKey();
+				}
+			}
+			return null;
 		}
 
 		@Override
@@ -834,6 +1037,14 @@ public class ApplicationMaster {
 					+ allocatedContainers.size());
 			numAllocatedContainers.addAndGet(allocatedContainers.size());
 			for (Container allocatedContainer : allocatedContainers) {
+				if (!takeRequest(allocatedContainer)) {
+					// More than was asked for, the RM hadn't seen the ask go yet
+					LOG.info("Releasing surplus container " + allocatedContainer.getId()
+							+ " on " + allocatedContainer.getNodeId().getHost());
+					numAllocatedContainers.decrementAndGet();
+					resourceManager.releaseAssignedContainer(allocatedContainer.getId());
+					continue;
+				}
 				LOG.info("Launching shell command on a new container."
 						+ ", containerId=" + allocatedContainer.getId()
 						+ ", containerNode=" + allocatedContainer.getNodeId().getHost()
@@ -844,16 +1055,31 @@ public class ApplicationMaster {
 				// + ", containerToken"
 				// +allocatedContainer.getContainerToken().getIdentifier().toString());
 
-				LaunchContainerRunnable runnableLaunchContainer =
-						new LaunchContainerRunnable(allocatedContainer, containerListener);
-				Thread launchThread = new Thread(runnableLaunchContainer);
-
-				// launch and start the container on a separate thread to keep
+				boolean standby = allocatedContainer.getPriority().getPriority() != requestPriority;
+				(standby ? standbyContainers : containerHosts).put(allocatedContainer.getId(), allocatedContainer.getNodeId().getHost());
+				// launch and start the container on the launch pool to keep
 				// the main thread unblocked
 				// as all containers may not be allocated at one go.
-				launchThreads.add(launchThread);
-				launchThread.start();
+				launchExecutor.execute(new LaunchContainerRunnable(allocatedContainer, containerListener, standby));
+			}
+		}
+
+		/**
+		 * Remove the ask an allocated container satisfies so it isn't asked
+		 * for again on the next heartbeat
+		 * @return false if there was no ask left for the container's node
+		 */
+		@SuppressWarnings("unchecked")
+		private boolean takeRequest(Container container) {
+			List<? extends Collection<ContainerRequest>> matches = resourceManager.getMatchingRequests(
+					container.getPriority(), container.getNodeId().getHost(), container.getResource());
+			for (Collection<ContainerRequest> c : matches) {
+				for (ContainerRequest req : c) {
+					resourceManager.removeContainerRequest(req);
+					return true;
+				}
 			}
+			return false;
 		}
 
 		@Override
@@ -911,6 +1137,7 @@ public class ApplicationMaster {
 			if (LOG.isDebugEnabled()) {
 				LOG.debug("Succeeded to start Container " + containerId);
 			}
+			containerStartDone(containerId, true);
 			Container container = containers.get(containerId);
 			if (container != null) {
 				nmClientAsync.getContainerStatusAsync(containerId, container.getNodeId());
@@ -921,6 +1148,7 @@ public class ApplicationMaster {
 		public void onStartContainerError(ContainerId containerId, Throwable t) {
 			LOG.error("Failed to start Container " + containerId);
 			containers.remove(containerId);
+			containerStartDone(containerId, false);
 		}
 
 		@Override
@@ -947,14 +1175,19 @@ public class ApplicationMaster {
 
 		NMCallbackHandler containerListener;
 
+		// The agent waits as a standby rather than registering for its node
+		boolean standby;
+
 		/**
 		 * @param lcontainer Allocated container
 		 * @param containerListener Callback handler of the container
+		 * @param standby Start the agent as a standby
 		 */
 		public LaunchContainerRunnable(
-				Container lcontainer, NMCallbackHandler containerListener) {
+				Container lcontainer, NMCallbackHandler containerListener, boolean standby) {
 			this.container = lcontainer;
 			this.containerListener = containerListener;
+			this.standby = standby;
 		}
 
 		@Override
@@ -981,7 +1214,7 @@ public class ApplicationMaster {
 			if (!shellDbScriptPath.isEmpty()) {
 				LocalResource shellDbRsrc = Records.newRecord(LocalResource.class);
 				shellDbRsrc.setType(LocalResourceType.FILE);
-				shellDbRsrc.setVisibility(LocalResourceVisibility.APPLICATION);
+				shellDbRsrc.setVisibility(resourceVisibility);
 				try {
 					shellDbRsrc.setResource(ConverterUtils.getYarnUrlFromURI(new URI(
 							shellDbScriptPath)));
@@ -996,6 +1229,7 @@ public class ApplicationMaster {
 					// TODO
 					numCompletedContainers.incrementAndGet();
 					numFailedContainers.incrementAndGet();
+					containerStartDone(container.getId(), false);
 					return;
 				}
 				shellDbRsrc.setTimestamp(shellDbScriptPathTimestamp);
@@ -1007,7 +1241,7 @@ public class ApplicationMaster {
 			if (!shellWrapScriptPath.isEmpty()) {
 				LocalResource shellWrapRsrc = Records.newRecord(LocalResource.class);
 				shellWrapRsrc.setType(LocalResourceType.FILE);
-				shellWrapRsrc.setVisibility(LocalResourceVisibility.APPLICATION);
+				shellWrapRsrc.setVisibility(resourceVisibility);
 				try {
 					shellWrapRsrc.setResource(ConverterUtils.getYarnUrlFromURI(new URI(
 							shellWrapScriptPath)));
@@ -1022,6 +1256,7 @@ public class ApplicationMaster {
 					// TODO
 					numCompletedContainers.incrementAndGet();
 					numFailedContainers.incrementAndGet();
+					containerStartDone(container.getId(), false);
 					return;
 				}
 				shellWrapRsrc.setTimestamp(shellWrapScriptPathTimestamp);
@@ -1033,7 +1268,7 @@ public class ApplicationMaster {
 			if (!shellWrapQsScriptPath.isEmpty()) {
 				LocalResource shellWrapQsRsrc = Records.newRecord(LocalResource.class);
 				shellWrapQsRsrc.setType(LocalResourceType.FILE);
-				shellWrapQsRsrc.setVisibility(LocalResourceVisibility.APPLICATION);
+				shellWrapQsRsrc.setVisibility(resourceVisibility);
 				try {
 					shellWrapQsRsrc.setResource(ConverterUtils.getYarnUrlFromURI(new URI(
 							shellWrapQsScriptPath)));
@@ -1048,6 +1283,7 @@ public class ApplicationMaster {
 					// TODO
 					numCompletedContainers.incrementAndGet();
 					numFailedContainers.incrementAndGet();
+					containerStartDone(container.getId(), false);
 					return;
 				}
 				shellWrapQsRsrc.setTimestamp(shellWrapQsScriptPathTimestamp);
@@ -1056,27 +1292,75 @@ public class ApplicationMaster {
 				System.out.println("Anand : resource URL " +shellWrapQsRsrc.getResource());
 			}
 
+			// sqlite3 nodes run ContainerAgent from the application jar
+			boolean javaAgent = usesAgent();
+			if (javaAgent) {
+				LocalResource jarRsrc = Records.newRecord(LocalResource.class);
+				jarRsrc.setType(LocalResourceType.FILE);
+				jarRsrc.setVisibility(resourceVisibility);
+				try {
+					jarRsrc.setResource(ConverterUtils.getYarnUrlFromURI(new URI(
+							jarPath)));
+				} catch (URISyntaxException e) {
+					LOG.error("Error when trying to use jar path specified"
+							+ " in env, path=" + jarPath);
+					e.printStackTrace();
+					numCompletedContainers.incrementAndGet();
+					numFailedContainers.incrementAndGet();
+					containerStartDone(container.getId(), false);
+					return;
+				}
+				jarRsrc.setTimestamp(jarPathTimestamp);
+				jarRsrc.setSize(jarPathLen);
+				localResources.put(DDBConstants.JAR_LOCATION, jarRsrc);
+
+				// The jar, hadoop for the copy to HDFS and the sqlite driver if the node has it
+				StringBuilder classPathEnv = new StringBuilder(
+						Environment.CLASSPATH.$()).append(File.pathSeparatorChar)
+						.append("./*");
+				for (String c : conf.getStrings(
+						YarnConfiguration.YARN_APPLICATION_CLASSPATH,
+						YarnConfiguration.DEFAULT_YARN_APPLICATION_CLASSPATH)) {
+					classPathEnv.append(File.pathSeparatorChar);
+					classPathEnv.append(c.trim());
+				}
+				classPathEnv.append(File.pathSeparatorChar).append(DDBConstants.SQLITE_JDBC_JAR);
+				Map<String, String> env = new HashMap<String, String>();
+				env.put("CLASSPATH", classPathEnv.toString());
+				ctx.setEnvironment(env);
+			}
+
 			ctx.setLocalResources(localResources);
 
 			// Set the necessary command to execute on the allocated container
-			//First command: python
+			//First command: java or python
 			Vector<CharSequence> vargs = new Vector<CharSequence>(5);
 
 			// Set executable command
-			vargs.add("python");
-			// Set shell script path
-			if (!shellWrapScriptPath.isEmpty() && dbType.equals(DDBConstants.SQLITE3_DB)) {
-				vargs.add(ExecWrapShellStringPath);
-				System.out.println("Anand: Added sqlite3 python Script");
-			} else if(!shellWrapQsScriptPath.isEmpty() && dbType.equals(DDBConstants.QUICKSTEP_DB)) {
-				vargs.add(ExecWrapQsShellStringPath);
-				System.out.println("Anand: Added Quickstep python Script");
+			if (javaAgent) {
+				vargs.add(Environment.JAVA_HOME.$() + "/bin/java");
+				vargs.add("-Xmx" + Math.max(containerMemory, AGENT_MIN_HEAP) + "m");
+				vargs.add(DDBConstants.AGENT_MAIN_CLASS);
+				LOG.info("Added sqlite3 container agent");
+			} else {
+				vargs.add("python");
+				// Set shell script path
+				if (!shellWrapScriptPath.isEmpty() && dbType.equals(DDBConstants.SQLITE3_DB)) {
+					vargs.add(ExecWrapShellStringPath);
+					System.out.println("Anand: Added sqlite3 python Script");
+				} else if(!shellWrapQsScriptPath.isEmpty() && dbType.equals(DDBConstants.QUICKSTEP_DB)) {
+					vargs.add(ExecWrapQsShellStringPath);
+					System.out.println("Anand: Added Quickstep python Script");
+				}
 			}
 
 			// NEW1:
 			vargs.add(clientHostName);
 			vargs.add(""+ clientPortNo);
 			vargs.add(String.valueOf(appAttemptID.getApplicationId().getId()));
+			if (standby) {
+				vargs.add(DDBConstants.STANDBY);
+			}
 
 			// Add log redirect params
 			vargs.add("1>" + ApplicationConstants.LOG_DIR_EXPANSION_VAR + "/stdout");
@@ -1109,13 +1393,13 @@ public class ApplicationMaster {
 	 * TODO Anand May be you need to specify node in new container request 
 	 * so pass that as argument to function
 	 */
-	private ContainerRequest setupContainerAskForRM(String node) {
+	private ContainerRequest setupContainerAskForRM(String node, boolean standby) {
 		// setup requirements for hosts
 		// using * as any host will do for the distributed shell app
 		// set the priority for the request
 		Priority pri = Records.newRecord(Priority.class);
 		// TODO - what is the range for priority? how to decide?
-		pri.setPriority(requestPriority);
+		pri.setPriority(requestPriority + (standby ? STANDBY_PRIORITY_OFFSET : 0));
 
 		//** Anand start 
 		String [] nodes = new String[1];
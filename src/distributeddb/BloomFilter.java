@@ -0,0 +1,85 @@
+package distributeddb;
+
+import java.io.Serializable;
+import java.nio.charset.Charset;
+
+/**
+ * Fixed size Bloom filter over strings. Positions come from FNV-1a 64 split
+ * into two 32 bit halves for double hashing, the same as the join filters
+ * built by coord_join.py.
+ */
+class BloomFilter implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final int numBits;
+	private final int numHashes;
+	private final long[] bits;
+	// Values added that set at least one new bit, roughly the distinct values
+	private long count;
+
+	public BloomFilter(int numBits, int numHashes) {
+		this.numBits = numBits;
+		this.numHashes = numHashes;
+		this.bits = new long[(numBits + 63) / 64];
+		this.count = 0;
+	}
+
+	static long fnv1a64(String key) {
+		long h = 0xcbf29ce484222325L;
+		for(byte b: key.getBytes(UTF8)) {
+			h ^= (b & 0xff);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	/**
+	 * @return true if the filter changed
+	 */
+	public boolean add(String key) {
+		long h = fnv1a64(key);
+		long h1 = h & 0xffffffffL;
+		long h2 = h >>> 32;
+		boolean changed = false;
+		for(int i = 0; i < numHashes; i++) {
+			int bit = (int) ((h1 + i * h2) % numBits);
+			long mask = 1L << (bit & 63);
+			if((bits[bit >>> 6] & mask) == 0) {
+				bits[bit >>> 6] |= mask;
+				changed = true;
+			}
+		}
+		if(changed) {
+			count++;
+		}
+		return changed;
+	}
+
+	/**
+	 * @return false only if the key was never added
+	 */
+	public boolean mightContain(String key) {
+		long h = fnv1a64(key);
+		long h1 = h & 0xffffffffL;
+		long h2 = h >>> 32;
+		for(int i = 0; i < numHashes; i++) {
+			int bit = (int) ((h1 + i * h2) % numBits);
+			if((bits[bit >>> 6] & (1L << (bit & 63))) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Chance a value never added gets through, for the count added so far
+	 */
+	public double falsePositiveRate() {
+		return Math.pow(1 - Math.exp(-(double) numHashes * count / numBits), numHashes);
+	}
+}
@@ -0,0 +1,287 @@
+package distributeddb;
+
+import java.io.BufferedReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.jboss.netty.channel.ChannelHandlerContext;
+
+/**
+ * Bulk load path for a table. Rows are parsed once, routed with the table's
+ * partition and collected into a bounded buffer per node. A full buffer is
+ * sent as one multi-row insert, each node can have one batch being worked on
+ * while the next one fills up, so all the nodes load in parallel.
+ *
+ * Rows can either come from a CSV file (see {@link #load(BufferedReader, char)}) or
+ * be streamed in with {@link #addRow(List)} followed by {@link #finish()}.
+ * Fields are quoted by the type of their attribute, an empty field or \N is
+ * NULL.
+ */
+public class BulkLoader {
+	// Flush a node's buffer when it reaches this many rows
+	public static final int DEFAULT_BATCH_ROWS = 5000;
+	// or this many bytes, sqlite won't run a statement over 1MB and an agent runs a batch that isn't all plain literals as one
+	public static final int DEFAULT_BATCH_BYTES = 512 * 1024;
+
+	private final DDBPartitioner partitioner;
+	private final TCPServer server;
+	private final Log LOG;
+	private final String table;
+	private final int batchRows;
+	private final int batchBytes;
+	private final String insertPrefix;
+	// Null for a table created before schemas were kept
+	private final TableSchema schema;
+
+	// Per node buffer of rows not sent yet
+	private final Map<String, StringBuilder> buffers;
+	private final Map<String, Integer> bufferedRows;
+	// Nodes we sent a batch to and haven't heard back from
+	private final Set<String> inFlight;
+	private final List<String> errors;
+	// Nodes that failed a batch, replicas on them are now out of step
+	private final List<String> failedNodes;
+	private long rows;
+	private long bytes;
+	private long batches;
+
+	public BulkLoader(DDBPartitioner partitioner, TCPServer server, Log log, String table) {
+		this(partitioner, server, log, table, DEFAULT_BATCH_ROWS, DEFAULT_BATCH_BYTES);
+	}
+
+	public BulkLoader(DDBPartitioner partitioner, TCPServer server, Log log, String table, int batchRows, int batchBytes) {
+		this.partitioner = partitioner;
+		this.server = server;
+		this.LOG = log;
+		this.table = table;
+		this.batchRows = batchRows;
+		this.batchBytes = batchBytes;
+		this.insertPrefix = "insert into " + table + " values ";
+		this.schema = partitioner.tableSchema(table);
+		this.buffers = new HashMap<String, StringBuilder>();
+		this.bufferedRows = new HashMap<String, Integer>();
+		this.inFlight = new HashSet<String>();
+		this.errors = new ArrayList<String>();
+		this.failedNodes = new ArrayList<String>();
+		this.rows = 0;
+		this.bytes = 0;
+		this.batches = 0;
+	}
+
+	/**
+	 * Parse a "COPY table FROM 'path' [DELIMITER 'c']" statement
+	 * @return {table, path, delimiter} or null if it isn't a copy statement
+	 */
+	public static String[] parseCopyQuery(String query) {
+		Pattern pat = Pattern.compile("\\s*copy\\s+(\\S+)\\s+from\\s+'([^']*)'(\\s+delimiter\\s+'(.)')?\\s*;?\\s*", Pattern.CASE_INSENSITIVE);
+		Matcher mat = pat.matcher(query);
+		if(!mat.matches()) {
+			return null;
+		}
+		String delim = mat.group(4) == null ? "," : mat.group(4);
+		return new String[] {mat.group(1), mat.group(2), delim};
+	}
+
+	/**
+	 * Load every line of the reader as a row
+	 * @return summary to show the user
+	 */
+	public String load(BufferedReader in, char delim) throws Exception {
+		String line;
+		List<String> fields = new ArrayList<String>();
+		try {
+			while((line = in.readLine()) != null) {
+				if(line.trim().equals("")) {
+					continue;
+				}
+				splitCsvLine(line, delim, fields);
+				addRow(fields);
+			}
+		} catch(Exception e) {
+			// Don't leave replies behind for whoever talks to the nodes next
+			while(!inFlight.isEmpty()) {
+				waitForReply();
+			}
+			throw e;
+		}
+		return finish();
+	}
+
+	/**
+	 * Split one CSV line into fields, double quotes may be used around a field
+	 * that contains the delimiter, "" inside quotes is a literal quote.
+	 */
+	static void splitCsvLine(String line, char delim, List<String> fields) {
+		fields.clear();
+		StringBuilder cur = new StringBuilder();
+		boolean quoted = false;
+		for(int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if(quoted) {
+				if(c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					cur.append('"');
+					i++;
+				} else if(c == '"') {
+					quoted = false;
+				} else {
+					cur.append(c);
+				}
+			} else if(c == '"') {
+				quoted = true;
+			} else if(c == delim) {
+				fields.add(cur.toString().trim());
+				cur.setLength(0);
+			} else {
+				cur.append(c);
+			}
+		}
+		fields.add(cur.toString().trim());
+	}
+
+	/**
+	 * @return true if the field goes in as it is, a number into an attribute
+	 * that doesn't have text affinity. Without a schema anything that is a
+	 * number is taken to be one.
+	 */
+	private boolean isNumber(int i, String f) {
+		if(schema != null && i < schema.size() && schema.isText(i)) {
+			return false;
+		}
+		return WhereClause.isNumberLiteral(f);
+	}
+
+	/**
+	 * Route one row and buffer it for its node, this may block waiting for
+	 * the node to finish its previous batch.
+	 */
+	public void addRow(List<String> fields) throws Exception {
+		// Render the row the same way an insert statement would have it
+		StringBuilder vals = new StringBuilder();
+		for(int i = 0; i < fields.size(); i++) {
+			if(i > 0) {
+				vals.append(", ");
+			}
+			String f = fields.get(i);
+			if(f.length() == 0 || f.equals("\\N")) {
+				vals.append("null");
+			} else if(isNumber(i, f)) {
+				vals.append(f);
+			} else {
+				vals.append('\'').append(f.replace("'", "''")).append('\'');
+			}
+		}
+		addValues(vals.toString());
+	}
+
+	/**
+	 * Route a row rendered as an insert has it and buffer it for its nodes
+	 */
+	private void addValues(String vals) throws Exception {
+		rows++;
+		bytes += vals.length();
+		for(String node: partitioner.routeInsert(table, vals)) {
+			StringBuilder buf = buffers.get(node);
+			if(buf == null) {
+				buf = new StringBuilder(insertPrefix);
+				buffers.put(node, buf);
+				bufferedRows.put(node, 0);
+			}
+			int count = bufferedRows.get(node);
+			if(count > 0) {
+				buf.append(", ");
+			}
+			buf.append('(').append(vals).append(')');
+			bufferedRows.put(node, count + 1);
+
+			if(count + 1 >= batchRows || buf.length() >= batchBytes) {
+				flush(node);
+			}
+		}
+	}
+
+	/**
+	 * Send whatever is buffered for the node, waiting on its previous batch first
+	 */
+	private void flush(String node) {
+		if(bufferedRows.get(node) == 0) {
+			return;
+		}
+		while(inFlight.contains(node)) {
+			waitForReply();
+		}
+		StringBuilder buf = buffers.get(node);
+		if(!server.sendHostMessage(node, buf.toString())) {
+			errors.add(node + ": unable to send batch");
+			failedNodes.add(node);
+		} else {
+			inFlight.add(node);
+			batches++;
+		}
+		buf.setLength(insertPrefix.length());
+		bufferedRows.put(node, 0);
+	}
+
+	private void waitForReply() {
+		List<Object> resp = server.getNextMessage();
+		ChannelHandlerContext ctx = (ChannelHandlerContext) resp.get(0);
+		String msg = (String) resp.get(1);
+		String node = server.getHost(ctx);
+		if(node == null) {
+			LOG.warn("[BULKLOAD] Reply from unknown channel: " + msg);
+			return;
+		}
+		inFlight.remove(node);
+		if(msg.contains("ERROR")) {
+			errors.add(node + ": " + msg.trim());
+			failedNodes.add(node);
+		}
+	}
+
+	/**
+	 * @return rows routed so far
+	 */
+	public long rows() {
+		return rows;
+	}
+
+	/**
+	 * @return bytes of values routed so far, as the partitioner counts them
+	 */
+	public long bytes() {
+		return bytes;
+	}
+
+	/**
+	 * Flush all remaining rows and wait for every node to finish
+	 * @return summary to show the user
+	 */
+	public String finish() {
+		for(String node: new ArrayList<String>(buffers.keySet())) {
+			flush(node);
+		}
+		while(!inFlight.isEmpty()) {
+			waitForReply();
+		}
+		LOG.info("[BULKLOAD] " + table + ": " + rows + " rows in " + batches + " batches, " + errors.size() + " errors");
+		List<String> stale = partitioner.markStale(table, failedNodes);
+		partitioner.insertsDone(table);
+		if(errors.isEmpty()) {
+			return "SUCCESS loaded " + rows + " rows into " + table + " in " + batches + " batches\n";
+		}
+		String out = "ERROR loading " + table + " (" + rows + " rows routed):\n";
+		for(String e: errors) {
+			out += "\t" + e + "\n";
+		}
+		if(!stale.isEmpty()) {
+			out += "\tReplicas now stale: " + stale + "\n";
+		}
+		return out;
+	}
+}
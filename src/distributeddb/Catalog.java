@@ -0,0 +1,104 @@
+package distributeddb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One version of the partition catalog: each table's partitioning, declared
+ * attributes, global indexes, Bloom filters and zone map. A version is never
+ * changed once built, DDL makes a copy with the change in it and publishes
+ * that as the next version. Routing reads whichever version is current
+ * without taking a lock.
+ *
+ * The Partition and index objects are shared between versions, they keep
+ * their own counters and are safe to use from more than one thread.
+ */
+final class Catalog {
+	final long version;
+	final Map<String, Partition> tables;
+	// Declared attributes of each table, "i INTEGER, uname CHAR(10)"
+	final Map<String, String> schemas;
+	final Map<String, List<GlobalIndex>> indexes;
+	final Map<String, List<ColumnBloom>> blooms;
+	// Only tables created since zone maps were kept have one
+	final Map<String, ZoneMap> zoneMaps;
+
+	public Catalog() {
+		this(0, new HashMap<String, Partition>(), new HashMap<String, String>(), new HashMap<String, List<GlobalIndex>>(),
+				new HashMap<String, List<ColumnBloom>>(), new HashMap<String, ZoneMap>());
+	}
+
+	/**
+	 * The maps are copied, changing them afterwards doesn't change the catalog
+	 */
+	public Catalog(long version, Map<String, Partition> tables, Map<String, String> schemas, Map<String, List<GlobalIndex>> indexes,
+			Map<String, List<ColumnBloom>> blooms, Map<String, ZoneMap> zoneMaps) {
+		this.version = version;
+		this.tables = Collections.unmodifiableMap(new HashMap<String, Partition>(tables));
+		this.schemas = Collections.unmodifiableMap(new HashMap<String, String>(schemas));
+		Map<String, List<GlobalIndex>> idx = new HashMap<String, List<GlobalIndex>>();
+		for(Map.Entry<String, List<GlobalIndex>> e: indexes.entrySet()) {
+			idx.put(e.getKey(), Collections.unmodifiableList(new ArrayList<GlobalIndex>(e.getValue())));
+		}
+		this.indexes = Collections.unmodifiableMap(idx);
+		Map<String, List<ColumnBloom>> bl = new HashMap<String, List<ColumnBloom>>();
+		for(Map.Entry<String, List<ColumnBloom>> e: blooms.entrySet()) {
+			bl.put(e.getKey(), Collections.unmodifiableList(new ArrayList<ColumnBloom>(e.getValue())));
+		}
+		this.blooms = Collections.unmodifiableMap(bl);
+		this.zoneMaps = Collections.unmodifiableMap(new HashMap<String, ZoneMap>(zoneMaps));
+	}
+
+	private Catalog next(Map<String, Partition> tables, Map<String, String> schemas, Map<String, List<GlobalIndex>> indexes,
+			Map<String, List<ColumnBloom>> blooms, Map<String, ZoneMap> zoneMaps) {
+		return new Catalog(version + 1, tables, schemas, indexes, blooms, zoneMaps);
+	}
+
+	/**
+	 * @param zoneMap null if the table doesn't keep one
+	 */
+	public Catalog withTable(String table, Partition p, String schema, ZoneMap zoneMap) {
+		Map<String, Partition> t = new HashMap<String, Partition>(tables);
+		Map<String, String> s = new HashMap<String, String>(schemas);
+		Map<String, ZoneMap> z = new HashMap<String, ZoneMap>(zoneMaps);
+		t.put(table, p);
+		s.put(table, schema);
+		if(zoneMap != null) {
+			z.put(table, zoneMap);
+		}
+		return next(t, s, indexes, blooms, z);
+	}
+
+	public Catalog withoutTable(String table) {
+		Map<String, Partition> t = new HashMap<String, Partition>(tables);
+		Map<String, String> s = new HashMap<String, String>(schemas);
+		Map<String, List<GlobalIndex>> i = new HashMap<String, List<GlobalIndex>>(indexes);
+		Map<String, List<ColumnBloom>> b = new HashMap<String, List<ColumnBloom>>(blooms);
+		Map<String, ZoneMap> z = new HashMap<String, ZoneMap>(zoneMaps);
+		t.remove(table);
+		s.remove(table);
+		i.remove(table);
+		b.remove(table);
+		z.remove(table);
+		return next(t, s, i, b, z);
+	}
+
+	public Catalog withIndex(String table, GlobalIndex idx) {
+		Map<String, List<GlobalIndex>> i = new HashMap<String, List<GlobalIndex>>(indexes);
+		List<GlobalIndex> l = i.containsKey(table) ? new ArrayList<GlobalIndex>(i.get(table)) : new ArrayList<GlobalIndex>();
+		l.add(idx);
+		i.put(table, l);
+		return next(tables, schemas, i, blooms, zoneMaps);
+	}
+
+	public Catalog withBloom(String table, ColumnBloom bloom) {
+		Map<String, List<ColumnBloom>> b = new HashMap<String, List<ColumnBloom>>(blooms);
+		List<ColumnBloom> l = b.containsKey(table) ? new ArrayList<ColumnBloom>(b.get(table)) : new ArrayList<ColumnBloom>();
+		l.add(bloom);
+		b.put(table, l);
+		return next(tables, schemas, indexes, b, zoneMaps);
+	}
+}
@@ -0,0 +1,292 @@
+package distributeddb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+
+/**
+ * The partition catalog on disk, a snapshot of every entry plus a log of the
+ * changes made since. Saving a table only appends records for its entries
+ * that changed. Each record is
+ *   int length, long CRC32 of the rest, byte PUT|DEL, UTF key, serialized value (PUT only)
+ * and a commit forces the appended records to disk before returning.
+ *
+ * Both files are read through a memory map. A record cut short by a crash or
+ * with a bad CRC ends the log, it is cut off there after the bytes dropped
+ * are copied to a ".torn" file. A bad record in the snapshot can't be a torn
+ * write, what follows it is lost and that is logged as an error. An entry
+ * whose value can't be deserialized is skipped. Once the log outgrows the
+ * snapshot the two are compacted into a new snapshot, written to a temporary
+ * file and renamed over the old one. The log is emptied after, replaying it
+ * over the new snapshot would give the same entries anyway.
+ */
+class CatalogLog {
+	private static final byte PUT = 1;
+	private static final byte DEL = 2;
+	// Compact once the log is this many times the snapshot, and at least MIN_COMPACT_BYTES
+	private static final int COMPACT_RATIO = 2;
+	private static final long MIN_COMPACT_BYTES = 1024 * 1024;
+
+	private final File snapFile;
+	private final File logFile;
+	private final Log LOG;
+	// Serialized value of every entry, sorted so snapshots come out the same
+	private final Map<String, byte[]> entries;
+	// Records not yet committed
+	private final List<byte[]> pending;
+	private long snapBytes;
+	private long logBytes;
+
+	public CatalogLog(String prefix, Log log) {
+		this.snapFile = new File(prefix + "catalog.snap");
+		this.logFile = new File(prefix + "catalog.log");
+		this.LOG = log;
+		this.entries = new TreeMap<String, byte[]>();
+		this.pending = new ArrayList<byte[]>();
+	}
+
+	public boolean exists() {
+		return snapFile.exists() || logFile.exists();
+	}
+
+	/**
+	 * Read the snapshot and replay the log over it
+	 * @return every entry that could be read
+	 * @throws IOException if the files can't be read at all
+	 */
+	public Map<String, Object> load() throws IOException {
+		entries.clear();
+		pending.clear();
+		snapBytes = 0;
+		if(snapFile.exists()) {
+			snapBytes = replay(snapFile);
+			if(snapBytes < snapFile.length()) {
+				LOG.error("[CATALOG] Snapshot " + snapFile + " is corrupt after " + snapBytes + " bytes, the entries in the last "
+						+ (snapFile.length() - snapBytes) + " bytes are lost unless the log has them");
+				keepCopy(snapFile, 0, ".corrupt");
+			}
+		}
+		logBytes = 0;
+		if(logFile.exists()) {
+			logBytes = replay(logFile);
+			if(logBytes < logFile.length()) {
+				LOG.error("[CATALOG] Dropping " + (logFile.length() - logBytes) + " bytes of torn or corrupt log after "
+						+ logBytes + " good bytes of " + logFile);
+				keepCopy(logFile, logBytes, ".torn");
+				RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+				try {
+					raf.getChannel().truncate(logBytes);
+					raf.getChannel().force(true);
+				} finally {
+					raf.close();
+				}
+			}
+		}
+		Map<String, Object> out = new HashMap<String, Object>();
+		for(Map.Entry<String, byte[]> e: entries.entrySet()) {
+			try {
+				ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(e.getValue()));
+				try {
+					out.put(e.getKey(), in.readObject());
+				} finally {
+					in.close();
+				}
+			} catch(Exception ex) {
+				LOG.error("[CATALOG] Unable to read entry " + e.getKey() + ", skipping it: " + ex);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Copy the file from an offset on to one beside it, for whoever looks into
+	 * what was lost
+	 */
+	private void keepCopy(File f, long from, String suffix) {
+		File copy = new File(f.getPath() + suffix + "." + System.currentTimeMillis());
+		try {
+			RandomAccessFile in = new RandomAccessFile(f, "r");
+			FileOutputStream out = new FileOutputStream(copy);
+			try {
+				in.getChannel().transferTo(from, in.length() - from, out.getChannel());
+			} finally {
+				out.close();
+				in.close();
+			}
+			LOG.error("[CATALOG] Kept a copy in " + copy);
+		} catch(IOException e) {
+			LOG.error("[CATALOG] Unable to keep a copy in " + copy + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Rename both files out of the way, when they can't be read a new catalog
+	 * is started without writing over them
+	 */
+	public void moveAside() {
+		String suffix = ".unreadable." + System.currentTimeMillis();
+		for(File f: new File[] {snapFile, logFile}) {
+			if(f.exists() && !f.renameTo(new File(f.getPath() + suffix))) {
+				LOG.error("[CATALOG] Unable to move " + f + " aside");
+			}
+		}
+		LOG.error("[CATALOG] Moved the catalog files aside as *" + suffix);
+	}
+
+	/**
+	 * Apply the good records of a file
+	 * @return the length of the good records
+	 */
+	private long replay(File f) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			long good = 0;
+			while(buf.remaining() >= 12) {
+				int len = buf.getInt();
+				long crc = buf.getLong();
+				if(len < 3 || len > buf.remaining()) {
+					break;
+				}
+				byte[] rec = new byte[len];
+				buf.get(rec);
+				CRC32 check = new CRC32();
+				check.update(rec);
+				if(check.getValue() != crc) {
+					break;
+				}
+				apply(rec);
+				good = buf.position();
+			}
+			return good;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void apply(byte[] rec) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(rec));
+		byte type = in.readByte();
+		String key = in.readUTF();
+		if(type == PUT) {
+			entries.put(key, Arrays.copyOfRange(rec, rec.length - in.available(), rec.length));
+		} else {
+			entries.remove(key);
+		}
+	}
+
+	private static byte[] record(byte type, String key, byte[] value) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(body);
+		out.writeByte(type);
+		out.writeUTF(key);
+		if(value != null) {
+			out.write(value);
+		}
+		out.close();
+		byte[] b = body.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(b);
+		ByteBuffer rec = ByteBuffer.allocate(12 + b.length);
+		rec.putInt(b.length).putLong(crc.getValue()).put(b);
+		return rec.array();
+	}
+
+	/**
+	 * Queue the entry's new value, nothing is written if it didn't change
+	 */
+	public void put(String key, Object value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(value);
+		out.close();
+		byte[] b = bytes.toByteArray();
+		if(Arrays.equals(b, entries.get(key))) {
+			return;
+		}
+		entries.put(key, b);
+		pending.add(record(PUT, key, b));
+	}
+
+	public void delete(String key) throws IOException {
+		if(entries.remove(key) != null) {
+			pending.add(record(DEL, key, null));
+		}
+	}
+
+	/**
+	 * Append the queued records and force them to disk
+	 */
+	public void commit() throws IOException {
+		if(pending.isEmpty()) {
+			return;
+		}
+		FileOutputStream out = new FileOutputStream(logFile, true);
+		try {
+			for(byte[] rec: pending) {
+				out.write(rec);
+				logBytes += rec.length;
+			}
+			out.getChannel().force(false);
+		} finally {
+			out.close();
+		}
+		pending.clear();
+		if(logBytes > Math.max(MIN_COMPACT_BYTES, COMPACT_RATIO * snapBytes)) {
+			compact();
+		}
+	}
+
+	/**
+	 * Write every entry to a new snapshot and empty the log
+	 */
+	public void compact() throws IOException {
+		commit();
+		File tmp = new File(snapFile.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		long bytes = 0;
+		try {
+			for(Map.Entry<String, byte[]> e: entries.entrySet()) {
+				byte[] rec = record(PUT, e.getKey(), e.getValue());
+				out.write(rec);
+				bytes += rec.length;
+			}
+			out.getChannel().force(false);
+		} finally {
+			out.close();
+		}
+		if(!tmp.renameTo(snapFile)) {
+			throw new IOException("Unable to replace " + snapFile);
+		}
+		RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+		try {
+			raf.getChannel().truncate(0);
+			raf.getChannel().force(true);
+		} finally {
+			raf.close();
+		}
+		LOG.info("[CATALOG] Compacted " + entries.size() + " entries, " + logBytes + " bytes of log into a " + bytes + " byte snapshot");
+		snapBytes = bytes;
+		logBytes = 0;
+	}
+}
@@ -10,10 +10,12 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
@@ -27,7 +29,6 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.yarn.api.ApplicationConstants;
@@ -96,6 +97,8 @@ public class Client {
 	private int containerMemory = 10;
 	// No. of containers in which the shell script needs to be executed
 	private int numContainers = 1;
+	// Idle containers the AppMaster keeps ready to take over a node
+	private int numStandby = 0;
 	// Start time for client
 	private final long clientStartTime = System.currentTimeMillis();
 	// Timeout threshold for client. Kill app after time interval expires.
@@ -109,6 +112,11 @@ public class Client {
 	// Partitioner object
 	private TCPServer tcpControllerServer;
 	private DDBPartitioner dbPartitioner;
+	// Held while a query or a range split is talking to the nodes, they share
+	// the connections and the replies coming back on them
+	private final ReentrantLock nodeLock = new ReentrantLock();
+	// Range splits run here after the inserts that made them, one at a time
+	private final ExecutorService splitter = Executors.newSingleThreadExecutor();
 	// Application master host name
 	private String appMasterHostName;
 	// Client Host Name
@@ -174,6 +182,8 @@ public class Client {
 				"Which database you want to use (quickstep or sqlite3(default) )");
 		opts.addOption("num_containers", true,
 				"No. of containers on which the shell command needs to be executed");
+		opts.addOption("standby", true,
+				"No. of idle containers kept ready to take over from one that dies, sqlite3 only. Default 0");
 		opts.addOption("debug", false, "Dump out debug information");
 		opts.addOption("help", false, "Print usage");
 	}
@@ -289,7 +299,9 @@ public class Client {
 		numContainers = Integer.parseInt(cliParser.getOptionValue(
 				"num_containers", "1"));
 
-		if (containerMemory < 0 || numContainers < 1) {
+		numStandby = Integer.parseInt(cliParser.getOptionValue("standby", "0"));
+
+		if (containerMemory < 0 || numContainers < 1 || numStandby < 0) {
 			throw new IllegalArgumentException(
 					"Invalid no. of containers or container memory specified, exiting."
 							+ " Specified containerMemory=" + containerMemory
@@ -336,7 +348,7 @@ public class Client {
 	 * String s = br.readLine(); return s; }
 	 */
 	private static void writeResultToConsole(String dbType, TCPServer tcp, ChannelHandlerContext ctx, FileSystem fs,
-			List<String> nodeNames, String selectStr, String table, String where) throws IOException, InterruptedException {
+			List<String> nodeNames, String selectStr, String table, String where, boolean combined) throws IOException, InterruptedException {
 		
 		//Setup the process string
 		List<String> processArgs = new ArrayList<String>();
@@ -344,6 +356,10 @@ public class Client {
 		if(dbType.equals(DDBConstants.SQLITE3_DB)) {
 			processArgs.add("bash");
 			processArgs.add("gather_sqlite_results.sh");
+			if(combined) {
+				// One select over every node's rows, where is what follows the table
+				processArgs.add("-c");
+			}
 			processArgs.add(selectStr);
 			processArgs.add(table);
 			processArgs.add(where);
@@ -525,14 +541,13 @@ public class Client {
 		Map<String, LocalResource> localResources = new HashMap<String, LocalResource>();
 
 		LOG.info("Copy App Master jar from local filesystem and add to local environment");
-		// Copy the application master jar to the filesystem
+		// Put the application master jar and the scripts in the shared cache,
+		// unless the same versions are already there
 		// Create a local resource to point to the destination jar path
 		FileSystem fs = FileSystem.get(conf);
-		Path src = new Path(appMasterJar);
-		String pathSuffix = appName + "/" + appId.getId() + "/AppMaster.jar";
-		Path dst = new Path(fs.getHomeDirectory(), pathSuffix);
-		fs.copyFromLocalFile(false, true, src, dst);
-		FileStatus destStatus = fs.getFileStatus(dst);
+		SharedCache cache = new SharedCache(fs, FileSystem.getLocal(conf), LOG);
+		SharedCache.Entry jar = cache.put(new Path(appMasterJar), DDBConstants.JAR_LOCATION,
+				appName + "/" + appId.getId() + "/AppMaster.jar");
 		LocalResource amJarRsrc = Records.newRecord(LocalResource.class);
 
 		// Set the type of resource - file or archive
@@ -540,17 +555,17 @@ public class Client {
 		// we don't need the jar file to be untarred for now
 		amJarRsrc.setType(LocalResourceType.FILE);
 		// Set visibility of the resource
-		// Setting to most private option
-		amJarRsrc.setVisibility(LocalResourceVisibility.APPLICATION);
+		// PUBLIC when it is in the shared cache, so nodes keep one copy
+		amJarRsrc.setVisibility(jar.visibility);
 		// Set the resource to be copied over
-		amJarRsrc.setResource(ConverterUtils.getYarnUrlFromPath(dst));
+		amJarRsrc.setResource(ConverterUtils.getYarnUrlFromPath(jar.path));
 		// Set timestamp and length of file so that the framework
 		// can do basic sanity checks for the local resource
 		// after it has been copied over to ensure it is the same
 		// resource the client intended to use with the application
-		amJarRsrc.setTimestamp(destStatus.getModificationTime());
-		amJarRsrc.setSize(destStatus.getLen());
-		localResources.put("AppMaster.jar", amJarRsrc);
+		amJarRsrc.setTimestamp(jar.timestamp);
+		amJarRsrc.setSize(jar.len);
+		localResources.put(DDBConstants.JAR_LOCATION, amJarRsrc);
 
 		// The shell script has to be made available on the final container(s)
 		// where it will be executed.
@@ -558,60 +573,20 @@ public class Client {
 		// to the yarn framework.
 		// We do not need to set this as a local resource for the application
 		// master as the application master does not need it.
-		String hdfsDbShellScriptLocation = "";
-		String hdfsWrapShellScriptLocation = "";
-		String hdfsWrapQsShellScriptLocation = "";
-
-		long hdfsDbShellScriptLen = 0;
-		long hdfsWrapShellScriptLen = 0;
-		long hdfsWrapQsShellScriptLen = 0;
-
-		long hdfsDbShellScriptTimestamp = 0;
-		long hdfsWrapShellScriptTimestamp = 0;
-		long hdfsWrapQsShellScriptTimestamp = 0;
-
-		// Copy the required scripts so they are local resources to the worker
-		// nodes
-		String dbScriptPath = DDBConstants.DB_SCRIPT_LOCATION;
-		String wrapScriptPath = DDBConstants.WRAP_SCRIPT_LOCATION;
-		String wrapQsScriptPath = DDBConstants.WRAP_QS_SCRIPT_LOCATION;
-
-		Path dbShellSrc = new Path(dbScriptPath);
-		Path wrapShellSrc = new Path(wrapScriptPath);
-		Path wrapQsShellSrc = new Path(wrapQsScriptPath);
-
-		String dbShellPathSuffix = appName + "/"
-				+ DDBConstants.DB_SCRIPT_LOCATION;
-		String wrapShellPathSuffix = appName + "/"
-				+ DDBConstants.WRAP_SCRIPT_LOCATION;
-		String wrapQsShellPathSuffix = appName + "/"
-				+ DDBConstants.WRAP_QS_SCRIPT_LOCATION;
-
-		Path dbShellDst = new Path(fs.getHomeDirectory(), dbShellPathSuffix);
-		Path wrapShellDst = new Path(fs.getHomeDirectory(), wrapShellPathSuffix);
-		Path wrapQsShellDst = new Path(fs.getHomeDirectory(), wrapQsShellPathSuffix);
-
-		fs.copyFromLocalFile(false, true, dbShellSrc, dbShellDst);
-		fs.copyFromLocalFile(false, true, wrapShellSrc, wrapShellDst);
-		fs.copyFromLocalFile(false, true, wrapQsShellSrc, wrapQsShellDst);
-
-		hdfsDbShellScriptLocation = dbShellDst.toUri().toString();
-		hdfsWrapShellScriptLocation = wrapShellDst.toUri().toString();
-		hdfsWrapQsShellScriptLocation = wrapQsShellDst.toUri().toString();
-
-		FileStatus dbShellFileStatus = fs.getFileStatus(dbShellDst);
-		FileStatus wrapShellFileStatus = fs.getFileStatus(wrapShellDst);
-		FileStatus wrapQsShellFileStatus = fs.getFileStatus(wrapQsShellDst);
-
-		hdfsDbShellScriptLen = dbShellFileStatus.getLen();
-		hdfsWrapShellScriptLen = wrapShellFileStatus.getLen();
-		hdfsWrapQsShellScriptLen = wrapQsShellFileStatus.getLen();
-
-		hdfsDbShellScriptTimestamp = dbShellFileStatus.getModificationTime();
-		hdfsWrapShellScriptTimestamp = wrapShellFileStatus
-				.getModificationTime();
-		hdfsWrapQsShellScriptTimestamp = wrapQsShellFileStatus
-				.getModificationTime();
+		SharedCache.Entry dbScript = cache.put(new Path(DDBConstants.DB_SCRIPT_LOCATION),
+				DDBConstants.DB_SCRIPT_LOCATION, appName + "/" + DDBConstants.DB_SCRIPT_LOCATION);
+		SharedCache.Entry wrapScript = cache.put(new Path(DDBConstants.WRAP_SCRIPT_LOCATION),
+				DDBConstants.WRAP_SCRIPT_LOCATION, appName + "/" + DDBConstants.WRAP_SCRIPT_LOCATION);
+		SharedCache.Entry wrapQsScript = cache.put(new Path(DDBConstants.WRAP_QS_SCRIPT_LOCATION),
+				DDBConstants.WRAP_QS_SCRIPT_LOCATION, appName + "/" + DDBConstants.WRAP_QS_SCRIPT_LOCATION);
+
+		// The containers' resources are only PUBLIC if all of them could be
+		boolean allPublic = true;
+		for(SharedCache.Entry e: Arrays.asList(jar, dbScript, wrapScript, wrapQsScript)) {
+			allPublic &= e.visibility == LocalResourceVisibility.PUBLIC;
+		}
+		LocalResourceVisibility containerVisibility = allPublic ? LocalResourceVisibility.PUBLIC
+				: LocalResourceVisibility.APPLICATION;
 
 		// Set local resource info into app master container launch context
 		amContainer.setLocalResources(localResources);
@@ -629,22 +604,29 @@ public class Client {
 		// local resource for the
 		// eventual containers that will be launched to execute the shell
 		// scripts
-		env.put(DDBConstants.DDB_DB_LOCATION, hdfsDbShellScriptLocation);
+		env.put(DDBConstants.DDB_DB_LOCATION, dbScript.path.toUri().toString());
 		env.put(DDBConstants.DDB_DB_TIMESTAMP,
-				Long.toString(hdfsDbShellScriptTimestamp));
-		env.put(DDBConstants.DDB_DB_LEN, Long.toString(hdfsDbShellScriptLen));
+				Long.toString(dbScript.timestamp));
+		env.put(DDBConstants.DDB_DB_LEN, Long.toString(dbScript.len));
 
-		env.put(DDBConstants.DDB_WRAP_LOCATION, hdfsWrapShellScriptLocation);
+		env.put(DDBConstants.DDB_WRAP_LOCATION, wrapScript.path.toUri().toString());
 		env.put(DDBConstants.DDB_WRAP_TIMESTAMP,
-				Long.toString(hdfsWrapShellScriptTimestamp));
+				Long.toString(wrapScript.timestamp));
 		env.put(DDBConstants.DDB_WRAP_LEN,
-				Long.toString(hdfsWrapShellScriptLen));
+				Long.toString(wrapScript.len));
 
-		env.put(DDBConstants.DDB_WRAP_QS_LOCATION, hdfsWrapQsShellScriptLocation);
+		env.put(DDBConstants.DDB_WRAP_QS_LOCATION, wrapQsScript.path.toUri().toString());
 		env.put(DDBConstants.DDB_WRAP_QS_TIMESTAMP,
-				Long.toString(hdfsWrapQsShellScriptTimestamp));
+				Long.toString(wrapQsScript.timestamp));
 		env.put(DDBConstants.DDB_WRAP_QS_LEN,
-				Long.toString(hdfsWrapQsShellScriptLen));
+				Long.toString(wrapQsScript.len));
+
+		// The containers run ContainerAgent from the same jar
+		env.put(DDBConstants.DDB_JAR_LOCATION, jar.path.toUri().toString());
+		env.put(DDBConstants.DDB_JAR_TIMESTAMP,
+				Long.toString(jar.timestamp));
+		env.put(DDBConstants.DDB_JAR_LEN, Long.toString(jar.len));
+		env.put(DDBConstants.DDB_RESOURCE_VISIBILITY, containerVisibility.name());
 		
 		// Add AppMaster.jar location to classpath
 		// At some point we should not be required to add
@@ -687,6 +669,7 @@ public class Client {
 		// Set params for Application Master
 		vargs.add("--container_memory " + String.valueOf(containerMemory));
 		vargs.add("--num_containers " + String.valueOf(numContainers));
+		vargs.add("--standby " + String.valueOf(numStandby));
 		// Add database type 
 		vargs.add("--db " + dbtype);
 		// NOTE: The query is a sentence and so we must surround it by quotes
@@ -774,6 +757,17 @@ public class Client {
 					appMasterPortNumber = Integer.parseInt(msgArray[2]);
 					// Register the appmaster with our TCPServer
 					tcpControllerServer.registerAppMaster(ctx);
+					// It waits for every agent to register, not just for its container to start
+					final TCPClient appMaster = new TCPClient(appMasterHostName, appMasterPortNumber);
+					if (appMaster.init()) {
+						tcpControllerServer.setRegistrationListener(new TCPServer.RegistrationListener() {
+							public void registered(String host) {
+								appMaster.sendMsg(DDBConstants.NODE_REGISTERED + " " + host + "\n");
+							}
+						});
+					} else {
+						LOG.error("[REGISTER] Unable to connect to the AppMaster at " + appMasterHostName + ":" + appMasterPortNumber);
+					}
 				} else {
 					LOG.error("[REGISTER] Got message with less than 3 arguments from AppMaster");
 					tcpControllerServer.close();
@@ -814,8 +808,12 @@ public class Client {
 		TCPClient client = null;
 		boolean performParallel = true;
 		boolean performTiming = false;
+		nodeLock.lock();
 		while (true) {
+			// A split can use the nodes while we wait for the next query
+			nodeLock.unlock();
 			List<Object> tmp = tcpServer.getNextMessage();
+			nodeLock.lock();
 			ChannelHandlerContext ctx = (ChannelHandlerContext) tmp.get(0);
 			String query = (String) tmp.get(1);
 			LOG.info("[QUERY] From: " + ctx.getChannel().toString() + " query: " + query);
@@ -835,14 +833,19 @@ public class Client {
 								"!cmd <node> <msg>  : send command directly to <node>\n" +
 								"!syntax            : print the supported syntax for partition types\n" +
 								"!partitions        : print the partition data\n" +
+								"!stats             : rows, bytes and insert rates of each node of every table, one line each\n" +
 								"!parallel <on|off> : when sending queries perform in parallel or serial\n" +
 								"!timing <on|off>   : output time to complete operation in seconds\n" + 
+								"!expire            : delete the intervals of TIME partitioned tables that are past their retention\n" +
+								"COPY <table> FROM '<path>' [DELIMITER 'c'] : bulk load a CSV file, local or hdfs://\n" +
+								"ANALYZE <table> REPARTITION : new RANGE bounds that split the table's rows evenly, the rows are moved to match\n" +
 								"!exit              : Exit and kill the application\n";
 				tcpServer.sendCtxMessage(ctx, resp);
 				continue;
 			}
 			if (query.startsWith("!nodes")) {
-				tcpServer.sendCtxMessage(ctx, nodeList.toString() + "\n");
+				Map<String, Integer> standby = tcpControllerServer.standbyCounts();
+				tcpServer.sendCtxMessage(ctx, nodeList.toString() + (standby.isEmpty() ? "" : " standby: " + standby) + "\n");
 				continue;
 			}
 			if (query.startsWith("!syntax")) {
@@ -852,9 +855,11 @@ public class Client {
 								"RANDOM:\n" +
 								"\tPARTITION BY RANDOM\n" +
 								"\tPARTITION BY RANDOM(X)\n" +
+								"\tPARTITION BY RANDOM[(X)] BALANCED\n" +
 								"\t  Description: Values will be inserted randomly into nodes of the cluster\n" +
 								"\t  Arguments:\n" +
-								"\t    '(X)' : Optional, integer, specifies to randomly pick a subset of nodes for this table, of size X\n" +
+								"\t    '(X)' : Optional, integer, specifies to use a subset of X nodes, the ones holding the fewest tables\n" +
+								"\t    'BALANCED' : Optional, each value goes to the less busy of two random nodes (fewer waiting messages, then fewer rows)\n" +
 								"ROUNDROBIN:\n" + 
 								"\tPARTITION BY ROUNDROBIN\n" +
 								"\tPARTITION BY ROUNDROBIN(X0,X1,...)\n" +
@@ -864,10 +869,61 @@ public class Client {
 								"HASH:\n" +
 								"\tPARTITION BY HASH(X)\n" +
 								"\tPARTITION BY HASH(X) PARTITIONS (X0,X1,...)\n" +
+								"\tPARTITION BY HASH(X,Y,...)\n" +
 								"\t  Description: Values will be inserted by hashing on the attribute defined in X\n" +
 								"\t               the hash function currently supports types 'integer', 'real', 'text'\n" +
 								"\t  Arguments:\n" +
-								"\t    '(X0,X1,...)' : Optional, string, specifies nodes to use as part of the hash, if not provided all are used\n"
+								"\t    '(X0,X1,...)' : Optional, string, specifies nodes to use as part of the hash, if not provided all are used\n" +
+								"\t    '(X,Y,...)' : Hash on all of the attributes together, selects only prune with an = on each of them\n" +
+								"RANGE:\n" +
+								"\tPARTITION BY RANGE(X) (min:A,A:B,...,C:max)\n" +
+								"\tPARTITION BY RANGE(X) (min:A,...,C:max) SUBPARTITION BY HASH(Y)\n" +
+								"\tPARTITION BY RANGE(X) AUTO\n" +
+								"\t  Description: Values will be inserted into the node whose range (low, high] the integer attribute X falls in\n" +
+								"\t               A range taking over twice a node's share of the inserts is split in two in the background after the insert,\n" +
+								"\t               the upper half moves to the node with the least of the table (not with SUBPARTITION)\n" +
+								"\t  Arguments:\n" +
+								"\t    'AUTO' : Instead of the ranges, a range per node holding about the same amount of data, worked out from\n" +
+								"\t             the file a COPY first loads into the table or by ANALYZE. Until then values are hashed on X\n" +
+								"\t    'SUBPARTITION BY HASH(Y)' : Optional, nodes are shared out between the ranges and each range hashes on Y\n" +
+								"\t                                over its nodes, selects prune with an = on X, Y or both\n" +
+								"LIST:\n" +
+								"\tPARTITION BY LIST(X) ((A,B,...) ON X0, (C,...) ON X1, ..., DEFAULT ON Xn)\n" +
+								"\t  Description: Values of X are inserted into the node they are listed with, selects with an = or IN on X\n" +
+								"\t               only go to the nodes of those values\n" +
+								"\t  Arguments:\n" +
+								"\t    'DEFAULT ON Xn' : Optional, node for values that aren't listed, if not provided the first listed node\n" +
+								"TIME:\n" +
+								"\tPARTITION BY TIME(X) INTERVAL 'N unit' [RETENTION 'N unit'] [SPREAD S]\n" +
+								"\t  Description: Values are grouped by the interval (unit: second, minute, hour, day, week) the time X falls in,\n" +
+								"\t               each new interval goes to the node(s) holding the fewest. X is an integer of seconds since\n" +
+								"\t               the epoch or a 'YYYY-MM-DD[ HH:MM:SS]' string (UTC), selects prune on comparisons with X\n" +
+								"\t  Arguments:\n" +
+								"\t    'RETENTION' : Optional, !expire deletes intervals older than this from the nodes holding them\n" +
+								"\t    'SPREAD S' : Optional, integer, number of nodes the rows of each interval are dealt out to, default 1\n" +
+								"REPLICATED:\n" +
+								"\tPARTITION BY REPLICATED\n" +
+								"\tPARTITION BY REPLICATED(X0,X1,...)\n" +
+								"\t  Description: Every node keeps a full copy, inserts go to all of them and a select reads the least busy one\n" +
+								"\t  Arguments:\n" +
+								"\t    '(X0,X1,...)' : Optional, string, specifies nodes to keep copies on, if not provided all are used\n" +
+								"GLOBAL INDEX:\n" +
+								"\tCREATE GLOBAL INDEX ON T(X)\n" +
+								"\t  Description: Keeps track of which nodes hold each value of X, selects with an = on X only go to those\n" +
+								"\t               nodes. The table must not have any rows yet\n" +
+								"BLOOM FILTER:\n" +
+								"\tCREATE BLOOM FILTER ON T(X) [BITS N]\n" +
+								"\t  Description: Keeps a Bloom filter of the values of X on each node, selects with an = on X skip nodes\n" +
+								"\t               that can't have the value. The table must not have any rows yet\n" +
+								"\t  Arguments:\n" +
+								"\t    'BITS N' : Optional, integer, size of each node's filter, default 1048576\n" +
+								"JOINS:\n" +
+								"\tSELECT ... FROM T1 A JOIN T2 B ON A.X = B.Y [WHERE ...]\n" +
+								"\tSELECT ... FROM T1 A, T2 B WHERE A.X = B.Y [AND ...]\n" +
+								"\t  Description: Two tables partitioned the same way on X and Y (same HASH type and nodes, or same RANGEs)\n" +
+								"\t               or where one is REPLICATED are joined on each node, sqlite3 only\n" +
+								"\t               Other joins are finished on the Client, the other side only sends rows whose key\n" +
+								"\t               is one of the smaller side's\n"
 								;
 				tcpServer.sendCtxMessage(ctx, resp);
 				continue;
@@ -876,6 +932,11 @@ public class Client {
 				tcpServer.sendCtxMessage(ctx, dbPartitioner.explain() + "\n");
 				continue;
 			}
+			if (query.startsWith("!stats")) {
+				// "<table> <node> rows=N bytes=N rows/s=R bytes/s=R", node * is the whole table with its skew
+				tcpServer.sendCtxMessage(ctx, dbPartitioner.stats(System.currentTimeMillis()));
+				continue;
+			}
 			if (query.startsWith("!cmd")) {
 				if(query.contains(" ")) {
                     List<String> cmdTmp = new ArrayList<String>(Arrays.asList(query.split(" ")));
@@ -920,6 +981,32 @@ public class Client {
 				}
 				continue;
 			}
+			if (query.startsWith("!expire")) {
+				// Only the nodes holding expired intervals get a delete, of their own old rows
+				Map<String, Map<String, String>> expired = dbPartitioner.expire(System.currentTimeMillis() / 1000);
+				String resp = expired.isEmpty() ? "Nothing to expire\n" : "";
+				for(Map.Entry<String, Map<String, String>> e: expired.entrySet()) {
+					int waiting = 0;
+					for(Map.Entry<String, String> op: e.getValue().entrySet()) {
+						if(tcpControllerServer.sendHostMessage(op.getKey(), op.getValue())) {
+							waiting++;
+						} else {
+							resp += "ERROR " + e.getKey() + ": unable to send to " + op.getKey() + "\n";
+						}
+					}
+					while(waiting > 0) {
+						List<Object> respTmp = tcpControllerServer.getNextMessage();
+						String nodeResp = (String) respTmp.get(1);
+						waiting--;
+						if(nodeResp.contains("ERROR")) {
+							resp += "ERROR " + e.getKey() + ": " + tcpControllerServer.getHost((ChannelHandlerContext) respTmp.get(0)) + ": " + nodeResp.trim() + "\n";
+						}
+					}
+					resp += e.getKey() + ": expired on " + e.getValue().keySet() + "\n";
+				}
+				tcpServer.sendCtxMessage(ctx, resp);
+				continue;
+			}
 			if (query.startsWith("!exit")) {
 				LOG.info("[QUERY] Exiting as got exit from user");
 				tcpServer.close();
@@ -928,6 +1015,84 @@ public class Client {
 				System.exit(0);
 			}
 			
+			// Bulk load, the loader routes and batches rows to the nodes itself
+			String[] copySpec = BulkLoader.parseCopyQuery(query.trim());
+			if (copySpec != null) {
+				try {
+					Path csvPath = new Path(copySpec[1]);
+					// No scheme means a file local to the Client
+					FileSystem csvFs = csvPath.toUri().getScheme() == null ? FileSystem.getLocal(conf) : csvPath.getFileSystem(conf);
+					if(dbPartitioner.needsRangeBounds(copySpec[0])) {
+						// The whole file is sampled for the bounds before any row is placed
+						RangeSample sample = dbPartitioner.rangeSample(copySpec[0]);
+						BufferedReader sampleIn = new BufferedReader(new InputStreamReader(csvFs.open(csvPath)));
+						try {
+							RangeRepartition.sample(sampleIn, copySpec[2].charAt(0), sample);
+						} finally {
+							sampleIn.close();
+						}
+						if(sample.seen() > 0) {
+							dbPartitioner.setRangeBounds(copySpec[0], sample, false);
+						}
+					}
+					BufferedReader csvIn = new BufferedReader(new InputStreamReader(csvFs.open(csvPath)));
+					try {
+						BulkLoader loader = new BulkLoader(dbPartitioner, tcpControllerServer, LOG, copySpec[0]);
+						tcpServer.sendCtxMessage(ctx, loader.load(csvIn, copySpec[2].charAt(0)));
+					} finally {
+						csvIn.close();
+					}
+					splitHotRange(ctx, fs, copySpec[0]);
+				} catch (Exception e) {
+					tcpServer.sendCtxMessage(ctx, "ERROR: " + e.getMessage() + "\n");
+				}
+				if(performTiming) {
+					long endTime = System.currentTimeMillis();
+					tcpServer.sendCtxMessage(ctx, "Elapsed time: " + (endTime - startTime) / 1000 + " sec\n");
+				}
+				continue;
+			}
+			
+			// Moves every row of the table, like a bulk load it talks to the nodes itself
+			String analyzeTable = RangeRepartition.parseAnalyzeQuery(query.trim());
+			if (analyzeTable != null) {
+				try {
+					RangeRepartition repart = new RangeRepartition(dbPartitioner, tcpControllerServer, LOG, fs);
+					tcpServer.sendCtxMessage(ctx, repart.run(analyzeTable));
+				} catch (Exception e) {
+					tcpServer.sendCtxMessage(ctx, "ERROR: " + e.getMessage() + "\n");
+				}
+				if(performTiming) {
+					long endTime = System.currentTimeMillis();
+					tcpServer.sendCtxMessage(ctx, "Elapsed time: " + (endTime - startTime) / 1000 + " sec\n");
+				}
+				continue;
+			}
+			
+			// Joins the nodes can't do on their own are finished off here
+			JoinQuery join = null;
+			try {
+				join = JoinQuery.parse(query.trim());
+			} catch (Exception e) {
+				// Not a join we handle, parseQuery will say so
+			}
+			if (join != null) {
+				try {
+					if (!dbPartitioner.canJoinOnNodes(join)) {
+						CoordinatorJoin coordJoin = new CoordinatorJoin(dbPartitioner, tcpControllerServer, LOG, fs);
+						tcpServer.sendCtxMessage(ctx, coordJoin.run(join, query.trim()));
+						if(performTiming) {
+							long endTime = System.currentTimeMillis();
+							tcpServer.sendCtxMessage(ctx, "Elapsed time: " + (endTime - startTime) / 1000 + " sec\n");
+						}
+						continue;
+					}
+				} catch (Exception e) {
+					tcpServer.sendCtxMessage(ctx, "ERROR: " + e.getMessage() + "\n");
+					continue;
+				}
+			}
+			
 			// Now the query is sent to the Partitioner which returns back to us a map of operations we must perform
 			try {
 				Map<String, String> operations;
@@ -940,33 +1105,40 @@ public class Client {
 					continue;
 				}
 				LOG.info("[QUERY] Mapped operations: " + operations);
+				if(operations.isEmpty()) {
+					// Handled by the partitioner alone (e.g. create global index or bloom filter)
+					tcpServer.sendCtxMessage(ctx, "SUCCESS\n");
+					continue;
+				}
 				
 				//Prepare stuff
 				List<String> outputBlocks = new ArrayList<String>();
 				boolean isQuerySelect = dbPartitioner.getSelectStr(query.trim()) != "" ? true : false;
 				
+				// Nodes that couldn't be sent their statement (down), there is no reply to wait for
+				List<String> unsent = new ArrayList<String>();
 				/*
 				 * Perform task in parallel
 				 */
 				if(performParallel){
 					// Now send the query to the nodes specified
-					Iterator<Map.Entry<String, String>> it = operations.entrySet().iterator();
-					while(it.hasNext()) {
-						Map.Entry<String, String> p = (Map.Entry<String, String>)it.next();
+					for(Map.Entry<String, String> p: operations.entrySet()) {
 						LOG.info("[QUERY] Sending query to: " + p.getKey());
 					
 						// Now forward query to specific node
-						tcpControllerServer.sendHostMessage(p.getKey(), p.getValue());
+						if(!tcpControllerServer.sendHostMessage(p.getKey(), p.getValue())) {
+							unsent.add(p.getKey());
+						}
 					}
 					
 				}
 				/*
 				 * Main loop happens regardless of serial or parallel
 				 */
-				Iterator<Map.Entry<String, String>> it = operations.entrySet().iterator();
 				boolean sentSuccess = false;
-				while(it.hasNext()) {
-					Map.Entry<String, String> p = (Map.Entry<String, String>)it.next();
+				// Nodes that answered with an error, replicated tables need to know which
+				List<String> failedNodes = new ArrayList<String>();
+				for(Map.Entry<String, String> p: operations.entrySet()) {
 					
 					/*
 					 * Performing serially:
@@ -974,7 +1146,14 @@ public class Client {
 					if(!performParallel){
 						LOG.info("[QUERY] Sending query to: " + p.getKey());
 						// Now forward query to specific node
-						tcpControllerServer.sendHostMessage(p.getKey(), p.getValue());
+						if(!tcpControllerServer.sendHostMessage(p.getKey(), p.getValue())) {
+							unsent.add(p.getKey());
+						}
+					}
+					if(unsent.contains(p.getKey())) {
+						tcpServer.sendCtxMessage(ctx, "ERROR: unable to send to " + p.getKey() + (NodeLoad.isDown(p.getKey()) ? ", it is down" : "") + "\n");
+						failedNodes.add(p.getKey());
+						continue;
 					}
 				
                     // wait for reply from Node
@@ -1018,22 +1197,43 @@ public class Client {
                     } else if(resp.contains("ERROR")) {
                         //Just tell the user the error message
                         tcpServer.sendCtxMessage(ctx, resp + "\n");
+                        String failedHost = tcpControllerServer.getHost(respCtx);
+                        if(failedHost != null) {
+                        	failedNodes.add(failedHost);
+                        }
                     }
 				}
 				
+				// Replicas that missed an insert can't be read from anymore
+				if(!isQuerySelect && !failedNodes.isEmpty()) {
+					List<String> stale = dbPartitioner.markStale(dbPartitioner.getTableStr(query.trim()), failedNodes);
+					if(!stale.isEmpty()) {
+						tcpServer.sendCtxMessage(ctx, "WARNING: replicas on " + stale + " missed this change and are no longer read from\n");
+					}
+				}
+				if(query.trim().toLowerCase().startsWith("insert")) {
+					splitHotRange(ctx, fs, dbPartitioner.getTableStr(query.trim()));
+				}
+				
 				//Now all queries have been sent and responded to, if we have output blocks deal with those
 				if(outputBlocks.size() > 0) {
 					//To properly display the results we need to breakdown some components of the query
-					String selectStr = dbPartitioner.getSelectStr(query.trim());
-					String table = dbPartitioner.getTableStr(query.trim());
-					String where = dbPartitioner.getWhereStr(query.trim());
+					String[] gather = dbPartitioner.getGatherStrs(query.trim());
+					String selectStr = gather[0];
+					String table = gather[1];
+					String where = gather[2];
 					
 					//FIXME: for now you MUST have a where clause if you want to do ORDER BY, LIMIT, etc..
 					if(where.compareTo("") != 0) {
 						where = "where " + where;
 					}
+					// Joins done on the nodes are put back together over all their rows
+					boolean combined = gather[3] != null;
+					if(combined) {
+						where = gather[3];
+					}
 
-					writeResultToConsole(dbtype, tcpServer, ctx, fs, outputBlocks, "select " + selectStr, table, where);
+					writeResultToConsole(dbtype, tcpServer, ctx, fs, outputBlocks, "select " + selectStr, table, where, combined);
 				}
 				//This would be an error case, basically all nodes in the cluster returned SUCCESS rather than OUTPUT
 				//NOTE also that if all nodes return error we also end up here but whatever, its already an error case
@@ -1070,6 +1270,30 @@ public class Client {
 
 	}
 
+	/**
+	 * After inserts into a table, split a range of it that took most of
+	 * them. Runs in the background once the query that made it is done, the
+	 * next query waits for it as the rows are moved through the same
+	 * connections to the nodes.
+	 */
+	private void splitHotRange(final ChannelHandlerContext ctx, final FileSystem fs, final String table) {
+		splitter.execute(new Runnable() {
+			public void run() {
+				nodeLock.lock();
+				try {
+					String resp = new RangeRepartition(dbPartitioner, tcpControllerServer, LOG, fs).splitHotRange(table);
+					if(resp != null) {
+						tcpServer.sendCtxMessage(ctx, resp);
+					}
+				} catch (Exception e) {
+					tcpServer.sendCtxMessage(ctx, "ERROR splitting " + table + ": " + e.getMessage() + "\n");
+				} finally {
+					nodeLock.unlock();
+				}
+			}
+		});
+	}
+
 	/**
 	 * Monitor the submitted application for completion. Kill application if
 	 * time expires.
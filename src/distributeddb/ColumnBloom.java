@@ -0,0 +1,212 @@
+package distributeddb;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A Bloom filter per node of the values of one attribute of a table, kept up
+ * to date by the insert routing. An = on the attribute skips every node
+ * whose filter says it doesn't have the value.
+ *
+ * Each node's filter is saved in its own file, only the ones inserts
+ * touched are written back, at a catalog checkpoint. The values added since
+ * are logged in the catalog as an InsertDelta and added again after the
+ * filters are loaded.
+ */
+class ColumnBloom implements Serializable {
+	private static final long serialVersionUID = 1L;
+	// 128k per node, about 1% false positives at 100k distinct values
+	public static final int DEFAULT_BITS = 1 << 20;
+	public static final int DEFAULT_HASHES = 7;
+
+	private final String table;
+	private final String attr;
+	private final int attrPosn;
+	private final String attrType;
+	private final int numBits;
+
+	private transient Map<String, BloomFilter> filters;
+	private transient Set<String> dirty;
+	// Node -> values added since they were last taken for the catalog log
+	private transient Map<String, List<String>> added;
+
+	public ColumnBloom(String table, String declAttrs, String attr, int numBits) throws Exception {
+		TableSchema schema = new TableSchema(declAttrs);
+		this.attrPosn = schema.indexOf(attr);
+		if(attrPosn < 0) {
+			throw new Exception("BloomFilterInvalidAttribute");
+		}
+		if(numBits < 64) {
+			throw new Exception("BloomFilterTooSmall");
+		}
+		this.table = table;
+		this.attr = schema.getName(attrPosn);
+		this.attrType = schema.getType(attrPosn);
+		this.numBits = numBits;
+		this.filters = new HashMap<String, BloomFilter>();
+		this.dirty = new HashSet<String>();
+		this.added = new HashMap<String, List<String>>();
+	}
+
+	public String getAttr() {
+		return attr;
+	}
+
+	private BloomFilter filter(String node) {
+		BloomFilter f = filters.get(node);
+		if(f == null) {
+			f = new BloomFilter(numBits, DEFAULT_HASHES);
+			filters.put(node, f);
+		}
+		return f;
+	}
+
+	/**
+	 * Record that the node holds the row
+	 * @param vals the row's values split up
+	 */
+	public synchronized void add(String[] vals, String node) {
+		if(attrPosn >= vals.length) {
+			return;
+		}
+		String key = TableSchema.canonicalValue(attrType, vals[attrPosn]);
+		if(filter(node).add(key)) {
+			dirty.add(node);
+			List<String> keys = added.get(node);
+			if(keys == null) {
+				keys = new ArrayList<String>();
+				added.put(node, keys);
+			}
+			keys.add(key);
+		}
+	}
+
+	/**
+	 * Build the node's filter again from the values it has left, a filter
+	 * can't have values taken out of it when rows are moved off the node
+	 * @param left the node's values, as sqlite's quote() writes them
+	 */
+	public synchronized void rebuild(String node, Collection<String> left) {
+		BloomFilter f = new BloomFilter(numBits, DEFAULT_HASHES);
+		for(String v: left) {
+			f.add(TableSchema.canonicalValue(attrType, v));
+		}
+		filters.put(node, f);
+		dirty.add(node);
+	}
+
+	/**
+	 * @return the values added to each node's filter since the last call
+	 */
+	public synchronized Map<String, List<String>> takeAdded() {
+		Map<String, List<String>> out = added;
+		added = new HashMap<String, List<String>>();
+		return out;
+	}
+
+	/**
+	 * Put back values taken from takeAdded, after a restart
+	 */
+	public synchronized void addAll(Map<String, List<String>> keys) {
+		for(Map.Entry<String, List<String>> e: keys.entrySet()) {
+			BloomFilter f = filter(e.getKey());
+			for(String key: e.getValue()) {
+				f.add(key);
+			}
+			dirty.add(e.getKey());
+		}
+	}
+
+	/**
+	 * @return the nodes that may have the value
+	 */
+	public synchronized List<String> prune(String value, List<String> nodes) {
+		String key = TableSchema.canonicalValue(attrType, value);
+		List<String> out = new ArrayList<String>();
+		for(String n: nodes) {
+			// A node that never got a row has nothing
+			BloomFilter f = filters.get(n);
+			if(f != null && f.mightContain(key)) {
+				out.add(n);
+			}
+		}
+		return out;
+	}
+
+	public synchronized String explain() {
+		String out = "\tBloom filter on " + attr + ":";
+		for(Map.Entry<String, BloomFilter> e: filters.entrySet()) {
+			out += String.format(" %s ~%d values (%.1f%% fp)", e.getKey(), e.getValue().getCount(), e.getValue().falsePositiveRate() * 100);
+		}
+		return out + "\n";
+	}
+
+	private String nodeFile(String prefix, String node) {
+		return prefix + "bloom." + table + "." + attr + "." + node + ".data";
+	}
+
+	/**
+	 * Write out the filters that changed since the last save, each to a
+	 * temporary file renamed over the old one so a crash leaves one or the other
+	 */
+	public synchronized void save(String prefix) throws IOException {
+		for(Iterator<String> it = dirty.iterator(); it.hasNext(); ) {
+			String node = it.next();
+			File f = new File(nodeFile(prefix, node));
+			File tmp = new File(f.getPath() + ".tmp");
+			FileOutputStream fos = new FileOutputStream(tmp);
+			ObjectOutputStream out = new ObjectOutputStream(fos);
+			try {
+				out.writeObject(filters.get(node));
+				out.flush();
+				fos.getChannel().force(false);
+			} finally {
+				out.close();
+			}
+			if(!tmp.renameTo(f)) {
+				throw new IOException("Unable to replace " + f);
+			}
+			it.remove();
+		}
+	}
+
+	/**
+	 * Read the filters of the given nodes, a node without a file has none yet
+	 */
+	public synchronized void load(String prefix, List<String> nodes) throws IOException, ClassNotFoundException {
+		filters = new HashMap<String, BloomFilter>();
+		dirty = new HashSet<String>();
+		added = new HashMap<String, List<String>>();
+		for(String node: nodes) {
+			File f = new File(nodeFile(prefix, node));
+			if(!f.exists()) {
+				continue;
+			}
+			ObjectInputStream in = new ObjectInputStream(new FileInputStream(f));
+			try {
+				filters.put(node, (BloomFilter) in.readObject());
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	public void delete(String prefix, List<String> nodes) {
+		for(String node: nodes) {
+			new File(nodeFile(prefix, node)).delete();
+		}
+	}
+}
@@ -0,0 +1,474 @@
+package distributeddb;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Runs in each sqlite3 container in place of cont_net.py. It connects to the
+ * Client the same way ("connect host 9999"), reads one statement per line and
+ * answers each with SUCCESS, OUTPUT blk or ERROR..., but runs them itself
+ * over one database connection it keeps open. Inserts of plain literals are
+ * bound to prepared statements kept per table and run as one batch per
+ * statement, any other insert goes to sqlite as it is. Select results are
+ * written to the output db and copied to HDFS without a shell.
+ *
+ * The sqlite JDBC driver is looked for on the classpath (see
+ * DDBConstants.SQLITE_JDBC_JAR). Without it, and for selects carrying Bloom
+ * filters (bloom_match is a python function), the statement goes to
+ * exec_cmd.py the way cont_net.py sent it.
+ *
+ * Started with "standby" it says so when it connects instead, the Client
+ * keeps it idle until the node's agent dies and then sends it that node's
+ * statements. Everything is already loaded and open by then.
+ */
+public class ContainerAgent {
+	private static final String DB_PATH = "/home/hduser/test.db";
+	private static final String JDBC_DRIVER = "org.sqlite.JDBC";
+	// Rows written to the output db between batches
+	private static final int OUTPUT_BATCH = 1000;
+	private static final Pattern INSERT_PAT = Pattern.compile("\\s*insert\\s+into\\s+(\\S+)\\s+values\\s*(\\(.*\\))\\s*;?\\s*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	// Greedy like exec_cmd.py, the table is the first word after the last from
+	private static final Pattern FROM_PAT = Pattern.compile(".*from (.*)", Pattern.DOTALL);
+	private static final Pattern INTEGER_PAT = Pattern.compile("-?[0-9]+");
+	private static final Pattern REAL_PAT = Pattern.compile("-?([0-9]+\\.?[0-9]*|\\.[0-9]+)([eE][-+]?[0-9]+)?");
+	// What literal() gives for a value that only sqlite can read
+	static final Object NOT_PLAIN = new Object();
+
+	private final String hostName;
+	private final int appId;
+	private int queryNum;
+	// Null if the driver isn't there
+	private final Connection db;
+	// Insert statements by "table/number of values"
+	private final Map<String, PreparedStatement> inserts;
+	private FileSystem fs;
+
+	public ContainerAgent(int appId) throws Exception {
+		this.hostName = DDBUtil.getHostName();
+		this.appId = appId;
+		this.queryNum = 0;
+		this.db = open();
+		this.inserts = new HashMap<String, PreparedStatement>();
+	}
+
+	ContainerAgent(int appId, Connection db) {
+		this.hostName = "localhost";
+		this.appId = appId;
+		this.queryNum = 0;
+		this.db = db;
+		this.inserts = new HashMap<String, PreparedStatement>();
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length != 3 && !(args.length == 4 && args[3].equals(DDBConstants.STANDBY))) {
+			System.out.println("Usage: ContainerAgent <host> <port> <appID> [standby]");
+			System.exit(1);
+		}
+		ContainerAgent agent = new ContainerAgent(Integer.parseInt(args[2]));
+		agent.serve(args[0], Integer.parseInt(args[1]), args.length == 4);
+	}
+
+	private static Connection open() throws SQLException {
+		try {
+			Class.forName(JDBC_DRIVER);
+		} catch(ClassNotFoundException e) {
+			System.out.println("-- [AGENT] No " + JDBC_DRIVER + " on the classpath, statements go to " + DDBConstants.DB_SCRIPT_LOCATION);
+			return null;
+		}
+		Connection c = DriverManager.getConnection("jdbc:sqlite:" + DB_PATH);
+		c.setAutoCommit(false);
+		return c;
+	}
+
+	/**
+	 * Connect to the Client and answer its statements until it goes away
+	 */
+	public void serve(String host, int port, boolean standby) throws IOException {
+		Socket sock = new Socket(host, port);
+		sock.setTcpNoDelay(true);
+		BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream(), Charset.defaultCharset()));
+		OutputStream out = sock.getOutputStream();
+		System.out.println("-- [AGENT] Connection made to " + host + ":" + port);
+		// It doesn't matter what the port says, only the host is used
+		send(out, (standby ? DDBConstants.STANDBY : "connect") + " " + hostName + " 9999");
+		String line;
+		while((line = in.readLine()) != null) {
+			if(line.trim().equals("")) {
+				continue;
+			}
+			send(out, handle(line.trim()));
+		}
+		System.out.println("!! [AGENT] Connection lost");
+		sock.close();
+	}
+
+	private static void send(OutputStream out, String msg) throws IOException {
+		out.write(msg.getBytes(Charset.defaultCharset()));
+		out.flush();
+	}
+
+	/**
+	 * Run one statement
+	 * @return the reply for the Client
+	 */
+	String handle(String query) {
+		String outBlk = String.format("out-%d-%s-%04d", appId, hostName, queryNum++);
+		System.out.println("-- [AGENT] Received: " + (query.length() > 200 ? query.substring(0, 200) : query));
+		long start = System.nanoTime();
+		String reply;
+		if(db == null || query.contains("/*bloom")) {
+			reply = fork(outBlk, query);
+		} else {
+			reply = execute(outBlk, query);
+		}
+		System.out.println("-- [AGENT] " + reply.trim() + " in " + (System.nanoTime() - start) / 1000 + "us");
+		return reply;
+	}
+
+	private String execute(String outBlk, String query) {
+		String lower = query.toLowerCase();
+		try {
+			String reply = "SUCCESS";
+			Matcher ins = INSERT_PAT.matcher(query);
+			if(ins.matches()) {
+				insert(query, ins.group(1), ins.group(2));
+			} else if(lower.startsWith(DDBConstants.LOAD_ROWS.toLowerCase() + " ")) {
+				loadRows(query.split("\\s+"));
+			} else if(lower.startsWith("select")) {
+				select(outBlk, query);
+				reply = "OUTPUT " + outBlk;
+			} else {
+				Statement st = db.createStatement();
+				try {
+					st.execute(query);
+				} finally {
+					st.close();
+				}
+				if(!lower.startsWith("delete") && !lower.startsWith("update")) {
+					// Tables may have been created, dropped or altered
+					forgetInserts();
+				}
+			}
+			db.commit();
+			return reply;
+		} catch(Exception e) {
+			try {
+				db.rollback();
+			} catch(SQLException r) {
+				System.out.println("!! [AGENT] Rollback failed: " + r.getMessage());
+			}
+			return "ERROR: " + e.getMessage() + "\n";
+		}
+	}
+
+	/**
+	 * Insert every (...) of the values list, a batch for each statement used.
+	 * If any value isn't a plain literal (a blob, an expression, ...) the
+	 * statement is run as it came instead
+	 */
+	private void insert(String query, String table, String rows) throws SQLException {
+		List<Object[]> parsed = new ArrayList<Object[]>();
+		int depth = 0;
+		boolean quoted = false;
+		int start = 0;
+		for(int i = 0; i < rows.length(); i++) {
+			char c = rows.charAt(i);
+			if(c == '\'') {
+				quoted = !quoted;
+			} else if(!quoted && c == '(') {
+				if(depth++ == 0) {
+					start = i + 1;
+				}
+			} else if(!quoted && c == ')') {
+				if(--depth == 0) {
+					Object[] row = literals(TableSchema.splitValues(rows.substring(start, i)));
+					if(row == null) {
+						Statement st = db.createStatement();
+						try {
+							st.execute(query);
+						} finally {
+							st.close();
+						}
+						return;
+					}
+					parsed.add(row);
+				}
+			}
+		}
+		List<PreparedStatement> used = new ArrayList<PreparedStatement>();
+		for(Object[] row: parsed) {
+			addRow(table, row, used);
+		}
+		for(PreparedStatement ps: used) {
+			ps.executeBatch();
+		}
+	}
+
+	/**
+	 * @return null if one of the values isn't plain
+	 */
+	private static Object[] literals(String[] vals) {
+		Object[] row = new Object[vals.length];
+		for(int i = 0; i < vals.length; i++) {
+			row[i] = literal(vals[i].trim());
+			if(row[i] == NOT_PLAIN) {
+				return null;
+			}
+		}
+		return row;
+	}
+
+	/**
+	 * What sqlite would make of a plain literal: null for NULL, a Long or
+	 * Double for a number and the text of a '...' string
+	 * @return NOT_PLAIN for anything else
+	 */
+	static Object literal(String v) {
+		if(v.equalsIgnoreCase("null")) {
+			return null;
+		}
+		if(INTEGER_PAT.matcher(v).matches()) {
+			try {
+				return Long.valueOf(v);
+			} catch(NumberFormatException e) {
+				// Too big for an integer, sqlite makes a real of it
+				return NOT_PLAIN;
+			}
+		}
+		if(REAL_PAT.matcher(v).matches()) {
+			return Double.valueOf(v);
+		}
+		if(v.length() >= 2 && v.charAt(0) == '\'' && v.charAt(v.length() - 1) == '\'') {
+			String text = v.substring(1, v.length() - 1);
+			// A quote that isn't doubled ends the string early, 'a'||'b'
+			if(text.replace("''", "").indexOf('\'') < 0) {
+				return text.replace("''", "'");
+			}
+		}
+		return NOT_PLAIN;
+	}
+
+	private void addRow(String table, Object[] vals, List<PreparedStatement> used) throws SQLException {
+		PreparedStatement ps = insertStatement(table, vals.length);
+		for(int i = 0; i < vals.length; i++) {
+			if(vals[i] == null) {
+				ps.setNull(i + 1, Types.NULL);
+			} else {
+				ps.setObject(i + 1, vals[i]);
+			}
+		}
+		ps.addBatch();
+		if(!used.contains(ps)) {
+			used.add(ps);
+		}
+	}
+
+	private PreparedStatement insertStatement(String table, int size) throws SQLException {
+		String key = table + "/" + size;
+		PreparedStatement ps = inserts.get(key);
+		if(ps == null) {
+			ps = db.prepareStatement("insert into " + table + " values " + params(size));
+			inserts.put(key, ps);
+		}
+		return ps;
+	}
+
+	private void forgetInserts() {
+		for(PreparedStatement ps: inserts.values()) {
+			try {
+				ps.close();
+			} catch(SQLException e) {
+				System.out.println("!! [AGENT] Closing statement: " + e.getMessage());
+			}
+		}
+		inserts.clear();
+	}
+
+	private static String params(int size) {
+		StringBuilder out = new StringBuilder("(");
+		for(int i = 0; i < size; i++) {
+			out.append(i == 0 ? "?" : ",?");
+		}
+		return out.append(')').toString();
+	}
+
+	/**
+	 * LOADROWS table blk [replace]: copy the db blk out of HDFS and insert its
+	 * rows of the table, with replace instead of the rows there. Attaching
+	 * can't be done inside a transaction, the rows go in inside one.
+	 */
+	private void loadRows(String[] args) throws Exception {
+		String table = args[1];
+		String blk = args[2];
+		if(fs == null) {
+			fs = FileSystem.get(new Configuration());
+		}
+		fs.copyToLocalFile(false, new Path(fs.getHomeDirectory(), blk), new Path(blk), true);
+		Statement st = db.createStatement();
+		try {
+			db.commit();
+			db.setAutoCommit(true);
+			PreparedStatement attach = db.prepareStatement("attach database ? as moved");
+			attach.setString(1, blk);
+			attach.execute();
+			attach.close();
+			db.setAutoCommit(false);
+			try {
+				if(args.length > 3 && args[3].equals("replace")) {
+					st.execute("delete from " + table);
+				}
+				st.execute("insert into " + table + " select * from moved." + table);
+				db.commit();
+			} catch(SQLException e) {
+				db.rollback();
+				throw e;
+			} finally {
+				db.setAutoCommit(true);
+				st.execute("detach database moved");
+			}
+		} finally {
+			st.close();
+			db.setAutoCommit(false);
+			new File(blk).delete();
+		}
+	}
+
+	/**
+	 * Write the select's rows into a db of their own and put it in HDFS, the
+	 * table is made like exec_cmd.py makes it
+	 */
+	private void select(String outBlk, String query) throws Exception {
+		Matcher from = FROM_PAT.matcher(query);
+		if(!from.matches()) {
+			throw new Exception("no match ERROR1");
+		}
+		String res = from.group(1);
+		String table = res.split(" ")[0];
+		// A join's rows don't look like either table, more than one table in the from clause
+		String fromList = (" " + res.toLowerCase() + " ").split("\\swhere\\s")[0];
+		boolean isJoin = fromList.contains(",") || Pattern.compile("\\sjoin\\s").matcher(fromList).find();
+
+		Connection out = DriverManager.getConnection("jdbc:sqlite:" + outBlk);
+		Statement st = db.createStatement();
+		try {
+			out.setAutoCommit(false);
+			ResultSet rs = st.executeQuery(query);
+			ResultSetMetaData md = rs.getMetaData();
+			Statement create = out.createStatement();
+			create.execute(isJoin ? resultTable(table, md) : schema(table));
+			create.close();
+			PreparedStatement ins = out.prepareStatement("insert into " + table + " values " + params(md.getColumnCount()));
+			int n = 0;
+			while(rs.next()) {
+				for(int i = 1; i <= md.getColumnCount(); i++) {
+					ins.setObject(i, rs.getObject(i));
+				}
+				ins.addBatch();
+				if(++n % OUTPUT_BATCH == 0) {
+					ins.executeBatch();
+				}
+			}
+			ins.executeBatch();
+			ins.close();
+			out.commit();
+		} finally {
+			st.close();
+			out.close();
+		}
+
+		if(fs == null) {
+			fs = FileSystem.get(new Configuration());
+		}
+		// Where hdfs dfs -copyFromLocal puts it, the local copy isn't needed after
+		fs.copyFromLocalFile(true, false, new Path(outBlk), new Path(fs.getHomeDirectory(), outBlk));
+	}
+
+	private String schema(String table) throws SQLException {
+		PreparedStatement ps = db.prepareStatement("select sql from sqlite_master where tbl_name = ? and type = 'table'");
+		try {
+			ps.setString(1, table);
+			ResultSet rs = ps.executeQuery();
+			if(!rs.next()) {
+				throw new SQLException("no such table: " + table);
+			}
+			return rs.getString(1);
+		} finally {
+			ps.close();
+		}
+	}
+
+	/**
+	 * One column per result column, duplicate names get a suffix
+	 */
+	private static String resultTable(String table, ResultSetMetaData md) throws SQLException {
+		List<String> cols = new ArrayList<String>();
+		for(int i = 1; i <= md.getColumnCount(); i++) {
+			String name = md.getColumnName(i);
+			for(int n = 2; cols.contains(name); n++) {
+				name = md.getColumnName(i) + "_" + n;
+			}
+			cols.add(name);
+		}
+		String out = "create table " + table + " (";
+		for(int i = 0; i < cols.size(); i++) {
+			out += (i == 0 ? "\"" : ", \"") + cols.get(i) + "\"";
+		}
+		return out + ")";
+	}
+
+	/**
+	 * Run the statement the way cont_net.py does, on exec_cmd.py's stdin
+	 */
+	private String fork(String outBlk, String query) {
+		try {
+			Process proc = new ProcessBuilder("python", DDBConstants.DB_SCRIPT_LOCATION, outBlk).redirectErrorStream(true).start();
+			OutputStream stdin = proc.getOutputStream();
+			try {
+				stdin.write(query.getBytes(Charset.defaultCharset()));
+			} finally {
+				stdin.close();
+			}
+			BufferedReader in = new BufferedReader(new InputStreamReader(proc.getInputStream(), Charset.defaultCharset()));
+			StringBuilder output = new StringBuilder();
+			String line;
+			while((line = in.readLine()) != null) {
+				output.append(line).append('\n');
+			}
+			in.close();
+			int rc = proc.waitFor();
+			String stdout = output.toString();
+			if(rc != 0) {
+				return "ERROR: exec_cmd returned error (" + rc + ") " + stdout;
+			}
+			if(!stdout.contains("SUCCESS")) {
+				return stdout;
+			}
+			return stdout.contains("SUCCESS:NOTSELECT") ? "SUCCESS" : "OUTPUT " + outBlk;
+		} catch(Exception e) {
+			return "ERROR: running " + DDBConstants.DB_SCRIPT_LOCATION + ": " + e.getMessage() + "\n";
+		}
+	}
+}
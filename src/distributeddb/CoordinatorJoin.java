@@ -0,0 +1,184 @@
+package distributeddb;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.jboss.netty.channel.ChannelHandlerContext;
+
+/**
+ * Joins two tables that aren't partitioned the same way on the join
+ * attributes, so the nodes can't do it on their own.
+ *
+ * The side expected to be smaller is read from its nodes into a sqlite
+ * database on the coordinator (coord_join.py). Its distinct join keys are
+ * sent with the other side's select as an IN list, so the other side's
+ * nodes only return rows that can match. With too many keys for that a
+ * Bloom filter of them is sent instead, checked by bloom_match() in
+ * exec_cmd.py. The original query is then run over
+ * both tables in the coordinator's database, sqlite keeps a bounded amount of
+ * it in memory and spills the rest to the database file.
+ */
+public class CoordinatorJoin {
+	// With more distinct keys than this the other side gets a Bloom filter instead of an IN list
+	public static final int MAX_SEMIJOIN_KEYS = 1000;
+	// The filter is sent as hex in the query, keep it to 64k of the statement
+	public static final int MAX_BLOOM_BITS = 256 * 1024;
+	// Memory the coordinator's sqlite may use for the join before it spills to disk
+	public static final int MEMORY_BUDGET_KB = 64 * 1024;
+
+	private final DDBPartitioner partitioner;
+	private final TCPServer server;
+	private final Log LOG;
+	private final FileSystem fs;
+	private final List<String> errors;
+
+	public CoordinatorJoin(DDBPartitioner partitioner, TCPServer server, Log log, FileSystem fs) {
+		this.partitioner = partitioner;
+		this.server = server;
+		this.LOG = log;
+		this.fs = fs;
+		this.errors = new ArrayList<String>();
+	}
+
+	/**
+	 * @return the joined rows to show the user, or the errors
+	 */
+	public String run(JoinQuery join, String query) throws Exception {
+		if(join.leftTable.equals(join.rightTable)) {
+			// Both sides would be collected into the same coordinator table
+			throw new Exception("UnsupportedJoin");
+		}
+		boolean buildLeft = partitioner.estimateRows(join.leftTable) <= partitioner.estimateRows(join.rightTable);
+		String buildTable = buildLeft ? join.leftTable : join.rightTable;
+		String buildKey = buildLeft ? join.leftKey : join.rightKey;
+		String probeTable = buildLeft ? join.rightTable : join.leftTable;
+		String probeKey = buildLeft ? join.rightKey : join.leftKey;
+		LOG.info("[JOIN] " + join + " at the coordinator, building on " + buildTable);
+
+		String coordDb = "/tmp/join-" + System.currentTimeMillis() + ".db";
+		List<String> localFiles = new ArrayList<String>();
+		try {
+			List<String> buildFiles = fetch(server, fs, partitioner.sideQuery(buildTable, join.sideWhere(buildLeft)), errors);
+			localFiles.addAll(buildFiles);
+			if(!errors.isEmpty()) {
+				return errorString();
+			}
+			String filter = runScript(LOG, "build", coordDb, buildTable,
+					Arrays.asList(buildKey, String.valueOf(MAX_SEMIJOIN_KEYS), String.valueOf(MAX_BLOOM_BITS)), buildFiles).trim();
+
+			// Only rows that can find a match
+			String probeWhere = join.sideWhere(!buildLeft);
+			String and = probeWhere.equals("") ? "" : probeWhere + " and ";
+			if(filter.equals("IN") || filter.startsWith("IN ")) {
+				// No keys means nothing matches
+				String keys = filter.substring(2).trim();
+				probeWhere = and + probeKey + " in (" + (keys.equals("") ? "null" : keys) + ")";
+			} else if(filter.startsWith("BLOOM ")) {
+				// The filter itself rides along in a comment
+				probeWhere = and + "bloom_match(" + probeKey + ", 1) /*bloom1 " + filter.substring(6) + "*/";
+			}
+			LOG.info("[JOIN] Filter on " + probeTable + ": " + (filter.length() > 200 ? filter.substring(0, 200) + "..." : filter));
+			List<String> probeFiles = fetch(server, fs, partitioner.sideQuery(probeTable, probeWhere), errors);
+			localFiles.addAll(probeFiles);
+			if(!errors.isEmpty()) {
+				return errorString();
+			}
+			return runScript(LOG, "join", coordDb, probeTable, Arrays.asList(query), probeFiles);
+		} finally {
+			for(String f: localFiles) {
+				new File(f).delete();
+			}
+			new File(coordDb).delete();
+		}
+	}
+
+	/**
+	 * Send a select to its nodes and copy their output databases here
+	 * @param errors gets a line for each node that didn't send its output
+	 * @return the local output files
+	 */
+	static List<String> fetch(TCPServer server, FileSystem fs, Map<String, String> ops, List<String> errors) throws IOException {
+		return fetch(server, fs, ops, errors, null);
+	}
+
+	/**
+	 * Same as fetch, also keeping which node each file came from
+	 * @param byNode gets the local output file of each node, may be null
+	 */
+	static List<String> fetch(TCPServer server, FileSystem fs, Map<String, String> ops, List<String> errors, Map<String, String> byNode) throws IOException {
+		int waiting = 0;
+		for(Map.Entry<String, String> op: ops.entrySet()) {
+			if(server.sendHostMessage(op.getKey(), op.getValue())) {
+				waiting++;
+			} else {
+				errors.add(op.getKey() + ": unable to send query");
+			}
+		}
+		List<String> files = new ArrayList<String>();
+		while(waiting > 0) {
+			List<Object> resp = server.getNextMessage();
+			String msg = ((String) resp.get(1)).trim();
+			String node = server.getHost((ChannelHandlerContext) resp.get(0));
+			waiting--;
+			if(msg.startsWith("OUTPUT")) {
+				String blk = msg.substring(msg.indexOf(" ") + 1);
+				String local = "/tmp/" + blk;
+				fs.moveToLocalFile(new Path(fs.getHomeDirectory(), blk), new Path(local));
+				files.add(local);
+				if(byNode != null) {
+					byNode.put(node, local);
+				}
+			} else {
+				errors.add(node + ": " + msg);
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Run a step of coord_join.py
+	 * @return what it printed
+	 */
+	static String runScript(Log LOG, String mode, String coordDb, String table, List<String> args, List<String> files) throws Exception {
+		List<String> processArgs = new ArrayList<String>();
+		processArgs.add("python");
+		processArgs.add("coord_join.py");
+		processArgs.add(mode);
+		processArgs.add(coordDb);
+		processArgs.add(String.valueOf(MEMORY_BUDGET_KB));
+		processArgs.add(table);
+		processArgs.addAll(args);
+		processArgs.addAll(files);
+		LOG.info("[COORD] Running coord_join.py " + mode + " on " + table);
+		ProcessBuilder builder = new ProcessBuilder(processArgs);
+		builder.redirectErrorStream(true);
+		Process process = builder.start();
+		BufferedReader br = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		StringBuilder output = new StringBuilder();
+		String line;
+		while((line = br.readLine()) != null) {
+			output.append(line).append("\n");
+		}
+		if(process.waitFor() != 0) {
+			throw new Exception(output.toString().trim().replaceFirst("^ERROR:\\s*", ""));
+		}
+		return output.toString();
+	}
+
+	private String errorString() {
+		String out = "ERROR in join:\n";
+		for(String e: errors) {
+			out += "\t" + e + "\n";
+		}
+		return out;
+	}
+}
@@ -17,6 +17,7 @@ public class DDBConstants {
   public static final String DDB_DB_LOCATION = "DISTRIBUTEDDATABASE_DB_LOCATION";
   public static final String DDB_WRAP_LOCATION = "DISTRIBUTEDDATABASE_WRAP_LOCATION";
   public static final String DDB_WRAP_QS_LOCATION = "DISTRIBUTEDDATABASE_WRAP_QS_LOCATION";
+  public static final String DDB_JAR_LOCATION = "DISTRIBUTEDDATABASE_JAR_LOCATION";
 
   /**
    * Environment key name denoting the file timestamp for the shell script. 
@@ -25,6 +26,7 @@ public class DDBConstants {
   public static final String DDB_DB_TIMESTAMP = "DISTRIBUTEDDATABASE_DB_TIMESTAMP";
   public static final String DDB_WRAP_TIMESTAMP = "DISTRIBUTEDDATABASE_WRAP_TIMESTAMP";
   public static final String DDB_WRAP_QS_TIMESTAMP = "DISTRIBUTEDDATABASE_QS_WRAP_TIMESTAMP";
+  public static final String DDB_JAR_TIMESTAMP = "DISTRIBUTEDDATABASE_JAR_TIMESTAMP";
 
   /**
    * Environment key name denoting the file content length for the shell script. 
@@ -33,6 +35,13 @@ public class DDBConstants {
   public static final String DDB_DB_LEN = "DISTRIBUTEDDATABASE_DB_LEN";
   public static final String DDB_WRAP_LEN = "DISTRIBUTEDDATABASE_WRAP_LEN";
   public static final String DDB_WRAP_QS_LEN = "DISTRIBUTEDDATABASE_QS_WRAP_LEN";
+  public static final String DDB_JAR_LEN = "DISTRIBUTEDDATABASE_JAR_LEN";
+
+  /**
+   * Environment key name for the visibility of the containers' resources,
+   * PUBLIC when they are all in the shared cache
+   */
+  public static final String DDB_RESOURCE_VISIBILITY = "DISTRIBUTEDDATABASE_RESOURCE_VISIBILITY";
 
   /**
    * Location of Script on all nodes
@@ -40,6 +49,18 @@ public class DDBConstants {
   public static final String DB_SCRIPT_LOCATION = "exec_cmd.py";
   public static final String WRAP_SCRIPT_LOCATION = "cont_net.py";
   public static final String WRAP_QS_SCRIPT_LOCATION = "exec_qs.py";
+
+  /**
+   * The application jar in a container, ContainerAgent runs from it
+   */
+  public static final String JAR_LOCATION = "AppMaster.jar";
+  public static final String AGENT_MAIN_CLASS = "distributeddb.ContainerAgent";
+
+  /**
+   * sqlite JDBC driver on every node, ContainerAgent falls back to
+   * exec_cmd.py without it
+   */
+  public static final String SQLITE_JDBC_JAR = "/home/hduser/sqlite-jdbc.jar";
   
   /**
    * Port Number where App Master is listening 
@@ -58,6 +79,15 @@ public class DDBConstants {
    * Special Message Types
    */
   public static final String APP_MASTER_INFO = "APP_MASTER_INFO";
+  // From the AppMaster, followed by the hosts whose containers died
+  public static final String NODE_DOWN = "NODE_DOWN";
+  // From a standby container instead of connect
+  public static final String STANDBY = "standby";
+  // From the Client to the AppMaster, followed by the host whose agent registered
+  public static final String NODE_REGISTERED = "NODE_REGISTERED";
+  // To a node: LOADROWS table blk [replace], insert the rows of the table in
+  // the db blk in HDFS, with replace instead of the rows it has, in one transaction
+  public static final String LOAD_ROWS = "LOADROWS";
   
   /**
    * Database types 
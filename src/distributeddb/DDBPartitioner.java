@@ -1,17 +1,26 @@
 package distributeddb;
 
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -20,7 +29,26 @@ import org.apache.commons.logging.LogFactory;
 
 public class DDBPartitioner {
 	private List<String> nodes;
-	private Map<String, Partition> tables;
+	// The current version of the catalog, replaced as a whole by DDL (under ddlLock) and read without locking
+	private final AtomicReference<Catalog> catalogRef = new AtomicReference<Catalog>(new Catalog());
+	private final Object ddlLock = new Object();
+	// Rows routed to each table, a rough size for planning joins
+	private final ConcurrentMap<String, AtomicLong> rowCounts = new ConcurrentHashMap<String, AtomicLong>();
+	// Rows and bytes each node of a table was sent
+	private final ConcurrentMap<String, NodeCounts> placement = new ConcurrentHashMap<String, NodeCounts>();
+	// What routeInsert hands back for a row that goes to one node, so routing
+	// a row doesn't make a list for it
+	private final ConcurrentMap<String, List<String>> oneNode = new ConcurrentHashMap<String, List<String>>();
+	// The catalog on disk, each table's entries are "<kind>/<table>"
+	private static final String[] CATALOG_KINDS = {"table", "rows", "schema", "index", "bloom", "zone", "placement"};
+	// Batches of inserts to a table between checkpoints of its counts and index and filter files
+	private static final int CHECKPOINT_BATCHES = 256;
+	private CatalogLog catalogLog;
+	// Guarded by catalogLog: each table's "delta/<table>/<seq>" entries not yet in its files,
+	// the last seq used and the batches since the table's last checkpoint
+	private final Map<String, List<String>> deltaKeys = new HashMap<String, List<String>>();
+	private long deltaSeq;
+	private final Map<String, Integer> batchesSinceCheckpoint = new HashMap<String, Integer>();
 	private Log LOG;
 	private String dbType;
 	
@@ -36,7 +64,9 @@ public class DDBPartitioner {
 		if(!loadData()) {
 			// Couldn't load, setup new Map
 			LOG.info("Partition data not found, starting fresh!");
-			this.tables = new HashMap<String, Partition>();
+			this.catalogRef.set(new Catalog());
+			this.rowCounts.clear();
+			this.placement.clear();
 		} else {
 			LOG.info("Partition data loaded from file!");
 		}
@@ -50,7 +80,9 @@ public class DDBPartitioner {
 		if(!loadData()) {
 			// Couldn't load, setup new Map
 			LOG.info("Partition data not found, starting fresh!");
-			this.tables = new HashMap<String, Partition>();
+			this.catalogRef.set(new Catalog());
+			this.rowCounts.clear();
+			this.placement.clear();
 		} else {
 			LOG.info("Partition data loaded from file!");
 		}
@@ -65,15 +97,140 @@ public class DDBPartitioner {
 	}
 	
 	/**
-	 * Saves the table map to disk so we can load it at next restart
+	 * The current catalog, the same version throughout whatever the caller is
+	 * doing even if DDL publishes a new one meanwhile
+	 */
+	Catalog catalog() {
+		return catalogRef.get();
+	}
+
+	private Object catalogValue(Catalog c, String kind, String table) {
+		if(kind.equals("table")) {
+			return c.tables.get(table);
+		} else if(kind.equals("rows")) {
+			AtomicLong count = rowCounts.get(table);
+			return count == null ? null : count.get();
+		} else if(kind.equals("schema")) {
+			return c.schemas.get(table);
+		} else if(kind.equals("index")) {
+			// Saved as a plain list, unmodifiable lists deserialize as something else
+			return c.indexes.containsKey(table) ? new ArrayList<GlobalIndex>(c.indexes.get(table)) : null;
+		} else if(kind.equals("bloom")) {
+			return c.blooms.containsKey(table) ? new ArrayList<ColumnBloom>(c.blooms.get(table)) : null;
+		} else if(kind.equals("placement")) {
+			return placement.get(table);
+		}
+		return c.zoneMaps.get(table);
+	}
+
+	/**
+	 * Queue the table's catalog entries, the ones it no longer has are deleted
+	 */
+	private void stageTable(Catalog c, String table) throws IOException {
+		for(String kind: CATALOG_KINDS) {
+			Object value = catalogValue(c, kind, table);
+			if(value == null) {
+				catalogLog.delete(kind + "/" + table);
+			} else {
+				catalogLog.put(kind + "/" + table, value);
+			}
+		}
+		if(!c.tables.containsKey(table)) {
+			dropDeltas(table);
+		}
+	}
+
+	/**
+	 * Queue what the table's indexes and filters were given since the last delta
+	 */
+	private void logDelta(Catalog c, String table) throws IOException {
+		InsertDelta delta = InsertDelta.take(c.indexes.get(table), c.blooms.get(table));
+		if(delta != null) {
+			String key = "delta/" + table + "/" + (++deltaSeq);
+			catalogLog.put(key, delta);
+			if(!deltaKeys.containsKey(table)) {
+				deltaKeys.put(table, new ArrayList<String>());
+			}
+			deltaKeys.get(table).add(key);
+		}
+	}
+
+	private void dropDeltas(String table) throws IOException {
+		List<String> keys = deltaKeys.remove(table);
+		if(keys != null) {
+			for(String key: keys) {
+				catalogLog.delete(key);
+			}
+		}
+	}
+
+	/**
+	 * Write the table's index and filter files and queue all of its entries,
+	 * then drop the deltas the files now hold. Called holding catalogLog.
+	 */
+	private void checkpoint(Catalog c, String table) throws IOException {
+		// Logged in case the files can't be written
+		logDelta(c, table);
+		List<GlobalIndex> idxList = c.indexes.get(table);
+		if(idxList != null) {
+			for(GlobalIndex idx: idxList) {
+				idx.save(dbType);
+			}
+		}
+		List<ColumnBloom> bloomList = c.blooms.get(table);
+		if(bloomList != null) {
+			for(ColumnBloom b: bloomList) {
+				b.save(dbType);
+			}
+		}
+		stageTable(c, table);
+		dropDeltas(table);
+		batchesSinceCheckpoint.remove(table);
+	}
+
+	/**
+	 * Save what changed in the tables' partitioning (all of it if they were
+	 * dropped), the rest of the catalog isn't touched
+	 */
+	public void saveTables(Collection<String> tableNames) {
+		Catalog c = catalog();
+		try {
+			// One writer at a time, the tables are serialized as they are now
+			synchronized(catalogLog) {
+				for(String table: tableNames) {
+					stageTable(c, table);
+				}
+				catalogLog.commit();
+			}
+		} catch(IOException e) {
+			LOG.error(logPrefix() + " Unable to save the catalog of " + tableNames + ": " + e.getMessage());
+		}
+	}
+
+	public void saveTable(String table) {
+		saveTables(Arrays.asList(table));
+	}
+
+	/**
+	 * Saves every table to disk so we can load it at next restart, as a new
+	 * snapshot of the catalog. Every table is checkpointed first.
 	 */
 	public void saveData() {
 		LOG.info("Saving partition map to disk");
+		Catalog c = catalog();
 		try {
-			ObjectOutputStream out = new ObjectOutputStream(
-					new FileOutputStream(dbType + "partitions.data"));
-			out.writeObject(tables);
-			out.close();
+			synchronized(catalogLog) {
+				for(String table: c.tables.keySet()) {
+					try {
+						checkpoint(c, table);
+					} catch(IOException e) {
+						// Its deltas stay in the catalog
+						LOG.error(logPrefix() + " Unable to checkpoint " + table + ": " + e.getMessage());
+						stageTable(c, table);
+					}
+				}
+				catalogLog.compact();
+			}
 		} catch(IOException e) {
 			e.printStackTrace();
 		}
@@ -82,29 +239,245 @@ public class DDBPartitioner {
 	@SuppressWarnings("unchecked")
 	public boolean loadData() {
 		LOG.info("Loading partition map from disk");
+		catalogLog = new CatalogLog(dbType, LOG);
+		// Each delta's table, in the order they were logged
+		TreeMap<Long, String> deltaTables = new TreeMap<Long, String>();
+		Map<Long, InsertDelta> deltas = new HashMap<Long, InsertDelta>();
+		boolean migrated = false;
+		if(catalogLog.exists()) {
+			Map<String, Object> entries;
+			try {
+				entries = catalogLog.load();
+			} catch(IOException e) {
+				// Kept to one side, a fresh catalog mustn't be written over it
+				LOG.fatal(logPrefix() + " Unable to read the catalog: " + e.getMessage());
+				catalogLog.moveAside();
+				return false;
+			}
+			Map<String, Partition> tables = new HashMap<String, Partition>();
+			Map<String, String> schemas = new HashMap<String, String>();
+			Map<String, List<GlobalIndex>> indexes = new HashMap<String, List<GlobalIndex>>();
+			Map<String, List<ColumnBloom>> blooms = new HashMap<String, List<ColumnBloom>>();
+			Map<String, ZoneMap> zoneMaps = new HashMap<String, ZoneMap>();
+			for(Map.Entry<String, Object> e: entries.entrySet()) {
+				int slash = e.getKey().indexOf('/');
+				String kind = e.getKey().substring(0, slash);
+				String table = e.getKey().substring(slash + 1);
+				Object value = e.getValue();
+				try {
+					if(kind.equals("table")) {
+						tables.put(table, (Partition) value);
+					} else if(kind.equals("rows")) {
+						rowCounts.put(table, new AtomicLong((Long) value));
+					} else if(kind.equals("schema")) {
+						schemas.put(table, (String) value);
+					} else if(kind.equals("index")) {
+						indexes.put(table, (List<GlobalIndex>) value);
+					} else if(kind.equals("bloom")) {
+						blooms.put(table, (List<ColumnBloom>) value);
+					} else if(kind.equals("zone")) {
+						zoneMaps.put(table, (ZoneMap) value);
+					} else if(kind.equals("placement")) {
+						placement.put(table, (NodeCounts) value);
+					} else if(kind.equals("delta")) {
+						slash = table.lastIndexOf('/');
+						long seq = Long.parseLong(table.substring(slash + 1));
+						deltaTables.put(seq, table.substring(0, slash));
+						deltas.put(seq, (InsertDelta) value);
+					}
+				} catch(RuntimeException ex) {
+					LOG.error(logPrefix() + " Skipping catalog entry " + e.getKey() + ": " + ex);
+				}
+			}
+			catalogRef.set(new Catalog(0, tables, schemas, indexes, blooms, zoneMaps));
+		} else if(loadOldData()) {
+			migrated = true;
+		} else {
+			return false;
+		}
+		loadSideFiles(deltaTables, deltas);
+		if(migrated) {
+			// Move it over to the catalog, the old file is kept to one side
+			saveData();
+			new File(dbType + "partitions.data").renameTo(new File(dbType + "partitions.data.migrated"));
+			LOG.info("Partition data moved to the catalog log");
+		}
+		return true;
+	}
+
+	/**
+	 * Read each index's and filter's files, then add the deltas logged since
+	 * they were written. One whose files can't be read is dropped from the
+	 * catalog rather than used missing values, the coordinator never sees the
+	 * rows already on the nodes so it can't be built again.
+	 */
+	private void loadSideFiles(TreeMap<Long, String> deltaTables, Map<Long, InsertDelta> deltas) {
+		Catalog c = catalog();
+		Set<String> dropped = new HashSet<String>();
+		Map<String, List<GlobalIndex>> indexes = new HashMap<String, List<GlobalIndex>>();
+		for(Map.Entry<String, List<GlobalIndex>> e: c.indexes.entrySet()) {
+			List<GlobalIndex> kept = new ArrayList<GlobalIndex>();
+			for(GlobalIndex idx: e.getValue()) {
+				try {
+					if(!c.tables.containsKey(e.getKey())) {
+						throw new IOException("NoTableFound");
+					}
+					idx.load(dbType);
+					kept.add(idx);
+				} catch(Exception ex) {
+					LOG.error(logPrefix() + " Unable to load the index on " + e.getKey() + "." + idx.getAttr() + ", dropping it: " + ex);
+					idx.delete(dbType);
+					dropped.add(e.getKey());
+				}
+			}
+			if(!kept.isEmpty()) {
+				indexes.put(e.getKey(), kept);
+			}
+		}
+		Map<String, List<ColumnBloom>> blooms = new HashMap<String, List<ColumnBloom>>();
+		for(Map.Entry<String, List<ColumnBloom>> e: c.blooms.entrySet()) {
+			Partition p = c.tables.get(e.getKey());
+			List<ColumnBloom> kept = new ArrayList<ColumnBloom>();
+			for(ColumnBloom b: e.getValue()) {
+				try {
+					if(p == null) {
+						throw new IOException("NoTableFound");
+					}
+					b.load(dbType, p.initialize());
+					kept.add(b);
+				} catch(Exception ex) {
+					LOG.error(logPrefix() + " Unable to load the Bloom filter on " + e.getKey() + "." + b.getAttr() + ", dropping it: " + ex);
+					if(p != null) {
+						b.delete(dbType, p.initialize());
+					}
+					dropped.add(e.getKey());
+				}
+			}
+			if(!kept.isEmpty()) {
+				blooms.put(e.getKey(), kept);
+			}
+		}
+		catalogRef.set(new Catalog(c.version, c.tables, c.schemas, indexes, blooms, c.zoneMaps));
+		c = catalog();
+		synchronized(catalogLog) {
+			for(Map.Entry<Long, String> e: deltaTables.entrySet()) {
+				String table = e.getValue();
+				deltas.get(e.getKey()).apply(c.indexes.get(table), c.blooms.get(table));
+				if(!deltaKeys.containsKey(table)) {
+					deltaKeys.put(table, new ArrayList<String>());
+				}
+				deltaKeys.get(table).add("delta/" + table + "/" + e.getKey());
+				deltaSeq = e.getKey();
+				if(!c.tables.containsKey(table)) {
+					dropped.add(table);
+				}
+			}
+		}
+		if(!dropped.isEmpty()) {
+			saveTables(dropped);
+		}
+	}
+
+	/**
+	 * Read the whole map file partitions were saved in before the catalog log
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean loadOldData() {
 		try {
 			ObjectInputStream in = new ObjectInputStream(
 					new FileInputStream(dbType + "partitions.data"));
-			tables = (Map<String, Partition>) in.readObject();
+			Map<String, Partition> tables = (Map<String, Partition>) in.readObject();
+			Map<String, String> schemas = new HashMap<String, String>();
+			Map<String, List<GlobalIndex>> indexes = new HashMap<String, List<GlobalIndex>>();
+			Map<String, List<ColumnBloom>> blooms = new HashMap<String, List<ColumnBloom>>();
+			Map<String, ZoneMap> zoneMaps = new HashMap<String, ZoneMap>();
+			try {
+				for(Map.Entry<String, Long> e: ((Map<String, Long>) in.readObject()).entrySet()) {
+					rowCounts.put(e.getKey(), new AtomicLong(e.getValue()));
+				}
+				schemas = (Map<String, String>) in.readObject();
+				indexes = (Map<String, List<GlobalIndex>>) in.readObject();
+				blooms = (Map<String, List<ColumnBloom>>) in.readObject();
+				zoneMaps = (Map<String, ZoneMap>) in.readObject();
+			} catch(EOFException e) {
+				// Saved before the rest of the catalog was, just the tables
+			}
 			in.close();
+			catalogRef.set(new Catalog(0, tables, schemas, indexes, blooms, zoneMaps));
 			return true;
 		} catch(Exception e) {
-			//Throwing an exception is OK (if the file didn't exist)
 			return false;
 		}
 	}
+
+	/**
+	 * Save what a batch of inserts changed. Only what routing and pruning
+	 * need to be right after a restart is logged each time: the row count,
+	 * zone map, what the indexes and filters were given (an InsertDelta) and
+	 * the partition unless it's a hash partition with no new hot keys, its
+	 * sketch is big and only a guide. The rest, placement counts and the
+	 * index and filter files, is written every CHECKPOINT_BATCHES batches
+	 * and by saveData.
+	 */
+	public void insertsDone(String table) {
+		Catalog c = catalog();
+		Partition p = c.tables.get(table);
+		if(p == null) {
+			return;
+		}
+		try {
+			synchronized(catalogLog) {
+				Integer batches = batchesSinceCheckpoint.get(table);
+				batches = batches == null ? 1 : batches + 1;
+				if(batches >= CHECKPOINT_BATCHES) {
+					checkpoint(c, table);
+					catalogLog.commit();
+					return;
+				}
+				batchesSinceCheckpoint.put(table, batches);
+				AtomicLong count = rowCounts.get(table);
+				if(count != null) {
+					catalogLog.put("rows/" + table, count.get());
+				}
+				if(c.zoneMaps.containsKey(table)) {
+					catalogLog.put("zone/" + table, c.zoneMaps.get(table));
+				}
+				if(!(p instanceof HashPartition) || ((HashPartition) p).takeHotKeysChanged()) {
+					catalogLog.put("table/" + table, p);
+				}
+				logDelta(c, table);
+				catalogLog.commit();
+			}
+		} catch(IOException e) {
+			LOG.error(logPrefix() + " Unable to save the inserts into " + table + ": " + e.getMessage());
+		}
+	}
 	
 	/**
 	 * Dumps known partition info as a string
 	 * @return string of info
 	 */
 	public String explain() {
-		String out = "";
-		Iterator<Map.Entry<String, Partition>> it = tables.entrySet().iterator();
-		while(it.hasNext()) {
-			Map.Entry<String, Partition> p = (Map.Entry<String, Partition>)it.next();
+		List<String> down = NodeLoad.downNodes(nodes);
+		String out = down.isEmpty() ? "" : "Nodes down: " + down + "\n";
+		Catalog c = catalog();
+		for(Map.Entry<String, Partition> p: c.tables.entrySet()) {
 			out += p.getKey() + "\n";
 			out += p.getValue().explain();
+			out += placementOf(p.getKey(), p.getValue()).explain();
+			if(c.indexes.containsKey(p.getKey())) {
+				for(GlobalIndex idx: c.indexes.get(p.getKey())) {
+					out += "\tGlobal index on " + idx.getAttr() + ": " + idx.size() + " values\n";
+				}
+			}
+			if(c.blooms.containsKey(p.getKey())) {
+				for(ColumnBloom b: c.blooms.get(p.getKey())) {
+					out += b.explain();
+				}
+			}
+			if(c.zoneMaps.containsKey(p.getKey())) {
+				out += c.zoneMaps.get(p.getKey()).explain();
+			}
 		}
 		
 		return out;
@@ -175,7 +548,17 @@ public class DDBPartitioner {
 		Pattern selectPat = Pattern.compile("\\s*select.*", Pattern.CASE_INSENSITIVE);
 		Matcher selectMat = selectPat.matcher(query);
 		if(selectMat.matches()) {
-			return parseSelectQuery(query);
+			Map<String, String> ops = parseSelectQuery(query);
+			if(ops == null) {
+				return null;
+			}
+			// Reads that any copy could answer already avoid down nodes, these need the node itself
+			List<String> down = NodeLoad.downNodes(new ArrayList<String>(ops.keySet()));
+			if(!down.isEmpty()) {
+				LOG.warn(logPrefix() + " Select needs nodes that are down: " + down);
+				throw new Exception("NodeDown");
+			}
+			return ops;
 		}
 
 		// insert
@@ -185,6 +568,22 @@ public class DDBPartitioner {
 			return parseInsertQuery(query);
 		}
 		
+		// create global index, nothing to send to the nodes
+		Pattern indexPat = Pattern.compile("\\s*create\\s+global\\s+index\\s+on\\s+(\\w+)\\s*\\(\\s*(\\w+)\\s*\\)\\s*;?\\s*", Pattern.CASE_INSENSITIVE);
+		Matcher indexMat = indexPat.matcher(query);
+		if(indexMat.matches()) {
+			createGlobalIndex(indexMat.group(1), indexMat.group(2));
+			return new HashMap<String, String>();
+		}
+
+		// create bloom filter, also only kept here
+		Pattern bloomPat = Pattern.compile("\\s*create\\s+bloom\\s+filter\\s+on\\s+(\\w+)\\s*\\(\\s*(\\w+)\\s*\\)(\\s+bits\\s+(\\d+))?\\s*;?\\s*", Pattern.CASE_INSENSITIVE);
+		Matcher bloomMat = bloomPat.matcher(query);
+		if(bloomMat.matches()) {
+			createBloomFilter(bloomMat.group(1), bloomMat.group(2), bloomMat.group(4) == null ? ColumnBloom.DEFAULT_BITS : Integer.parseInt(bloomMat.group(4)));
+			return new HashMap<String, String>();
+		}
+
 		// create
 		Pattern createPat = Pattern.compile("\\s*create.*", Pattern.CASE_INSENSITIVE);
 		Matcher createMat = createPat.matcher(query);
@@ -219,22 +618,27 @@ public class DDBPartitioner {
 			System.out.println("Table: " + table);
 			System.out.println("Attrs: " + attrs);
 			
-			// Make sure the table doesn't already exist
-			if(tables.containsKey(table)){
-				LOG.fatal("ERROR create table, table already exists");
-				throw new Exception("TableExists");
+			Partition p;
+			synchronized(ddlLock) {
+				// Make sure the table doesn't already exist
+				Catalog c = catalog();
+				if(c.tables.containsKey(table)){
+					LOG.fatal("ERROR create table, table already exists");
+					throw new Exception("TableExists");
+				}
+				
+				// Take the partition string and pass it to the parsing function
+				// it will return a Partition object which we should store for this table
+				p = parsePartition(table, attrs, part);
+				
+				// Now save the partition to be used for this table from now on
+				catalogRef.set(c.withTable(table, p, attrs, new ZoneMap(attrs)));
+				placement.put(table, new NodeCounts(p.initialize()));
+				
+				// When we add partition data, save the partition to file
+				saveTable(table);
 			}
 			
-			// Take the partition string and pass it to the parsing function
-			// it will return a Partition object which we should store for this table
-			Partition p = parsePartition(table, attrs, part);
-			
-			// Now save the partition to be used for this table from now on
-			tables.put(table, p);
-			
-			// When we add partition data, save the partition to file
-			saveData();
-			
 			// Now use the partition object to parse the query and return the proper query map
 			List<String> initTables = p.initialize();
 			System.out.println(initTables.toString());
@@ -261,23 +665,39 @@ public class DDBPartitioner {
 			System.out.println("Table: " + table);
 			
 			// Make sure the table doesn't already exist
-			if(tables.containsKey(table)){
+			synchronized(ddlLock) {
+				Catalog c = catalog();
+				if(!c.tables.containsKey(table)) {
+					LOG.fatal("ERROR drop table, table doesn't exists");
+					throw new Exception("NoTableExists");
+				}
 				//Delete the partition data for this table
-				Partition p = tables.remove(table);
+				Partition p = c.tables.get(table);
+				catalogRef.set(c.withoutTable(table));
+				rowCounts.remove(table);
+				placement.remove(table);
+				List<GlobalIndex> idxList = c.indexes.get(table);
+				if(idxList != null) {
+					for(GlobalIndex idx: idxList) {
+						idx.delete(dbType);
+					}
+				}
+				List<ColumnBloom> bloomList = c.blooms.get(table);
+				if(bloomList != null) {
+					for(ColumnBloom b: bloomList) {
+						b.delete(dbType, p.initialize());
+					}
+				}
 				//Save the partition data to disk
-				saveData();
+				saveTable(table);
 				//Respond with the list of nodes from the partition table
 				//so a drop statement can be sent to all of them
-                List<String> theNodes = p.chooseSelectNode("");
+                List<String> theNodes = p.initialize();
 				Map<String, String> qMap = new HashMap<String, String>();
                 for(String s: theNodes) {
                     qMap.put(s, query);
                 }
                 return qMap;
-				
-			} else {
-				LOG.fatal("ERROR drop table, table doesn't exists");
-				throw new Exception("NoTableExists");
 			}
 		} else {
 			LOG.fatal("Select string initial match failed in the end");
@@ -293,14 +713,54 @@ public class DDBPartitioner {
 		 *   range
 		 *   hash
 		 *   roundrobin
+		 * or replicated, a full copy on every node
+		 * or time, rolling intervals of a time attribute
+		 * or list, values listed per node
 		 */
+		if(part.toLowerCase().contains("replicated")) {
+			Pattern pat = Pattern.compile("\\s*replicated\\s*(\\((.*)\\))?\\s*", Pattern.CASE_INSENSITIVE);
+			Matcher mat = pat.matcher(part);
+			if(mat.matches()) {
+				return new ReplicatedPartition(nodes, mat.group(2));
+			}
+			throw new Exception("ReplicatedSyntaxError");
+		}
+		if(part.toLowerCase().matches("(?s)\\s*time\\s*\\(.*")) {
+			// time(ts) interval '1 day' [retention '30 days'] [spread 2]
+			Pattern pat = Pattern.compile("\\s*time\\s*\\(\\s*(\\w+)\\s*\\)\\s+interval\\s+'([^']*)'(\\s+retention\\s+'([^']*)')?(\\s+spread\\s+(\\d+))?\\s*", Pattern.CASE_INSENSITIVE);
+			Matcher mat = pat.matcher(part);
+			if(mat.matches()) {
+				return new TimePartition(nodes, attrs, mat.group(1), mat.group(2), mat.group(4), mat.group(6) == null ? 1 : Integer.parseInt(mat.group(6)));
+			}
+			throw new Exception("TimePartitionSyntaxError");
+		}
+		if(part.toLowerCase().matches("(?s)\\s*list\\s*\\(.*")) {
+			// list(col) (('us','ca') on n0, ('eu') on n1, default on n2)
+			Pattern pat = Pattern.compile("\\s*list\\s*\\(\\s*(\\w+)\\s*\\)\\s*\\((.*)\\)\\s*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+			Pattern itemPat = Pattern.compile("(?:\\((.*)\\)|(default))\\s+on\\s+(\\S+)", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+			Matcher mat = pat.matcher(part);
+			if(!mat.matches()) {
+				throw new Exception("ListPartitionSyntaxError");
+			}
+			List<String> listNodes = new ArrayList<String>();
+			List<List<String>> lists = new ArrayList<List<String>>();
+			for(String item: TableSchema.splitValues(mat.group(2))) {
+				Matcher itemMat = itemPat.matcher(item);
+				if(!itemMat.matches()) {
+					throw new Exception("ListPartitionSyntaxError");
+				}
+				listNodes.add(itemMat.group(3));
+				lists.add(itemMat.group(2) != null ? null : Arrays.asList(TableSchema.splitValues(itemMat.group(1))));
+			}
+			return new ListPartition(nodes, attrs, mat.group(1), listNodes, lists);
+		}
 		if(part.contains("random")) {
-			Pattern pat = Pattern.compile("random\\((.*)\\)", Pattern.CASE_INSENSITIVE);
+			Pattern pat = Pattern.compile("\\s*random\\s*(\\((.*)\\))?\\s*(balanced)?\\s*", Pattern.CASE_INSENSITIVE);
 			Matcher mat = pat.matcher(part);
 			//The user can specify either "random(NUM)" or "random", if random use all nodes, if NUM only use NUM nodes
 			if(mat.matches()) {
-				int nodeNum = Integer.parseInt(mat.group(1));
-				return new RandomPartition(nodes, nodeNum);
+				int nodeNum = mat.group(2) == null ? nodes.size() : Integer.parseInt(mat.group(2).trim());
+				return new RandomPartition(nodes, nodeNum, tablesPerNode(), mat.group(3) != null);
 			} else {
 				return new RandomPartition(nodes, nodes.size());
 			}
@@ -309,11 +769,18 @@ public class DDBPartitioner {
 		 * Range Partition
 		 */
 		else if(part.contains("range")) {
-			Pattern pat = Pattern.compile("range\\((.*)\\)\\s*\\((.*)\\)\\s*", Pattern.CASE_INSENSITIVE);
+			// range(a) auto, bounds come from a sample of the rows
+			Matcher autoMat = Pattern.compile("\\s*range\\s*\\(\\s*(\\w+)\\s*\\)\\s*auto\\s*", Pattern.CASE_INSENSITIVE).matcher(part);
+			if(autoMat.matches()) {
+				return new RangePartition(nodes, attrs, autoMat.group(1));
+			}
+			// range(a) (min:20,50:max) with an optional "subpartition by hash(b)" on the end
+			Pattern pat = Pattern.compile("range\\(([^)]*)\\)\\s*\\(([^)]*)\\)\\s*(subpartition by hash\\(([^)]*)\\))?\\s*", Pattern.CASE_INSENSITIVE);
 			Matcher mat = pat.matcher(part);
 			if(mat.matches()) {
-				String partAttr = mat.group(1);
+				String partAttr = mat.group(1).trim();
 				String partInfo = mat.group(2);
+				String subHashAttr = mat.group(4) == null ? null : mat.group(4).trim();
 				List <Range> rangeList = new ArrayList<Range>();
 				String [] partList = partInfo.split(",");
 				for (int i = 0; i < partList.length; i++) {
@@ -334,7 +801,7 @@ public class DDBPartitioner {
 					Range r = new Range(min, max);
 					rangeList.add(r);
 				}
-				return new RangePartition(nodes, attrs, partAttr, rangeList);
+				return new RangePartition(nodes, attrs, partAttr, rangeList, subHashAttr);
 				
 			} else {
 				throw new Exception("RangePartitionException");
@@ -415,27 +882,36 @@ public class DDBPartitioner {
 			System.out.println("Values: " + theVals);
 				
 			// if table is not present then throw exception
-			if(!tables.containsKey(table)) {
+			if(!catalog().tables.containsKey(table)) {
 				throw new Exception("NoTableFound");
 			}
 			
 			// Split on , and skip , in ()
 			String [] vals = theVals.split(",(?=([^\\(\\)]*\\([^\\(\\)]*\\))*[^\\)]*$)");
 			Pattern vPat = Pattern.compile("\\((.*)\\)", Pattern.CASE_INSENSITIVE);
-			Map<String, String> qMap = new HashMap<String, String>();
+			// Build up each node's statement in place rather than re-copying it for every row
+			Map<String, StringBuilder> nodeStmts = new HashMap<String, StringBuilder>();
 			for (int i = 0; i <  vals.length; i++) {
 				String val = vals[i].trim();
 				Matcher vMat = vPat.matcher(val);
 				if(vMat.matches()) {
-					String selNode = tables.get(table).chooseInsertNode(vMat.group(1));
-					String query1 = "insert into " + table + " values " + val;
-					if(qMap.containsKey(selNode)) {
-						query1 = qMap.get(selNode);
-						query1 += ", " + val;
+					for(String selNode: routeInsert(table, vMat.group(1))) {
+						StringBuilder stmt = nodeStmts.get(selNode);
+						if(stmt == null) {
+							stmt = new StringBuilder("insert into " + table + " values ");
+							nodeStmts.put(selNode, stmt);
+						} else {
+							stmt.append(", ");
+						}
+						stmt.append(val);
 					}
-					qMap.put(selNode, query1);
 				} 
 			}
+			insertsDone(table);
+			Map<String, String> qMap = new HashMap<String, String>();
+			for(Map.Entry<String, StringBuilder> e: nodeStmts.entrySet()) {
+				qMap.put(e.getKey(), e.getValue().toString());
+			}
 			return qMap;
 		} else {
 			LOG.fatal("Select string initial match failed in the end");
@@ -443,8 +919,446 @@ public class DDBPartitioner {
 		}
 	}
 
+	/**
+	 * Pick the nodes a single row of a table should go to. This is the
+	 * routing step shared by insert statements and the bulk loader.
+	 * @param vals the row's values as they appear inside the parens of an insert
+	 * @return the node names, one unless the table is replicated, not to be changed
+	 * @throws Exception if the table doesn't exist
+	 */
+	public List<String> routeInsert(String table, String vals) throws Exception {
+		Catalog c = catalog();
+		Partition p = c.tables.get(table);
+		if(p == null) {
+			throw new Exception("NoTableFound");
+		}
+		NodeCounts counts = placementOf(table, p);
+		String node = p instanceof RandomPartition ? ((RandomPartition) p).chooseInsertNode(vals, counts) : p.chooseInsertNode(vals);
+		AtomicLong count = rowCounts.get(table);
+		if(count == null) {
+			rowCounts.putIfAbsent(table, new AtomicLong());
+			count = rowCounts.get(table);
+		}
+		count.incrementAndGet();
+		List<String> nodeList;
+		if(p instanceof ReplicatedPartition) {
+			nodeList = ((ReplicatedPartition) p).insertNodes();
+		} else {
+			nodeList = oneNode.get(node);
+			if(nodeList == null) {
+				oneNode.putIfAbsent(node, Collections.singletonList(node));
+				nodeList = oneNode.get(node);
+			}
+		}
+		List<GlobalIndex> idxList = c.indexes.get(table);
+		List<ColumnBloom> bloomList = c.blooms.get(table);
+		ZoneMap zoneMap = c.zoneMaps.get(table);
+		// Only the indexes and filters need the values split out, they keep
+		// the text of what they are given
+		String[] theVals = idxList != null || bloomList != null ? TableSchema.splitValues(vals) : null;
+		for(int i = 0; i < nodeList.size(); i++) {
+			String n = nodeList.get(i);
+			counts.add(n, vals.length());
+			if(zoneMap != null) {
+				zoneMap.add(vals, n);
+			}
+			if(idxList != null) {
+				for(GlobalIndex idx: idxList) {
+					idx.add(theVals, n);
+				}
+			}
+			if(bloomList != null) {
+				for(ColumnBloom b: bloomList) {
+					b.add(theVals, n);
+				}
+			}
+		}
+		return nodeList;
+	}
+
+	/**
+	 * Tables saved before placement was counted start counting from 0
+	 */
+	private NodeCounts placementOf(String table, Partition p) {
+		NodeCounts counts = placement.get(table);
+		if(counts == null) {
+			placement.putIfAbsent(table, new NodeCounts(p.initialize()));
+			counts = placement.get(table);
+		}
+		return counts;
+	}
+
+	/**
+	 * @return how many tables each node holds part of
+	 */
+	private Map<String, Integer> tablesPerNode() {
+		Map<String, Integer> out = new HashMap<String, Integer>();
+		for(Partition p: catalog().tables.values()) {
+			for(String n: p.initialize()) {
+				out.put(n, out.containsKey(n) ? out.get(n) + 1 : 1);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * @return true for a RANGE AUTO table without bounds or rows yet, its
+	 * bounds can be set from the rows about to be loaded before they are placed
+	 */
+	public boolean needsRangeBounds(String table) {
+		Partition p = catalog().tables.get(table);
+		return p instanceof RangePartition && ((RangePartition) p).needsBounds() && estimateRows(table) == 0;
+	}
+
+	/**
+	 * @return an empty sample of the table's range attribute for setRangeBounds
+	 * @throws Exception if the table isn't partitioned by range
+	 */
+	public RangeSample rangeSample(String table) throws Exception {
+		Partition p = catalog().tables.get(table);
+		if(p == null) {
+			throw new Exception("NoTableFound");
+		}
+		if(!(p instanceof RangePartition)) {
+			throw new Exception("NotRangePartitioned");
+		}
+		return ((RangePartition) p).newSample();
+	}
+
+	/**
+	 * Give a RANGE table bounds worked out from a sample of its rows. The
+	 * rows it already has are not moved, with moved set the caller has placed
+	 * them again by the new bounds and the table's counts and zone map start
+	 * over for it to route them again.
+	 * @return the table's new partitioning, as explain shows it
+	 */
+	public String setRangeBounds(String table, RangeSample sample, boolean moved) throws Exception {
+		synchronized(ddlLock) {
+			Catalog c = catalog();
+			Partition p = c.tables.get(table);
+			if(!(p instanceof RangePartition)) {
+				throw new Exception("NotRangePartitioned");
+			}
+			RangePartition np = ((RangePartition) p).withBounds(sample);
+			String attrs = c.schemas.get(table);
+			ZoneMap zoneMap = c.zoneMaps.get(table);
+			if(moved) {
+				rowCounts.remove(table);
+				placement.put(table, new NodeCounts(np.initialize()));
+				if(zoneMap != null) {
+					zoneMap = new ZoneMap(attrs);
+				}
+			}
+			catalogRef.set(c.withTable(table, np, attrs, zoneMap));
+			LOG.info(logPrefix() + " New range bounds for " + table + " from " + sample.seen() + " rows");
+			saveTable(table);
+			return np.explain();
+		}
+	}
+
+	/**
+	 * Check a RANGE table for a range taking most of the inserts
+	 * @return how to split it, null if there's nothing to do
+	 */
+	public RangePartition.Split planRangeSplit(String table) {
+		Partition p = catalog().tables.get(table);
+		if(!(p instanceof RangePartition)) {
+			return null;
+		}
+		return ((RangePartition) p).planSplit(placementOf(table, p));
+	}
+
+	/**
+	 * Publish the table with the range split, from now on inserts of the
+	 * upper half go to its new node
+	 * @throws Exception if the table changed since the split was planned
+	 */
+	public void commitRangeSplit(String table, RangePartition.Split split) throws Exception {
+		replaceTable(table, split.before, split.after);
+	}
+
+	/**
+	 * Put the table back the way it was before the split, the rows routed
+	 * to the new node in the meantime are taken back off it
+	 */
+	public void undoRangeSplit(String table, RangePartition.Split split, long rows, long bytes) throws Exception {
+		replaceTable(table, split.after, split.before);
+		AtomicLong count = rowCounts.get(table);
+		if(count != null) {
+			count.addAndGet(-rows);
+		}
+		placementOf(table, split.before).remove(split.to, rows, bytes);
+	}
+
+	private void replaceTable(String table, Partition expected, Partition p) throws Exception {
+		synchronized(ddlLock) {
+			Catalog c = catalog();
+			if(c.tables.get(table) != expected) {
+				throw new Exception("TableChanged");
+			}
+			catalogRef.set(c.withTable(table, p, c.schemas.get(table), c.zoneMaps.get(table)));
+			saveTable(table);
+		}
+	}
+
+	/**
+	 * Rows a split moved were counted again as they were inserted on their
+	 * new node, take them back off the old one
+	 */
+	public void rangeSplitDone(String table, RangePartition.Split split, long rows, long bytes) {
+		AtomicLong count = rowCounts.get(table);
+		if(count != null) {
+			count.addAndGet(-rows);
+		}
+		placementOf(table, split.after).remove(split.from, rows, bytes);
+		split.after.forgetInserts();
+		LOG.info(logPrefix() + " Split " + table + ": " + rows + " rows " + split);
+		saveTable(table);
+	}
+
+	/**
+	 * @return the table's attributes with a global index or a Bloom filter on them
+	 */
+	public Set<String> filteredAttrs(String table) {
+		Catalog c = catalog();
+		Set<String> attrs = new TreeSet<String>();
+		if(c.indexes.containsKey(table)) {
+			for(GlobalIndex idx: c.indexes.get(table)) {
+				attrs.add(idx.getAttr());
+			}
+		}
+		if(c.blooms.containsKey(table)) {
+			for(ColumnBloom b: c.blooms.get(table)) {
+				attrs.add(b.getAttr());
+			}
+		}
+		return attrs;
+	}
+
+	/**
+	 * Rows were moved off the node, its global index entries and Bloom filter
+	 * on the attribute are made to match what it has left. The indexes and
+	 * filters got the rows' new nodes as the rows were routed there.
+	 * @param moved the attribute's values of the rows moved
+	 * @param left the node's values of it after the move
+	 */
+	public void movedOff(String table, String node, String attr, Collection<String> moved, Collection<String> left) {
+		Catalog c = catalog();
+		if(c.indexes.containsKey(table)) {
+			for(GlobalIndex idx: c.indexes.get(table)) {
+				if(idx.getAttr().equals(attr)) {
+					idx.forget(node, moved, left);
+				}
+			}
+		}
+		if(c.blooms.containsKey(table)) {
+			for(ColumnBloom b: c.blooms.get(table)) {
+				if(b.getAttr().equals(attr)) {
+					b.rebuild(node, left);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rows and bytes sent to each node of every table, and the rates since
+	 * the last call, see {@link NodeCounts#sample}
+	 * @param now milliseconds since the epoch
+	 */
+	public String stats(long now) {
+		Catalog c = catalog();
+		String out = "";
+		for(String table: new TreeSet<String>(c.tables.keySet())) {
+			out += placementOf(table, c.tables.get(table)).sample(table, now);
+		}
+		return out;
+	}
+
+	/**
+	 * Start indexing an attribute of a table. The coordinator never sees the
+	 * rows already on the nodes so the table has to be empty.
+	 */
+	private void createGlobalIndex(String table, String attr) throws Exception {
+		synchronized(ddlLock) {
+			Catalog c = catalog();
+			String attrs = emptyTableSchema(c, table, "GlobalIndex");
+			GlobalIndex idx = new GlobalIndex(table, attrs, attr, c.tables.get(table).initialize());
+			if(c.indexes.containsKey(table)) {
+				for(GlobalIndex other: c.indexes.get(table)) {
+					if(other.getAttr().equalsIgnoreCase(idx.getAttr())) {
+						throw new Exception("GlobalIndexExists");
+					}
+				}
+			}
+			catalogRef.set(c.withIndex(table, idx));
+			saveTable(table);
+		}
+	}
+
+	/**
+	 * Start keeping a Bloom filter per node of an attribute's values, like a
+	 * global index it only works if it saw every row so the table has to be empty
+	 */
+	private void createBloomFilter(String table, String attr, int numBits) throws Exception {
+		synchronized(ddlLock) {
+			Catalog c = catalog();
+			String attrs = emptyTableSchema(c, table, "BloomFilter");
+			ColumnBloom bloom = new ColumnBloom(table, attrs, attr, numBits);
+			if(c.blooms.containsKey(table)) {
+				for(ColumnBloom other: c.blooms.get(table)) {
+					if(other.getAttr().equalsIgnoreCase(bloom.getAttr())) {
+						throw new Exception("BloomFilterExists");
+					}
+				}
+			}
+			catalogRef.set(c.withBloom(table, bloom));
+			saveTable(table);
+		}
+	}
+
+	/**
+	 * @return the table's declared attributes, null if it doesn't exist or was
+	 * created before they were kept
+	 */
+	public TableSchema tableSchema(String table) {
+		String attrs = catalog().schemas.get(table);
+		if(attrs == null) {
+			return null;
+		}
+		try {
+			return new TableSchema(attrs);
+		} catch(Exception e) {
+			// Parsed when the table was created
+			return null;
+		}
+	}
+
+	/**
+	 * @return declared attributes of a table that doesn't have any rows yet
+	 * @throws Exception (prefixed with what is being created) if it has rows
+	 */
+	private String emptyTableSchema(Catalog c, String table, String what) throws Exception {
+		if(!c.tables.containsKey(table)) {
+			throw new Exception("NoTableFound");
+		}
+		if(estimateRows(table) > 0) {
+			throw new Exception(what + "TableNotEmpty");
+		}
+		String attrs = c.schemas.get(table);
+		if(attrs == null) {
+			// Created before schemas were kept
+			throw new Exception(what + "UnknownSchema");
+		}
+		return attrs;
+	}
+
+	/**
+	 * Narrow a select's nodes down with the zone map and any global index or
+	 * Bloom filter the where clause has an = on
+	 */
+	private List<String> pruneWithIndexes(Catalog c, String table, String whereClause, List<String> selNodes) {
+		List<GlobalIndex> idxList = c.indexes.containsKey(table) ? c.indexes.get(table) : new ArrayList<GlobalIndex>();
+		List<ColumnBloom> bloomList = c.blooms.containsKey(table) ? c.blooms.get(table) : new ArrayList<ColumnBloom>();
+		ZoneMap zoneMap = c.zoneMaps.get(table);
+		if(idxList.isEmpty() && bloomList.isEmpty() && zoneMap == null) {
+			return selNodes;
+		}
+		WhereClause where = WhereClause.parse(whereClause);
+		if(zoneMap != null) {
+			List<String> pruned = zoneMap.prune(where, selNodes);
+			if(pruned.isEmpty()) {
+				// No node can have a match, one node still has to answer so there is an (empty) result
+				pruned.add(selNodes.get(0));
+			}
+			selNodes = pruned;
+		}
+		for(ColumnBloom bloom: bloomList) {
+			String val = where.getEquals(bloom.getAttr());
+			if(val == null) {
+				continue;
+			}
+			List<String> pruned = bloom.prune(val, selNodes);
+			if(pruned.isEmpty()) {
+				// No node has it, one node still has to answer so there is an (empty) result
+				pruned.add(selNodes.get(0));
+			}
+			selNodes = pruned;
+		}
+		for(GlobalIndex idx: idxList) {
+			String val = where.getEquals(idx.getAttr());
+			if(val == null) {
+				continue;
+			}
+			List<String> pruned = new ArrayList<String>(selNodes);
+			pruned.retainAll(idx.lookup(val));
+			if(pruned.isEmpty()) {
+				// No node has it, one node still has to answer so there is an (empty) result
+				pruned.add(selNodes.get(0));
+			}
+			selNodes = pruned;
+		}
+		return selNodes;
+	}
+
+	/**
+	 * Called with the nodes that failed an insert, replicas among them
+	 * have missed rows so they stop being read from
+	 * @return the nodes that just became stale
+	 */
+	public List<String> markStale(String table, List<String> failedNodes) {
+		List<String> stale = new ArrayList<String>();
+		Partition p = catalog().tables.get(table);
+		if(!(p instanceof ReplicatedPartition)) {
+			return stale;
+		}
+		for(String n: failedNodes) {
+			if(((ReplicatedPartition) p).markStale(n)) {
+				stale.add(n);
+			}
+		}
+		if(!stale.isEmpty()) {
+			LOG.warn(logPrefix() + " Replicas of " + table + " are stale: " + stale);
+			saveTable(table);
+		}
+		return stale;
+	}
+
+	/**
+	 * Forget the intervals of time partitioned tables that are past their
+	 * retention. Each node that held one only has to delete its own rows from
+	 * before the cutoff, nothing goes to the other nodes.
+	 * @param now seconds since the epoch
+	 * @return for each table with something expired, the delete to send each node
+	 */
+	public Map<String, Map<String, String>> expire(long now) {
+		Map<String, Map<String, String>> out = new HashMap<String, Map<String, String>>();
+		for(Map.Entry<String, Partition> e: catalog().tables.entrySet()) {
+			if(!(e.getValue() instanceof TimePartition)) {
+				continue;
+			}
+			Map<String, String> conds = ((TimePartition) e.getValue()).expire(now);
+			if(conds.isEmpty()) {
+				continue;
+			}
+			Map<String, String> qMap = new HashMap<String, String>();
+			for(Map.Entry<String, String> cond: conds.entrySet()) {
+				qMap.put(cond.getKey(), "delete from " + e.getKey() + " where " + cond.getValue());
+			}
+			LOG.info(logPrefix() + " Expiring " + e.getKey() + " on " + qMap.keySet());
+			out.put(e.getKey(), qMap);
+		}
+		if(!out.isEmpty()) {
+			saveTables(out.keySet());
+		}
+		return out;
+	}
+
 	private Map<String, String> parseSelectQuery(String query) throws Exception {
 		System.out.println("SELECT match: ");
+		JoinQuery join = JoinQuery.parse(query);
+		if(join != null) {
+			return parseJoinQuery(join, query);
+		}
 		
 		// Pull out important pieces from the select query
 		Pattern pat = Pattern.compile("\\s*select (.*) from (.*)", Pattern.CASE_INSENSITIVE);
@@ -468,8 +1382,10 @@ public class DDBPartitioner {
 			System.out.println("Where: " + where);
 			
 			//Find a match in our tables map
-			if(tables.containsKey(table)) {
-				List <String> selNodes = tables.get(table).chooseSelectNode(whereAttr);
+			Catalog c = catalog();
+			if(c.tables.containsKey(table)) {
+				List <String> selNodes = c.tables.get(table).chooseSelectNode(whereAttr);
+				selNodes = pruneWithIndexes(c, table, whereAttr, selNodes);
 				Map<String, String> qMap = new HashMap<String, String>();
 				String cmd = "select " + selectAttrs + " from " + table + " " + where;
 				for(String s: selNodes) {
@@ -484,6 +1400,138 @@ public class DDBPartitioner {
 			return null;
 		}
 	}
+
+	/**
+	 * A join of two tables placed the same way on the join attributes is sent
+	 * as is to every node holding them, each node joins its own rows. So is a
+	 * join with a replicated table, as long as the other side's nodes all
+	 * have an up to date copy of it.
+	 */
+	private Map<String, String> parseJoinQuery(JoinQuery join, String query) throws Exception {
+		System.out.println("Join: " + join);
+		List<String> selNodes = joinNodes(join);
+		if(selNodes == null) {
+			throw new Exception("JoinNotCoPartitioned");
+		}
+		// Rewritten so the nodes' output can be put back together, see getGatherStrs
+		String nodeQuery = joinGather(join).nodeQuery;
+		Map<String, String> qMap = new HashMap<String, String>();
+		for(String s: selNodes) {
+			qMap.put(s, nodeQuery);
+		}
+		return qMap;
+	}
+
+	/**
+	 * @return true if every node can do its part of the join on its own and
+	 * their rows can be put back together, otherwise it has to be done with
+	 * {@link CoordinatorJoin}
+	 */
+	public boolean canJoinOnNodes(JoinQuery join) throws Exception {
+		if(joinNodes(join) == null) {
+			return false;
+		}
+		try {
+			joinGather(join);
+			return true;
+		} catch(Exception e) {
+			System.out.println("Join done at the coordinator: " + e.getMessage());
+			return false;
+		}
+	}
+
+	private JoinGather joinGather(JoinQuery join) throws Exception {
+		return JoinGather.of(join, tableSchema(join.leftTable), tableSchema(join.rightTable));
+	}
+
+	/**
+	 * @return the nodes to send a node local join to, null if it can't be done that way
+	 */
+	private List<String> joinNodes(JoinQuery join) throws Exception {
+		Catalog c = catalog();
+		Partition left = c.tables.get(join.leftTable);
+		Partition right = c.tables.get(join.rightTable);
+		if(left == null || right == null) {
+			throw new Exception("NoTableFound");
+		}
+		// The nodes write the joined rows out as a table of their own, only sqlite does that
+		if(!dbType.equals(DDBConstants.SQLITE3_DB)) {
+			throw new Exception("JoinNotSupported");
+		}
+		List<String> selNodes;
+		if(left instanceof ReplicatedPartition && right instanceof ReplicatedPartition) {
+			List<String> both = ((ReplicatedPartition) left).liveNodes();
+			both.retainAll(((ReplicatedPartition) right).liveNodes());
+			if(both.isEmpty()) {
+				return null;
+			}
+			selNodes = new ArrayList<String>();
+			selNodes.add(NodeLoad.leastLoaded(both));
+		} else if(left instanceof ReplicatedPartition || right instanceof ReplicatedPartition) {
+			boolean leftRep = left instanceof ReplicatedPartition;
+			Partition part = leftRep ? right : left;
+			ReplicatedPartition rep = (ReplicatedPartition) (leftRep ? left : right);
+			String partWhere = join.sideWhere(!leftRep);
+			selNodes = pruneWithIndexes(c, leftRep ? join.rightTable : join.leftTable, partWhere, part.chooseSelectNode(partWhere));
+			if(!rep.liveNodes().containsAll(selNodes)) {
+				return null;
+			}
+		} else {
+			String leftKey = left.placementKey(join.leftKey);
+			if(leftKey == null || !leftKey.equals(right.placementKey(join.rightKey))) {
+				return null;
+			}
+			// Matching rows are on the same node so each side can only rule nodes out
+			String leftWhere = join.sideWhere(true);
+			String rightWhere = join.sideWhere(false);
+			selNodes = new ArrayList<String>(pruneWithIndexes(c, join.leftTable, leftWhere, left.chooseSelectNode(leftWhere)));
+			selNodes.retainAll(pruneWithIndexes(c, join.rightTable, rightWhere, right.chooseSelectNode(rightWhere)));
+		}
+		return selNodes;
+	}
+
+	/**
+	 * The select reading one side of a join done at the coordinator
+	 * @param where predicates on the table's own attributes, may be ""
+	 * @return Map<String, String> of node to query
+	 */
+	public Map<String, String> sideQuery(String table, String where) throws Exception {
+		Catalog c = catalog();
+		Partition p = c.tables.get(table);
+		if(p == null) {
+			throw new Exception("NoTableFound");
+		}
+		String cmd = "select * from " + table + (where.equals("") ? "" : " where " + where);
+		Map<String, String> qMap = new HashMap<String, String>();
+		for(String s: pruneWithIndexes(c, table, where, p.chooseSelectNode(where))) {
+			qMap.put(s, cmd);
+		}
+		return qMap;
+	}
+
+	/**
+	 * @return rows inserted into the table since startup
+	 */
+	public long estimateRows(String table) {
+		AtomicLong count = rowCounts.get(table);
+		return count == null ? 0 : count.get();
+	}
+
+	/**
+	 * Pieces of the query needed to combine the nodes' output tables
+	 * @return {select list, table, where, tail}, the tail is null if the select
+	 * is run on each output table, otherwise it's run once over all their rows
+	 * with the tail (group by, order by, limit) after the table
+	 */
+	public String[] getGatherStrs(String query) throws Exception {
+		JoinQuery join = JoinQuery.parse(query);
+		if(join != null) {
+			// Nodes already did the join, their output table is named after the first table
+			JoinGather g = joinGather(join);
+			return new String[] {g.select, join.leftTable, "", g.tail};
+		}
+		return new String[] {getSelectStr(query), getTableStr(query), getWhereStr(query), null};
+	}
 }
 
 
@@ -16,4 +16,19 @@ public class DDBUtil {
 		server.close();
 		return port;
 	}
+
+	/**
+	 * A string value for a query sent to the nodes, built with sqlite's char()
+	 * rather than quoted so there are no quotes in it to get wrong.
+	 */
+	static String sqlString(String s) {
+		StringBuilder out = new StringBuilder("char(");
+		for(int i = 0; i < s.length(); i++) {
+			if(i > 0) {
+				out.append(',');
+			}
+			out.append((int) s.charAt(i));
+		}
+		return out.append(')').toString();
+	}
 }
@@ -0,0 +1,232 @@
+package distributeddb;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index from the values of one attribute of a table to the nodes holding
+ * rows with that value, so an = on an attribute the table isn't partitioned
+ * by can still go to one node. Kept up to date by the insert routing.
+ *
+ * The entries are split into shards by value, each shard is saved in its own
+ * file and only the shards inserts touched are written back, at a catalog
+ * checkpoint. The entries changed since are logged in the catalog as an
+ * InsertDelta and added again after the shards are loaded. All of them are
+ * kept in memory on the coordinator.
+ */
+class GlobalIndex implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private static final int NUM_SHARDS = 16;
+
+	private final String table;
+	private final String attr;
+	private final int attrPosn;
+	private final String attrType;
+	// Nodes of the table, a value's entry has bit i set if nodes.get(i) holds it
+	private final List<String> nodes;
+
+	private transient List<Map<String, Long>> shards;
+	private transient boolean[] dirty;
+	// Entries changed since they were last taken for the catalog log
+	private transient Map<String, Long> added;
+
+	public GlobalIndex(String table, String declAttrs, String attr, List<String> nodes) throws Exception {
+		TableSchema schema = new TableSchema(declAttrs);
+		this.attrPosn = schema.indexOf(attr);
+		if(attrPosn < 0) {
+			throw new Exception("GlobalIndexInvalidAttribute");
+		}
+		if(nodes.size() > 64) {
+			throw new Exception("GlobalIndexTooManyNodes");
+		}
+		this.table = table;
+		this.attr = schema.getName(attrPosn);
+		this.attrType = schema.getType(attrPosn);
+		this.nodes = new ArrayList<String>(nodes);
+		initShards();
+	}
+
+	private void initShards() {
+		shards = new ArrayList<Map<String, Long>>();
+		for(int i = 0; i < NUM_SHARDS; i++) {
+			shards.add(new HashMap<String, Long>());
+		}
+		dirty = new boolean[NUM_SHARDS];
+		added = new HashMap<String, Long>();
+	}
+
+	public String getAttr() {
+		return attr;
+	}
+
+	private int shardOf(String key) {
+		return (key.hashCode() & 0x7fffffff) % NUM_SHARDS;
+	}
+
+	/**
+	 * Record that the node holds the row
+	 * @param vals the row's values split up
+	 */
+	public synchronized void add(String[] vals, String node) {
+		int bit = nodes.indexOf(node);
+		if(bit < 0 || attrPosn >= vals.length) {
+			return;
+		}
+		String key = TableSchema.canonicalValue(attrType, vals[attrPosn]);
+		int shard = shardOf(key);
+		Map<String, Long> entries = shards.get(shard);
+		Long mask = entries.get(key);
+		long newMask = (mask == null ? 0 : mask) | (1L << bit);
+		if(mask == null || mask != newMask) {
+			entries.put(key, newMask);
+			dirty[shard] = true;
+			added.put(key, newMask);
+		}
+	}
+
+	/**
+	 * Rows were moved off the node, it no longer holds the moved values it
+	 * has none of left. The deltas only ever add bits, after a restart
+	 * before the next checkpoint the node is looked at for them again.
+	 * @param moved values of the rows moved, as sqlite's quote() writes them
+	 * @param left the node's values after the move
+	 */
+	public synchronized void forget(String node, Collection<String> moved, Collection<String> left) {
+		int bit = nodes.indexOf(node);
+		if(bit < 0) {
+			return;
+		}
+		Set<String> keep = new HashSet<String>();
+		for(String v: left) {
+			keep.add(TableSchema.canonicalValue(attrType, v));
+		}
+		for(String v: moved) {
+			String key = TableSchema.canonicalValue(attrType, v);
+			int shard = shardOf(key);
+			Long mask = shards.get(shard).get(key);
+			if(keep.contains(key) || mask == null || (mask & (1L << bit)) == 0) {
+				continue;
+			}
+			long newMask = mask & ~(1L << bit);
+			if(newMask == 0) {
+				shards.get(shard).remove(key);
+			} else {
+				shards.get(shard).put(key, newMask);
+			}
+			dirty[shard] = true;
+		}
+	}
+
+	/**
+	 * @return the entries changed since the last call, value to node bits
+	 */
+	public synchronized Map<String, Long> takeAdded() {
+		Map<String, Long> out = added;
+		added = new HashMap<String, Long>();
+		return out;
+	}
+
+	/**
+	 * Put back entries taken from takeAdded, after a restart
+	 */
+	public synchronized void addAll(Map<String, Long> entries) {
+		for(Map.Entry<String, Long> e: entries.entrySet()) {
+			int shard = shardOf(e.getKey());
+			Long mask = shards.get(shard).get(e.getKey());
+			shards.get(shard).put(e.getKey(), (mask == null ? 0 : mask) | e.getValue());
+			dirty[shard] = true;
+		}
+	}
+
+	/**
+	 * @return the nodes holding rows with the value, empty if none do
+	 */
+	public synchronized List<String> lookup(String value) {
+		String key = TableSchema.canonicalValue(attrType, value);
+		Long mask = shards.get(shardOf(key)).get(key);
+		List<String> out = new ArrayList<String>();
+		for(int i = 0; mask != null && i < nodes.size(); i++) {
+			if((mask & (1L << i)) != 0) {
+				out.add(nodes.get(i));
+			}
+		}
+		return out;
+	}
+
+	public synchronized int size() {
+		int size = 0;
+		for(Map<String, Long> s: shards) {
+			size += s.size();
+		}
+		return size;
+	}
+
+	private String shardFile(String prefix, int shard) {
+		return prefix + "index." + table + "." + attr + "." + shard + ".data";
+	}
+
+	/**
+	 * Write out the shards that changed since the last save, each to a
+	 * temporary file renamed over the old one so a crash leaves one or the other
+	 */
+	public synchronized void save(String prefix) throws IOException {
+		for(int i = 0; i < NUM_SHARDS; i++) {
+			if(!dirty[i]) {
+				continue;
+			}
+			File f = new File(shardFile(prefix, i));
+			File tmp = new File(f.getPath() + ".tmp");
+			FileOutputStream fos = new FileOutputStream(tmp);
+			ObjectOutputStream out = new ObjectOutputStream(fos);
+			try {
+				out.writeObject(shards.get(i));
+				out.flush();
+				fos.getChannel().force(false);
+			} finally {
+				out.close();
+			}
+			if(!tmp.renameTo(f)) {
+				throw new IOException("Unable to replace " + f);
+			}
+			dirty[i] = false;
+		}
+	}
+
+	/**
+	 * Read every shard, a shard without a file is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized void load(String prefix) throws IOException, ClassNotFoundException {
+		initShards();
+		for(int i = 0; i < NUM_SHARDS; i++) {
+			File f = new File(shardFile(prefix, i));
+			if(!f.exists()) {
+				continue;
+			}
+			ObjectInputStream in = new ObjectInputStream(new FileInputStream(f));
+			try {
+				shards.set(i, (Map<String, Long>) in.readObject());
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	public void delete(String prefix) {
+		for(int i = 0; i < NUM_SHARDS; i++) {
+			new File(shardFile(prefix, i)).delete();
+		}
+	}
+}
@@ -0,0 +1,434 @@
+package distributeddb;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Count-Min sketch, used to estimate how often a key has been seen without
+ * keeping a counter for every key.
+ */
+class CountMinSketch implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private static final int[] SEEDS = {0x5bd1e995, 0x1b873593, 0x85ebca6b, 0xc2b2ae35};
+	private final int width;
+	private final long[][] counts;
+	private long total;
+
+	public CountMinSketch(int width) {
+		this.width = width;
+		this.counts = new long[SEEDS.length][width];
+		this.total = 0;
+	}
+
+	private int bucket(int row, int hash) {
+		int h = hash ^ SEEDS[row];
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return (h & 0x7fffffff) % width;
+	}
+
+	/**
+	 * Count one occurrence of the key
+	 * @return the new estimate for the key
+	 */
+	public long add(String key) {
+		return add(key.hashCode());
+	}
+
+	/**
+	 * @param hash the key's hashCode()
+	 */
+	public long add(int hash) {
+		long est = Long.MAX_VALUE;
+		for(int i = 0; i < SEEDS.length; i++) {
+			long c = ++counts[i][bucket(i, hash)];
+			if(c < est) {
+				est = c;
+			}
+		}
+		total++;
+		return est;
+	}
+
+	public long estimate(String key) {
+		int hash = key.hashCode();
+		long est = Long.MAX_VALUE;
+		for(int i = 0; i < SEEDS.length; i++) {
+			est = Math.min(est, counts[i][bucket(i, hash)]);
+		}
+		return est;
+	}
+
+	public long getTotal() {
+		return total;
+	}
+}
+
+/**
+ * Streaming heavy hitter detection for a partition key. Keys whose share of
+ * the inserted rows exceeds what one node should take are marked hot and given
+ * a salt: the number of consecutive nodes their rows are spread over.
+ * A salt only ever grows, so rows placed before a key got hotter are still
+ * found by a lookup on the (bigger) salted set.
+ *
+ * While rows are counted the top-K candidates and hot keys are looked up by
+ * their hash and checked against the row in place (KeyText.isKey), a key's
+ * text is only built when it is first remembered.
+ */
+class HeavyHitters implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Builds the text of a row's key, only asked for when the key has to be
+	 * remembered so most rows are counted without it
+	 */
+	interface KeyText {
+		String keyText(String vals);
+
+		/**
+		 * @return true if keyText(vals) is key, without building it for the
+		 * usual values
+		 */
+		boolean isKey(String key, String vals);
+	}
+
+	private static final KeyText WHOLE_KEY = new KeyText() {
+		public String keyText(String vals) {
+			return vals;
+		}
+
+		public boolean isKey(String key, String vals) {
+			return key.equals(vals);
+		}
+	};
+
+	// Don't call anything hot until we have seen at least this many of it
+	private static final long MIN_HOT_COUNT = 1000;
+	// How many candidates to keep for the top-K list
+	private static final int TOP_K = 16;
+	// Bound on the number of keys we will ever salt
+	private static final int MAX_HOT_KEYS = 1024;
+
+	private final CountMinSketch sketch;
+	private final int numNodes;
+	// key -> estimated count for the top-K candidates, filled in from the
+	// top arrays when saved
+	private final Map<String, Long> topK;
+	// key -> number of nodes the key is spread over
+	private final Map<String, Integer> hotKeys;
+	// Set once keys are remembered by their canonical text, see rekey
+	private boolean canonical;
+	// The top-K candidates while rows are counted. A candidate's key is null
+	// until it is needed, topRow has a row of it and topText gets it from that.
+	private transient int topN;
+	private transient int[] topHash;
+	private transient long[] topEst;
+	private transient String[] topKey;
+	private transient String[] topRow;
+	private transient KeyText[] topText;
+	// Smallest estimate in the top arrays, worked out again after they change
+	private transient long topKMin;
+	private transient boolean topKMinKnown;
+	// hotKeys sorted by hash, with the next offset into each key's salted set
+	// to insert to
+	private transient int[] hotHash;
+	private transient String[] hotKey;
+	private transient int[] hotSalt;
+	private transient int[] hotCursor;
+	// Set when a key is made hot or spread wider, where its rows go changed
+	private transient boolean hotKeysChanged;
+
+	public HeavyHitters(int numNodes) {
+		this.sketch = new CountMinSketch(2048);
+		this.numNodes = numNodes;
+		this.topK = new HashMap<String, Long>();
+		this.hotKeys = new HashMap<String, Integer>();
+		this.canonical = true;
+		index();
+	}
+
+	/**
+	 * Remember the keys of a partition saved before keys were canonical by
+	 * the text canon gives for them. Keys that come out the same keep the
+	 * bigger salt, so every node their rows went to is still looked at.
+	 */
+	public synchronized void rekey(KeyText canon) {
+		if(canonical) {
+			return;
+		}
+		saveTopK();
+		Map<String, Long> oldTopK = new HashMap<String, Long>(topK);
+		topK.clear();
+		for(Map.Entry<String, Long> e: oldTopK.entrySet()) {
+			String key = canon.keyText(e.getKey());
+			Long cur = topK.get(key);
+			topK.put(key, cur == null ? e.getValue() : Math.max(cur, e.getValue()));
+		}
+		Map<String, Integer> oldHot = new HashMap<String, Integer>(hotKeys);
+		hotKeys.clear();
+		for(Map.Entry<String, Integer> e: oldHot.entrySet()) {
+			String key = canon.keyText(e.getKey());
+			Integer cur = hotKeys.get(key);
+			hotKeys.put(key, cur == null ? e.getValue() : Math.max(cur, e.getValue()));
+		}
+		canonical = true;
+		index();
+	}
+
+	/**
+	 * Set up the top and hot arrays from the maps
+	 */
+	private void index() {
+		topN = 0;
+		topHash = new int[TOP_K];
+		topEst = new long[TOP_K];
+		topKey = new String[TOP_K];
+		topRow = new String[TOP_K];
+		topText = new KeyText[TOP_K];
+		for(Map.Entry<String, Long> e: topK.entrySet()) {
+			if(topN < TOP_K) {
+				setTop(topN++, e.getKey().hashCode(), e.getKey(), null, null, e.getValue());
+			}
+		}
+		topKMinKnown = false;
+		hotHash = new int[0];
+		hotKey = new String[0];
+		hotSalt = new int[0];
+		hotCursor = new int[0];
+		for(Map.Entry<String, Integer> e: hotKeys.entrySet()) {
+			addHot(e.getKey().hashCode(), e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * Count the key and return the offset (from the key's home node) that this
+	 * row should be placed at, 0 unless the key is hot.
+	 */
+	public int add(String key) {
+		return add(key.hashCode(), key, WHOLE_KEY);
+	}
+
+	/**
+	 * Same as add(String) for the key text gives from vals
+	 * @param hash the key's hashCode()
+	 */
+	public synchronized int add(int hash, String vals, KeyText text) {
+		long est = sketch.add(hash);
+		int top = -1;
+		// A key already in topK has a new estimate above the smallest one, as
+		// its estimate goes up by one each time, so below it nothing changes
+		if(topN < TOP_K || est > topKMin()) {
+			top = updateTopK(hash, vals, text, est);
+		}
+
+		// A key is only made hot once its estimate reaches MIN_HOT_COUNT
+		if(est < MIN_HOT_COUNT) {
+			return 0;
+		}
+		int hot = findHot(hash, vals, text);
+		if(numNodes > 1) {
+			// A node's fair share is total / numNodes, anything taking more than
+			// half of that by itself is worth spreading
+			long total = sketch.getTotal();
+			if(est * 2 * numNodes > total) {
+				// Give it enough nodes that each gets about half a fair share
+				long shares = (2 * est * numNodes + total - 1) / total;
+				int want = (int) Math.max(2, Math.min(numNodes, shares));
+				if(hot < 0 && hotKeys.size() < MAX_HOT_KEYS) {
+					String key = top >= 0 ? topKey(top) : text.keyText(vals);
+					hotKeys.put(key, want);
+					hot = addHot(hash, key, want);
+					hotKeysChanged = true;
+				} else if(hot >= 0 && want > hotSalt[hot]) {
+					hotKeys.put(hotKey[hot], want);
+					hotSalt[hot] = want;
+					hotKeysChanged = true;
+				}
+			}
+		}
+		if(hot < 0) {
+			return 0;
+		}
+		int offset = hotCursor[hot] % hotSalt[hot];
+		hotCursor[hot] = (offset + 1) % hotSalt[hot];
+		return offset;
+	}
+
+	/**
+	 * @return the key's place in the hot arrays, -1 if it isn't hot
+	 */
+	private int findHot(int hash, String vals, KeyText text) {
+		int i = Arrays.binarySearch(hotHash, hash);
+		if(i < 0) {
+			return -1;
+		}
+		// Keys with the same hash are next to each other
+		while(i > 0 && hotHash[i - 1] == hash) {
+			i--;
+		}
+		for(; i < hotHash.length && hotHash[i] == hash; i++) {
+			if(text.isKey(hotKey[i], vals)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Put a key in the hot arrays, only done when a key is made hot
+	 * @return its place
+	 */
+	private int addHot(int hash, String key, int salt) {
+		int i = Arrays.binarySearch(hotHash, hash);
+		i = i < 0 ? -i - 1 : i;
+		hotHash = insert(hotHash, i, hash);
+		hotSalt = insert(hotSalt, i, salt);
+		hotCursor = insert(hotCursor, i, 0);
+		String[] keys = new String[hotKey.length + 1];
+		System.arraycopy(hotKey, 0, keys, 0, i);
+		System.arraycopy(hotKey, i, keys, i + 1, hotKey.length - i);
+		keys[i] = key;
+		hotKey = keys;
+		return i;
+	}
+
+	private static int[] insert(int[] a, int i, int v) {
+		int[] out = new int[a.length + 1];
+		System.arraycopy(a, 0, out, 0, i);
+		System.arraycopy(a, i, out, i + 1, a.length - i);
+		out[i] = v;
+		return out;
+	}
+
+	private long topKMin() {
+		if(!topKMinKnown) {
+			topKMin = Long.MAX_VALUE;
+			for(int i = 0; i < topN; i++) {
+				topKMin = Math.min(topKMin, topEst[i]);
+			}
+			topKMinKnown = true;
+		}
+		return topKMin;
+	}
+
+	/**
+	 * @return the key's place in the top arrays, -1 if it didn't make it in
+	 */
+	private int updateTopK(int hash, String vals, KeyText text, long est) {
+		topKMinKnown = false;
+		for(int i = 0; i < topN; i++) {
+			if(topHash[i] == hash && text.isKey(topKey(i), vals)) {
+				topEst[i] = est;
+				return i;
+			}
+		}
+		if(topN < TOP_K) {
+			setTop(topN, hash, null, vals, text, est);
+			return topN++;
+		}
+		// Replace the smallest candidate if this key beats it
+		int min = 0;
+		for(int i = 1; i < topN; i++) {
+			if(topEst[i] < topEst[min]) {
+				min = i;
+			}
+		}
+		if(est > topEst[min]) {
+			setTop(min, hash, null, vals, text, est);
+			return min;
+		}
+		return -1;
+	}
+
+	private void setTop(int i, int hash, String key, String vals, KeyText text, long est) {
+		topHash[i] = hash;
+		topKey[i] = key;
+		topRow[i] = vals;
+		topText[i] = text;
+		topEst[i] = est;
+	}
+
+	private String topKey(int i) {
+		if(topKey[i] == null) {
+			topKey[i] = topText[i].keyText(topRow[i]);
+			topRow[i] = null;
+			topText[i] = null;
+		}
+		return topKey[i];
+	}
+
+	/**
+	 * Put the top arrays in topK
+	 */
+	private void saveTopK() {
+		topK.clear();
+		for(int i = 0; i < topN; i++) {
+			topK.put(topKey(i), topEst[i]);
+		}
+	}
+
+	/**
+	 * @return number of nodes the key is spread over, 1 if it isn't hot
+	 */
+	public synchronized int getSalt(String key) {
+		Integer salt = hotKeys.get(key);
+		return salt == null ? 1 : salt;
+	}
+
+	/**
+	 * @return true if a key was made hot or spread wider since the last call
+	 */
+	public synchronized boolean takeHotKeysChanged() {
+		boolean changed = hotKeysChanged;
+		hotKeysChanged = false;
+		return changed;
+	}
+
+	public synchronized boolean hasHotKeys() {
+		return !hotKeys.isEmpty();
+	}
+
+	public synchronized String explain() {
+		saveTopK();
+		if(topK.isEmpty()) {
+			return "";
+		}
+		List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(topK.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+			public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+				return b.getValue().compareTo(a.getValue());
+			}
+		});
+		String out = "\tHeavy hitters (of " + sketch.getTotal() + " rows):\n";
+		// Only the first few are interesting
+		for(Map.Entry<String, Long> e: entries.subList(0, Math.min(5, entries.size()))) {
+			out += "\t  " + e.getKey() + "\t~" + e.getValue();
+			if(hotKeys.containsKey(e.getKey())) {
+				out += "\tsalted over " + hotKeys.get(e.getKey()) + " nodes";
+			}
+			out += "\n";
+		}
+		return out;
+	}
+
+	// Saved with the partition while rows are still being counted
+	private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+		saveTopK();
+		out.defaultWriteObject();
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		index();
+	}
+}
@@ -0,0 +1,74 @@
+package distributeddb;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What a batch of inserts added to a table's global indexes and Bloom
+ * filters. Logged in the catalog instead of writing their files on every
+ * insert, the files are written at the next checkpoint and the deltas they
+ * hold dropped. After a restart the deltas still in the catalog are added
+ * to what was loaded from the files.
+ */
+class InsertDelta implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	// Indexed attribute -> value -> node bits of the entries that changed
+	private final Map<String, Map<String, Long>> index;
+	// Filtered attribute -> node -> values added
+	private final Map<String, Map<String, List<String>>> bloom;
+
+	private InsertDelta() {
+		this.index = new HashMap<String, Map<String, Long>>();
+		this.bloom = new HashMap<String, Map<String, List<String>>>();
+	}
+
+	/**
+	 * Take what was added since the last call
+	 * @param idxList may be null
+	 * @param bloomList may be null
+	 * @return null if nothing was
+	 */
+	public static InsertDelta take(List<GlobalIndex> idxList, List<ColumnBloom> bloomList) {
+		InsertDelta d = new InsertDelta();
+		if(idxList != null) {
+			for(GlobalIndex idx: idxList) {
+				Map<String, Long> added = idx.takeAdded();
+				if(!added.isEmpty()) {
+					d.index.put(idx.getAttr(), added);
+				}
+			}
+		}
+		if(bloomList != null) {
+			for(ColumnBloom b: bloomList) {
+				Map<String, List<String>> added = b.takeAdded();
+				if(!added.isEmpty()) {
+					d.bloom.put(b.getAttr(), added);
+				}
+			}
+		}
+		return d.index.isEmpty() && d.bloom.isEmpty() ? null : d;
+	}
+
+	/**
+	 * Add the delta to the table's indexes and filters loaded from their files
+	 */
+	public void apply(List<GlobalIndex> idxList, List<ColumnBloom> bloomList) {
+		if(idxList != null) {
+			for(GlobalIndex idx: idxList) {
+				if(index.containsKey(idx.getAttr())) {
+					idx.addAll(index.get(idx.getAttr()));
+				}
+			}
+		}
+		if(bloomList != null) {
+			for(ColumnBloom b: bloomList) {
+				if(bloom.containsKey(b.getAttr())) {
+					b.addAll(bloom.get(b.getAttr()));
+				}
+			}
+		}
+	}
+}
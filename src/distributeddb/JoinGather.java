@@ -0,0 +1,371 @@
+package distributeddb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * How a join done by each node on its own rows is put back together on the
+ * coordinator. The nodes' output tables are unioned and the select is run
+ * again over all of their rows, so DISTINCT, GROUP BY, ORDER BY, LIMIT and
+ * aggregates see the whole answer and not one node's part of it.
+ *
+ * For that each node's select list is rewritten to named result columns
+ * (_c1, _c2, ...) with whatever else the coordinator needs after them:
+ *   count(x), sum(x), total(x)  are added up, min(x) and max(x) taken again
+ *   avg(x)                      comes back as its sum and count
+ *   GROUP BY, ORDER BY terms    that aren't in the select list as hidden columns
+ * A node keeps ORDER BY and LIMIT (plus the offset) when it isn't grouping,
+ * its first rows are all the coordinator can need from it.
+ *
+ * Rows that can't be put back together this way (HAVING, count(distinct x),
+ * a column in an aggregate select that isn't grouped on, a * of a table
+ * whose attributes aren't known) throw UnsupportedJoinShape, the join is then
+ * done at the coordinator instead.
+ */
+class JoinGather {
+	private static final Pattern SELECT_PAT = Pattern.compile("\\s*select\\s+(distinct\\s+)?", Pattern.CASE_INSENSITIVE);
+	private static final Pattern FROM_PAT = Pattern.compile("\\sfrom\\s", Pattern.CASE_INSENSITIVE);
+	private static final Pattern TAIL_PAT = Pattern.compile("\\s(group\\s+by|having|order\\s+by|limit)\\s", Pattern.CASE_INSENSITIVE);
+	private static final Pattern STAR_PAT = Pattern.compile("(?:(\\w+)\\.)?\\*");
+	// "expr as name", or "name" after a plain attribute or function call
+	private static final Pattern ALIAS_PAT = Pattern.compile("(.*?)\\s+as\\s+(\\w+)|([\\w.]+|\\w+\\s*\\(.*\\))\\s+(\\w+)",
+			Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private static final Pattern AGG_PAT = Pattern.compile("(count|sum|total|min|max|avg)\\s*\\((.*)\\)", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private static final Pattern ANY_AGG_PAT = Pattern.compile("\\b(count|sum|total|min|max|avg|group_concat)\\s*\\(", Pattern.CASE_INSENSITIVE);
+	private static final Pattern ORDER_PAT = Pattern.compile("(.*?)(\\s+(?:asc|desc))?", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	// "n", "n offset m" or "m, n"
+	private static final Pattern LIMIT_PAT = Pattern.compile("(\\d+)(?:\\s+offset\\s+(\\d+))?|(\\d+)\\s*,\\s*(\\d+)", Pattern.CASE_INSENSITIVE);
+
+	// What each node runs
+	final String nodeQuery;
+	// Select list and what follows the table in the select over all the nodes' rows
+	final String select;
+	final String tail;
+
+	private JoinGather(String nodeQuery, String select, String tail) {
+		this.nodeQuery = nodeQuery;
+		this.select = select;
+		this.tail = tail;
+	}
+
+	/**
+	 * @param leftSchema the left table's attributes, null if they aren't known
+	 * @param rightSchema the right table's
+	 * @throws Exception UnsupportedJoinShape if the nodes' rows can't be put back together
+	 */
+	public static JoinGather of(JoinQuery join, TableSchema leftSchema, TableSchema rightSchema) throws Exception {
+		String q = join.query.trim();
+		if(q.endsWith(";")) {
+			q = q.substring(0, q.length() - 1).trim();
+		}
+		Matcher sel = SELECT_PAT.matcher(q);
+		int from = find(FROM_PAT, q, 0);
+		if(!sel.lookingAt() || from < 0) {
+			throw new Exception("UnsupportedJoinShape");
+		}
+		boolean distinct = sel.group(1) != null;
+		String[] items = TableSchema.splitValues(q.substring(sel.end(), from));
+
+		// The clauses after from and where
+		int end = find(TAIL_PAT, q, from + 1);
+		String body = q.substring(from, end < 0 ? q.length() : end);
+		String group = null;
+		String having = null;
+		String order = null;
+		String limit = null;
+		while(end >= 0) {
+			Matcher kw = TAIL_PAT.matcher(q);
+			kw.region(end, q.length());
+			kw.lookingAt();
+			int next = find(TAIL_PAT, q, kw.end() - 1);
+			String text = q.substring(kw.end(), next < 0 ? q.length() : next).trim();
+			String k = kw.group(1).toLowerCase();
+			if(k.startsWith("group")) {
+				group = text;
+			} else if(k.equals("having")) {
+				having = text;
+			} else if(k.startsWith("order")) {
+				order = text;
+			} else {
+				limit = text;
+			}
+			end = next;
+		}
+
+		boolean aggregating = group != null;
+		for(String it: items) {
+			aggregating |= ANY_AGG_PAT.matcher(it).find();
+		}
+		if(!distinct && !aggregating && order == null && limit == null) {
+			// Each node's rows are part of the answer as they are
+			return new JoinGather(join.query, "*", "");
+		}
+		if(having != null) {
+			throw new Exception("UnsupportedJoinShape");
+		}
+
+		// The select list with any * spelled out
+		List<String> exprs = new ArrayList<String>();
+		List<String> aliases = new ArrayList<String>();
+		for(String it: items) {
+			Matcher star = STAR_PAT.matcher(it);
+			if(star.matches()) {
+				boolean left = star.group(1) == null || join.isLeft(star.group(1));
+				boolean right = star.group(1) == null || join.isRight(star.group(1));
+				if((!left && !right) || (left && leftSchema == null) || (right && rightSchema == null)) {
+					throw new Exception("UnsupportedJoinShape");
+				}
+				if(left) {
+					addColumns(join.leftAlias, leftSchema, exprs, aliases);
+				}
+				if(right) {
+					addColumns(join.rightAlias, rightSchema, exprs, aliases);
+				}
+				continue;
+			}
+			Matcher a = ALIAS_PAT.matcher(it);
+			if(a.matches()) {
+				exprs.add(a.group(1) != null ? a.group(1).trim() : a.group(3).trim());
+				aliases.add(a.group(2) != null ? a.group(2) : a.group(4));
+			} else {
+				exprs.add(it);
+				aliases.add(null);
+			}
+		}
+
+		List<String> nodeCols = new ArrayList<String>();
+		List<String> outer = new ArrayList<String>();
+		List<String> hidden = new ArrayList<String>();
+		boolean[] isAgg = new boolean[exprs.size()];
+		for(int i = 0; i < exprs.size(); i++) {
+			String col = "_c" + (i + 1);
+			String agg = aggregate(exprs.get(i), col, hidden);
+			isAgg[i] = agg != null;
+			if(agg != null) {
+				outer.add(agg);
+			} else {
+				nodeCols.add(exprs.get(i) + " as " + col);
+				outer.add(col);
+			}
+		}
+		// Aggregates' columns after the plain ones so they don't move the plain ones' ordinals
+		List<String> extra = new ArrayList<String>(hidden);
+		hidden.clear();
+
+		// Group on the same terms again, by their result columns
+		String nodeGroup = "";
+		String outerGroup = "";
+		List<String> groupExprs = new ArrayList<String>();
+		if(group != null) {
+			for(String term: TableSchema.splitValues(group)) {
+				int i = resolve(term, exprs, aliases);
+				if(i >= 0 && isAgg[i]) {
+					throw new Exception("UnsupportedJoinShape");
+				}
+				String col;
+				if(i >= 0) {
+					col = "_c" + (i + 1);
+					term = exprs.get(i);
+				} else {
+					col = "_g" + (groupExprs.size() + 1);
+					extra.add(term + " as " + col);
+				}
+				groupExprs.add(term);
+				nodeGroup += (nodeGroup.equals("") ? "" : ", ") + term;
+				outerGroup += (outerGroup.equals("") ? "" : ", ") + col;
+			}
+		}
+		if(aggregating) {
+			// A plain column has to be one of the groups, else each node picks any row's
+			for(int i = 0; i < exprs.size(); i++) {
+				if(!isAgg[i] && !containsTerm(groupExprs, exprs.get(i))) {
+					throw new Exception("UnsupportedJoinShape");
+				}
+			}
+		}
+
+		String nodeOrder = "";
+		String outerOrder = "";
+		if(order != null) {
+			int n = 0;
+			for(String term: TableSchema.splitValues(order)) {
+				Matcher o = ORDER_PAT.matcher(term);
+				o.matches();
+				String expr = o.group(1).trim();
+				String dir = o.group(2) == null ? "" : o.group(2);
+				int i = resolve(expr, exprs, aliases);
+				String key;
+				if(i >= 0) {
+					key = String.valueOf(i + 1);
+					expr = exprs.get(i);
+				} else if(aggregating) {
+					String col = "_o" + (++n);
+					key = aggregate(expr, col, extra);
+					if(key == null) {
+						int g = indexOfTerm(groupExprs, expr);
+						if(g < 0) {
+							throw new Exception("UnsupportedJoinShape");
+						}
+						key = TableSchema.splitValues(outerGroup)[g];
+					}
+				} else if(distinct) {
+					// A hidden column would change which rows are distinct
+					throw new Exception("UnsupportedJoinShape");
+				} else {
+					key = "_o" + (++n);
+					extra.add(expr + " as " + key);
+				}
+				nodeOrder += (nodeOrder.equals("") ? "" : ", ") + expr + dir;
+				outerOrder += (outerOrder.equals("") ? "" : ", ") + key + dir;
+			}
+		}
+
+		// Without grouping each node's first rows in the same order are enough
+		String nodeLimit = "";
+		if(limit != null && !aggregating) {
+			Matcher l = LIMIT_PAT.matcher(limit);
+			if(l.matches()) {
+				long count = Long.parseLong(l.group(1) != null ? l.group(1) : l.group(4));
+				String off = l.group(1) != null ? l.group(2) : l.group(3);
+				nodeLimit = " limit " + (count + (off == null ? 0 : Long.parseLong(off)));
+			}
+		}
+
+		nodeCols.addAll(extra);
+		String nodeQuery = "select " + (distinct ? "distinct " : "") + join(nodeCols) + body
+				+ (group != null ? " group by " + nodeGroup : "")
+				+ (order != null && !aggregating ? " order by " + nodeOrder + nodeLimit : "");
+		String tail = (group != null ? "group by " + outerGroup : "")
+				+ (order != null ? " order by " + outerOrder : "")
+				+ (limit != null ? " limit " + limit : "");
+		return new JoinGather(nodeQuery, (distinct ? "distinct " : "") + join(outer), tail.trim());
+	}
+
+	/**
+	 * Put a node's part of an aggregate in its result columns
+	 * @return how the parts are put together, null if the expression isn't an aggregate
+	 * @throws Exception UnsupportedJoinShape if it can't be put together
+	 */
+	private static String aggregate(String expr, String col, List<String> nodeCols) throws Exception {
+		Matcher m = AGG_PAT.matcher(expr.trim());
+		if(!m.matches() || !balanced(m.group(2))) {
+			if(ANY_AGG_PAT.matcher(expr).find()) {
+				throw new Exception("UnsupportedJoinShape");
+			}
+			return null;
+		}
+		String fn = m.group(1).toLowerCase();
+		String arg = m.group(2).trim();
+		if(arg.toLowerCase().startsWith("distinct")) {
+			throw new Exception("UnsupportedJoinShape");
+		}
+		if((fn.equals("min") || fn.equals("max")) && TableSchema.splitValues(arg).length > 1) {
+			// min(a, b) of a row, not an aggregate
+			if(ANY_AGG_PAT.matcher(arg).find()) {
+				throw new Exception("UnsupportedJoinShape");
+			}
+			return null;
+		}
+		if(fn.equals("avg")) {
+			nodeCols.add("sum(" + arg + ") as " + col);
+			nodeCols.add("count(" + arg + ") as " + col + "n");
+			return "sum(" + col + ") * 1.0 / sum(" + col + "n)";
+		}
+		nodeCols.add(expr + " as " + col);
+		return (fn.equals("count") ? "sum" : fn) + "(" + col + ")";
+	}
+
+	private static boolean balanced(String s) {
+		int depth = 0;
+		boolean quoted = false;
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c == '\'') {
+				quoted = !quoted;
+			} else if(!quoted && c == '(') {
+				depth++;
+			} else if(!quoted && c == ')' && --depth < 0) {
+				return false;
+			}
+		}
+		return depth == 0;
+	}
+
+	private static void addColumns(String alias, TableSchema schema, List<String> exprs, List<String> aliases) {
+		for(int i = 0; i < schema.size(); i++) {
+			exprs.add(alias + "." + schema.getName(i));
+			aliases.add(null);
+		}
+	}
+
+	/**
+	 * @return which select list entry an ORDER BY or GROUP BY term means, by
+	 * position, alias or the same expression, -1 if none
+	 */
+	private static int resolve(String term, List<String> exprs, List<String> aliases) {
+		term = term.trim();
+		if(term.matches("\\d+")) {
+			int i = Integer.parseInt(term) - 1;
+			return i < exprs.size() ? i : -1;
+		}
+		for(int i = 0; i < aliases.size(); i++) {
+			if(term.equalsIgnoreCase(aliases.get(i))) {
+				return i;
+			}
+		}
+		return indexOfTerm(exprs, term);
+	}
+
+	private static int indexOfTerm(List<String> exprs, String term) {
+		String t = normal(term);
+		for(int i = 0; i < exprs.size(); i++) {
+			if(normal(exprs.get(i)).equals(t)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean containsTerm(List<String> exprs, String term) {
+		return indexOfTerm(exprs, term) >= 0;
+	}
+
+	private static String normal(String expr) {
+		return expr.replaceAll("\\s+", "").toLowerCase();
+	}
+
+	private static String join(List<String> vals) {
+		String out = "";
+		for(String v: vals) {
+			out += (out.equals("") ? "" : ", ") + v;
+		}
+		return out;
+	}
+
+	/**
+	 * @return where the pattern first matches outside quotes and parens, -1 if it doesn't
+	 */
+	private static int find(Pattern pat, String q, int from) {
+		Matcher m = pat.matcher(q);
+		int depth = 0;
+		boolean quoted = false;
+		for(int i = Math.max(0, from); i < q.length(); i++) {
+			char c = q.charAt(i);
+			if(c == '\'') {
+				quoted = !quoted;
+			} else if(!quoted && c == '(') {
+				depth++;
+			} else if(!quoted && c == ')') {
+				depth--;
+			} else if(!quoted && depth == 0) {
+				m.region(i, q.length());
+				if(m.lookingAt()) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,148 @@
+package distributeddb;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A select joining two tables on an equality of one attribute from each,
+ * either "from a x join b y on x.k = y.k [where ...]" or
+ * "from a x, b y where x.k = y.k [and ...]".
+ */
+class JoinQuery {
+	// An optional alias after a table name, keywords that could follow the table aren't aliases
+	private static final String ALIAS = "(?:\\s+(?:as\\s+)?(?!(?:inner|join|on|where|order|group|limit)\\b)(\\w+))?";
+	private static final Pattern JOIN_PAT = Pattern.compile("\\s*select\\s+(.+?)\\s+from\\s+(\\w+)" + ALIAS
+			+ "\\s+(?:inner\\s+)?join\\s+(\\w+)" + ALIAS + "\\s+on\\s+([\\w.]+)\\s*=\\s*([\\w.]+)\\s*(.*)",
+			Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private static final Pattern COMMA_PAT = Pattern.compile("\\s*select\\s+(.+?)\\s+from\\s+(\\w+)" + ALIAS
+			+ "\\s*,\\s*(\\w+)" + ALIAS + "\\s+where\\s+(.*)",
+			Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private static final Pattern FROM_PAT = Pattern.compile("\\s*select\\s+.+?\\s+from\\s+(.*?)(\\s+where\\s+.*)?",
+			Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private static final Pattern QUAL_PAT = Pattern.compile("(\\w+)\\.(\\w+)");
+
+	final String selectList;
+	final String leftTable;
+	final String leftAlias;
+	final String rightTable;
+	final String rightAlias;
+	// The join attribute of each side, without the qualifier
+	String leftKey;
+	String rightKey;
+	// Everything after "where" (may include the join condition itself), "" if none
+	final String where;
+	// The whole select
+	final String query;
+
+	private JoinQuery(String query, String selectList, String leftTable, String leftAlias, String rightTable, String rightAlias, String where) {
+		this.selectList = selectList.trim();
+		this.leftTable = leftTable;
+		this.leftAlias = leftAlias == null ? leftTable : leftAlias;
+		this.rightTable = rightTable;
+		this.rightAlias = rightAlias == null ? rightTable : rightAlias;
+		this.where = where == null ? "" : where.trim();
+		this.query = query;
+	}
+
+	/**
+	 * @return the join, or null if the query only reads one table
+	 * @throws Exception if it joins tables in a way we can't handle
+	 */
+	public static JoinQuery parse(String query) throws Exception {
+		if(!looksLikeJoin(query)) {
+			return null;
+		}
+		Matcher mat = JOIN_PAT.matcher(query);
+		if(mat.matches()) {
+			String rest = mat.group(8).trim();
+			String where = "";
+			if(rest.toLowerCase().startsWith("where ")) {
+				where = rest.substring(6);
+			} else if(!rest.equals("") && !rest.equals(";") && !rest.matches("(?is)(group\\s+by|order\\s+by|limit)\\s.*")) {
+				// More ON conditions or another join
+				throw new Exception("UnsupportedJoin");
+			}
+			JoinQuery j = new JoinQuery(query, mat.group(1), mat.group(2), mat.group(3), mat.group(4), mat.group(5), where);
+			if(!j.setKeys(mat.group(6), mat.group(7))) {
+				throw new Exception("UnsupportedJoin");
+			}
+			return j;
+		}
+		mat = COMMA_PAT.matcher(query);
+		if(mat.matches()) {
+			JoinQuery j = new JoinQuery(query, mat.group(1), mat.group(2), mat.group(3), mat.group(4), mat.group(5), mat.group(6));
+			// The join condition is one of the ANDed predicates
+			for(WhereClause.Predicate p: WhereClause.parse(j.where).getPredicates()) {
+				if(p.op.equals("=") && j.setKeys(p.attr, p.value)) {
+					return j;
+				}
+			}
+		}
+		throw new Exception("UnsupportedJoin");
+	}
+
+	/**
+	 * True if the from clause names more than one table
+	 */
+	private static boolean looksLikeJoin(String query) {
+		Matcher mat = FROM_PAT.matcher(query);
+		if(!mat.matches()) {
+			return false;
+		}
+		String from = " " + mat.group(1).toLowerCase() + " ";
+		return from.contains(",") || from.matches("(?s).*\\sjoin\\s.*");
+	}
+
+	/**
+	 * Work out which side each qualified attribute belongs to
+	 * @return false if they aren't one from each table
+	 */
+	private boolean setKeys(String a, String b) {
+		Matcher ma = QUAL_PAT.matcher(a.trim());
+		Matcher mb = QUAL_PAT.matcher(b.trim());
+		if(!ma.matches() || !mb.matches()) {
+			return false;
+		}
+		if(isLeft(ma.group(1)) && isRight(mb.group(1))) {
+			leftKey = ma.group(2);
+			rightKey = mb.group(2);
+			return true;
+		} else if(isRight(ma.group(1)) && isLeft(mb.group(1))) {
+			leftKey = mb.group(2);
+			rightKey = ma.group(2);
+			return true;
+		}
+		return false;
+	}
+
+	boolean isLeft(String qualifier) {
+		return qualifier.equalsIgnoreCase(leftAlias) || qualifier.equalsIgnoreCase(leftTable);
+	}
+
+	boolean isRight(String qualifier) {
+		return qualifier.equalsIgnoreCase(rightAlias) || qualifier.equalsIgnoreCase(rightTable);
+	}
+
+	/**
+	 * The ANDed predicates of the where clause qualified with one side's name,
+	 * with the qualifier dropped so they can be used on the table alone. The
+	 * join condition isn't included.
+	 */
+	public String sideWhere(boolean left) {
+		String out = "";
+		for(WhereClause.Predicate p: WhereClause.parse(where).getPredicates()) {
+			Matcher mat = QUAL_PAT.matcher(p.attr);
+			if(!mat.matches() || QUAL_PAT.matcher(p.value).matches()) {
+				continue;
+			}
+			if(left ? isLeft(mat.group(1)) : isRight(mat.group(1))) {
+				out += (out.equals("") ? "" : " and ") + mat.group(2) + " " + p.op + " " + p.value;
+			}
+		}
+		return out;
+	}
+
+	public String toString() {
+		return leftTable + "." + leftKey + " = " + rightTable + "." + rightKey;
+	}
+}
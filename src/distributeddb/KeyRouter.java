@@ -0,0 +1,366 @@
+package distributeddb;
+
+/**
+ * Hashes one attribute of a row straight from the text inside the parens of
+ * an insert, without splitting the row up or copying the value out. Picked
+ * once per attribute by its type when a partition is created or loaded, so
+ * routing a row doesn't compare type names or parse into boxed values.
+ *
+ * The results are the same as hashing the value split out by
+ * TableSchema.splitValues, see HashPartition.hashPtr. Values the quick
+ * parsers don't handle (decimals with a fraction, anything odd) fall back to
+ * doing just that.
+ */
+abstract class KeyRouter {
+	// Position of the attribute in the row
+	protected final int posn;
+
+	protected KeyRouter(int posn) {
+		this.posn = posn;
+	}
+
+	static KeyRouter forType(String type, int posn) {
+		if(type.equals("integer")) {
+			return new IntegerKey(posn);
+		} else if(type.equals("decimal")) {
+			return new DecimalKey(posn);
+		}
+		return new TextKey(posn);
+	}
+
+	/**
+	 * Find the attribute's value in the row, split the way splitValues does it
+	 * @return start << 32 | end of the trimmed value
+	 * @throws ArrayIndexOutOfBoundsException if the row doesn't have that many values
+	 */
+	protected long field(String vals) {
+		int start = 0;
+		for(int n = 0; n < posn; n++) {
+			int end = fieldEnd(vals, start);
+			if(end == vals.length()) {
+				throw new ArrayIndexOutOfBoundsException(posn);
+			}
+			start = end + 1;
+		}
+		return trimmed(vals, start, fieldEnd(vals, start));
+	}
+
+	/**
+	 * @return where the value starting at start ends, at the comma after it
+	 * or the end of the row, split the way splitValues does it
+	 */
+	static int fieldEnd(String vals, int start) {
+		int depth = 0;
+		boolean quoted = false;
+		for(int i = start; i < vals.length(); i++) {
+			char c = vals.charAt(i);
+			if(c == '\'') {
+				quoted = !quoted;
+			} else if(!quoted && c == '(') {
+				depth++;
+			} else if(!quoted && c == ')') {
+				depth--;
+			} else if(!quoted && depth == 0 && c == ',') {
+				return i;
+			}
+		}
+		return vals.length();
+	}
+
+	/**
+	 * Trimmed like String.trim()
+	 * @return start << 32 | end
+	 */
+	static long trimmed(String vals, int start, int end) {
+		while(start < end && vals.charAt(start) <= ' ') {
+			start++;
+		}
+		while(end > start && vals.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		return ((long) start << 32) | end;
+	}
+
+	static int start(long field) {
+		return (int) (field >>> 32);
+	}
+
+	static int end(long field) {
+		return (int) field;
+	}
+
+	/**
+	 * @return the value as splitValues would give it
+	 */
+	public String text(String vals) {
+		long f = field(vals);
+		return vals.substring(start(f), end(f));
+	}
+
+	/**
+	 * Carry on a String.hashCode() over the value's text
+	 */
+	public int textHash(String vals, int h) {
+		long f = field(vals);
+		for(int i = start(f); i < end(f); i++) {
+			h = 31 * h + vals.charAt(i);
+		}
+		return h;
+	}
+
+	/**
+	 * @return the value as TableSchema.canonicalValue gives it, how hot keys
+	 * are remembered so 05 and 5 or 1.50 and 1.5 are the same key
+	 */
+	public abstract String canonicalText(String vals);
+
+	/**
+	 * Carry on a String.hashCode() over canonicalText(vals), without building
+	 * the text for the usual values
+	 */
+	public int canonicalHash(String vals, int h) {
+		return hash(canonicalText(vals), h);
+	}
+
+	/**
+	 * @return where the value's canonicalText ends in key if key has it at
+	 * from, -1 if it doesn't. Doesn't build the text for the usual values.
+	 */
+	public int canonicalMatch(String vals, String key, int from) {
+		String t = canonicalText(vals);
+		return key.startsWith(t, from) ? from + t.length() : -1;
+	}
+
+	/**
+	 * canonicalMatch for String.valueOf(v)
+	 */
+	protected static int match(long v, String key, int at) {
+		if(v < 0) {
+			if(at >= key.length() || key.charAt(at) != '-') {
+				return -1;
+			}
+			at++;
+		}
+		long a = Math.abs(v);
+		long p = 1;
+		while(p <= a / 10) {
+			p *= 10;
+		}
+		for(; p > 0; p /= 10, at++) {
+			if(at >= key.length() || key.charAt(at) != (char) ('0' + (a / p) % 10)) {
+				return -1;
+			}
+		}
+		return at;
+	}
+
+	/**
+	 * Carry on a String.hashCode() over s
+	 */
+	protected static int hash(String s, int h) {
+		for(int i = 0; i < s.length(); i++) {
+			h = 31 * h + s.charAt(i);
+		}
+		return h;
+	}
+
+	/**
+	 * Carry on a String.hashCode() over String.valueOf(v)
+	 */
+	protected static int hash(long v, int h) {
+		if(v < 0) {
+			h = 31 * h + '-';
+		}
+		long a = Math.abs(v);
+		long p = 1;
+		while(p <= a / 10) {
+			p *= 10;
+		}
+		for(; p > 0; p /= 10) {
+			h = 31 * h + (char) ('0' + (a / p) % 10);
+		}
+		return h;
+	}
+
+	/**
+	 * @return the value as Integer.parseInt of its text
+	 * @throws NumberFormatException as Integer.parseInt does
+	 */
+	public int intValue(String vals) {
+		long f = field(vals);
+		long v = parseInt(vals, start(f), end(f));
+		return v == Long.MIN_VALUE ? Integer.parseInt(vals.substring(start(f), end(f))) : (int) v;
+	}
+
+	/**
+	 * @return the index into numNodes nodes, as HashPartition.hashPtr(type, value, numNodes)
+	 */
+	public abstract int hashPtr(String vals, int numNodes);
+
+	/**
+	 * @return the value's part of a composite key hash
+	 */
+	public abstract int hashValue(String vals);
+
+	protected static int wrap(int ptr, int numNodes) {
+		// Negative numbers hash to a negative remainder
+		return ptr < 0 ? ptr + numNodes : ptr;
+	}
+
+	/**
+	 * A plain [+-]digits integer
+	 * @return the value, or Long.MIN_VALUE if it isn't one or is out of int range
+	 */
+	protected static long parseInt(String vals, int start, int end) {
+		boolean neg = false;
+		if(start < end && (vals.charAt(start) == '-' || vals.charAt(start) == '+')) {
+			neg = vals.charAt(start) == '-';
+			start++;
+		}
+		// 10 digits is the most an int has
+		if(start == end || end - start > 10) {
+			return Long.MIN_VALUE;
+		}
+		long v = 0;
+		for(int i = start; i < end; i++) {
+			char c = vals.charAt(i);
+			if(c < '0' || c > '9') {
+				return Long.MIN_VALUE;
+			}
+			v = v * 10 + (c - '0');
+		}
+		v = neg ? -v : v;
+		return v < Integer.MIN_VALUE || v > Integer.MAX_VALUE ? Long.MIN_VALUE : v;
+	}
+
+	private static class IntegerKey extends KeyRouter {
+		IntegerKey(int posn) {
+			super(posn);
+		}
+
+		public int hashPtr(String vals, int numNodes) {
+			return wrap(intValue(vals) % numNodes, numNodes);
+		}
+
+		public int hashValue(String vals) {
+			return intValue(vals);
+		}
+
+		public String canonicalText(String vals) {
+			return TableSchema.canonicalValue("integer", text(vals));
+		}
+
+		public int canonicalHash(String vals, int h) {
+			long f = field(vals);
+			long v = parseInt(vals, start(f), end(f));
+			return v == Long.MIN_VALUE ? super.canonicalHash(vals, h) : hash(v, h);
+		}
+
+		public int canonicalMatch(String vals, String key, int from) {
+			long f = field(vals);
+			long v = parseInt(vals, start(f), end(f));
+			return v == Long.MIN_VALUE ? super.canonicalMatch(vals, key, from) : match(v, key, from);
+		}
+	}
+
+	private static class DecimalKey extends KeyRouter {
+		// Integers up to 2^24 are exact as floats
+		private static final long MAX_EXACT = 1 << 24;
+
+		DecimalKey(int posn) {
+			super(posn);
+		}
+
+		private float value(String vals) {
+			long f = field(vals);
+			long v = parseInt(vals, start(f), end(f));
+			// -0 is a float of its own
+			if(v != Long.MIN_VALUE && Math.abs(v) <= MAX_EXACT && !(v == 0 && vals.charAt(start(f)) == '-')) {
+				return v;
+			}
+			return Float.parseFloat(vals.substring(start(f), end(f)));
+		}
+
+		public int hashPtr(String vals, int numNodes) {
+			return wrap((int) (value(vals) % numNodes), numNodes);
+		}
+
+		public int hashValue(String vals) {
+			return Float.floatToIntBits(value(vals));
+		}
+
+		public String canonicalText(String vals) {
+			return TableSchema.canonicalValue("decimal", text(vals));
+		}
+
+		/**
+		 * An integer below 10^7 is written v.0 by Double.toString, bigger ones
+		 * as 1.0E7
+		 */
+		public int canonicalHash(String vals, int h) {
+			long f = field(vals);
+			long v = parseInt(vals, start(f), end(f));
+			if(v == Long.MIN_VALUE || Math.abs(v) >= 10000000 || (v == 0 && vals.charAt(start(f)) == '-')) {
+				return super.canonicalHash(vals, h);
+			}
+			h = hash(v, h);
+			return 31 * (31 * h + '.') + '0';
+		}
+
+		public int canonicalMatch(String vals, String key, int from) {
+			long f = field(vals);
+			long v = parseInt(vals, start(f), end(f));
+			if(v == Long.MIN_VALUE || Math.abs(v) >= 10000000 || (v == 0 && vals.charAt(start(f)) == '-')) {
+				return super.canonicalMatch(vals, key, from);
+			}
+			int at = match(v, key, from);
+			return at >= 0 && key.startsWith(".0", at) ? at + 2 : -1;
+		}
+	}
+
+	private static class TextKey extends KeyRouter {
+		TextKey(int posn) {
+			super(posn);
+		}
+
+		public int hashPtr(String vals, int numNodes) {
+			return wrap(Math.abs(textHash(vals, 0)) % numNodes, numNodes);
+		}
+
+		public int hashValue(String vals) {
+			return textHash(vals, 0);
+		}
+
+		public String canonicalText(String vals) {
+			return WhereClause.unquote(text(vals));
+		}
+
+		/**
+		 * The text inside the quotes
+		 */
+		public int canonicalHash(String vals, int h) {
+			long f = field(vals);
+			int start = start(f);
+			int end = end(f);
+			if(end - start >= 2 && vals.charAt(start) == '\'' && vals.charAt(end - 1) == '\'') {
+				start++;
+				end--;
+			}
+			for(int i = start; i < end; i++) {
+				h = 31 * h + vals.charAt(i);
+			}
+			return h;
+		}
+
+		public int canonicalMatch(String vals, String key, int from) {
+			long f = field(vals);
+			int start = start(f);
+			int end = end(f);
+			if(end - start >= 2 && vals.charAt(start) == '\'' && vals.charAt(end - 1) == '\'') {
+				start++;
+				end--;
+			}
+			return key.regionMatches(from, vals, start, end - start) ? from + end - start : -1;
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package distributeddb;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Rows and bytes of a table sent to each of its nodes, counted by every
+ * thread that routes inserts without a lock. Each node's counters are split
+ * into stripes, a thread only adds to the stripe its id picks and reads add
+ * the stripes up. A stripe's two counters fill a cache line of their own so
+ * threads counting into different stripes don't slow each other down.
+ *
+ * Saved with the catalog as plain totals per node.
+ */
+class NodeCounts implements Serializable {
+	private static final long serialVersionUID = 1L;
+	// The smallest power of two at least the number of cpus, at most 16
+	private static final int STRIPES = Math.min(16, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+	// 8 longs to a 64 byte cache line, rows then bytes at the start of it
+	private static final int STRIDE = 8;
+
+	private final List<String> nodes;
+	// Saved form of cells
+	private long[] savedRows;
+	private long[] savedBytes;
+
+	private transient Map<String, Integer> posn;
+	private transient AtomicLongArray cells;
+	// Totals when rates were last taken, see sample()
+	private transient long sampleTime;
+	private transient long[] sampleRows;
+	private transient long[] sampleBytes;
+
+	public NodeCounts(List<String> nodes) {
+		this.nodes = new ArrayList<String>(nodes);
+		init();
+	}
+
+	private void init() {
+		posn = new HashMap<String, Integer>();
+		for(int i = 0; i < nodes.size(); i++) {
+			posn.put(nodes.get(i), i);
+		}
+		cells = new AtomicLongArray(nodes.size() * STRIPES * STRIDE);
+		sampleTime = System.currentTimeMillis();
+		sampleRows = new long[nodes.size()];
+		sampleBytes = new long[nodes.size()];
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		init();
+		for(int i = 0; i < nodes.size(); i++) {
+			cells.set(cell(i, 0), savedRows[i]);
+			cells.set(cell(i, 0) + 1, savedBytes[i]);
+			sampleRows[i] = savedRows[i];
+			sampleBytes[i] = savedBytes[i];
+		}
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		savedRows = new long[nodes.size()];
+		savedBytes = new long[nodes.size()];
+		for(int i = 0; i < nodes.size(); i++) {
+			savedRows[i] = rows(i);
+			savedBytes[i] = bytes(i);
+		}
+		out.defaultWriteObject();
+	}
+
+	private static int cell(int node, int stripe) {
+		return (node * STRIPES + stripe) * STRIDE;
+	}
+
+	/**
+	 * Count a row sent to the node, a node the table isn't on is ignored
+	 */
+	public void add(String node, long bytes) {
+		Integer i = posn.get(node);
+		if(i == null) {
+			return;
+		}
+		int c = cell(i, (int) Thread.currentThread().getId() & (STRIPES - 1));
+		cells.incrementAndGet(c);
+		cells.addAndGet(c + 1, bytes);
+	}
+
+	/**
+	 * Take rows moved off the node back out of its counts
+	 */
+	public void remove(String node, long rows, long bytes) {
+		Integer i = posn.get(node);
+		if(i == null) {
+			return;
+		}
+		int c = cell(i, (int) Thread.currentThread().getId() & (STRIPES - 1));
+		cells.addAndGet(c, -rows);
+		cells.addAndGet(c + 1, -bytes);
+	}
+
+	private long sum(int node, int offset) {
+		long total = 0;
+		for(int s = 0; s < STRIPES; s++) {
+			total += cells.get(cell(node, s) + offset);
+		}
+		return total;
+	}
+
+	private long rows(int node) {
+		return sum(node, 0);
+	}
+
+	/**
+	 * @return rows the node was sent, 0 if the table isn't on it
+	 */
+	public long rows(String node) {
+		Integer i = posn.get(node);
+		return i == null ? 0 : rows(i);
+	}
+
+	private long bytes(int node) {
+		return sum(node, 1);
+	}
+
+	/**
+	 * @return bytes the node was sent, 0 if the table isn't on it
+	 */
+	public long bytes(String node) {
+		Integer i = posn.get(node);
+		return i == null ? 0 : bytes(i);
+	}
+
+	/**
+	 * Largest node over the average node, 1 is perfectly even
+	 */
+	private static double skew(long[] rows) {
+		long total = 0;
+		long max = 0;
+		for(long r: rows) {
+			total += r;
+			max = Math.max(max, r);
+		}
+		return total == 0 ? 1 : (double) max * rows.length / total;
+	}
+
+	public String explain() {
+		long[] rows = new long[nodes.size()];
+		long total = 0;
+		for(int i = 0; i < nodes.size(); i++) {
+			rows[i] = rows(i);
+			total += rows[i];
+		}
+		String out = String.format("\tPlacement: %d rows, skew %.2f\n", total, skew(rows));
+		for(int i = 0; i < nodes.size(); i++) {
+			out += String.format("\t%s\t\t: %d rows (%.1f%%), %d bytes\n", nodes.get(i), rows[i],
+					total == 0 ? 0.0 : 100.0 * rows[i] / total, bytes(i));
+		}
+		return out;
+	}
+
+	/**
+	 * One line per node and one for the whole table, fields are space
+	 * separated and all but the first two are key=value. Rates are over the
+	 * time since the last sample.
+	 */
+	public synchronized String sample(String table, long now) {
+		double secs = Math.max(0.001, (now - sampleTime) / 1000.0);
+		long[] rows = new long[nodes.size()];
+		long totalRows = 0;
+		long totalBytes = 0;
+		double rowRate = 0;
+		double byteRate = 0;
+		String out = "";
+		for(int i = 0; i < nodes.size(); i++) {
+			rows[i] = rows(i);
+			long b = bytes(i);
+			double nodeRows = (rows[i] - sampleRows[i]) / secs;
+			double nodeBytes = (b - sampleBytes[i]) / secs;
+			out += String.format(Locale.ROOT, "%s %s rows=%d bytes=%d rows/s=%.1f bytes/s=%.1f\n", table, nodes.get(i), rows[i], b, nodeRows, nodeBytes);
+			totalRows += rows[i];
+			totalBytes += b;
+			rowRate += nodeRows;
+			byteRate += nodeBytes;
+			sampleRows[i] = rows[i];
+			sampleBytes[i] = b;
+		}
+		sampleTime = now;
+		return out + String.format(Locale.ROOT, "%s * rows=%d bytes=%d rows/s=%.1f bytes/s=%.1f skew=%.3f\n", table, totalRows, totalBytes, rowRate, byteRate, skew(rows));
+	}
+}
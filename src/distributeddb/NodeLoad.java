@@ -0,0 +1,118 @@
+package distributeddb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps count of the messages sent to each node that haven't been answered
+ * yet and of everything ever sent, so reads that any of several nodes can
+ * serve go to the least busy one. Also which nodes are down (their
+ * container died and hasn't come back yet), reads go elsewhere if they can.
+ */
+class NodeLoad {
+	/**
+	 * One node's counts, read without a lock by the BALANCED routing of every row
+	 */
+	private static class Counts {
+		final AtomicLong outstanding = new AtomicLong();
+		final AtomicLong total = new AtomicLong();
+	}
+
+	private static final ConcurrentMap<String, Counts> load = new ConcurrentHashMap<String, Counts>();
+	private static final Set<String> down = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private static Counts get(String node) {
+		Counts c = load.get(node);
+		if(c == null) {
+			load.putIfAbsent(node, new Counts());
+			c = load.get(node);
+		}
+		return c;
+	}
+
+	public static void sent(String node) {
+		Counts c = get(node);
+		c.outstanding.incrementAndGet();
+		c.total.incrementAndGet();
+	}
+
+	public static void replied(String node) {
+		AtomicLong o = get(node).outstanding;
+		for(long n = o.get(); n > 0 && !o.compareAndSet(n, n - 1); n = o.get()) {
+			// Lost a race with another reply, try again
+		}
+	}
+
+	/**
+	 * @return messages sent to the node that haven't been answered yet
+	 */
+	public static long outstanding(String node) {
+		Counts c = load.get(node);
+		return c == null ? 0 : c.outstanding.get();
+	}
+
+	/**
+	 * The node's container is gone, nothing it was sent will be answered
+	 * @return true if it wasn't already down
+	 */
+	public static boolean down(String node) {
+		return down.add(node);
+	}
+
+	/**
+	 * @return true if the node was down
+	 */
+	public static boolean up(String node) {
+		return down.remove(node);
+	}
+
+	public static boolean isDown(String node) {
+		return down.contains(node);
+	}
+
+	/**
+	 * @return the nodes that are down, in the order given
+	 */
+	public static List<String> downNodes(List<String> nodes) {
+		List<String> out = new ArrayList<String>();
+		for(String n: nodes) {
+			if(down.contains(n)) {
+				out.add(n);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * @return the node with the fewest outstanding messages, ties go to the one sent the least overall.
+	 * Nodes that are down are only picked if they all are. The counts are
+	 * read as they are at the time, without stopping sends and replies.
+	 */
+	public static String leastLoaded(List<String> nodes) {
+		String best = null;
+		boolean bestDown = false;
+		long bestOut = 0;
+		long bestTotal = 0;
+		for(String n: nodes) {
+			boolean isDown = down.contains(n);
+			if(best != null && isDown && !bestDown) {
+				continue;
+			}
+			Counts c = get(n);
+			long out = c.outstanding.get();
+			long total = c.total.get();
+			if(best == null || (bestDown && !isDown) || out < bestOut || (out == bestOut && total < bestTotal)) {
+				best = n;
+				bestDown = isDown;
+				bestOut = out;
+				bestTotal = total;
+			}
+		}
+		return best;
+	}
+}
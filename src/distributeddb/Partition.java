@@ -1,12 +1,25 @@
 package distributeddb;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -16,6 +29,13 @@ interface Partition extends Serializable {
 	String chooseInsertNode(String vals);
 	List<String> chooseSelectNode(String whereClause);
 	String explain();
+	/**
+	 * Describes how rows are placed by the attribute. Two tables with the
+	 * same non-null key hold matching values of their attributes on the same
+	 * node, so a join on them can be done by each node on its own.
+	 * @return the placement key, or null if rows aren't placed by this attribute
+	 */
+	String placementKey(String attr);
 }
 
 class RandomPartition implements Partition {
@@ -25,35 +45,43 @@ class RandomPartition implements Partition {
 	private static final long serialVersionUID = 1L;
 	private List<String> nodes;
 	private int nodeNumber;
-	private int[] distribution;
+	// Each row goes to the less loaded of two nodes picked at random
+	private boolean balanced;
 
 	public RandomPartition(List<String> nodes, int nodeNumber) throws Exception {
-		this.nodes = new ArrayList<String>(nodes);
+		this(nodes, nodeNumber, new HashMap<String, Integer>(), false);
+	}
+
+	/**
+	 * @param tablesPerNode number of tables each node already holds, a
+	 * subset of nodeNumber nodes is made of the ones holding the fewest
+	 */
+	public RandomPartition(List<String> nodes, final int nodeNumber, final Map<String, Integer> tablesPerNode, boolean balanced) throws Exception {
 		this.nodeNumber = nodeNumber;
-		if(nodes.size() < this.nodeNumber) {
+		this.balanced = balanced;
+		if(nodes.size() < this.nodeNumber || this.nodeNumber < 1) {
 			throw new Exception("BadPartitionSpecification");
 		}
-		//Check if we need to remove any nodes based on the number
-		int numRemove = nodes.size() - nodeNumber;
-		for(int i = numRemove; i > 0; i--) {
-			// Pick a random node to remove from the list
-			this.nodes.remove(0);
-		}
+		// Shuffled first so nodes holding as many tables as each other are picked at random
+		List<String> order = new ArrayList<String>(nodes);
+		Collections.shuffle(order, ThreadLocalRandom.current());
+		Collections.sort(order, new Comparator<String>() {
+			public int compare(String a, String b) {
+				Integer ta = tablesPerNode.get(a);
+				Integer tb = tablesPerNode.get(b);
+				return (ta == null ? 0 : ta) - (tb == null ? 0 : tb);
+			}
+		});
+		this.nodes = new ArrayList<String>(nodes);
+		this.nodes.retainAll(order.subList(0, nodeNumber));
 		System.out.println("Nodes: " + this.nodes);
-		// Keep track of where we choose to put the data
-		distribution = new int[this.nodes.size()];
-		//Init the dist
-		for(int i = 0; i < this.nodes.size(); i++) {
-			distribution[i] = 0;
-		}
 	}
 	
+	/**
+	 * Rows per node are counted for every table by DDBPartitioner
+	 */
 	public String explain() {
-		String out = "";
-		for(int i = 0; i < nodes.size(); i++) {
-			out += "\t" + nodes.get(i)  + "\t\t: " + distribution[i] + "\n";
-		}
-		return out;
+		return "\tRandom over " + nodes.size() + " nodes" + (balanced ? ", balanced" : "") + "\n";
 	}
 	
 	/**
@@ -66,10 +94,34 @@ class RandomPartition implements Partition {
 	 * We randomly are inserting, so pick one node to return
 	 */
 	public String chooseInsertNode(String vals) {
-		Random r = new Random();
+		return chooseInsertNode(vals, null);
+	}
+
+	/**
+	 * A balanced table looks at two different nodes picked at random and
+	 * takes the one with fewer messages waiting on it, then the one with
+	 * fewer rows. That keeps the nodes within a few rows of each other
+	 * without looking at all of them for every row.
+	 * @param counts rows the table sent each node, null to pick at random
+	 */
+	public String chooseInsertNode(String vals, NodeCounts counts) {
+		ThreadLocalRandom r = ThreadLocalRandom.current();
 		int ptr = r.nextInt(nodes.size());
-		distribution[ptr]++;
-		return nodes.get(ptr);
+		if(!balanced || counts == null || nodes.size() < 2) {
+			return nodes.get(ptr);
+		}
+		int other = r.nextInt(nodes.size() - 1);
+		if(other >= ptr) {
+			other++;
+		}
+		String a = nodes.get(ptr);
+		String b = nodes.get(other);
+		long waitA = NodeLoad.outstanding(a);
+		long waitB = NodeLoad.outstanding(b);
+		if(waitA != waitB) {
+			return waitA < waitB ? a : b;
+		}
+		return counts.rows(a) <= counts.rows(b) ? a : b;
 	}
 	
 	/**
@@ -78,12 +130,15 @@ class RandomPartition implements Partition {
 	public List<String> chooseSelectNode(String whereClause) {
 		return nodes;
 	}
+
+	public String placementKey(String attr) {
+		return null;
+	}
 }
 
-class HashPartition implements Partition {
+class HashPartition implements Partition, HeavyHitters.KeyText {
 	private static final long serialVersionUID = 2L;
 	private List<String> nodes;
-	private int[] distribution;
 	private String hashingAttr;
 	//Store the index to where the hashing attr showed up
 	//This is used for when an insert statement is made, it will help to determine where to send the data
@@ -91,6 +146,14 @@ class HashPartition implements Partition {
 	private String hashingType;
 	private String declAttrs;
 	private final String[] SUPPORTEDATTRTYPES = {"integer", "char", "decimal"};
+	// Finds hot keys so they can be salted over more than one node
+	private HeavyHitters heavyHitters;
+	// Every attribute of a HASH(a, b) key, the single attr fields above are the first of these
+	private String[] hashingAttrs;
+	private int[] hashingAttrPosns;
+	private String[] hashingTypes;
+	// Hash each attribute of the key straight out of an insert's values
+	private transient KeyRouter[] routers;
 	
 	public HashPartition(List<String> nodes, String attrs, String hashOn, String reqNodes) throws Exception {
 		//Keep track of what the declared attributes were
@@ -104,6 +167,7 @@ class HashPartition implements Partition {
 			//Parse their list for matches
 			String[] tmpNodes = reqNodes.split(",");
 			for(String n: tmpNodes) {
+				n = n.trim();
 				//Make sure that the node the user requested is in the list of valid nodes
 				if(nodes.contains(n)){
 					this.nodes.add(n);
@@ -114,59 +178,84 @@ class HashPartition implements Partition {
 				}
 			}
 		}
-		// Keep track of where we choose to put the data
-		distribution = new int[this.nodes.size()];
-		//Init the dist
-		for(int i = 0; i < this.nodes.size(); i++) {
-			distribution[i] = 0;
+		// Now we need to look through the attribute list to make sure their hash attrs are in the list
+		TableSchema schema = new TableSchema(attrs);
+		String[] hashOnList = hashOn.split(",");
+		hashingAttrs = new String[hashOnList.length];
+		hashingAttrPosns = new int[hashOnList.length];
+		hashingTypes = new String[hashOnList.length];
+		for(int i = 0; i < hashOnList.length; i++) {
+			int posn = schema.indexOf(hashOnList[i].trim());
+			if(posn < 0) {
+				throw new Exception("HashPartitionInvalidHashAttribute");
+			}
+			hashingAttrs[i] = schema.getName(posn).toLowerCase();
+			hashingAttrPosns[i] = posn;
+			hashingTypes[i] = schema.getType(posn);
+			//Make sure the hashing type is supported
+			if(!Arrays.asList(SUPPORTEDATTRTYPES).contains(hashingTypes[i])){
+				throw new Exception("HashPartitionUnsupportedType");
+			}
 		}
+		hashingAttr = hashingAttrs[0];
+		hashingAttrPosn = hashingAttrPosns[0];
+		hashingType = hashingTypes[0];
 		
-		// Now we need to look through the attribute list to make sure their hash attr is in the list
-		String[] theAttrs = attrs.split(",");
-		hashingAttrPosn = 0;
-        Pattern pat = Pattern.compile("(.*) (.*?)(\\([0-9]*\\)|)", Pattern.CASE_INSENSITIVE);
-		for(String a: theAttrs) {
-			a = a.trim();
-			
-			System.out.println("Initial: " + a);
-            Matcher mat = pat.matcher(a);
-            if(mat.matches()) {
-            	String attrName = mat.group(1);
-            	String attrType = mat.group(2);
-            	//NOTE the regex gives us size if they declared it but we don't care
-            	String attrSize = mat.group(3);
-                
-            	// The attr should look like "name type" so find that
-                if(attrName == null || attrName.equals("") || attrType == null || attrType.equals("")) {
-                    throw new Exception("HashPartitionInvalidAttributeDeclaration");
-                }
-                
-                //Search for the match to the requested hash attr
-                if(hashOn.equals(attrName)){
-                    hashingAttr = attrName.toLowerCase();
-                    hashingType = attrType.toLowerCase();
-                    //Make sure the hashing type is supported
-                    if(!Arrays.asList(SUPPORTEDATTRTYPES).contains(hashingType)){
-                        throw new Exception("HashPartitionUnsupportedType");
-                    }
-                    break;
-                }
-                hashingAttrPosn++;
-            } else {
-            	throw new Exception("HashPartitionInvalidAttributeSyntax");
-            }
-		}
-		if(hashingAttr == null) {
-			throw new Exception("HashPartitionInvalidHashAttribute");
+		System.out.println("Hashing(" + Arrays.toString(hashingAttrPosns) + "): '" + Arrays.toString(hashingAttrs) + "' " + Arrays.toString(hashingTypes));
+		heavyHitters = new HeavyHitters(this.nodes.size());
+		initRouters();
+	}
+
+	private void initRouters() {
+		routers = new KeyRouter[hashingAttrPosns.length];
+		for(int i = 0; i < routers.length; i++) {
+			routers[i] = KeyRouter.forType(hashingTypes[i], hashingAttrPosns[i]);
 		}
-		
-		System.out.println("Hashing(" + hashingAttrPosn + "): '" + hashingAttr + "' " + hashingType);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		// Saved before composite keys, the single attr is the whole key
+		if(hashingAttrs == null) {
+			hashingAttrs = new String[] {hashingAttr};
+			hashingAttrPosns = new int[] {hashingAttrPosn};
+			hashingTypes = new String[] {hashingType};
+		}
+		// Partitions saved before skew tracking existed won't have one yet
+		if(heavyHitters == null) {
+			heavyHitters = new HeavyHitters(nodes.size());
+		}
+		// Keys were remembered as written before they were made canonical
+		heavyHitters.rekey(new HeavyHitters.KeyText() {
+			public String keyText(String old) {
+				return keyString(TableSchema.splitValues(old));
+			}
+
+			public boolean isKey(String key, String old) {
+				return keyText(old).equals(key);
+			}
+		});
+		initRouters();
+	}
+
+	/**
+	 * @return true if where some key's rows go changed since the last call,
+	 * the rest of what inserts change here is only counts
+	 */
+	public boolean takeHotKeysChanged() {
+		return heavyHitters.takeHotKeysChanged();
 	}
 
 	public String explain() {
-		String out = "\tHashing Attribute: " + hashingAttr + ", type: " + hashingType + "\n";
-		for(int i = 0; i < nodes.size(); i++) {
-			out += "\t" + nodes.get(i)  + "\t\t: " + distribution[i] + "\n";
+		String out = "\tHashing Attribute: " + join(hashingAttrs) + ", type: " + join(hashingTypes) + "\n";
+		out += heavyHitters.explain();
+		return out;
+	}
+
+	private static String join(String[] vals) {
+		String out = vals[0];
+		for(int i = 1; i < vals.length; i++) {
+			out += ", " + vals[i];
 		}
 		return out;
 	}
@@ -176,84 +265,180 @@ class HashPartition implements Partition {
 	}
 
 	/**
-	 * Choose a node to insert the data into, for hashing we need
-	 * to parse the values and find our hashing attribute from the list.
+	 * Hash one attribute value
+	 */
+	private static int hashValue(String type, String value) {
+		if(type.equals("integer")){
+			return Integer.parseInt(value);
+		} else if (type.equals("decimal")) {
+			return Float.floatToIntBits(Float.parseFloat(value));
+		} else {
+			return value.hashCode();
+		}
+	}
+
+	/**
+	 * Hash the values of our hashing attributes to an index into the nodes list.
+	 * A single attribute key is hashed the way it always has been so tables
+	 * created before composite keys keep their placement.
+	 */
+	private int hashPtr(String[] key) {
+		if(key.length == 1) {
+			return hashPtr(hashingType, key[0], nodes.size());
+		}
+		int h = 0;
+		for(int i = 0; i < key.length; i++) {
+			h = 31 * h + hashValue(hashingTypes[i], key[i]);
+		}
+		return (h & 0x7fffffff) % nodes.size();
+	}
+
+	/**
+	 * Hash a single attribute value to an index into a list of numNodes nodes
+	 */
+	static int hashPtr(String type, String value, int numNodes) {
+		int ptr;
+		if(type.equals("integer")){
+			ptr = Integer.parseInt(value) % numNodes;
+		} else if (type.equals("decimal")) {
+			ptr = (int) (Float.parseFloat(value) % numNodes);
+		} else {
+			ptr = Math.abs(value.hashCode()) % numNodes;
+		}
+		// Negative numbers hash to a negative remainder
+		return ptr < 0 ? ptr + numNodes : ptr;
+	}
+
+	/**
+	 * Key used to track how hot a key is, the same value written differently
+	 * has to be the same key as its rows are hashed to the same node
+	 */
+	private String keyString(String[] key) {
+		String[] canon = new String[key.length];
+		for(int i = 0; i < key.length; i++) {
+			canon[i] = TableSchema.canonicalValue(hashingTypes[i], key[i]);
+		}
+		return join(canon);
+	}
+
+	/**
+	 * Choose a node to insert the data into, the hashing attributes are
+	 * hashed where they are in the values, the same as hashPtr(key) of them
+	 * split out. Keys the heavy hitter tracking finds to be hot are spread
+	 * over the next few nodes after the one they hash to, it only gets the
+	 * key's text when it has to remember it.
 	 */
 	public String chooseInsertNode(String vals) {
-		String[] theVals = vals.split(",");
-		//Our match *should* be the hashingAttrPosn index value!
-		String hashValue = theVals[hashingAttrPosn];
-		System.out.println("[HASHPARTITION] Hashing(" + hashingAttr + ") on " + hashValue);
-		
 		int ptr;
-		
-		// Now hash this value against our list of nodes
-		if(hashingType.equals("integer")){
-			int hashVal = Integer.parseInt(hashValue);
-			ptr = hashVal % nodes.size();
-		} else if (hashingType.equals("char")) {
-			ptr = Math.abs(hashValue.hashCode()) % nodes.size();
-		} else if (hashingType.equals("decimal")) {
-			float hashVal = Float.parseFloat(hashValue);
-			ptr = (int) (hashVal % nodes.size());
+		if(routers.length == 1) {
+			ptr = routers[0].hashPtr(vals, nodes.size());
 		} else {
-			// NOTE: We already checked in the constructor if the type is valid so we can just ignore this
-			System.out.println("[HASHPARTITION] THIS SHOULD NEVER EVER EVER EVER EVER SHOW UP!");
-			return nodes.get(0);
+			int h = 0;
+			for(int i = 0; i < routers.length; i++) {
+				h = 31 * h + routers[i].hashValue(vals);
+			}
+			ptr = (h & 0x7fffffff) % nodes.size();
 		}
-		
-		//Track distribution
-		distribution[ptr]++;
-		
+
+		// keyString(key).hashCode()
+		int keyHash = routers[0].canonicalHash(vals, 0);
+		for(int i = 1; i < routers.length; i++) {
+			keyHash = 31 * (31 * keyHash + ',') + ' ';
+			keyHash = routers[i].canonicalHash(vals, keyHash);
+		}
+		ptr = (ptr + heavyHitters.add(keyHash, vals, this)) % nodes.size();
 		return nodes.get(ptr);
 	}
+
+	/**
+	 * keyString(key) of an insert's values
+	 */
+	public String keyText(String vals) {
+		String out = routers[0].canonicalText(vals);
+		for(int i = 1; i < routers.length; i++) {
+			out += ", " + routers[i].canonicalText(vals);
+		}
+		return out;
+	}
+
+	/**
+	 * keyString(key) of an insert's values is key, checked in place
+	 */
+	public boolean isKey(String key, String vals) {
+		int at = routers[0].canonicalMatch(vals, key, 0);
+		for(int i = 1; i < routers.length && at >= 0; i++) {
+			at = key.startsWith(", ", at) ? routers[i].canonicalMatch(vals, key, at + 2) : -1;
+		}
+		return at == key.length();
+	}
 	
 	/**
-	 * For now just send selects to all nodes
+	 * Send selects to all nodes unless there is an = on every hashing attribute,
+	 * then only the node it hashes to (or its salted set if the key is hot)
 	 */
 	public List<String> chooseSelectNode(String whereClause) {
-		// only support = where clause
-		if(whereClause == null || whereClause.equals("") || !whereClause.contains("=")) {
-			return nodes;
-		}
-		else {
-			String [] tmp = whereClause.split("=");
-			String attr = tmp[0].trim();
-			if(attr.equals(hashingAttr)) {
-				List<String> nodeList = new ArrayList<String>();
-				int ptr;		
-				// Now hash this value against our list of nodes
-				if(hashingType.equals("integer")){
-					int hashVal = Integer.parseInt(tmp[1].trim());
-					ptr = hashVal % nodes.size();
-				} else if (hashingType.equals("char")) {
-					ptr = Math.abs(tmp[1].trim().hashCode()) % nodes.size();
-				} else if (hashingType.equals("decimal")) {
-					float hashVal = Float.parseFloat(tmp[1].trim());
-					ptr = (int) (hashVal % nodes.size());
-				} else {
-					// NOTE: We already checked in the constructor if the type is valid so we can just ignore this
-					System.out.println("[HASHPARTITION] THIS SHOULD NEVER EVER EVER EVER EVER SHOW UP!");
-					return nodes;
-				}
-				nodeList.add(nodes.get(ptr));
-				return nodeList;
-			} else {
+		WhereClause where = WhereClause.parse(whereClause);
+		String[] key = new String[hashingAttrs.length];
+		for(int i = 0; i < key.length; i++) {
+			key[i] = where.getEquals(hashingAttrs[i]);
+			if(key[i] == null) {
 				return nodes;
 			}
 		}
+		int ptr;
+		try {
+			ptr = hashPtr(key);
+		} catch(NumberFormatException e) {
+			// Compared against something that isn't a number, let the nodes sort it out
+			return nodes;
+		}
+		int salt = heavyHitters.getSalt(keyString(key));
+		List<String> nodeList = new ArrayList<String>();
+		for(int i = 0; i < salt; i++) {
+			nodeList.add(nodes.get((ptr + i) % nodes.size()));
+		}
+		return nodeList;
+	}
+
+	/**
+	 * Only a single attribute key places rows by that attribute, and salting
+	 * moves a hot key's rows off the node it hashes to
+	 */
+	public String placementKey(String attr) {
+		if(hashingAttrs.length != 1 || !hashingAttr.equalsIgnoreCase(attr.trim())) {
+			return null;
+		}
+		if(heavyHitters.hasHotKeys()) {
+			return null;
+		}
+		return "hash " + hashingType + " " + nodes;
 	}
 }
 
+/**
+ * Rows are dealt out to the nodes in turn. Each inserting thread claims a
+ * few whole turns of the rotation from the shared counter at a time and
+ * deals those out itself, so parallel loaders only touch the shared counter
+ * once per claim. As a claim is whole turns every node gets the same number
+ * of rows from it, each thread is at most one row per node off even.
+ */
 class RoundRobinPartition implements Partition {
+	// Rows a thread claims at a time, rounded down to whole turns
+	private static final int CLAIM_ROWS = 64;
 	private List<String> nodes;
+	// Saved form of next
 	private int nextNodePtr;
+	// Counts up forever, the next node is this modulo the number of nodes
+	private transient AtomicInteger next;
+	// Each thread's {next row, end} of its claim on next
+	private transient ThreadLocal<int[]> claim;
 	private static final long serialVersionUID = 3L;
 	
 	public RoundRobinPartition(List<String> nodes, String reqNodes) throws Exception {
 		// Since we are using round robin we need to keep a pointer of what node
 		// to return, set it here
-		nextNodePtr = 0;
+		next = new AtomicInteger(0);
+		initClaims();
 		
 		// reqnodes is either null (use all nodes) or a CSV of the nodes to use
 		if(reqNodes != null) {
@@ -276,8 +461,41 @@ class RoundRobinPartition implements Partition {
 			this.nodes = new ArrayList<String>(nodes);
 		}
 	}
+	private void initClaims() {
+		claim = new ThreadLocal<int[]>() {
+			protected int[] initialValue() {
+				return new int[2];
+			}
+		};
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		next = new AtomicInteger(nextNodePtr);
+		initClaims();
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		nextNodePtr = nextIndex(next.get());
+		out.defaultWriteObject();
+	}
+
+	private int nextIndex(int n) {
+		// Wrapping past Integer.MAX_VALUE only skips ahead in the rotation
+		return (n & 0x7fffffff) % nodes.size();
+	}
+
+	private int claimRows() {
+		return nodes.size() * Math.max(1, CLAIM_ROWS / nodes.size());
+	}
+
+	/**
+	 * Threads claim ahead of the rows they have inserted, so the counter
+	 * can't say which node the next row goes to. It only says how many rows
+	 * were claimed, up to a claim per inserting thread more than were inserted.
+	 */
 	public String explain() {
-		String out = "\tNextNode: " + nodes.get(nextNodePtr) + "\n";
+		String out = "\tClaimed: " + (next.get() & 0xffffffffL) + " rows, " + claimRows() + " at a time by each inserting thread\n";
 		for(String n : nodes) {
 			out += "\t" + n  + "\n";
 		}
@@ -289,19 +507,132 @@ class RoundRobinPartition implements Partition {
 	}
 	
 	public String chooseInsertNode(String vals) {
-		String tmp = nodes.get(nextNodePtr++);
-		if(nextNodePtr >= nodes.size()){
-			nextNodePtr = 0;
+		int[] c = claim.get();
+		if(c[0] == c[1]) {
+			int size = claimRows();
+			c[0] = next.getAndAdd(size);
+			c[1] = c[0] + size;
 		}
-		return tmp;
+		return nodes.get(nextIndex(c[0]++));
 	}
 	
 	public List<String> chooseSelectNode(String whereClause) {
 		return nodes;
 	}
+
+	public String placementKey(String attr) {
+		return null;
+	}
+}
+
+/**
+ * Every node holds a full copy of the table, meant for small tables that get
+ * joined with big partitioned ones. Inserts go to every replica, a replica
+ * that failed an insert is stale and no longer read from.
+ */
+class ReplicatedPartition implements Partition {
+	private static final long serialVersionUID = 5L;
+	private List<String> nodes;
+	private List<String> staleNodes;
+	private int rows;
+
+	public ReplicatedPartition(List<String> nodes, String reqNodes) throws Exception {
+		if(reqNodes == null) {
+			this.nodes = new ArrayList<String>(nodes);
+		} else {
+			this.nodes = new ArrayList<String>();
+			for(String n: reqNodes.split(",")) {
+				n = n.trim();
+				if(nodes.contains(n)) {
+					this.nodes.add(n);
+				} else {
+					System.out.println("[REPLICATED] Requested node doesn't exist: " + n);
+					throw new Exception("ReplicatedUnknownNode");
+				}
+			}
+		}
+		if(this.nodes.isEmpty()) {
+			throw new Exception("BadPartitionSpecification");
+		}
+		staleNodes = new ArrayList<String>();
+		rows = 0;
+	}
+
+	public synchronized String explain() {
+		String out = "\tReplicated, rows: " + rows + "\n";
+		for(String n: nodes) {
+			out += "\t" + n + (staleNodes.contains(n) ? "\t\t: stale" : "") + "\n";
+		}
+		return out;
+	}
+
+	public List<String> initialize() {
+		return nodes;
+	}
+
+	/**
+	 * Every replica gets the row, see {@link #insertNodes()}. This is the
+	 * first of them for callers that only want one.
+	 */
+	public synchronized String chooseInsertNode(String vals) {
+		rows++;
+		return nodes.get(0);
+	}
+
+	public List<String> insertNodes() {
+		return nodes;
+	}
+
+	/**
+	 * Replicas that are still in step with the inserts
+	 */
+	public synchronized List<String> liveNodes() {
+		List<String> live = new ArrayList<String>(nodes);
+		live.removeAll(staleNodes);
+		return live;
+	}
+
+	/**
+	 * @return true if the node wasn't already stale
+	 */
+	public synchronized boolean markStale(String node) {
+		if(!nodes.contains(node) || staleNodes.contains(node)) {
+			return false;
+		}
+		staleNodes.add(node);
+		return true;
+	}
+
+	/**
+	 * Any one copy answers a select, pick the least busy one
+	 */
+	public List<String> chooseSelectNode(String whereClause) {
+		List<String> live = liveNodes();
+		if(live.isEmpty()) {
+			// Nothing is in step, better some answer than none
+			live = nodes;
+		}
+		List<String> nodeList = new ArrayList<String>();
+		nodeList.add(NodeLoad.leastLoaded(live));
+		return nodeList;
+	}
+
+	private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+	}
+
+	/**
+	 * Rows aren't placed by any attribute, joins with a replicated table are
+	 * handled by DDBPartitioner
+	 */
+	public String placementKey(String attr) {
+		return null;
+	}
 }
 
 class Range implements Serializable{
+	// What the compiler generated before this was declared, keeps old partition files loading
+	private static final long serialVersionUID = 8378996639164742094L;
 	private int min;
 	private int max;
 	private String node;
@@ -338,18 +669,71 @@ class Range implements Serializable{
 	}
 }
 
+/**
+ * Rows are placed by the range (low, high] their integer attribute falls in,
+ * one node per range or, subpartitioned, a group of nodes per range hashed
+ * over by a second attribute.
+ *
+ * RANGE(a) AUTO tables start out without bounds, rows are hashed on a over
+ * every node until bounds are worked out from a sample of the rows: of the
+ * file an empty table is first loaded from, or of every row by ANALYZE ...
+ * REPARTITION.
+ *
+ * Inserts are counted per range, with a sample of each range's values. A
+ * range that takes much more than its share of the inserts is split at the
+ * sample's median and the upper half moved to the node holding the least of
+ * the table, see planSplit. Each split gives a new partition, the counts
+ * start over in it.
+ */
 class RangePartition implements Partition {
 	private List<String> nodes;
 	private String partAttr;
 	private int partAttrPosn;
 	private String attrType;
 	private String declAttrs;
-	private int[] distribution;
 	private List <Range> rangeMap;
 	private final String[] SUPPORTEDATTRTYPES = {"integer", "char", "decimal"};
 	private static final long serialVersionUID = 4L;
+	// For RANGE(a) SUBPARTITION BY HASH(b): the nodes each range hashes over, null if not subpartitioned
+	private List<List<String>> subNodes;
+	private String subHashAttr;
+	private int subHashAttrPosn;
+	private String subHashType;
+	// Read the range and subpartition attributes straight out of an insert's values
+	private transient KeyRouter partKey;
+	private transient KeyRouter subKey;
+	// Nodes AUTO bounds are shared out over, null if the bounds were given
+	private List<String> autoNodes;
+	// A range is hot once it took this many inserts since the last check and more than HOT_SHARE times a node's share
+	public static final int MIN_SPLIT_ROWS = 10000;
+	private static final int HOT_SHARE = 2;
+	// Splitting stops at this many ranges per node, a monotonic key would otherwise keep splitting its last range
+	private static final int MAX_RANGES_PER_NODE = 4;
+	private static final int SPLIT_SAMPLE = 1024;
+	// Inserts and bytes each range took, and a sample of its values
+	private transient AtomicLongArray rangeRows;
+	private transient AtomicLongArray rangeBytes;
+	private transient RangeSample[] rangeSamples;
+	// rangeRows as of the last hotRange()
+	private transient long[] checkedRows;
 	
 	public RangePartition(List<String> nodes, String declAttrs, String partAttr, List<Range> rangeList) throws Exception {
+		this(nodes, declAttrs, partAttr, rangeList, null);
+	}
+
+	/**
+	 * A RANGE(a) AUTO table that doesn't have bounds yet
+	 */
+	public RangePartition(List<String> nodes, String declAttrs, String partAttr) throws Exception {
+		this(nodes, declAttrs, partAttr, new ArrayList<Range>(), null);
+		if(!attrType.equals("integer")) {
+			throw new Exception("RangePartitionAutoNeedsInteger");
+		}
+		autoNodes = new ArrayList<String>(nodes);
+		this.nodes = new ArrayList<String>(nodes);
+	}
+
+	public RangePartition(List<String> nodes, String declAttrs, String partAttr, List<Range> rangeList, String subHashOn) throws Exception {
 		this.nodes = new ArrayList<String>();
 		this.partAttr = partAttr;
 		this.declAttrs = declAttrs;
@@ -358,105 +742,760 @@ class RangePartition implements Partition {
 			throw new Exception("Range Exceed number of nodes");
 		}
 		
-		// Assign RangList to all 
-		for(int i = 0; i < rangeMap.size(); i++) {
-			rangeMap.get(i).setNode(nodes.get(i));
-			this.nodes.add(nodes.get(i));
+		if(subHashOn == null) {
+			// Assign RangList to all 
+			for(int i = 0; i < rangeMap.size(); i++) {
+				rangeMap.get(i).setNode(nodes.get(i));
+				this.nodes.add(nodes.get(i));
+			}
+		} else {
+			// Every node is used, they are dealt out to the ranges in turn
+			subNodes = new ArrayList<List<String>>();
+			for(int i = 0; i < rangeMap.size(); i++) {
+				subNodes.add(new ArrayList<String>());
+			}
+			for(int i = 0; i < nodes.size(); i++) {
+				subNodes.get(i % rangeMap.size()).add(nodes.get(i));
+				this.nodes.add(nodes.get(i));
+			}
+			for(int i = 0; i < rangeMap.size(); i++) {
+				rangeMap.get(i).setNode(subNodes.get(i).get(0));
+			}
 		}
 		
-		// Keep track of where we choose to put the data
-		distribution = new int[this.nodes.size()];
-		//Init the dist
-		for(int i = 0; i < this.nodes.size(); i++) {
-			distribution[i] = 0;
+		// Now we need to look through the attribute list to make sure their range attr is in the list
+		TableSchema schema = new TableSchema(declAttrs);
+		partAttrPosn = schema.indexOf(partAttr);
+		if(partAttrPosn < 0) {
+			throw new Exception("RangePartitionInvalidRangeAttribute");
 		}
-		
-		// Now we need to look through the attribute list to make sure their hash attr is in the list
-		String[] theAttrs = declAttrs.split(",");
-		partAttrPosn = 0;
-		for(String a: theAttrs) {
-			a = a.trim();
-			// The attr should look like "name type" so find that
-			if(!a.contains(" ")){
-				throw new Exception("RangePartitionInvalidAttributeDeclaration");
-			}
-			String[] tmp = a.split(" ");
-
-			//Search for the match to the requested hash attr
-			if(partAttr.equals(tmp[0])){
-				this.partAttr = tmp[0];
-				this.attrType = tmp[1].toLowerCase();
-				//Make sure the hashing type is supported
-				if(!Arrays.asList(SUPPORTEDATTRTYPES).contains(attrType)){
-					throw new Exception("RangePartitionUnsupportedType");
-				}
-				break;
+		this.partAttr = schema.getName(partAttrPosn);
+		this.attrType = schema.getType(partAttrPosn);
+		//Make sure the range type is supported
+		if(!Arrays.asList(SUPPORTEDATTRTYPES).contains(attrType)){
+			throw new Exception("RangePartitionUnsupportedType");
+		}
+
+		if(subHashOn != null) {
+			subHashAttrPosn = schema.indexOf(subHashOn);
+			if(subHashAttrPosn < 0) {
+				throw new Exception("RangePartitionInvalidSubpartitionAttribute");
+			}
+			subHashAttr = schema.getName(subHashAttrPosn);
+			subHashType = schema.getType(subHashAttrPosn);
+			if(!Arrays.asList(SUPPORTEDATTRTYPES).contains(subHashType)){
+				throw new Exception("RangePartitionUnsupportedType");
 			}
-			partAttrPosn++;
 		}
-		if(partAttr == null) {
-			throw new Exception("RangePartitionInvalidRangeAttribute");
+		initRouters();
+	}
+
+	/**
+	 * A copy with other ranges, see split
+	 */
+	private RangePartition(RangePartition p, List<Range> rangeList, List<String> nodes) {
+		this.nodes = nodes;
+		this.partAttr = p.partAttr;
+		this.partAttrPosn = p.partAttrPosn;
+		this.attrType = p.attrType;
+		this.declAttrs = p.declAttrs;
+		this.rangeMap = rangeList;
+		this.autoNodes = p.autoNodes;
+		initRouters();
+	}
+
+	private void initRouters() {
+		partKey = KeyRouter.forType(attrType, partAttrPosn);
+		subKey = subNodes == null ? null : KeyRouter.forType(subHashType, subHashAttrPosn);
+		rangeRows = new AtomicLongArray(rangeMap.size());
+		rangeBytes = new AtomicLongArray(rangeMap.size());
+		rangeSamples = new RangeSample[rangeMap.size()];
+		for(int i = 0; i < rangeSamples.length; i++) {
+			rangeSamples[i] = new RangeSample(partAttrPosn, SPLIT_SAMPLE);
 		}
+		checkedRows = new long[rangeMap.size()];
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		initRouters();
 	}
+	/**
+	 * An AUTO table whose bounds haven't been worked out yet
+	 */
+	private boolean unbounded() {
+		return rangeMap.isEmpty();
+	}
+
+	public boolean needsBounds() {
+		return autoNodes != null && unbounded();
+	}
+
+	/**
+	 * @return an empty sample of the range attribute, see withBounds
+	 */
+	public RangeSample newSample() {
+		return new RangeSample(partAttrPosn);
+	}
+
+	/**
+	 * The same table with bounds worked out from a sample of its rows. AUTO
+	 * tables get a range for each of their nodes, others keep their number
+	 * of ranges and nodes.
+	 */
+	public RangePartition withBounds(RangeSample sample) throws Exception {
+		if(autoNodes != null) {
+			RangePartition p = new RangePartition(autoNodes, declAttrs, partAttr, sample.ranges(autoNodes.size()), null);
+			p.autoNodes = autoNodes;
+			return p;
+		}
+		// Splits may have left more ranges than nodes
+		int parts = subNodes == null ? Math.min(rangeMap.size(), nodes.size()) : rangeMap.size();
+		return new RangePartition(nodes, declAttrs, partAttr, sample.ranges(parts), subHashAttr);
+	}
+
+	/**
+	 * Moving the upper half of a hot range to another node
+	 */
+	static class Split {
+		final RangePartition before;
+		final RangePartition after;
+		// The rows with min < value <= max move from one node to the other
+		final int min;
+		final int max;
+		final String from;
+		final String to;
+
+		Split(RangePartition before, RangePartition after, int min, int max, String from, String to) {
+			this.before = before;
+			this.after = after;
+			this.min = min;
+			this.max = max;
+			this.from = from;
+			this.to = to;
+		}
+
+		/**
+		 * @return a where clause for the rows that move
+		 */
+		String where() {
+			return before.partAttr + " > " + min + " and " + before.partAttr + " <= " + max;
+		}
+
+		public String toString() {
+			return "(" + min + ", " + max + "] " + from + " -> " + to;
+		}
+	}
+
+	/**
+	 * Count an insert into a range. The sample is a reservoir over the
+	 * range's inserts, most inserts past the first few don't go in it and
+	 * don't take its lock.
+	 */
+	private void count(int range, int value, int len) {
+		long n = rangeRows.incrementAndGet(range);
+		rangeBytes.addAndGet(range, len);
+		long slot = n <= SPLIT_SAMPLE ? n - 1 : ThreadLocalRandom.current().nextLong(n);
+		if(slot < SPLIT_SAMPLE) {
+			rangeSamples[range].put((int) slot, value, len);
+		}
+	}
+
+	/**
+	 * Find the range that took the most inserts since the last call, as long
+	 * as it took more than HOT_SHARE times a node's share of them. Inserts
+	 * keep adding up until there are MIN_SPLIT_ROWS of them to go on.
+	 * @return the range's index or -1
+	 */
+	private synchronized int hotRange() {
+		long total = 0;
+		long[] recent = new long[checkedRows.length];
+		for(int i = 0; i < recent.length; i++) {
+			recent[i] = rangeRows.get(i) - checkedRows[i];
+			total += recent[i];
+		}
+		if(total < MIN_SPLIT_ROWS) {
+			return -1;
+		}
+		int hot = -1;
+		for(int i = 0; i < recent.length; i++) {
+			checkedRows[i] += recent[i];
+			if(recent[i] >= MIN_SPLIT_ROWS && recent[i] * nodes.size() > HOT_SHARE * total && (hot < 0 || recent[i] > recent[hot])) {
+				hot = i;
+			}
+		}
+		return hot;
+	}
+
+	/**
+	 * Inserts counted so far don't make a range hot, e.g. rows just moved in by a split
+	 */
+	public synchronized void forgetInserts() {
+		for(int i = 0; i < checkedRows.length; i++) {
+			checkedRows[i] = rangeRows.get(i);
+		}
+	}
+
+	/**
+	 * Check for a hot range and work out how to split it. Only tables with a
+	 * node per range are split, a subpartitioned range is already spread
+	 * over its nodes by the hash.
+	 * @param counts the table's rows and bytes on each node, the upper half
+	 * goes to the node with the fewest bytes
+	 * @return the split, null if no range is hot or it can't be split
+	 */
+	public Split planSplit(NodeCounts counts) {
+		if(subNodes != null || unbounded() || nodes.size() < 2 || rangeMap.size() >= MAX_RANGES_PER_NODE * nodes.size()) {
+			return null;
+		}
+		int hot = hotRange();
+		if(hot < 0) {
+			return null;
+		}
+		Range r = rangeMap.get(hot);
+		List<Range> halves = rangeSamples[hot].ranges(2);
+		if(halves.size() < 2) {
+			// Every sampled value is the same, it can't be split
+			return null;
+		}
+		int mid = halves.get(0).getMax();
+		String to = null;
+		for(String n: nodes) {
+			if(!n.equals(r.getNode()) && (to == null || counts.bytes(n) < counts.bytes(to))) {
+				to = n;
+			}
+		}
+		List<Range> ranges = new ArrayList<Range>();
+		for(int i = 0; i < rangeMap.size(); i++) {
+			if(i != hot) {
+				ranges.add(rangeMap.get(i));
+				continue;
+			}
+			Range lower = new Range(r.getMin(), mid);
+			lower.setNode(r.getNode());
+			Range upper = new Range(mid, r.getMax());
+			upper.setNode(to);
+			ranges.add(lower);
+			ranges.add(upper);
+		}
+		return new Split(this, new RangePartition(this, ranges, nodes), mid, r.getMax(), r.getNode(), to);
+	}
+
 	public String explain() {
-		return "";
+		String out = "\tRange Attribute: " + partAttr + ", type: " + attrType + (autoNodes == null ? "" : ", auto") + "\n";
+		if(unbounded()) {
+			out += "\tNo bounds yet, hashed over " + nodes + "\n";
+		}
+		if(subNodes != null) {
+			out += "\tSubpartition Hash Attribute: " + subHashAttr + ", type: " + subHashType + "\n";
+		}
+		for(int i = 0; i < rangeMap.size(); i++) {
+			Range r = rangeMap.get(i);
+			out += "\t(" + (r.getMin() == Integer.MIN_VALUE ? "min" : r.getMin()) + ", "
+					+ (r.getMax() == Integer.MAX_VALUE ? "max" : r.getMax()) + "]\t: "
+					+ (subNodes == null ? r.getNode() : subNodes.get(i).toString()) + "\n";
+		}
+		return out;
 	}
 
 	public List<String> initialize() {
 		return nodes;
 	}
 	
-	private String selectNode(String attrValue) {
+	/**
+	 * Find the index of the range the value falls in
+	 */
+	private int selectRange(String attrValue) {
 		if(attrType.equals("integer")){
-			int val = Integer.parseInt(attrValue);
-			for(int i = 0 ; i < rangeMap.size(); i++) {
-				if(rangeMap.get(i).isInRange(val)) {
-					return rangeMap.get(i).getNode();
+			return rangeOf(Integer.parseInt(attrValue));
+		} else {
+			// TODO: char and decimal ranges, everything goes to the first range for now
+			return 0;
+		}
+	}
+
+	private int rangeOf(int val) {
+		for(int i = 0 ; i < rangeMap.size(); i++) {
+			if(rangeMap.get(i).isInRange(val)) {
+				return i;
+			}
+		}
+		System.out.println("RangePartition No info matched");
+		return 0;
+	}
+
+	/**
+	 * Pick the node within a range, hashing on the subpartition attribute if there is one
+	 */
+	private String selectNode(int range, String subValue) {
+		if(subNodes == null) {
+			return rangeMap.get(range).getNode();
+		}
+		List<String> group = subNodes.get(range);
+		return group.get(HashPartition.hashPtr(subHashType, subValue, group.size()));
+	}
+
+	/**
+	 * Same as selectRange and selectNode on the values split out, without splitting them
+	 */
+	public String chooseInsertNode(String vals) {
+		if(unbounded()) {
+			return nodes.get(partKey.hashPtr(vals, nodes.size()));
+		}
+		int range = 0;
+		if(attrType.equals("integer")) {
+			int val = partKey.intValue(vals);
+			range = rangeOf(val);
+			count(range, val, vals.length());
+		}
+		if(subNodes == null) {
+			return rangeMap.get(range).getNode();
+		}
+		List<String> group = subNodes.get(range);
+		return group.get(subKey.hashPtr(vals, group.size()));
+	}
+	
+	/**
+	 * An = on the range attribute narrows it down to one range, an = on the
+	 * subpartition attribute narrows each range down to one node. Either
+	 * prefix of the key prunes on its own.
+	 */
+	public List<String> chooseSelectNode(String whereClause) {
+		WhereClause where = WhereClause.parse(whereClause);
+		String rangeVal = where.getEquals(partAttr);
+		String subVal = subNodes == null ? null : where.getEquals(subHashAttr);
+		try {
+			if(unbounded()) {
+				if(rangeVal != null) {
+					List<String> nodeList = new ArrayList<String>();
+					nodeList.add(nodes.get(HashPartition.hashPtr(attrType, rangeVal, nodes.size())));
+					return nodeList;
+				}
+				return nodes;
+			}
+			if(rangeVal != null) {
+				int range = selectRange(rangeVal);
+				if(subNodes == null || subVal != null) {
+					List<String> nodeList = new ArrayList<String>();
+					nodeList.add(selectNode(range, subVal));
+					return nodeList;
 				}
+				return subNodes.get(range);
 			}
-			System.out.println("RangePartition No info matched");
-			return nodes.get(0);
-			//ptr = hashVal % nodes.size();
-		} else if (attrType.equals("char")) {
-			// TODO
-			return nodes.get(0);
-			//ptr = Math.abs(hashValue.hashCode()) % nodes.size();
-		} else if (attrType.equals("decimal")) {
-			// TODO
-			return nodes.get(0);
-			//float hashVal = Float.parseFloat(hashValue);
-			//ptr = (int) (hashVal % nodes.size());
-		} else {
-			// NOTE: We already checked in the constructor if the type is valid so we can just ignore this
-			System.out.println("[RANGEPARTITION] THIS SHOULD NEVER EVER EVER EVER EVER SHOW UP!");
+			if(subVal != null) {
+				// One node out of every range
+				List<String> nodeList = new ArrayList<String>();
+				for(int i = 0; i < rangeMap.size(); i++) {
+					String n = selectNode(i, subVal);
+					if(!nodeList.contains(n)) {
+						nodeList.add(n);
+					}
+				}
+				return nodeList;
+			}
+		} catch(NumberFormatException e) {
+			// Compared against something that isn't a number, let the nodes sort it out
+		}
+		return nodes;
+	}
+
+	/**
+	 * Subpartitioned tables spread a range over several nodes by another attribute
+	 */
+	public String placementKey(String attr) {
+		if(subNodes != null || unbounded() || !partAttr.equalsIgnoreCase(attr.trim())) {
+			return null;
+		}
+		String out = "range " + attrType;
+		for(Range r: rangeMap) {
+			out += " (" + r.getMin() + "," + r.getMax() + "]" + r.getNode();
+		}
+		return out;
+	}
+}
+
+/**
+ * Rows are placed by the interval (a day, an hour, ...) their time attribute
+ * falls in. An interval is given its nodes when its first row shows up, the
+ * ones holding the fewest intervals, so recent data moves around the cluster
+ * rather than piling up on the last range. With a spread of more than one the
+ * rows of an interval are dealt out between its nodes in turn.
+ *
+ * The attribute is either an integer of seconds since the epoch or a
+ * 'YYYY-MM-DD[ HH:MM[:SS]]' string, in UTC.
+ */
+class TimePartition implements Partition {
+	private static final long serialVersionUID = 6L;
+	private static final List<String> EPOCH_TYPES = Arrays.asList("integer", "int", "bigint");
+	private static final List<String> STRING_TYPES = Arrays.asList("date", "datetime", "timestamp", "text", "char", "varchar");
+	private static final String[] TIME_FORMATS = {"yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd HH:mm", "yyyy-MM-dd"};
+	private static final long DAY = 24 * 60 * 60;
+	private List<String> nodes;
+	private String partAttr;
+	private int partAttrPosn;
+	private String attrType;
+	// In seconds, a retention of 0 keeps everything
+	private long interval;
+	private long retention;
+	private int spread;
+	// Start of each interval to the nodes holding it
+	private TreeMap<Long, List<String>> intervals;
+	private Map<Long, Long> intervalRows;
+	// Rows whose time couldn't be read go to the first node
+	private long untimedRows;
+	private int nextNodePtr;
+
+	public TimePartition(List<String> nodes, String declAttrs, String partAttr, String interval, String retention, int spread) throws Exception {
+		TableSchema schema = new TableSchema(declAttrs);
+		partAttrPosn = schema.indexOf(partAttr);
+		if(partAttrPosn < 0) {
+			throw new Exception("TimePartitionInvalidAttribute");
+		}
+		this.partAttr = schema.getName(partAttrPosn);
+		this.attrType = schema.getType(partAttrPosn);
+		if(!EPOCH_TYPES.contains(attrType) && !STRING_TYPES.contains(attrType)) {
+			throw new Exception("TimePartitionUnsupportedType");
+		}
+		this.interval = parseInterval(interval);
+		this.retention = retention == null ? 0 : parseInterval(retention);
+		if(spread < 1 || spread > nodes.size()) {
+			throw new Exception("TimePartitionBadSpread");
+		}
+		this.spread = spread;
+		this.nodes = new ArrayList<String>(nodes);
+		intervals = new TreeMap<Long, List<String>>();
+		intervalRows = new HashMap<Long, Long>();
+		untimedRows = 0;
+		nextNodePtr = 0;
+	}
+
+	/**
+	 * "1 day", "6 hours", ...
+	 * @return the length in seconds
+	 */
+	static long parseInterval(String spec) throws Exception {
+		Pattern pat = Pattern.compile("\\s*(\\d+)\\s*(second|minute|hour|day|week)s?\\s*", Pattern.CASE_INSENSITIVE);
+		Matcher mat = pat.matcher(spec);
+		if(!mat.matches() || Long.parseLong(mat.group(1)) == 0) {
+			throw new Exception("TimePartitionBadInterval");
+		}
+		String unit = mat.group(2).toLowerCase();
+		long secs = unit.equals("second") ? 1 : unit.equals("minute") ? 60 : unit.equals("hour") ? 60 * 60 : unit.equals("day") ? DAY : 7 * DAY;
+		return Long.parseLong(mat.group(1)) * secs;
+	}
+
+	/**
+	 * @return seconds since the epoch, or null if the value isn't a time we can read
+	 */
+	private Long parseTime(String value) {
+		String v = WhereClause.unquote(value);
+		if(EPOCH_TYPES.contains(attrType)) {
+			try {
+				return Long.parseLong(v);
+			} catch(NumberFormatException e) {
+				return null;
+			}
+		}
+		for(String f: TIME_FORMATS) {
+			SimpleDateFormat fmt = new SimpleDateFormat(f);
+			fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+			fmt.setLenient(false);
+			try {
+				return fmt.parse(v).getTime() / 1000;
+			} catch(ParseException e) {
+				// Try the next one
+			}
+		}
+		return null;
+	}
+
+	private String formatTime(long t) {
+		// Midnight is written as just the date, '2024-01-02' sorts before '2024-01-02 00:00:00'
+		SimpleDateFormat fmt = new SimpleDateFormat(t % DAY == 0 ? "yyyy-MM-dd" : "yyyy-MM-dd HH:mm:ss");
+		fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return fmt.format(new Date(t * 1000));
+	}
+
+	private long intervalStart(long t) {
+		long start = t / interval;
+		if(t < 0 && t % interval != 0) {
+			start--;
+		}
+		return start * interval;
+	}
+
+	/**
+	 * Nodes for a new interval, the ones holding the fewest live intervals,
+	 * ties go to whoever is next in turn
+	 */
+	private List<String> assignNodes() {
+		Map<String, Integer> held = new HashMap<String, Integer>();
+		for(String n: nodes) {
+			held.put(n, 0);
+		}
+		for(List<String> l: intervals.values()) {
+			for(String n: l) {
+				held.put(n, held.get(n) + 1);
+			}
+		}
+		List<String> out = new ArrayList<String>();
+		while(out.size() < spread) {
+			String best = null;
+			for(int i = 0; i < nodes.size(); i++) {
+				String n = nodes.get((nextNodePtr + i) % nodes.size());
+				if(!out.contains(n) && (best == null || held.get(n) < held.get(best))) {
+					best = n;
+				}
+			}
+			out.add(best);
+		}
+		nextNodePtr = (nodes.indexOf(out.get(out.size() - 1)) + 1) % nodes.size();
+		return out;
+	}
+
+	public synchronized String explain() {
+		String out = "\tTime Attribute: " + partAttr + ", type: " + attrType + ", interval: " + interval + "s"
+				+ (retention > 0 ? ", retention: " + retention + "s" : "") + (spread > 1 ? ", spread: " + spread : "") + "\n";
+		for(Map.Entry<Long, List<String>> e: intervals.entrySet()) {
+			out += "\t[" + formatTime(e.getKey()) + ", " + formatTime(e.getKey() + interval) + ")\t: "
+					+ e.getValue() + ", rows: " + intervalRows.get(e.getKey()) + "\n";
+		}
+		if(untimedRows > 0) {
+			out += "\tNo time\t: " + nodes.get(0) + ", rows: " + untimedRows + "\n";
+		}
+		return out;
+	}
+
+	public List<String> initialize() {
+		return nodes;
+	}
+
+	public synchronized String chooseInsertNode(String vals) {
+		String[] theVals = TableSchema.splitValues(vals);
+		Long t = partAttrPosn < theVals.length ? parseTime(theVals[partAttrPosn]) : null;
+		if(t == null) {
+			untimedRows++;
 			return nodes.get(0);
 		}
+		long start = intervalStart(t);
+		List<String> holders = intervals.get(start);
+		if(holders == null) {
+			holders = assignNodes();
+			intervals.put(start, holders);
+		}
+		Long rows = intervalRows.get(start);
+		rows = rows == null ? 0 : rows;
+		intervalRows.put(start, rows + 1);
+		return holders.get((int) (rows % holders.size()));
+	}
+
+	/**
+	 * Only the intervals the comparisons on the time attribute leave open
+	 */
+	public synchronized List<String> chooseSelectNode(String whereClause) {
+		long lo = Long.MIN_VALUE;
+		long hi = Long.MAX_VALUE;
+		for(WhereClause.Predicate p: WhereClause.parse(whereClause).getPredicates(partAttr)) {
+			Long t = parseTime(p.value);
+			if(t == null) {
+				continue;
+			}
+			// Strings compare as text on the nodes, '2024-01-02' < '2024-01-02 00:00:00', so keep the ends
+			long open = EPOCH_TYPES.contains(attrType) ? 1 : 0;
+			if(p.op.equals("=")) {
+				lo = Math.max(lo, t);
+				hi = Math.min(hi, t);
+			} else if(p.op.equals("<") || p.op.equals("<=")) {
+				hi = Math.min(hi, p.op.equals("<") ? t - open : t);
+			} else if(p.op.equals(">") || p.op.equals(">=")) {
+				lo = Math.max(lo, p.op.equals(">") ? t + open : t);
+			}
+		}
+		List<String> nodeList = new ArrayList<String>();
+		if(untimedRows > 0) {
+			nodeList.add(nodes.get(0));
+		}
+		if(lo <= hi) {
+			long from = lo == Long.MIN_VALUE ? lo : intervalStart(lo);
+			for(List<String> holders: intervals.subMap(from, true, hi, true).values()) {
+				for(String n: holders) {
+					if(!nodeList.contains(n)) {
+						nodeList.add(n);
+					}
+				}
+			}
+		}
+		if(nodeList.isEmpty()) {
+			// Nothing can match, one node still answers so there is an (empty) result
+			nodeList.add(nodes.get(0));
+		}
+		return nodeList;
+	}
+
+	/**
+	 * Forget the intervals that are past the retention
+	 * @param now seconds since the epoch
+	 * @return for each node that held one, the condition matching its expired rows
+	 */
+	public synchronized Map<String, String> expire(long now) {
+		Map<String, String> conds = new HashMap<String, String>();
+		if(retention == 0) {
+			return conds;
+		}
+		// Everything before the cutoff is in an interval that ended at least a retention ago
+		long cutoff = intervalStart(now - retention);
+		SortedMap<Long, List<String>> expired = intervals.headMap(cutoff);
+		if(expired.isEmpty()) {
+			return conds;
+		}
+		String cond = partAttr + " < " + (EPOCH_TYPES.contains(attrType) ? String.valueOf(cutoff) : DDBUtil.sqlString(formatTime(cutoff)));
+		for(Map.Entry<Long, List<String>> e: expired.entrySet()) {
+			for(String n: e.getValue()) {
+				conds.put(n, cond);
+			}
+			intervalRows.remove(e.getKey());
+		}
+		expired.clear();
+		return conds;
+	}
+
+	private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+	}
+
+	/**
+	 * Rows aren't kept together by value, only by when
+	 */
+	public String placementKey(String attr) {
+		return null;
+	}
+}
+
+/**
+ * Each listed value of the attribute is placed on the node it was listed
+ * with, PARTITION BY LIST(region) (('us','ca') ON n0, ('eu') ON n1, DEFAULT ON n2).
+ * Values that aren't listed go to the DEFAULT node, or the first listed node
+ * if there isn't one.
+ */
+class ListPartition implements Partition {
+	private static final long serialVersionUID = 7L;
+	private List<String> nodes;
+	private String partAttr;
+	private int partAttrPosn;
+	private String attrType;
+	// Canonical value to its node
+	private Map<String, String> valueMap;
+	private String defaultNode;
+	private boolean explicitDefault;
+
+	/**
+	 * @param lists the listed values of each node in order, the default node's values are null
+	 */
+	public ListPartition(List<String> nodes, String declAttrs, String partAttr, List<String> listNodes, List<List<String>> lists) throws Exception {
+		TableSchema schema = new TableSchema(declAttrs);
+		partAttrPosn = schema.indexOf(partAttr);
+		if(partAttrPosn < 0) {
+			throw new Exception("ListPartitionInvalidAttribute");
+		}
+		this.partAttr = schema.getName(partAttrPosn);
+		this.attrType = schema.getType(partAttrPosn);
+		this.nodes = new ArrayList<String>();
+		this.valueMap = new HashMap<String, String>();
+		for(int i = 0; i < listNodes.size(); i++) {
+			String n = listNodes.get(i);
+			if(!nodes.contains(n)) {
+				System.out.println("[LIST] Requested node doesn't exist: " + n);
+				throw new Exception("ListPartitionUnknownNode");
+			}
+			if(!this.nodes.contains(n)) {
+				this.nodes.add(n);
+			}
+			if(lists.get(i) == null) {
+				if(defaultNode != null) {
+					throw new Exception("ListPartitionDuplicateDefault");
+				}
+				defaultNode = n;
+				explicitDefault = true;
+				continue;
+			}
+			for(String v: lists.get(i)) {
+				if(valueMap.put(TableSchema.canonicalValue(attrType, v), n) != null) {
+					throw new Exception("ListPartitionDuplicateValue");
+				}
+			}
+		}
+		if(valueMap.isEmpty()) {
+			throw new Exception("BadPartitionSpecification");
+		}
+		if(defaultNode == null) {
+			defaultNode = this.nodes.get(0);
+		}
+	}
+
+	public String explain() {
+		String out = "\tList Attribute: " + partAttr + ", type: " + attrType + "\n";
+		for(String n: nodes) {
+			List<String> vals = new ArrayList<String>();
+			for(Map.Entry<String, String> e: valueMap.entrySet()) {
+				if(e.getValue().equals(n)) {
+					vals.add(e.getKey());
+				}
+			}
+			if(!vals.isEmpty()) {
+				out += "\t" + vals + "\t: " + n + "\n";
+			}
+		}
+		out += "\tDEFAULT\t: " + defaultNode + (explicitDefault ? "" : " (first listed node)") + "\n";
+		return out;
+	}
+
+	public List<String> initialize() {
+		return nodes;
+	}
+
+	private String nodeOf(String value) {
+		String n = valueMap.get(TableSchema.canonicalValue(attrType, value));
+		return n == null ? defaultNode : n;
 	}
 
 	public String chooseInsertNode(String vals) {
-		String[] theVals = vals.split(",");
-		//Our match *should* be the hashingAttrPosn index value!
-		String attrValue = theVals[partAttrPosn];
-		System.out.println("[RANGEPARTITION] given partition attribute (" + partAttr + ") is " + attrValue);
-		return selectNode(attrValue);
+		String[] theVals = TableSchema.splitValues(vals);
+		return partAttrPosn < theVals.length ? nodeOf(theVals[partAttrPosn]) : defaultNode;
 	}
-	
+
+	/**
+	 * An = or IN on the list attribute goes to just the nodes of those values
+	 */
 	public List<String> chooseSelectNode(String whereClause) {
-		// only support = where clause
-		if(whereClause == null || whereClause.equals("") || !whereClause.contains("=")) {
+		WhereClause where = WhereClause.parse(whereClause);
+		List<String> vals = where.getIn(partAttr);
+		String eq = where.getEquals(partAttr);
+		if(eq != null) {
+			vals = Arrays.asList(eq);
+		}
+		if(vals == null) {
 			return nodes;
 		}
-		else {
-			//TODO: if the where clause looks like "i >= 1" we end up here, only thing that saves us
-			//is the trim will look like "i >" is that legit enough or should we do more checks?
-			String [] tmp = whereClause.split("=");
-			String attr = tmp[0].trim();
-			if(attr.equals(partAttr)) {
-				List<String> nodeList = new ArrayList<String>();
-				nodeList.add(selectNode(tmp[1].trim()));
-				return(nodeList);
+		List<String> nodeList = new ArrayList<String>();
+		for(String v: vals) {
+			String n = nodeOf(v);
+			if(!nodeList.contains(n)) {
+				nodeList.add(n);
 			}
-			return nodes;
 		}
+		if(nodeList.isEmpty()) {
+			nodeList.add(defaultNode);
+		}
+		return nodeList;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Tables listing the same values on the same nodes hold matching rows together
+	 */
+	public String placementKey(String attr) {
+		if(!partAttr.equalsIgnoreCase(attr.trim())) {
+			return null;
+		}
+		return "list " + attrType + " " + new TreeMap<String, String>(valueMap) + " " + defaultNode;
+	}
+}
@@ -0,0 +1,496 @@
+package distributeddb;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.jboss.netty.channel.ChannelHandlerContext;
+
+/**
+ * Moves the rows of a RANGE table between nodes when its ranges change.
+ *
+ * ANALYZE table REPARTITION gives the table new bounds that split its rows
+ * evenly by size. Every row is read off the table's nodes into a sqlite
+ * database on the coordinator (coord_join.py dump), the bounds are worked
+ * out from a sample of them and each row is routed with the new bounds.
+ * Each node's rows are copied as they are into a database of their own
+ * (coord_join.py place) that goes to HDFS, then every node swaps its rows
+ * for the ones in its database in one transaction (LOADROWS ... replace).
+ * The table gets its new bounds once all the nodes have their rows. If a
+ * node fails it keeps the rows it had, and the nodes that did swap are put
+ * back the same way from what was read off them. Only if that fails too
+ * is the coordinator's database kept, the error says where.
+ *
+ * A hot range is split in two (see RangePartition.planSplit) the same way,
+ * but only the upper half's rows are read, loaded on their new node and then
+ * deleted from the old one.
+ */
+public class RangeRepartition {
+	private final DDBPartitioner partitioner;
+	private final TCPServer server;
+	private final Log LOG;
+	private final FileSystem fs;
+	private final List<String> errors;
+	// Rows routed by the last route() and the bytes of their values
+	private long rows;
+	private long bytes;
+
+	public RangeRepartition(DDBPartitioner partitioner, TCPServer server, Log log, FileSystem fs) {
+		this.partitioner = partitioner;
+		this.server = server;
+		this.LOG = log;
+		this.fs = fs;
+		this.errors = new ArrayList<String>();
+	}
+
+	/**
+	 * Parse an "ANALYZE table REPARTITION" statement
+	 * @return the table or null if it isn't one
+	 */
+	public static String parseAnalyzeQuery(String query) {
+		Pattern pat = Pattern.compile("\\s*analyze\\s+(\\S+)\\s+repartition\\s*;?\\s*", Pattern.CASE_INSENSITIVE);
+		Matcher mat = pat.matcher(query);
+		return mat.matches() ? mat.group(1) : null;
+	}
+
+	/**
+	 * Offer every line of a CSV file to the sample
+	 * @return the number of rows
+	 */
+	static long sample(BufferedReader in, char delim, RangeSample sample) throws IOException {
+		List<String> fields = new ArrayList<String>();
+		long rows = 0;
+		String line;
+		while((line = in.readLine()) != null) {
+			if(line.trim().equals("")) {
+				continue;
+			}
+			BulkLoader.splitCsvLine(line, delim, fields);
+			sample.add(fields);
+			rows++;
+		}
+		return rows;
+	}
+
+	/**
+	 * Offer every row of a dump to the sample
+	 * @return the number of rows
+	 */
+	private static long sampleDump(BufferedReader in, RangeSample sample) throws IOException {
+		long rows = 0;
+		String row;
+		while((row = readRow(in)) != null) {
+			List<String> vals = Arrays.asList(TableSchema.splitValues(row));
+			sample.add(vals.subList(1, vals.size()));
+			rows++;
+		}
+		return rows;
+	}
+
+	/**
+	 * Read a row of a dump, a newline inside a quoted string is part of it
+	 * @return null at the end of the dump
+	 */
+	static String readRow(BufferedReader in) throws IOException {
+		StringBuilder row = new StringBuilder();
+		boolean quoted = false;
+		int c;
+		while((c = in.read()) >= 0) {
+			if(c == '\'') {
+				quoted = !quoted;
+			} else if(c == '\n' && !quoted) {
+				if(row.length() > 0) {
+					return row.toString();
+				}
+				continue;
+			}
+			row.append((char) c);
+		}
+		return row.length() > 0 ? row.toString() : null;
+	}
+
+	/**
+	 * The values of a dumped row, after its rowid, as an insert would have
+	 * them. A number for an attribute with text affinity is quoted as the
+	 * node stores it, so it's routed as that text.
+	 */
+	static String routingValues(String[] dumped, TableSchema schema) {
+		StringBuilder vals = new StringBuilder();
+		for(int i = 1; i < dumped.length; i++) {
+			if(i > 1) {
+				vals.append(", ");
+			}
+			String f = dumped[i];
+			if(schema != null && i - 1 < schema.size() && schema.isText(i - 1) && WhereClause.isNumberLiteral(f)) {
+				vals.append('\'').append(f).append('\'');
+			} else {
+				vals.append(f);
+			}
+		}
+		return vals.toString();
+	}
+
+	private static BufferedReader open(File f) throws IOException {
+		return new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+	}
+
+	/**
+	 * Route every row of the dump, counting the rows and their bytes
+	 * @param p routes the rows, null to route them with the catalog's
+	 * partition (and count them into its indexes, zone map...)
+	 * @param ids gets each row's rowid under the nodes it goes to, may be null
+	 */
+	private void route(String table, File dump, Partition p, Map<String, PrintWriter> ids) throws Exception {
+		TableSchema schema = partitioner.tableSchema(table);
+		rows = 0;
+		bytes = 0;
+		BufferedReader in = open(dump);
+		try {
+			String row;
+			while((row = readRow(in)) != null) {
+				String[] dumped = TableSchema.splitValues(row);
+				String vals = routingValues(dumped, schema);
+				List<String> to = p == null ? partitioner.routeInsert(table, vals) : Arrays.asList(p.chooseInsertNode(vals));
+				rows++;
+				bytes += vals.length();
+				if(ids == null) {
+					continue;
+				}
+				for(String n: to) {
+					PrintWriter w = ids.get(n);
+					if(w == null) {
+						w = new PrintWriter(new File(idsFile(dump, n)), "UTF-8");
+						ids.put(n, w);
+					}
+					w.println(dumped[0]);
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String idsFile(File dump, String node) {
+		return dump.getPath() + "-" + node + ".ids";
+	}
+
+	/**
+	 * Route the dumped rows and put each node's rows, copied as they are, in
+	 * a db of their own in HDFS
+	 * @param p see route
+	 * @param nodes get a db even if none of the rows go to them
+	 * @return the HDFS block of each node's rows
+	 */
+	private Map<String, String> place(String table, String coordDb, File dump, Partition p, Collection<String> nodes) throws Exception {
+		Map<String, PrintWriter> ids = new HashMap<String, PrintWriter>();
+		Map<String, String> blocks = new HashMap<String, String>();
+		try {
+			try {
+				for(String n: nodes) {
+					ids.put(n, new PrintWriter(new File(idsFile(dump, n)), "UTF-8"));
+				}
+				route(table, dump, p, ids);
+			} finally {
+				for(PrintWriter w: ids.values()) {
+					w.close();
+				}
+			}
+			if(ids.isEmpty()) {
+				return blocks;
+			}
+			List<String> args = new ArrayList<String>();
+			for(String n: ids.keySet()) {
+				args.add(idsFile(dump, n));
+				args.add(dump.getPath() + "-" + n + ".db");
+			}
+			CoordinatorJoin.runScript(LOG, "place", coordDb, table, args, new ArrayList<String>());
+			for(String n: ids.keySet()) {
+				String blk = dump.getName() + "-" + n + ".db";
+				fs.copyFromLocalFile(true, true, new Path(dump.getPath() + "-" + n + ".db"), new Path(fs.getHomeDirectory(), blk));
+				blocks.put(n, blk);
+			}
+			return blocks;
+		} catch(Exception e) {
+			dropBlocks(blocks);
+			throw e;
+		} finally {
+			for(String n: ids.keySet()) {
+				new File(idsFile(dump, n)).delete();
+				new File(dump.getPath() + "-" + n + ".db").delete();
+			}
+		}
+	}
+
+	/**
+	 * Have each node insert its rows, the nodes that fail keep the rows they had
+	 * @param replace the rows replace all of the table's rows on the node
+	 */
+	private List<String> loadRows(String table, Map<String, String> blocks, boolean replace) throws IOException {
+		Map<String, String> ops = new HashMap<String, String>();
+		for(Map.Entry<String, String> b: blocks.entrySet()) {
+			ops.put(b.getKey(), DDBConstants.LOAD_ROWS + " " + table + " " + b.getValue() + (replace ? " replace" : ""));
+		}
+		try {
+			return sendAll(ops);
+		} finally {
+			dropBlocks(blocks);
+		}
+	}
+
+	/**
+	 * Give the nodes back the rows they had, as they were read off them
+	 * @param oldRows each node's output db of its rows, a node without one had none
+	 */
+	private void restore(String table, Collection<String> swapped, Map<String, String> oldRows) throws IOException {
+		Map<String, String> blocks = new HashMap<String, String>();
+		Map<String, String> ops = new HashMap<String, String>();
+		for(String n: swapped) {
+			String local = oldRows.get(n);
+			if(local == null) {
+				ops.put(n, "delete from " + table);
+				continue;
+			}
+			String blk = "restore-" + new File(local).getName();
+			fs.copyFromLocalFile(false, true, new Path(local), new Path(fs.getHomeDirectory(), blk));
+			blocks.put(n, blk);
+		}
+		sendAll(ops);
+		loadRows(table, blocks, true);
+	}
+
+	private void dropBlocks(Map<String, String> blocks) throws IOException {
+		for(String blk: blocks.values()) {
+			fs.delete(new Path(fs.getHomeDirectory(), blk), false);
+		}
+	}
+
+	/**
+	 * @return what happened, to show the user
+	 */
+	public String run(String table) throws Exception {
+		RangeSample sample = partitioner.rangeSample(table);
+		RangePartition before = (RangePartition) partitioner.catalog().tables.get(table);
+		List<String> oldNodes = before.initialize();
+		String stamp = String.valueOf(System.currentTimeMillis());
+		String coordDb = "/tmp/repartition-" + stamp + ".db";
+		File dump = new File("/tmp/repartition-" + stamp + ".rows");
+		List<String> localFiles = new ArrayList<String>();
+		boolean keepCoordDb = false;
+		try {
+			Map<String, String> ops = new HashMap<String, String>();
+			for(String n: oldNodes) {
+				ops.put(n, "select * from " + table);
+			}
+			Map<String, String> oldRows = new HashMap<String, String>();
+			localFiles.addAll(CoordinatorJoin.fetch(server, fs, ops, errors, oldRows));
+			if(!errors.isEmpty()) {
+				return errorString("reading " + table);
+			}
+			CoordinatorJoin.runScript(LOG, "dump", coordDb, table, Arrays.asList(dump.getPath()), localFiles);
+			BufferedReader in = open(dump);
+			long dumped;
+			try {
+				dumped = sampleDump(in, sample);
+			} finally {
+				in.close();
+			}
+			if(sample.seen() == 0) {
+				return "Nothing to repartition, " + table + " has no rows\n";
+			}
+			LOG.info("[REPARTITION] " + table + ": " + dumped + " rows read from " + oldNodes);
+
+			// Nodes that lose all their rows get an empty db to swap in
+			RangePartition np = before.withBounds(sample);
+			Set<String> nodes = new LinkedHashSet<String>(oldNodes);
+			nodes.addAll(np.initialize());
+			Map<String, String> blocks = place(table, coordDb, dump, np, nodes);
+			List<String> failed = loadRows(table, blocks, true);
+			if(!failed.isEmpty()) {
+				String out = errorString("moving " + table + "'s rows");
+				nodes.removeAll(failed);
+				errors.clear();
+				restore(table, nodes, oldRows);
+				if(!errors.isEmpty()) {
+					keepCoordDb = true;
+					return out + errorString("putting back the rows of " + nodes + ", every row is in " + coordDb);
+				}
+				return out + "\tEvery node has the rows it had\n";
+			}
+			String bounds = partitioner.setRangeBounds(table, sample, true);
+			// Count them into the table's new partition, zone map and indexes
+			route(table, dump, null, null);
+			partitioner.insertsDone(table);
+			return "SUCCESS repartitioned " + table + ", " + rows + " rows\n" + bounds;
+		} finally {
+			for(String f: localFiles) {
+				new File(f).delete();
+			}
+			if(!keepCoordDb) {
+				new File(coordDb).delete();
+			}
+			dump.delete();
+		}
+	}
+
+	/**
+	 * Split the table's hot range if it has one and move the upper half
+	 * @return what was done, to show the user, null if nothing was
+	 */
+	public String splitHotRange(String table) throws Exception {
+		RangePartition.Split split = partitioner.planRangeSplit(table);
+		if(split == null) {
+			return null;
+		}
+		LOG.info("[REPARTITION] Splitting " + table + " " + split);
+		String stamp = String.valueOf(System.currentTimeMillis());
+		String coordDb = "/tmp/split-" + stamp + ".db";
+		File dump = new File("/tmp/split-" + stamp + ".rows");
+		List<String> localFiles = new ArrayList<String>();
+		try {
+			Map<String, String> ops = new HashMap<String, String>();
+			ops.put(split.from, "select * from " + table + " where " + split.where());
+			localFiles.addAll(CoordinatorJoin.fetch(server, fs, ops, errors));
+			if(!errors.isEmpty()) {
+				return errorString("splitting " + table + " " + split + ", nothing was moved");
+			}
+			CoordinatorJoin.runScript(LOG, "dump", coordDb, table, Arrays.asList(dump.getPath()), localFiles);
+
+			// The upper half's inserts go to the new node from here on, the rows are copied there first
+			partitioner.commitRangeSplit(table, split);
+			try {
+				loadRows(table, place(table, coordDb, dump, null, new ArrayList<String>()), false);
+			} catch(Exception e) {
+				partitioner.undoRangeSplit(table, split, rows, bytes);
+				throw e;
+			}
+			partitioner.insertsDone(table);
+			if(!errors.isEmpty()) {
+				partitioner.undoRangeSplit(table, split, rows, bytes);
+				return errorString("splitting " + table + " " + split + ", split undone");
+			}
+
+			ops.clear();
+			ops.put(split.from, "delete from " + table + " where " + split.where());
+			sendAll(ops);
+			partitioner.rangeSplitDone(table, split, rows, bytes);
+			if(!errors.isEmpty()) {
+				return errorString("splitting " + table + " " + split + ", the moved rows are still on " + split.from + " too");
+			}
+			String out = "Split " + table + " " + split + ", " + rows + " rows moved\n";
+			if(!movedOff(table, split, dump, coordDb)) {
+				out += errorString("looking up what " + split.from + " has left, its index entries and filters still have the moved rows");
+			}
+			return out;
+		} finally {
+			for(String f: localFiles) {
+				new File(f).delete();
+			}
+			new File(coordDb).delete();
+			dump.delete();
+		}
+	}
+
+	/**
+	 * Point the table's global indexes and Bloom filters away from split.from
+	 * for the rows it moved, by the values of each attribute it has left
+	 * @return false if the node couldn't be asked, the entries still have it
+	 */
+	private boolean movedOff(String table, RangePartition.Split split, File dump, String coordDb) throws Exception {
+		TableSchema schema = partitioner.tableSchema(table);
+		for(String attr: partitioner.filteredAttrs(table)) {
+			String attrDb = coordDb + "." + attr;
+			File leftDump = new File(dump.getPath() + "." + attr);
+			Map<String, String> ops = new HashMap<String, String>();
+			// A row for each value of the ones that stay, a select's output is
+			// made like the table. A null range value isn't in any range, its rows stay.
+			ops.put(split.from, "select * from " + table + " where rowid in (select min(rowid) from " + table
+					+ " where not coalesce((" + split.where() + "), 0) group by " + attr + ")");
+			List<String> files = CoordinatorJoin.fetch(server, fs, ops, errors);
+			try {
+				if(!errors.isEmpty()) {
+					return false;
+				}
+				CoordinatorJoin.runScript(LOG, "dump", attrDb, table, Arrays.asList(leftDump.getPath()), files);
+				int col = schema.indexOf(attr) + 1;
+				partitioner.movedOff(table, split.from, attr, values(dump, col), values(leftDump, col));
+			} finally {
+				for(String f: files) {
+					new File(f).delete();
+				}
+				new File(attrDb).delete();
+				leftDump.delete();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the distinct values in a column of a dump
+	 */
+	static Set<String> values(File dump, int col) throws IOException {
+		Set<String> out = new HashSet<String>();
+		BufferedReader in = open(dump);
+		try {
+			String row;
+			while((row = readRow(in)) != null) {
+				out.add(TableSchema.splitValues(row)[col]);
+			}
+		} finally {
+			in.close();
+		}
+		return out;
+	}
+
+	/**
+	 * Send each node its statement and wait for all of them to answer
+	 * @return the nodes that didn't do it
+	 */
+	private List<String> sendAll(Map<String, String> ops) {
+		List<String> failed = new ArrayList<String>();
+		int waiting = 0;
+		for(Map.Entry<String, String> op: ops.entrySet()) {
+			if(server.sendHostMessage(op.getKey(), op.getValue())) {
+				waiting++;
+			} else {
+				errors.add(op.getKey() + ": unable to send");
+				failed.add(op.getKey());
+			}
+		}
+		while(waiting > 0) {
+			List<Object> resp = server.getNextMessage();
+			String msg = ((String) resp.get(1)).trim();
+			String node = server.getHost((ChannelHandlerContext) resp.get(0));
+			waiting--;
+			if(msg.contains("ERROR")) {
+				errors.add(node + ": " + msg);
+				failed.add(node);
+			}
+		}
+		return failed;
+	}
+
+	private String errorString(String what) {
+		String out = "ERROR " + what + ":\n";
+		for(String e: errors) {
+			out += "\t" + e + "\n";
+		}
+		return out;
+	}
+}
@@ -0,0 +1,138 @@
+package distributeddb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A uniform sample of the rows of a table (reservoir sampling, every row
+ * seen has the same chance of being in it however many there are), keeping
+ * the integer range attribute of each and how many bytes the row was. Used
+ * to work out RANGE bounds that give each node about the same amount of
+ * data.
+ *
+ * Either rows are offered with add, or whoever counts them picks the slots
+ * itself and fills them with put (see RangePartition's split sampling).
+ */
+class RangeSample {
+	public static final int DEFAULT_SIZE = 10000;
+
+	// Position of the range attribute in a row
+	private final int posn;
+	private final int[] values;
+	private final long[] bytes;
+	private final Random random;
+	private int filled;
+	private long seen;
+
+	public RangeSample(int posn) {
+		this(posn, DEFAULT_SIZE);
+	}
+
+	public RangeSample(int posn, int size) {
+		this.posn = posn;
+		this.values = new int[size];
+		this.bytes = new long[size];
+		this.random = new Random();
+		this.filled = 0;
+		this.seen = 0;
+	}
+
+	/**
+	 * Offer a row to the sample, rows whose range attribute isn't an integer
+	 * are skipped as they can't be inserted anyway
+	 * @param fields the row's values, as BulkLoader.splitCsvLine gives them
+	 */
+	public synchronized void add(List<String> fields) {
+		if(posn >= fields.size()) {
+			return;
+		}
+		int v;
+		try {
+			v = Integer.parseInt(fields.get(posn).trim());
+		} catch(NumberFormatException e) {
+			return;
+		}
+		// About the length of the row's values in an insert
+		long len = 2 * (fields.size() - 1);
+		for(String f: fields) {
+			len += f.length();
+		}
+		seen++;
+		int slot;
+		if(filled < values.length) {
+			slot = filled++;
+		} else {
+			long r = (long) (random.nextDouble() * seen);
+			if(r >= values.length) {
+				return;
+			}
+			slot = (int) r;
+		}
+		values[slot] = v;
+		bytes[slot] = len;
+	}
+
+	/**
+	 * Keep a row in a slot of the sample, replacing what was there
+	 * @param slot less than the sample's size
+	 */
+	public synchronized void put(int slot, int value, long len) {
+		values[slot] = value;
+		bytes[slot] = len;
+		if(slot >= filled) {
+			// Slots are taken in order, a gap is only one being filled by another thread
+			filled = slot + 1;
+		}
+		seen++;
+	}
+
+	public int size() {
+		return values.length;
+	}
+
+	/**
+	 * @return rows offered to the sample
+	 */
+	public synchronized long seen() {
+		return seen;
+	}
+
+	/**
+	 * Cut the sampled values into at most parts ranges holding about the same
+	 * bytes each. All rows with the same value are in the same range, so a
+	 * value with more than a range's share makes for fewer ranges.
+	 * @return ranges covering every integer, lowest first
+	 */
+	public synchronized List<Range> ranges(int parts) {
+		// Value in the high half so sorting orders by it, slot in the low half
+		long[] order = new long[filled];
+		long total = 0;
+		for(int i = 0; i < filled; i++) {
+			order[i] = ((long) values[i] << 32) | i;
+			total += bytes[i];
+		}
+		Arrays.sort(order);
+
+		List<Range> out = new ArrayList<Range>();
+		int lo = Integer.MIN_VALUE;
+		long sum = 0;
+		int cut = 1;
+		for(int i = 0; i < order.length && cut < parts; i++) {
+			int v = (int) (order[i] >> 32);
+			sum += bytes[(int) order[i]];
+			// Only cut between two different values, the last range isn't left empty
+			boolean lastOfValue = i + 1 < order.length && (int) (order[i + 1] >> 32) != v;
+			if(lastOfValue && sum * parts >= total * cut) {
+				out.add(new Range(lo, v));
+				lo = v;
+				while(cut < parts && sum * parts >= total * cut) {
+					cut++;
+				}
+			}
+		}
+		out.add(new Range(lo, Integer.MAX_VALUE));
+		return out;
+	}
+}
@@ -0,0 +1,166 @@
+package distributeddb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.logging.Log;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsAction;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.yarn.api.records.LocalResourceVisibility;
+
+/**
+ * The jar and scripts every application localizes, kept in HDFS under the
+ * SHA-1 of their contents so each version is uploaded once and every
+ * application after that uses the same file. The files and their directories
+ * are readable by everyone, which lets the node managers localize them as
+ * PUBLIC resources: a node downloads a version once and all containers of
+ * every application on it share that copy.
+ *
+ * A file already in the cache is never written again, so its timestamp (what
+ * the node managers check their copy against) doesn't change between
+ * applications. Where the cache can't be used, e.g. its directory belongs to
+ * someone else and isn't readable, the file is copied to the application's
+ * own directory as before and localized with APPLICATION visibility.
+ */
+class SharedCache {
+	static final String CACHE_DIR = "/distributeddb/cache";
+	// rwxr-xr-x and rw-r--r--
+	private static final FsPermission DIR_PERMISSION = new FsPermission((short) 0755);
+	private static final FsPermission FILE_PERMISSION = new FsPermission((short) 0644);
+
+	private final FileSystem fs;
+	private final FileSystem localFs;
+	private final Log LOG;
+
+	/**
+	 * Where a file was put
+	 */
+	static class Entry {
+		final Path path;
+		final long len;
+		final long timestamp;
+		final LocalResourceVisibility visibility;
+
+		Entry(Path path, FileStatus status, LocalResourceVisibility visibility) {
+			this.path = path;
+			this.len = status.getLen();
+			this.timestamp = status.getModificationTime();
+			this.visibility = visibility;
+		}
+	}
+
+	public SharedCache(FileSystem fs, FileSystem localFs, Log log) {
+		this.fs = fs;
+		this.localFs = localFs;
+		this.LOG = log;
+	}
+
+	/**
+	 * Put a local file in the cache, uploading it only if that version isn't
+	 * there yet
+	 * @param name the file's name in the cache
+	 * @param appSuffix where under the home directory it goes if the cache
+	 * can't be used
+	 */
+	public Entry put(Path src, String name, String appSuffix) throws IOException {
+		try {
+			Path dst = new Path(CACHE_DIR + "/" + digest(src) + "/" + name);
+			if(fs.exists(dst)) {
+				LOG.info("[CACHE] " + name + " already in " + dst);
+			} else {
+				upload(src, dst);
+			}
+			if(isPublic(dst)) {
+				return new Entry(dst, fs.getFileStatus(dst), LocalResourceVisibility.PUBLIC);
+			}
+			LOG.warn("[CACHE] " + dst + " isn't readable by everyone");
+		} catch(IOException e) {
+			LOG.warn("[CACHE] Unable to use " + CACHE_DIR + " for " + name + ": " + e.getMessage());
+		}
+		Path dst = new Path(fs.getHomeDirectory(), appSuffix);
+		fs.copyFromLocalFile(false, true, src, dst);
+		return new Entry(dst, fs.getFileStatus(dst), LocalResourceVisibility.APPLICATION);
+	}
+
+	/**
+	 * Hex SHA-1 of a local file's contents
+	 */
+	private String digest(Path src) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch(NoSuchAlgorithmException e) {
+			throw new IOException("NoSha1", e);
+		}
+		InputStream in = localFs.open(src);
+		try {
+			byte[] buf = new byte[64 * 1024];
+			int n;
+			while((n = in.read(buf)) > 0) {
+				md.update(buf, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		StringBuilder hex = new StringBuilder();
+		for(byte b: md.digest()) {
+			hex.append(String.format("%02x", b & 0xff));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Write to a temporary name and rename it into place, so another client
+	 * uploading the same file at the same time never sees half of it
+	 */
+	private void upload(Path src, Path dst) throws IOException {
+		mkdirs(dst.getParent());
+		Path tmp = new Path(dst.getParent(), "." + dst.getName() + "." + System.nanoTime());
+		fs.copyFromLocalFile(false, true, src, tmp);
+		fs.setPermission(tmp, FILE_PERMISSION);
+		if(fs.rename(tmp, dst)) {
+			LOG.info("[CACHE] Uploaded " + src + " to " + dst);
+			return;
+		}
+		fs.delete(tmp, false);
+		if(!fs.exists(dst)) {
+			throw new IOException("CacheRenameFailed");
+		}
+		// Someone else uploaded it first, their copy is the same
+	}
+
+	/**
+	 * Make the directory and any parents missing, readable by everyone
+	 */
+	private void mkdirs(Path dir) throws IOException {
+		if(dir == null || fs.exists(dir)) {
+			return;
+		}
+		mkdirs(dir.getParent());
+		// mkdirs applies the umask, the permission is set again after
+		fs.mkdirs(dir, DIR_PERMISSION);
+		fs.setPermission(dir, DIR_PERMISSION);
+	}
+
+	/**
+	 * What the node managers check before localizing a PUBLIC resource: the
+	 * file is readable by others and every directory above it can be
+	 * entered by others
+	 */
+	private boolean isPublic(Path file) throws IOException {
+		if(!fs.getFileStatus(file).getPermission().getOtherAction().implies(FsAction.READ)) {
+			return false;
+		}
+		for(Path dir = file.getParent(); dir != null; dir = dir.getParent()) {
+			if(!fs.getFileStatus(dir).getPermission().getOtherAction().implies(FsAction.EXECUTE)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -2,12 +2,14 @@ package distributeddb;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.TreeMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Executors;
 
 import org.apache.commons.logging.Log;
@@ -26,17 +28,27 @@ public class TCPServer {
 	  private final int port;
 	  private final String host;
 	  private Log LOG;
-	  private Queue<List<Object>> queryQueue;
+	  private BlockingQueue<List<Object>> queryQueue;
 	  private ChannelPipeline myPipeline;
 	  private Map<String, ChannelHandlerContext> hostMap;
+	  // Idle standby containers on each host, not registered for anything yet
+	  private Map<String, List<ChannelHandlerContext>> standbyMap = new HashMap<String, List<ChannelHandlerContext>>();
 	  private ChannelHandlerContext appMasterCh;
+	  private volatile RegistrationListener registrationListener;
+
+	  /**
+	   * Told each time a host's agent registers
+	   */
+	  public interface RegistrationListener {
+		  void registered(String host);
+	  }
 
 	  public TCPServer(int port, Log l) {
 		  this.port = port;
 		  this.host = "localhost";
 		  this.LOG = l;
-		  this.queryQueue = new ConcurrentLinkedQueue<List<Object>>();
-		  this.hostMap = new HashMap<String, ChannelHandlerContext>();
+		  this.queryQueue = new LinkedBlockingQueue<List<Object>>();
+		  this.hostMap = new ConcurrentHashMap<String, ChannelHandlerContext>();
 		  this.appMasterCh = null;
 	  }
 	  
@@ -44,8 +56,8 @@ public class TCPServer {
 		  this.port = port;
 		  this.host = host;
 		  this.LOG = l;
-		  this.queryQueue = new ConcurrentLinkedQueue<List<Object>>();
-		  this.hostMap = new HashMap<String, ChannelHandlerContext>();
+		  this.queryQueue = new LinkedBlockingQueue<List<Object>>();
+		  this.hostMap = new ConcurrentHashMap<String, ChannelHandlerContext>();
 		  this.appMasterCh = null;
 	  }
 	  /**
@@ -80,6 +92,14 @@ public class TCPServer {
 	   */
 	  public void registerHost(String host, ChannelHandlerContext ch) {
 		  hostMap.put(host,  ch);
+		  RegistrationListener l = registrationListener;
+		  if(l != null) {
+			  l.registered(host);
+		  }
+	  }
+
+	  public void setRegistrationListener(RegistrationListener l) {
+		  registrationListener = l;
 	  }
 
 	  /**
@@ -90,28 +110,147 @@ public class TCPServer {
 		  appMasterCh = ch;
 	  }
 	  
+	  /**
+	   * Find the host a channel was registered for
+	   * @param ctx channel the message came in on
+	   * @return host name or null if the channel isn't a registered host
+	   */
+	  public String getHost(ChannelHandlerContext ctx) {
+		  for(Map.Entry<String, ChannelHandlerContext> e: hostMap.entrySet()) {
+			  if(e.getValue().getChannel() == ctx.getChannel()) {
+				  return e.getKey();
+			  }
+		  }
+		  return null;
+	  }
+	  
+	  /**
+	   * Messages about the nodes themselves rather than answers to what they
+	   * were sent. A node going down answers everything it still owes with an
+	   * error so nobody waits on it, one that comes back connects again and
+	   * takes over its host. A standby container on the host takes over
+	   * straight away.
+	   * @return true if the message was one of them
+	   */
+	  private boolean nodeEvent(ChannelHandlerContext ctx, String msg) {
+		  String[] parts = msg.trim().split("\\s+");
+		  if(parts[0].equals(DDBConstants.NODE_DOWN)) {
+			  for(String host: parts) {
+				  // Events sent close together can arrive as one message
+				  if(host.equals(DDBConstants.NODE_DOWN) || !hostMap.containsKey(host)) {
+					  continue;
+				  }
+				  long owed = NodeLoad.outstanding(host);
+				  if(NodeLoad.down(host)) {
+					  LOG.warn("[TCPSERVER] Node " + host + " is down, failing " + owed + " outstanding messages");
+				  }
+				  for(long i = 0; i < owed; i++) {
+					  List<Object> tmp = new ArrayList<Object>();
+					  tmp.add(hostMap.get(host));
+					  tmp.add("ERROR: node " + host + " is down");
+					  queryQueue.add(tmp);
+				  }
+				  ChannelHandlerContext standby = takeStandby(host);
+				  if(standby != null) {
+					  promote(host, standby);
+				  }
+			  }
+			  return true;
+		  }
+		  if(parts[0].equals(DDBConstants.STANDBY) && parts.length == 3) {
+			  if(NodeLoad.isDown(parts[1]) && hostMap.containsKey(parts[1])) {
+				  // Started after its host's agent died
+				  promote(parts[1], ctx);
+			  } else {
+				  addStandby(parts[1], ctx);
+				  LOG.info("[TCPSERVER] Standby container on " + parts[1]);
+			  }
+			  return true;
+		  }
+		  if(parts[0].equals("connect") && parts.length == 3 && hostMap.containsKey(parts[1])) {
+			  // A relaunched container, the first registration is up to the Client
+			  registerHost(parts[1], ctx);
+			  NodeLoad.up(parts[1]);
+			  LOG.warn("[TCPSERVER] Node " + parts[1] + " is back up");
+			  return true;
+		  }
+		  return false;
+	  }
+
+	  private void promote(String host, ChannelHandlerContext ctx) {
+		  registerHost(host, ctx);
+		  NodeLoad.up(host);
+		  LOG.warn("[TCPSERVER] Standby container took over " + host);
+	  }
+
+	  private synchronized void addStandby(String host, ChannelHandlerContext ctx) {
+		  List<ChannelHandlerContext> l = standbyMap.get(host);
+		  if(l == null) {
+			  l = new ArrayList<ChannelHandlerContext>();
+			  standbyMap.put(host, l);
+		  }
+		  l.add(ctx);
+	  }
+
+	  /**
+	   * @return a standby container on the host that is still connected, null if there is none
+	   */
+	  private synchronized ChannelHandlerContext takeStandby(String host) {
+		  List<ChannelHandlerContext> l = standbyMap.get(host);
+		  while(l != null && !l.isEmpty()) {
+			  ChannelHandlerContext ctx = l.remove(0);
+			  if(ctx.getChannel().isConnected()) {
+				  return ctx;
+			  }
+		  }
+		  return null;
+	  }
+
+	  /**
+	   * @return number of connected standby containers on each host that has any
+	   */
+	  public synchronized Map<String, Integer> standbyCounts() {
+		  Map<String, Integer> out = new TreeMap<String, Integer>();
+		  for(Map.Entry<String, List<ChannelHandlerContext>> e: standbyMap.entrySet()) {
+			  int n = 0;
+			  for(ChannelHandlerContext ctx: e.getValue()) {
+				  if(ctx.getChannel().isConnected()) {
+					  n++;
+				  }
+			  }
+			  if(n > 0) {
+				  out.put(e.getKey(), n);
+			  }
+		  }
+		  return out;
+	  }
+
+	  /**
+	   * Blocks until there is a message
+	   * @return list of the ChannelHandlerContext and the message string
+	   */
 	  public List<Object> getNextMessage() {
 		while (true) {
-			List<Object> tmp = queryQueue.poll();
-			if(tmp == null) {
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e) {
-					LOG.warn("Thread interrupted from sleep?" + e.getLocalizedMessage());
-				}
+			List<Object> tmp;
+			try {
+				tmp = queryQueue.take();
+			} catch (InterruptedException e) {
+				LOG.warn("Thread interrupted while waiting for a message?" + e.getLocalizedMessage());
+				continue;
+			}
+			//List object should have 2 parts, the Channel and the Query
+			if(tmp.size() != 2){
+				LOG.warn("List returned from channel should be size 2");
 				continue;
-			} else {
-				//List object should have 2 parts, the Channel and the Query
-				if(tmp.size() != 2){
-					LOG.warn("List returned from channel should be size 2");
-					continue;
-				}
-				//Otherwise get components
-				//Channel ch = (Channel)tmp.get(0);
-				//String q = (String)tmp.get(1);
-				//LOG.info("From: " + ch.toString() + " query: " + q);
-				return tmp;
 			}
+			if(nodeEvent((ChannelHandlerContext) tmp.get(0), (String) tmp.get(1))) {
+				continue;
+			}
+			String host = getHost((ChannelHandlerContext) tmp.get(0));
+			if(host != null) {
+				NodeLoad.replied(host);
+			}
+			return tmp;
 		}
 	  }
 	  /**
@@ -145,14 +284,21 @@ public class TCPServer {
 				  LOG.info("[TCPSERVER] Host doesn't exist for '" + host + "'");
 				  return false;
 			  }
+			  if(NodeLoad.isDown(host)) {
+				  LOG.info("[TCPSERVER] Host '" + host + "' is down");
+				  return false;
+			  }
 			  
-			  // Now format the string
-			  CharSequence cs = (CharSequence)msg;
+			  // Now format the string, nodes read up to the newline so a long
+			  // message arriving in pieces is still handled as one
+			  CharSequence cs = (CharSequence)(msg + "\n");
 			  ChannelBuffer buf = ChannelBuffers.copiedBuffer(cs,  Charset.defaultCharset());
 			  
-			  // Send using the proper channel
-			  LOG.info("[TCPSERVER.sendHostMessage] Sending to '" + host + "' msg: '" + msg + "'");
+			  // Send using the proper channel, batches can be big so don't log all of it
+			  String logMsg = msg.length() > 200 ? msg.substring(0, 200) + "... (" + msg.length() + " chars)" : msg;
+			  LOG.info("[TCPSERVER.sendHostMessage] Sending to '" + host + "' msg: '" + logMsg + "'");
 			  ctx.getChannel().write(buf);
+			  NodeLoad.sent(host);
 		  } catch (Exception e) {
 			  LOG.error("[TCPSERVER] Failure to send results!");
 			  return false;
@@ -190,11 +336,8 @@ public class TCPServer {
 		  bootstrap.setOption("child.keepAlive", true);
 		  
 		  Map<String, Object> opts = bootstrap.getOptions();
-		  Iterator<Map.Entry<String, Object>> it = opts.entrySet().iterator();
-		  
 		  LOG.info("[TCPSERVER] Options:");
-		  while(it.hasNext()) {
-			  Map.Entry<String, Object> p = (Map.Entry<String, Object>)it.next();
+		  for(Map.Entry<String, Object> p: opts.entrySet()) {
 			  LOG.info("[TCPSERVER] Key: " + p.getKey() + ": " + p.getValue());
 		  }
 
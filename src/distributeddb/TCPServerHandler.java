@@ -2,7 +2,7 @@ package distributeddb;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
 import java.net.SocketAddress;
 
 import org.apache.commons.logging.Log;
@@ -15,10 +15,10 @@ import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 
 public class TCPServerHandler extends SimpleChannelUpstreamHandler {
-	  private Queue<List<Object>> queryQueue;
+	  private BlockingQueue<List<Object>> queryQueue;
 	  private Log LOG;
 	  
-	  public TCPServerHandler(Queue<List<Object>> ql, Log l) {
+	  public TCPServerHandler(BlockingQueue<List<Object>> ql, Log l) {
 		  this.queryQueue = ql;
 		  this.LOG = l;
 	  }
@@ -0,0 +1,105 @@
+package distributeddb;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The attributes a table was declared with, "i INTEGER, uname CHAR(10)".
+ * Used to find where an attribute sits in the values of an insert and what
+ * type it is.
+ */
+class TableSchema implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private final List<String> names;
+	private final List<String> types;
+
+	public TableSchema(String declAttrs) throws Exception {
+		names = new ArrayList<String>();
+		types = new ArrayList<String>();
+		Pattern pat = Pattern.compile("(\\S+)\\s+([^\\s(]+)\\s*(\\(.*\\))?.*", Pattern.CASE_INSENSITIVE);
+		for(String a: splitValues(declAttrs)) {
+			Matcher mat = pat.matcher(a);
+			if(!mat.matches()) {
+				throw new Exception("InvalidAttributeDeclaration");
+			}
+			names.add(mat.group(1));
+			//NOTE the regex gives us size if they declared it but we don't care
+			types.add(mat.group(2).toLowerCase());
+		}
+	}
+
+	/**
+	 * @return position of the attribute or -1 if it isn't declared
+	 */
+	public int indexOf(String name) {
+		return names.indexOf(name.trim());
+	}
+
+	public String getName(int i) {
+		return names.get(i);
+	}
+
+	public String getType(int i) {
+		return types.get(i);
+	}
+
+	/**
+	 * @return true if sqlite gives the attribute text affinity, a value is
+	 * kept as the text it is given even if it looks like a number
+	 */
+	public boolean isText(int i) {
+		String t = types.get(i);
+		return t.contains("char") || t.contains("clob") || t.contains("text");
+	}
+
+	public int size() {
+		return names.size();
+	}
+
+	/**
+	 * The same value written differently ('a' or a, 7 or 007) comes out the
+	 * same, for keeping track of values seen
+	 */
+	public static String canonicalValue(String type, String value) {
+		String v = WhereClause.unquote(value);
+		try {
+			if(type.equals("integer")) {
+				return String.valueOf(Long.parseLong(v));
+			} else if(type.equals("decimal")) {
+				return String.valueOf(Double.parseDouble(v));
+			}
+		} catch(NumberFormatException e) {
+			// Keep it as written
+		}
+		return v;
+	}
+
+	/**
+	 * Split a comma separated list, commas inside quotes or parens don't count.
+	 * Each piece is trimmed.
+	 */
+	public static String[] splitValues(String vals) {
+		List<String> out = new ArrayList<String>();
+		int depth = 0;
+		boolean quoted = false;
+		int start = 0;
+		for(int i = 0; i < vals.length(); i++) {
+			char c = vals.charAt(i);
+			if(c == '\'') {
+				quoted = !quoted;
+			} else if(!quoted && c == '(') {
+				depth++;
+			} else if(!quoted && c == ')') {
+				depth--;
+			} else if(!quoted && depth == 0 && c == ',') {
+				out.add(vals.substring(start, i).trim());
+				start = i + 1;
+			}
+		}
+		out.add(vals.substring(start).trim());
+		return out.toArray(new String[out.size()]);
+	}
+}
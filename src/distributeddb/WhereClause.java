@@ -0,0 +1,215 @@
+package distributeddb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Breaks a where clause into the simple "attr op value" predicates that are
+ * ANDed together, so partitions can work out which nodes a select needs.
+ * Anything we don't understand is left out, which is safe because it can only
+ * filter rows further. If the clause has an OR nothing can be pruned.
+ */
+class WhereClause {
+	static class Predicate {
+		final String attr;
+		final String op;
+		final String value;
+
+		Predicate(String attr, String op, String value) {
+			this.attr = attr;
+			this.op = op;
+			this.value = value;
+		}
+
+		public String toString() {
+			return attr + " " + op + " " + value;
+		}
+	}
+
+	private static final Pattern PRED_PAT = Pattern.compile("\\s*([\\w.]+)\\s*(<=|>=|<>|!=|=|<|>)\\s*(.+?)\\s*");
+	private static final Pattern IN_PAT = Pattern.compile("\\s*([\\w.]+)\\s+in\\s*\\((.*)\\)\\s*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private static final Pattern BETWEEN_PAT = Pattern.compile("([\\w.]+)\\s+between\\s+(\\S+)\\s+and\\s+(\\S+)", Pattern.CASE_INSENSITIVE);
+	// A quoted string with '' for a quote in it, or a number
+	private static final Pattern STRING_LIT_PAT = Pattern.compile("'(?:[^']|'')*'");
+	private static final Pattern NUMBER_LIT_PAT = Pattern.compile("[+-]?(?:\\d+\\.?\\d*|\\.\\d+)(?:[eE][+-]?\\d+)?");
+	private static final Pattern TAIL_PAT = Pattern.compile("\\s(order\\s+by|group\\s+by|having|limit)\\s", Pattern.CASE_INSENSITIVE);
+
+	private final List<Predicate> preds;
+	// "attr in (a, b)", the attribute and its values
+	private final List<String> inAttrs;
+	private final List<List<String>> inValues;
+	private final boolean prunable;
+
+	private WhereClause(List<Predicate> preds, boolean prunable) {
+		this.preds = preds;
+		this.inAttrs = new ArrayList<String>();
+		this.inValues = new ArrayList<List<String>>();
+		this.prunable = prunable;
+	}
+
+	public static WhereClause parse(String where) {
+		List<Predicate> preds = new ArrayList<Predicate>();
+		if(where == null) {
+			return new WhereClause(preds, true);
+		}
+		String w = " " + where.trim() + " ";
+		// Only the filter part matters
+		Matcher tail = TAIL_PAT.matcher(w);
+		if(tail.find()) {
+			w = w.substring(0, tail.start());
+		}
+		w = w.trim().replaceFirst("(?i)^where\\s+", "");
+		if(w.endsWith(";")) {
+			w = w.substring(0, w.length() - 1);
+		}
+		// BETWEEN's AND would get in the way of splitting the conjuncts
+		w = BETWEEN_PAT.matcher(w).replaceAll("$1 >= $2 and $1 <= $3");
+
+		List<String> parts = splitOutsideQuotes(w);
+		if(parts == null) {
+			return new WhereClause(preds, false);
+		}
+		WhereClause clause = new WhereClause(preds, true);
+		for(String p: parts) {
+			Matcher mat = PRED_PAT.matcher(p);
+			Matcher inMat = IN_PAT.matcher(p);
+			if(mat.matches()) {
+				preds.add(new Predicate(mat.group(1), mat.group(2), mat.group(3)));
+			} else if(inMat.matches() && !inMat.group(2).toLowerCase().contains("select")) {
+				clause.inAttrs.add(inMat.group(1));
+				clause.inValues.add(Arrays.asList(TableSchema.splitValues(inMat.group(2))));
+			}
+		}
+		return clause;
+	}
+
+	/**
+	 * Split on the ANDs that aren't in a quoted string
+	 * @return the pieces, or null if there is an OR
+	 */
+	private static List<String> splitOutsideQuotes(String w) {
+		List<String> parts = new ArrayList<String>();
+		String lower = w.toLowerCase();
+		boolean quoted = false;
+		int start = 0;
+		for(int i = 0; i < w.length(); i++) {
+			char c = w.charAt(i);
+			if(c == '\'') {
+				quoted = !quoted;
+			} else if(!quoted && Character.isWhitespace(c)) {
+				if(lower.startsWith("or", i + 1) && i + 3 < w.length() && Character.isWhitespace(w.charAt(i + 3))) {
+					return null;
+				}
+				if(lower.startsWith("and", i + 1) && i + 4 < w.length() && Character.isWhitespace(w.charAt(i + 4))) {
+					parts.add(w.substring(start, i));
+					start = i + 4;
+					i += 3;
+				}
+			}
+		}
+		parts.add(w.substring(start));
+		return parts;
+	}
+
+	private static boolean attrMatches(String predAttr, String attr) {
+		// Attribute names aren't case sensitive
+		String p = predAttr.toLowerCase();
+		String a = attr.toLowerCase();
+		return p.equals(a) || p.endsWith("." + a);
+	}
+
+	/**
+	 * @return the literal value the attribute has to equal, or null if there
+	 * isn't one. Equal to another attribute or an expression doesn't count,
+	 * the value isn't known until the row is.
+	 */
+	public String getEquals(String attr) {
+		if(!prunable) {
+			return null;
+		}
+		for(Predicate p: preds) {
+			if(p.op.equals("=") && attrMatches(p.attr, attr) && isLiteral(p.value)) {
+				return p.value;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the values of an IN list on the attribute, or null if there
+	 * isn't one made only of literals
+	 */
+	public List<String> getIn(String attr) {
+		if(!prunable) {
+			return null;
+		}
+		for(int i = 0; i < inAttrs.size(); i++) {
+			if(attrMatches(inAttrs.get(i), attr)) {
+				for(String v: inValues.get(i)) {
+					if(!isLiteral(v)) {
+						return null;
+					}
+				}
+				return inValues.get(i);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return all the predicates on the attribute, empty if nothing can be
+	 * pruned. The value can be anything, see isLiteral.
+	 */
+	public List<Predicate> getPredicates(String attr) {
+		List<Predicate> out = new ArrayList<Predicate>();
+		if(!prunable) {
+			return out;
+		}
+		for(Predicate p: preds) {
+			if(attrMatches(p.attr, attr)) {
+				out.add(p);
+			}
+		}
+		return out;
+	}
+
+	public List<Predicate> getPredicates() {
+		return prunable ? preds : new ArrayList<Predicate>();
+	}
+
+	/**
+	 * @return true if the value is a quoted string
+	 */
+	public static boolean isStringLiteral(String v) {
+		return STRING_LIT_PAT.matcher(v.trim()).matches();
+	}
+
+	/**
+	 * @return true if the value is a number as written in SQL
+	 */
+	public static boolean isNumberLiteral(String v) {
+		return NUMBER_LIT_PAT.matcher(v.trim()).matches();
+	}
+
+	/**
+	 * @return true if the value is a string or number, not an attribute or
+	 * an expression
+	 */
+	public static boolean isLiteral(String v) {
+		return isStringLiteral(v) || isNumberLiteral(v);
+	}
+
+	/**
+	 * Strip the single quotes off a string value
+	 */
+	public static String unquote(String v) {
+		v = v.trim();
+		if(v.length() >= 2 && v.startsWith("'") && v.endsWith("'")) {
+			return v.substring(1, v.length() - 1);
+		}
+		return v;
+	}
+}
@@ -0,0 +1,362 @@
+package distributeddb;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Min and max of every numeric and char attribute of a table on each node,
+ * kept up to date by the insert routing. A select whose where clause can't
+ * be true anywhere in a node's [min, max] skips that node. Useful when
+ * inserts are ordered (by time, id) even though the table is partitioned
+ * randomly or round robin.
+ */
+class ZoneMap implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private static final List<String> NUMERIC_TYPES = Arrays.asList("integer", "int", "bigint", "decimal", "real", "float", "double", "numeric");
+	private static final List<String> CHAR_TYPES = Arrays.asList("char", "varchar", "text");
+
+	/**
+	 * What one node has seen, numeric attributes use the n arrays and char ones the s arrays
+	 */
+	private static class NodeZone implements Serializable {
+		private static final long serialVersionUID = 1L;
+		long rows;
+		double[] nMin;
+		double[] nMax;
+		String[] sMin;
+		String[] sMax;
+		// Set once the attribute got a value that isn't null
+		boolean[] seen;
+		// Set once the attribute got a value we couldn't compare
+		boolean[] unknown;
+		// A new char min or max is kept as the row that had it and where it is
+		// in that row, it is only copied out when it is looked at
+		transient String[] minRow;
+		transient long[] minAt;
+		transient String[] maxRow;
+		transient long[] maxAt;
+
+		NodeZone(int size) {
+			nMin = new double[size];
+			nMax = new double[size];
+			sMin = new String[size];
+			sMax = new String[size];
+			seen = new boolean[size];
+			unknown = new boolean[size];
+		}
+
+		/**
+		 * Copy out the char mins and maxes still kept as rows
+		 */
+		void settle() {
+			if(minRow == null) {
+				return;
+			}
+			for(int i = 0; i < sMin.length; i++) {
+				if(minRow[i] != null) {
+					sMin[i] = minRow[i].substring(KeyRouter.start(minAt[i]), KeyRouter.end(minAt[i]));
+					minRow[i] = null;
+				}
+				if(maxRow[i] != null) {
+					sMax[i] = maxRow[i].substring(KeyRouter.start(maxAt[i]), KeyRouter.end(maxAt[i]));
+					maxRow[i] = null;
+				}
+			}
+		}
+
+		void setMin(int i, String vals, int start, int end) {
+			pending();
+			minRow[i] = vals;
+			minAt[i] = ((long) start << 32) | end;
+		}
+
+		void setMax(int i, String vals, int start, int end) {
+			pending();
+			maxRow[i] = vals;
+			maxAt[i] = ((long) start << 32) | end;
+		}
+
+		private void pending() {
+			if(minRow == null) {
+				minRow = new String[sMin.length];
+				minAt = new long[sMin.length];
+				maxRow = new String[sMax.length];
+				maxAt = new long[sMax.length];
+			}
+		}
+
+		/**
+		 * @return how vals[start, end) compares to the attribute's min
+		 */
+		int compareMin(int i, String vals, int start, int end) {
+			if(minRow != null && minRow[i] != null) {
+				return compare(vals, start, end, minRow[i], KeyRouter.start(minAt[i]), KeyRouter.end(minAt[i]));
+			}
+			return compare(vals, start, end, sMin[i], 0, sMin[i].length());
+		}
+
+		int compareMax(int i, String vals, int start, int end) {
+			if(maxRow != null && maxRow[i] != null) {
+				return compare(vals, start, end, maxRow[i], KeyRouter.start(maxAt[i]), KeyRouter.end(maxAt[i]));
+			}
+			return compare(vals, start, end, sMax[i], 0, sMax[i].length());
+		}
+
+		private void writeObject(ObjectOutputStream out) throws IOException {
+			settle();
+			out.defaultWriteObject();
+		}
+	}
+
+	/**
+	 * String.compareTo of a[aStart, aEnd) and b[bStart, bEnd)
+	 */
+	static int compare(String a, int aStart, int aEnd, String b, int bStart, int bEnd) {
+		int n = Math.min(aEnd - aStart, bEnd - bStart);
+		for(int k = 0; k < n; k++) {
+			char ca = a.charAt(aStart + k);
+			char cb = b.charAt(bStart + k);
+			if(ca != cb) {
+				return ca - cb;
+			}
+		}
+		return (aEnd - aStart) - (bEnd - bStart);
+	}
+
+	private static final int OTHER = 0;
+	private static final int NUMERIC = 1;
+	private static final int CHAR = 2;
+	// Powers of ten that are exact doubles, for reading plain decimals
+	private static final double[] POW10 = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15};
+
+	private final TableSchema schema;
+	private final Map<String, NodeZone> zones;
+	// NUMERIC, CHAR or OTHER for each attribute
+	private transient int[] kinds;
+
+	public ZoneMap(String declAttrs) throws Exception {
+		this.schema = new TableSchema(declAttrs);
+		this.zones = new HashMap<String, NodeZone>();
+	}
+
+	private boolean isNumeric(int i) {
+		return NUMERIC_TYPES.contains(schema.getType(i));
+	}
+
+	private boolean isChar(int i) {
+		return CHAR_TYPES.contains(schema.getType(i));
+	}
+
+	private int[] kinds() {
+		if(kinds == null) {
+			int[] k = new int[schema.size()];
+			for(int i = 0; i < k.length; i++) {
+				k[i] = isNumeric(i) ? NUMERIC : isChar(i) ? CHAR : OTHER;
+			}
+			kinds = k;
+		}
+		return kinds;
+	}
+
+	/**
+	 * Widen the node's zone to take in the row. The values are looked at
+	 * where they are in the row, routing a row doesn't split it up.
+	 * @param vals the row's values as they appear inside the parens of an insert
+	 */
+	public synchronized void add(String vals, String node) {
+		NodeZone z = zones.get(node);
+		if(z == null) {
+			z = new NodeZone(schema.size());
+			zones.put(node, z);
+		}
+		z.rows++;
+		int[] kind = kinds();
+		int from = 0;
+		for(int i = 0; i < kind.length && from <= vals.length(); i++) {
+			int to = KeyRouter.fieldEnd(vals, from);
+			long f = KeyRouter.trimmed(vals, from, to);
+			from = to + 1;
+			int start = KeyRouter.start(f);
+			int end = KeyRouter.end(f);
+			if(z.unknown[i] || kind[i] == OTHER || (end - start == 4 && vals.regionMatches(true, start, "null", 0, 4))) {
+				continue;
+			}
+			boolean quoted = isQuoted(vals, start, end);
+			// What an expression stores isn't known here
+			if(kind[i] == NUMERIC) {
+				if(quoted) {
+					long t = KeyRouter.trimmed(vals, start + 1, end - 1);
+					start = KeyRouter.start(t);
+					end = KeyRouter.end(t);
+				}
+				double d = number(vals, start, end);
+				if(Double.isNaN(d)) {
+					z.unknown[i] = true;
+					continue;
+				}
+				if(!z.seen[i] || d < z.nMin[i]) {
+					z.nMin[i] = d;
+				}
+				if(!z.seen[i] || d > z.nMax[i]) {
+					z.nMax[i] = d;
+				}
+				z.seen[i] = true;
+			} else {
+				// A number is stored as sqlite writes it, 1e3 as 1000.0
+				if(!quoted) {
+					z.unknown[i] = true;
+					continue;
+				}
+				if(!z.seen[i] || z.compareMin(i, vals, start + 1, end - 1) < 0) {
+					z.setMin(i, vals, start + 1, end - 1);
+				}
+				if(!z.seen[i] || z.compareMax(i, vals, start + 1, end - 1) > 0) {
+					z.setMax(i, vals, start + 1, end - 1);
+				}
+				z.seen[i] = true;
+			}
+		}
+	}
+
+	/**
+	 * WhereClause.isStringLiteral of vals[start, end)
+	 */
+	private static boolean isQuoted(String vals, int start, int end) {
+		if(end - start < 2 || vals.charAt(start) != '\'' || vals.charAt(end - 1) != '\'') {
+			return false;
+		}
+		for(int i = start + 1; i < end - 1; i++) {
+			// A quote inside has to be doubled
+			if(vals.charAt(i) == '\'' && (++i == end - 1 || vals.charAt(i) != '\'')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Double.parseDouble of vals[start, end), read in place when it is a plain
+	 * decimal of up to 15 digits: both the digits and the power of ten are
+	 * exact doubles so dividing one by the other rounds the way parsing does
+	 * @return NaN if it isn't a number literal
+	 */
+	private static double number(String vals, int start, int end) {
+		int i = start;
+		boolean neg = false;
+		if(i < end && (vals.charAt(i) == '-' || vals.charAt(i) == '+')) {
+			neg = vals.charAt(i) == '-';
+			i++;
+		}
+		long m = 0;
+		int digits = 0;
+		int scale = -1;
+		for(; i < end; i++) {
+			char c = vals.charAt(i);
+			if(c >= '0' && c <= '9') {
+				m = m * 10 + (c - '0');
+				digits++;
+				if(scale >= 0) {
+					scale++;
+				}
+			} else if(c == '.' && scale < 0) {
+				scale = 0;
+			} else {
+				break;
+			}
+		}
+		if(i == end && digits > 0 && digits <= 15) {
+			double d = m / POW10[Math.max(scale, 0)];
+			return neg ? -d : d;
+		}
+		String v = vals.substring(start, end);
+		return WhereClause.isNumberLiteral(v) ? Double.parseDouble(v) : Double.NaN;
+	}
+
+	/**
+	 * @return the nodes whose zones might have rows matching the where clause
+	 */
+	public synchronized List<String> prune(WhereClause where, List<String> nodes) {
+		List<String> out = new ArrayList<String>();
+		for(String n: nodes) {
+			NodeZone z = zones.get(n);
+			if(z != null) {
+				z.settle();
+			}
+			// A node that never got a row has nothing
+			if(z != null && z.rows > 0 && mightMatch(z, where)) {
+				out.add(n);
+			}
+		}
+		return out;
+	}
+
+	private boolean mightMatch(NodeZone z, WhereClause where) {
+		for(int i = 0; i < schema.size(); i++) {
+			// Only nulls so far compare false with anything, but don't count on it
+			if(z.unknown[i] || !z.seen[i] || (!isNumeric(i) && !isChar(i))) {
+				continue;
+			}
+			for(WhereClause.Predicate p: where.getPredicates(schema.getName(i))) {
+				int lo, hi;
+				// Compared against another attribute or an expression, only the row knows
+				if(isNumeric(i)) {
+					if(!WhereClause.isLiteral(p.value) || !WhereClause.isNumberLiteral(WhereClause.unquote(p.value))) {
+						continue;
+					}
+					double v = Double.parseDouble(WhereClause.unquote(p.value));
+					lo = Double.compare(v, z.nMin[i]);
+					hi = Double.compare(v, z.nMax[i]);
+				} else {
+					if(!WhereClause.isStringLiteral(p.value)) {
+						continue;
+					}
+					String v = WhereClause.unquote(p.value);
+					lo = v.compareTo(z.sMin[i]);
+					hi = v.compareTo(z.sMax[i]);
+				}
+				// lo/hi: how the value compares to the node's min/max
+				if((p.op.equals("=") && (lo < 0 || hi > 0))
+						|| (p.op.equals("<") && lo <= 0)
+						|| (p.op.equals("<=") && lo < 0)
+						|| (p.op.equals(">") && hi >= 0)
+						|| (p.op.equals(">=") && hi > 0)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	public synchronized String explain() {
+		String out = "";
+		for(Map.Entry<String, NodeZone> e: zones.entrySet()) {
+			NodeZone z = e.getValue();
+			z.settle();
+			out += "\tZone map " + e.getKey() + ":";
+			for(int i = 0; i < schema.size(); i++) {
+				if(z.unknown[i]) {
+					out += " " + schema.getName(i) + " ?";
+				} else if(!z.seen[i]) {
+					continue;
+				} else if(isNumeric(i)) {
+					out += " " + schema.getName(i) + " [" + z.nMin[i] + ", " + z.nMax[i] + "]";
+				} else if(isChar(i)) {
+					out += " " + schema.getName(i) + " ['" + z.sMin[i] + "', '" + z.sMax[i] + "']";
+				}
+			}
+			out += "\n";
+		}
+		return out;
+	}
+
+	// The catalog is saved while inserts are still widening the zones
+	private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+	}
+}
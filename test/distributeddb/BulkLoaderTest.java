@@ -0,0 +1,67 @@
+package distributeddb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.logging.LogFactory;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BulkLoaderTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private DDBPartitioner partitioner;
+	private RecordingServer server;
+
+	@Before
+	public void createTable() throws Exception {
+		partitioner = new DDBPartitioner(new ArrayList<String>(Arrays.asList("n0")), LogFactory.getLog("test"), tmp.getRoot().getPath() + "/");
+		partitioner.parseQuery("create table t(id INTEGER, code TEXT, v REAL) partition by roundrobin");
+		server = new RecordingServer();
+	}
+
+	@Test
+	public void splitCsvLine() {
+		List<String> fields = new ArrayList<String>();
+		BulkLoader.splitCsvLine(" 1 ,\"a,b\",\"say \"\"hi\"\"\",", ',', fields);
+		assertEquals(Arrays.asList("1", "a,b", "say \"hi\"", ""), fields);
+		BulkLoader.splitCsvLine("x|y", '|', fields);
+		assertEquals(Arrays.asList("x", "y"), fields);
+	}
+
+	@Test
+	public void fieldsAreQuotedByType() throws Exception {
+		BulkLoader loader = new BulkLoader(partitioner, server, LogFactory.getLog("test"), "t");
+		String csv = "1,x'; rm -rf ~; echo ',2.5\n2,007,\\N\n3,,1e3\n";
+		assertTrue(loader.load(new BufferedReader(new StringReader(csv)), ',').startsWith("SUCCESS loaded 3 rows"));
+		assertEquals(Arrays.asList("n0: insert into t values (1, 'x''; rm -rf ~; echo ''', 2.5), (2, '007', null), (3, null, 1e3)"), server.sent);
+	}
+
+	@Test
+	public void fullBuffersAreSent() throws Exception {
+		BulkLoader loader = new BulkLoader(partitioner, server, LogFactory.getLog("test"), "t", 2, 1024 * 1024);
+		for(int i = 0; i < 5; i++) {
+			loader.addRow(Arrays.asList(String.valueOf(i), "c" + i, ""));
+		}
+		assertEquals(2, server.sent.size());
+		assertTrue(loader.finish().startsWith("SUCCESS loaded 5 rows into t in 3 batches"));
+		assertEquals("n0: insert into t values (4, 'c4', null)", server.sent.get(2));
+
+		server.sent.clear();
+		loader = new BulkLoader(partitioner, server, LogFactory.getLog("test"), "t", 1000, 60);
+		for(int i = 0; i < 4; i++) {
+			loader.addRow(Arrays.asList(String.valueOf(i), "abcdefghij", "1"));
+		}
+		loader.finish();
+		assertEquals(2, server.sent.size());
+	}
+}
@@ -0,0 +1,100 @@
+package distributeddb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.LogFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CatalogLogTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private CatalogLog open() {
+		return new CatalogLog(tmp.getRoot().getPath() + "/", LogFactory.getLog("test"));
+	}
+
+	@Test
+	public void entriesSurviveReopening() throws Exception {
+		CatalogLog log = open();
+		assertFalse(log.exists());
+		log.put("table/t", new ArrayList<String>(Arrays.asList("n0", "n1")));
+		log.put("rows/t", 5L);
+		log.put("rows/u", 7L);
+		log.commit();
+		log.put("rows/t", 6L);
+		log.delete("rows/u");
+		log.commit();
+
+		Map<String, Object> expected = new HashMap<String, Object>();
+		expected.put("table/t", Arrays.asList("n0", "n1"));
+		expected.put("rows/t", 6L);
+		log = open();
+		assertTrue(log.exists());
+		assertEquals(expected, log.load());
+
+		// The same again from a snapshot with an empty log
+		log.compact();
+		assertEquals(0, new File(tmp.getRoot(), "catalog.log").length());
+		assertEquals(expected, open().load());
+	}
+
+	@Test
+	public void tornRecordEndsTheLog() throws Exception {
+		CatalogLog log = open();
+		log.put("rows/t", 5L);
+		log.commit();
+		log.put("rows/t", 6L);
+		log.commit();
+		File f = new File(tmp.getRoot(), "catalog.log");
+		long good = f.length();
+		// Half a record, as a crash in the middle of an append leaves it
+		FileOutputStream out = new FileOutputStream(f, true);
+		out.write(new byte[] {0, 0, 0, 40, 1, 2, 3});
+		out.close();
+
+		assertEquals(6L, open().load().get("rows/t"));
+		assertEquals(good, f.length());
+		// The dropped bytes are kept beside it
+		File[] torn = tmp.getRoot().listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith("catalog.log.torn.");
+			}
+		});
+		assertEquals(1, torn.length);
+		assertEquals(7, torn[0].length());
+	}
+
+	@Test
+	public void badCrcEndsTheLog() throws Exception {
+		CatalogLog log = open();
+		log.put("rows/t", 5L);
+		log.commit();
+		File f = new File(tmp.getRoot(), "catalog.log");
+		long good = f.length();
+		log.put("rows/t", 6L);
+		log.commit();
+		// Flip a byte of the second record's value
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		raf.seek(f.length() - 1);
+		int b = raf.read();
+		raf.seek(f.length() - 1);
+		raf.write(b ^ 1);
+		raf.close();
+
+		assertEquals(5L, open().load().get("rows/t"));
+		assertEquals(good, f.length());
+	}
+}
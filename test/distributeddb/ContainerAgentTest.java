@@ -0,0 +1,157 @@
+package distributeddb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.junit.Test;
+
+public class ContainerAgentTest {
+	@Test
+	public void plainLiterals() {
+		assertNull(ContainerAgent.literal("NULL"));
+		assertEquals(Long.valueOf(-42), ContainerAgent.literal("-42"));
+		assertEquals(Double.valueOf(2.5), ContainerAgent.literal("2.5"));
+		assertEquals(Double.valueOf(1e10), ContainerAgent.literal("1e10"));
+		assertEquals("it's", ContainerAgent.literal("'it''s'"));
+		assertEquals("", ContainerAgent.literal("''"));
+		assertEquals("'", ContainerAgent.literal("''''"));
+	}
+
+	@Test
+	public void otherValuesGoToSqlite() {
+		assertEquals(ContainerAgent.NOT_PLAIN, ContainerAgent.literal("X'0a'"));
+		assertEquals(ContainerAgent.NOT_PLAIN, ContainerAgent.literal("'a'||char(10)||'b'"));
+		assertEquals(ContainerAgent.NOT_PLAIN, ContainerAgent.literal("0x1f"));
+		assertEquals(ContainerAgent.NOT_PLAIN, ContainerAgent.literal("99999999999999999999"));
+		assertEquals(ContainerAgent.NOT_PLAIN, ContainerAgent.literal("abs(-1)"));
+	}
+
+	/**
+	 * Needs the sqlite JDBC driver on the classpath
+	 */
+	@Test
+	public void roundTrip() throws Exception {
+		assumeTrue(hasDriver());
+		Connection db = DriverManager.getConnection("jdbc:sqlite::memory:");
+		db.setAutoCommit(false);
+		ContainerAgent agent = new ContainerAgent(0, db);
+		assertEquals("SUCCESS", agent.handle("create table t(id INTEGER, v)"));
+		assertEquals("SUCCESS", agent.handle("insert into t values (1, NULL), (2, 7), (3, 'it''s')"));
+		assertEquals("SUCCESS", agent.handle("insert into t values (4, X'0a00ff'), (5, 'a'||char(10)||'b'), (6, 'x''y')"));
+
+		Statement st = db.createStatement();
+		ResultSet rs = st.executeQuery("select typeof(v), v from t order by id");
+		String[] types = {"null", "integer", "text", "blob", "text", "text"};
+		for(int i = 0; i < types.length; i++) {
+			rs.next();
+			assertEquals(types[i], rs.getString(1));
+		}
+		rs.close();
+		assertArrayEquals(new byte[] {0x0a, 0x00, (byte)0xff}, bytes(st, 4));
+		assertEquals("it's", text(st, 3));
+		assertEquals("a\nb", text(st, 5));
+		assertEquals("x'y", text(st, 6));
+		st.close();
+		db.close();
+	}
+
+	/**
+	 * Rows moved between nodes go in with their types, a node that can't
+	 * take them all keeps the rows it had
+	 */
+	@Test
+	public void loadRows() throws Exception {
+		assumeTrue(hasDriver());
+		String blk = moved("(1, NULL), (2, X'0a00ff'), (3, 'a'||char(10)||'b'), (4, 'it''s'), (5, 2.5)");
+		String bad = moved("(6, 'fine'), (NULL, 'bad')");
+		Connection db = DriverManager.getConnection("jdbc:sqlite::memory:");
+		db.setAutoCommit(false);
+		ContainerAgent agent = new ContainerAgent(0, db);
+		try {
+			agent.handle("create table t(id INTEGER NOT NULL, v)");
+			agent.handle("insert into t values (9, 'old')");
+			assertEquals("SUCCESS", agent.handle(DDBConstants.LOAD_ROWS + " t " + blk + " replace"));
+			Statement st = db.createStatement();
+			String[] types = {"null", "blob", "text", "text", "real"};
+			assertArrayEquals(types, types(st));
+			assertArrayEquals(new byte[] {0x0a, 0x00, (byte)0xff}, bytes(st, 2));
+			assertEquals("a\nb", text(st, 3));
+			assertEquals("it's", text(st, 4));
+
+			assertTrue(agent.handle(DDBConstants.LOAD_ROWS + " t " + bad + " replace").startsWith("ERROR"));
+			assertArrayEquals(types, types(st));
+			st.close();
+		} finally {
+			new File(home(), blk).delete();
+			new File(home(), bad).delete();
+			db.close();
+		}
+	}
+
+	/**
+	 * A db of rows for LOADROWS, where the agent looks for it
+	 * @return its name
+	 */
+	private static String moved(String rows) throws Exception {
+		String blk = "loadrows-test-" + System.nanoTime() + ".db";
+		Connection m = DriverManager.getConnection("jdbc:sqlite:" + new File(home(), blk).getPath());
+		Statement ms = m.createStatement();
+		ms.execute("create table t(id INTEGER, v)");
+		ms.execute("insert into t values " + rows);
+		ms.close();
+		m.close();
+		return blk;
+	}
+
+	private static String home() throws Exception {
+		return FileSystem.get(new Configuration()).getHomeDirectory().toUri().getPath();
+	}
+
+	private static String[] types(Statement st) throws Exception {
+		ResultSet rs = st.executeQuery("select typeof(v) from t order by id");
+		List<String> out = new ArrayList<String>();
+		while(rs.next()) {
+			out.add(rs.getString(1));
+		}
+		rs.close();
+		return out.toArray(new String[out.size()]);
+	}
+
+	private static boolean hasDriver() {
+		try {
+			Class.forName("org.sqlite.JDBC");
+			return true;
+		} catch(ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+	private static String text(Statement st, int id) throws Exception {
+		ResultSet rs = st.executeQuery("select v from t where id = " + id);
+		rs.next();
+		String v = rs.getString(1);
+		rs.close();
+		return v;
+	}
+
+	private static byte[] bytes(Statement st, int id) throws Exception {
+		ResultSet rs = st.executeQuery("select v from t where id = " + id);
+		rs.next();
+		byte[] v = rs.getBytes(1);
+		rs.close();
+		return v;
+	}
+}
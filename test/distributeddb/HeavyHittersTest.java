@@ -0,0 +1,64 @@
+package distributeddb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class HeavyHittersTest {
+	private static final List<String> NODES = Arrays.asList("n0", "n1", "n2", "n3");
+
+	@Test
+	public void keysAreMatchedInPlace() throws Exception {
+		HashPartition p = new HashPartition(NODES, "a INTEGER, b CHAR, c DECIMAL", "a, b, c", null);
+		String[] rows = {"5, 'x', 1.5", "005, 'x', 1.50", "-7, 'a, b', -0", "2147483647, '', 10000000", "+3, 'it''s', 2", " 3 ,'it''s', 2.0", "3, 'its', 2", "9999999999, 'x', 1"};
+		for(String a: rows) {
+			String key = p.keyText(a);
+			assertTrue(a, p.isKey(key, a));
+			for(String b: rows) {
+				assertEquals(a + " / " + b, key.equals(p.keyText(b)), p.isKey(key, b));
+			}
+		}
+		// A key that only starts with the row's is a different key
+		assertFalse(p.isKey("5, x, 1.5, 1", "5, 'x', 1.5"));
+		assertFalse(p.isKey("5, x", "5, 'x', 1.5"));
+	}
+
+	@Test
+	public void hotKeyIsSpread() throws Exception {
+		HashPartition p = new HashPartition(NODES, "id INTEGER, name CHAR", "name", null);
+		Set<String> hotNodes = new HashSet<String>();
+		for(int i = 0; i < 4000; i++) {
+			hotNodes.add(p.chooseInsertNode(i + ", 'hot'"));
+			p.chooseInsertNode(i + ", 'k" + i + "'");
+		}
+		assertTrue(p.takeHotKeysChanged());
+		assertTrue(hotNodes.size() > 1);
+		// Its rows are looked for wherever they were put
+		assertTrue(p.chooseSelectNode("name = 'hot'").containsAll(hotNodes));
+		assertEquals(1, p.chooseSelectNode("name = 'k7'").size());
+		assertTrue(p.explain().contains("hot\t~"));
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(p);
+		out.close();
+		HashPartition loaded = (HashPartition) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+		assertEquals(p.explain(), loaded.explain());
+		assertEquals(p.chooseSelectNode("name = 'hot'"), loaded.chooseSelectNode("name = 'hot'"));
+		// Still found by its hash after loading
+		for(int i = 0; i < 100; i++) {
+			assertTrue(hotNodes.contains(loaded.chooseInsertNode(i + ", 'hot'")));
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package distributeddb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class NodeLoadTest {
+	@Test
+	public void countsHoldUpUnderParallelSends() throws Exception {
+		Thread[] threads = new Thread[8];
+		for(int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					for(int i = 0; i < 100000; i++) {
+						NodeLoad.sent("load-a");
+						NodeLoad.replied("load-a");
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread t: threads) {
+			t.join();
+		}
+		assertEquals(0, NodeLoad.outstanding("load-a"));
+		// More replies than sends don't go below none
+		NodeLoad.replied("load-a");
+		assertEquals(0, NodeLoad.outstanding("load-a"));
+	}
+
+	@Test
+	public void leastLoadedSkipsDownNodes() {
+		NodeLoad.sent("load-b");
+		NodeLoad.sent("load-c");
+		NodeLoad.sent("load-c");
+		NodeLoad.replied("load-c");
+		// Same outstanding, b was sent less overall
+		assertEquals("load-b", NodeLoad.leastLoaded(Arrays.asList("load-c", "load-b")));
+		NodeLoad.sent("load-b");
+		assertEquals("load-c", NodeLoad.leastLoaded(Arrays.asList("load-b", "load-c")));
+		NodeLoad.down("load-c");
+		assertEquals("load-b", NodeLoad.leastLoaded(Arrays.asList("load-b", "load-c")));
+		NodeLoad.down("load-b");
+		assertEquals("load-c", NodeLoad.leastLoaded(Arrays.asList("load-b", "load-c")));
+		NodeLoad.up("load-b");
+		NodeLoad.up("load-c");
+	}
+}
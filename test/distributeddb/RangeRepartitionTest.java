@@ -0,0 +1,72 @@
+package distributeddb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.apache.commons.logging.LogFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RangeRepartitionTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void readRowKeepsNewlinesInStrings() throws Exception {
+		BufferedReader in = new BufferedReader(new StringReader("1,7,'a\nb'\n\n2,NULL,'it''s'\n3,X'0A',''"));
+		assertEquals("1,7,'a\nb'", RangeRepartition.readRow(in));
+		assertEquals("2,NULL,'it''s'", RangeRepartition.readRow(in));
+		assertEquals("3,X'0A',''", RangeRepartition.readRow(in));
+		assertNull(RangeRepartition.readRow(in));
+	}
+
+	@Test
+	public void routingValuesSkipTheRowid() throws Exception {
+		TableSchema schema = new TableSchema("id INTEGER, code TEXT, b BLOB");
+		String[] dumped = TableSchema.splitValues("12,3,7,X'0A'");
+		// A number stored in a text attribute is routed as the text
+		assertEquals("3, '7', X'0A'", RangeRepartition.routingValues(dumped, schema));
+		dumped = TableSchema.splitValues("13,NULL,'a\nb',NULL");
+		assertEquals("NULL, 'a\nb', NULL", RangeRepartition.routingValues(dumped, schema));
+	}
+
+	@Test
+	public void movedRowsLeaveTheIndexAndFilter() throws Exception {
+		DDBPartitioner partitioner = new DDBPartitioner(new ArrayList<String>(Arrays.asList("n0", "n1")), LogFactory.getLog("test"), tmp.getRoot().getPath() + "/");
+		partitioner.parseQuery("create table t(id INTEGER, code TEXT) partition by range(id) (min:100,100:max)");
+		partitioner.parseQuery("create global index on t(code)");
+		partitioner.parseQuery("create bloom filter on t(code)");
+		for(int i = 0; i < 100; i++) {
+			partitioner.routeInsert("t", i + ", 'c" + (i % 10) + "'");
+		}
+		partitioner.routeInsert("t", "5, 'it''s'");
+		assertEquals(new HashSet<String>(Arrays.asList("code")), partitioner.filteredAttrs("t"));
+
+		// Rows 50 to 99 went to n1, the ones left on n0 still have every code but it's
+		File dump = tmp.newFile("dump");
+		FileWriter w = new FileWriter(dump);
+		w.write("1,50,'c0'\n2,55,'it''s'\n");
+		w.close();
+		partitioner.routeInsert("t", "150, 'c0'");
+		partitioner.routeInsert("t", "155, 'it''s'");
+		File left = tmp.newFile("left");
+		w = new FileWriter(left);
+		for(int i = 0; i < 10; i++) {
+			w.write(i + "," + i + ",'c" + i + "'\n");
+		}
+		w.close();
+		partitioner.movedOff("t", "n0", "code", RangeRepartition.values(dump, 2), RangeRepartition.values(left, 2));
+		assertEquals(new HashSet<String>(Arrays.asList("n0", "n1")), partitioner.parseQuery("select * from t where code = 'c0'").keySet());
+		assertEquals(new HashSet<String>(Arrays.asList("n1")), partitioner.parseQuery("select * from t where code = 'it''s'").keySet());
+		assertEquals(new HashSet<String>(Arrays.asList("n0")), partitioner.parseQuery("select * from t where code = 'c1'").keySet());
+	}
+}
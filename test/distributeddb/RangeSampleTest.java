@@ -0,0 +1,125 @@
+package distributeddb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RangeSampleTest {
+	private static List<String> row(String id) {
+		return Arrays.asList(id, "'abc'");
+	}
+
+	private static List<Range> ranges(int... bounds) {
+		List<Range> out = new ArrayList<Range>();
+		int lo = Integer.MIN_VALUE;
+		for(int b: bounds) {
+			out.add(new Range(lo, b));
+			lo = b;
+		}
+		out.add(new Range(lo, Integer.MAX_VALUE));
+		return out;
+	}
+
+	@Test
+	public void rangesHoldEqualBytes() {
+		RangeSample sample = new RangeSample(0, 1000);
+		for(int i = 1000; i >= 1; i--) {
+			sample.add(row(String.format("%04d", i)));
+		}
+		List<Range> r = sample.ranges(4);
+		assertEquals(4, r.size());
+		assertEquals(Integer.MIN_VALUE, r.get(0).getMin());
+		assertEquals(250, r.get(0).getMax());
+		assertEquals(500, r.get(1).getMax());
+		assertEquals(750, r.get(2).getMax());
+		assertEquals(Integer.MAX_VALUE, r.get(3).getMax());
+		for(int i = 1; i < r.size(); i++) {
+			assertEquals(r.get(i - 1).getMax(), r.get(i).getMin());
+		}
+	}
+
+	@Test
+	public void aValueIsNeverCut() {
+		RangeSample sample = new RangeSample(0, 100);
+		for(int i = 0; i < 100; i++) {
+			sample.add(row(i < 90 ? "7" : "8"));
+		}
+		// 7 has most of the bytes, it takes a range of its own and 8 the rest
+		List<Range> r = sample.ranges(4);
+		assertEquals(2, r.size());
+		assertEquals(7, r.get(0).getMax());
+
+		sample = new RangeSample(0, 100);
+		for(int i = 0; i < 100; i++) {
+			sample.add(row("7"));
+		}
+		r = sample.ranges(3);
+		assertEquals(1, r.size());
+		assertEquals(Integer.MIN_VALUE, r.get(0).getMin());
+		assertEquals(Integer.MAX_VALUE, r.get(0).getMax());
+	}
+
+	@Test
+	public void sampleStaysWithinItsSize() {
+		RangeSample sample = new RangeSample(0, 10);
+		for(int i = 0; i < 1000; i++) {
+			sample.add(row(Integer.toString(i)));
+		}
+		sample.add(row("'x'"));
+		sample.add(Arrays.<String>asList());
+		// Rows that can't be routed aren't counted
+		assertEquals(1000, sample.seen());
+		assertEquals(10, sample.size());
+		List<Range> r = sample.ranges(2);
+		assertEquals(2, r.size());
+		assertTrue(r.get(0).getMax() >= 0 && r.get(0).getMax() < 1000);
+	}
+
+	@Test
+	public void hotRangeIsSplitAtItsMedian() throws Exception {
+		List<String> nodes = Arrays.asList("n0", "n1", "n2");
+		RangePartition p = new RangePartition(nodes, "id INTEGER, code TEXT", "id", ranges(1000, 2000));
+		NodeCounts counts = new NodeCounts(nodes);
+		counts.add("n1", 100);
+
+		// Not enough inserts to go on yet
+		for(int i = 0; i < RangePartition.MIN_SPLIT_ROWS - 1; i++) {
+			assertEquals("n0", p.chooseInsertNode((i % 1000) + ", 'a'"));
+		}
+		assertNull(p.planSplit(counts));
+
+		for(int i = 0; i < RangePartition.MIN_SPLIT_ROWS; i++) {
+			p.chooseInsertNode((i % 1000) + ", 'a'");
+		}
+		RangePartition.Split s = p.planSplit(counts);
+		// The sample is random, its median is somewhere near the middle
+		assertTrue(s.toString(), s.min > 400 && s.min < 600);
+		assertEquals(1000, s.max);
+		assertEquals("n0", s.from);
+		assertEquals("n2", s.to);
+		assertEquals("id > " + s.min + " and id <= 1000", s.where());
+		assertEquals("n0", s.after.chooseInsertNode(s.min + ", 'a'"));
+		assertEquals("n2", s.after.chooseInsertNode((s.min + 1) + ", 'a'"));
+		assertEquals("n2", s.after.chooseInsertNode("1000, 'a'"));
+		assertEquals("n1", s.after.chooseInsertNode("1001, 'a'"));
+
+		// The inserts were checked, the same ones don't make it hot again
+		assertNull(p.planSplit(counts));
+	}
+
+	@Test
+	public void evenInsertsAreNotSplit() throws Exception {
+		List<String> nodes = Arrays.asList("n0", "n1", "n2");
+		RangePartition p = new RangePartition(nodes, "id INTEGER, code TEXT", "id", ranges(1000, 2000));
+		for(int i = 0; i < 3 * RangePartition.MIN_SPLIT_ROWS; i++) {
+			p.chooseInsertNode((i % 3000) + ", 'a'");
+		}
+		assertNull(p.planSplit(new NodeCounts(nodes)));
+	}
+}
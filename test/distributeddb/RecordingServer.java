@@ -0,0 +1,46 @@
+package distributeddb;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.channel.ChannelHandlerContext;
+
+/**
+ * Stands in for the nodes' connections, keeps what is sent to each node and
+ * answers every message with SUCCESS
+ */
+class RecordingServer extends TCPServer {
+	// "node: message" in the order they were sent
+	final List<String> sent;
+	private final LinkedList<String> waiting;
+	private String last;
+
+	RecordingServer() {
+		super(0, LogFactory.getLog(RecordingServer.class));
+		this.sent = new ArrayList<String>();
+		this.waiting = new LinkedList<String>();
+	}
+
+	@Override
+	public boolean sendHostMessage(String host, String msg) {
+		sent.add(host + ": " + msg);
+		waiting.add(host);
+		return true;
+	}
+
+	@Override
+	public List<Object> getNextMessage() {
+		last = waiting.removeFirst();
+		List<Object> resp = new ArrayList<Object>();
+		resp.add(null);
+		resp.add("SUCCESS");
+		return resp;
+	}
+
+	@Override
+	public String getHost(ChannelHandlerContext ctx) {
+		return last;
+	}
+}
@@ -0,0 +1,52 @@
+package distributeddb;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.apache.commons.logging.LogFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RouteInsertTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	/**
+	 * Once the JIT has settled routing a row allocates nothing, not for the
+	 * heavy hitter tracking of a hot key nor for the zone map
+	 */
+	@Test
+	public void routingDoesNotAllocate() throws Exception {
+		assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		DDBPartitioner partitioner = new DDBPartitioner(new ArrayList<String>(Arrays.asList("n0", "n1", "n2", "n3")), LogFactory.getLog("test"), tmp.getRoot().getPath() + "/");
+		partitioner.parseQuery("create table t(id INTEGER, name CHAR, v DECIMAL, note TEXT) partition by hash(id, name)");
+		String[] rows = new String[4096];
+		for(int i = 0; i < rows.length; i++) {
+			// A quarter of the rows have the same key
+			rows[i] = i % 4 == 0 ? "7, 'hot', 1.5, 'x'" : i + ", 'k" + i + "', " + i + ".25, 'it''s " + i + "'";
+		}
+		int n = 400000;
+		route(partitioner, rows, n);
+		long id = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(id);
+		route(partitioner, rows, n);
+		long perRow = (threads.getThreadAllocatedBytes(id) - before) / n;
+		assertTrue(perRow + " bytes a row", perRow == 0);
+		assertTrue(partitioner.explain().contains("7, hot\t~"));
+	}
+
+	private static void route(DDBPartitioner partitioner, String[] rows, int n) throws Exception {
+		for(int i = 0; i < n; i++) {
+			partitioner.routeInsert("t", rows[i % rows.length]);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package distributeddb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class WhereClauseTest {
+	@Test
+	public void equalsAreFoundOutsideQuotes() {
+		WhereClause w = WhereClause.parse("where t.a = 5 and b = 'x and y = 1' order by a limit 3");
+		assertEquals("5", w.getEquals("a"));
+		assertEquals("'x and y = 1'", w.getEquals("B"));
+		assertNull(w.getEquals("y"));
+		// Only a literal is known before the row is
+		assertNull(WhereClause.parse("a = b").getEquals("a"));
+		assertNull(WhereClause.parse("a = abs(-5)").getEquals("a"));
+	}
+
+	@Test
+	public void orCantBePruned() {
+		WhereClause w = WhereClause.parse("a = 5 or a = 6");
+		assertNull(w.getEquals("a"));
+		assertTrue(w.getPredicates("a").isEmpty());
+		// Unless it's in a string
+		assertEquals("'x or y'", WhereClause.parse("b = 'x or y' and a = 1").getEquals("b"));
+	}
+
+	@Test
+	public void betweenIsTwoBounds() {
+		List<WhereClause.Predicate> preds = WhereClause.parse("a between 3 and 9 and c < 2").getPredicates("a");
+		assertEquals(2, preds.size());
+		assertEquals(">=", preds.get(0).op);
+		assertEquals("3", preds.get(0).value);
+		assertEquals("<=", preds.get(1).op);
+		assertEquals("9", preds.get(1).value);
+	}
+
+	@Test
+	public void inListsOfLiteralsOnly() {
+		assertEquals(Arrays.asList("1", "'a,b'", "3"), WhereClause.parse("a in (1, 'a,b', 3)").getIn("a"));
+		assertNull(WhereClause.parse("a in (1, b)").getIn("a"));
+		assertNull(WhereClause.parse("a in (select a from u)").getIn("a"));
+	}
+
+	@Test
+	public void compositeKeyNeedsEveryAttribute() throws Exception {
+		HashPartition p = new HashPartition(Arrays.asList("n0", "n1", "n2", "n3"), "a INTEGER, b CHAR, c DECIMAL", "a, b", null);
+		String node = p.chooseInsertNode("7, 'x', 1.5");
+		assertEquals(Arrays.asList(node), p.chooseSelectNode("where b = 'x' and a = 7 and c > 1"));
+		assertEquals(4, p.chooseSelectNode("where a = 7").size());
+		assertEquals(4, p.chooseSelectNode("where a = 7 or b = 'x'").size());
+	}
+}
@@ -0,0 +1,47 @@
+package distributeddb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ZoneMapTest {
+	@Test
+	public void valuesAreReadInPlace() throws Exception {
+		ZoneMap z = new ZoneMap("id INTEGER, name TEXT, v REAL, b BLOB");
+		z.add("12, 'zz', 0.1, X'00'", "n0");
+		z.add("-3,'a''b', '1e3', NULL", "n0");
+		z.add("7, NULL, 2.5, abs(-1)", "n0");
+		z.add("1, 'm', 0.30000000000000004", "n1");
+		z.add("abs(-1), name, 123456789012345678, NULL", "n1");
+		assertEquals("\tZone map n0: id [-3.0, 12.0] name ['a''b', 'zz'] v [0.1, 1000.0]\n"
+				+ "\tZone map n1: id ? name ? v [0.30000000000000004, 1.2345678901234568E17]\n", explain(z));
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(z);
+		out.close();
+		ZoneMap loaded = (ZoneMap) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+		assertEquals(explain(z), explain(loaded));
+		assertEquals(Arrays.asList("n1"), loaded.prune(WhereClause.parse("name > 'zz'"), Arrays.asList("n0", "n1")));
+		loaded.add("0, 'zzz', 0", "n0");
+		assertEquals(Arrays.asList("n0", "n1"), loaded.prune(WhereClause.parse("name > 'zz'"), Arrays.asList("n0", "n1")));
+		assertEquals(Arrays.asList("n1"), z.prune(WhereClause.parse("v > 1000"), Arrays.asList("n0", "n1")));
+	}
+
+	// The nodes come out in hash order
+	private static String explain(ZoneMap z) {
+		String[] lines = z.explain().split("\n");
+		Arrays.sort(lines);
+		String out = "";
+		for(String l: lines) {
+			out += l + "\n";
+		}
+		return out;
+	}
+}